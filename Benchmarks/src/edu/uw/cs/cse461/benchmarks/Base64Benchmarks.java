@@ -0,0 +1,93 @@
+package edu.uw.cs.cse461.benchmarks;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import edu.uw.cs.cse461.util.Base64;
+
+/**
+ * Base64 encoding and decoding, at sizes from a small message up to the largest DataXferRPC transfer.
+ * (Base64 is how binary data crosses an RPC connection that uses the JSON encoding.)
+ *
+ * @author zahorjan
+ *
+ */
+public class Base64Benchmarks {
+	static final int[] SIZES = { 1024, 64 * 1024, 1024 * 1024, 14000000 };
+
+	public static List<Benchmark> benchmarks() {
+		List<Benchmark> result = new ArrayList<Benchmark>();
+		for ( int size : SIZES ) result.add(new Encode(size));
+		for ( int size : SIZES ) result.add(new Decode(size));
+		return result;
+	}
+
+	static byte[] randomBytes(int size) {
+		byte[] data = new byte[size];
+		new Random(size).nextBytes(data);
+		return data;
+	}
+
+	private static class Encode extends Benchmark {
+		private final int mSize;
+		private byte[] mData;
+
+		Encode(int size) {
+			super("base64.encodeBytes");
+			param("size", size);
+			mSize = size;
+		}
+
+		@Override
+		public long bytesPerOp() {
+			return mSize;
+		}
+
+		@Override
+		public void setUp() {
+			mData = randomBytes(mSize);
+		}
+
+		@Override
+		public void tearDown() {
+			mData = null;
+		}
+
+		@Override
+		public int op() {
+			return Base64.encodeBytes(mData).length();
+		}
+	}
+
+	private static class Decode extends Benchmark {
+		private final int mSize;
+		private String mEncoded;
+
+		Decode(int size) {
+			super("base64.decode");
+			param("size", size);
+			mSize = size;
+		}
+
+		@Override
+		public long bytesPerOp() {
+			return mSize;
+		}
+
+		@Override
+		public void setUp() {
+			mEncoded = Base64.encodeBytes(randomBytes(mSize));
+		}
+
+		@Override
+		public void tearDown() {
+			mEncoded = null;
+		}
+
+		@Override
+		public int op() throws Exception {
+			return Base64.decode(mEncoded).length;
+		}
+	}
+}
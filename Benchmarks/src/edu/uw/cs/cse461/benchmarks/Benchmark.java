@@ -0,0 +1,75 @@
+package edu.uw.cs.cse461.benchmarks;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * One measurable operation, run over and over by the BenchmarkRunner.
+ * <p>
+ * Subclasses implement op(), which performs the operation once.  Its return value should depend on the
+ * result of the operation (a length, say), so that the JIT can't decide the work is unused and skip it.
+ * Work that shouldn't be measured (building inputs, opening sockets) belongs in setUp() and tearDown().
+ *
+ * @author zahorjan
+ *
+ */
+public abstract class Benchmark {
+	private final String mName;
+	private final Map<String,String> mParams = new LinkedHashMap<String,String>();
+
+	protected Benchmark(String name) {
+		mName = name;
+	}
+
+	/**
+	 * Records a parameter of this benchmark (e.g., a message size), reported with its results.
+	 * @return this, for chaining
+	 */
+	public Benchmark param(String key, Object value) {
+		mParams.put(key, String.valueOf(value));
+		return this;
+	}
+
+	public String name() {
+		return mName;
+	}
+
+	public Map<String,String> params() {
+		return mParams;
+	}
+
+	/**
+	 * The name plus parameter values, e.g. "base64.encode[size=1024]".
+	 */
+	public String fullName() {
+		if ( mParams.isEmpty() ) return mName;
+		StringBuilder sb = new StringBuilder(mName).append('[');
+		for ( Map.Entry<String,String> param : mParams.entrySet() ) {
+			if ( sb.charAt(sb.length()-1) != '[' ) sb.append(',');
+			sb.append(param.getKey()).append('=').append(param.getValue());
+		}
+		return sb.append(']').toString();
+	}
+
+	/**
+	 * The number of payload bytes one op() handles, or 0 if a throughput figure makes no sense.
+	 */
+	public long bytesPerOp() {
+		return 0;
+	}
+
+	public void setUp() throws Exception {}
+
+	public void tearDown() throws Exception {}
+
+	/**
+	 * Performs the operation being measured once.
+	 * @return Some value computed from the result of the operation
+	 */
+	public abstract int op() throws Exception;
+
+	@Override
+	public String toString() {
+		return fullName();
+	}
+}
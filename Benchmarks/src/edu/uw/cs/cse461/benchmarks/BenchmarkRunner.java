@@ -0,0 +1,329 @@
+package edu.uw.cs.cse461.benchmarks;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.CommandLineParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.PosixParser;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.json.JSONTokener;
+
+import edu.uw.cs.cse461.net.base.NetBase;
+import edu.uw.cs.cse461.net.base.NetBaseConsole;
+import edu.uw.cs.cse461.net.rpc.RPCMessageBenchmarks;
+import edu.uw.cs.cse461.net.tcpmessagehandler.FramingBenchmarks;
+import edu.uw.cs.cse461.util.ConfigManager;
+import edu.uw.cs.cse461.util.IPFinder;
+import edu.uw.cs.cse461.util.Log;
+
+/**
+ * Runs the benchmarks of the hot paths -- message framing, RPC message decoding, Base64, and RPC round trips --
+ * non-interactively, and optionally writes the results as JSON and compares them with an earlier run's.
+ * <p>
+ * Each benchmark is run for some number of warmup iterations, whose results are discarded, and then
+ * for some number of measurement iterations.  An iteration runs the benchmark's operation repeatedly
+ * for a fixed length of time, and its score is the mean time per operation, in nsec.  A benchmark's
+ * score is the mean of its iterations' scores, and its error the standard deviation of those.
+ * <p>
+ * The results file is laid out like JMH's JSON output (one object per benchmark, with a primaryMetric
+ * holding score, scoreError, scoreUnit and rawData), so it can be fed to the same tools.  Given a baseline
+ * results file, the runner reports each benchmark whose score got worse by more than the allowed
+ * percentage, and exits with status 1 if there are any.
+ * <p>
+ * The RPC benchmarks need a NetBase, which is booted from the config file (by default, benchmark.config.ini
+ * in the current directory).
+ *
+ * @author zahorjan
+ *
+ */
+public class BenchmarkRunner {
+	private static final String TAG="BenchmarkRunner";
+
+	private static final long MIN_BATCH_NANOS = 1000000;  // ops are run in batches taking at least this long
+	private static final int MAX_BATCH = 1 << 20;
+
+	private final int mWarmupIterations;
+	private final int mIterations;
+	private final int mIterationTime;
+
+	private volatile int mSink;  // op() results are folded into this, so they're never dead code
+
+	/**
+	 * @param warmupIterations Number of iterations run before measuring
+	 * @param iterations Number of iterations measured
+	 * @param iterationTime Length of an iteration, in msec.
+	 */
+	public BenchmarkRunner(int warmupIterations, int iterations, int iterationTime) {
+		mWarmupIterations = warmupIterations;
+		mIterations = iterations;
+		mIterationTime = iterationTime;
+	}
+
+	/**
+	 * All benchmarks, in the order they're run.
+	 */
+	public static List<Benchmark> allBenchmarks() {
+		List<Benchmark> result = new ArrayList<Benchmark>();
+		result.addAll(FramingBenchmarks.benchmarks());
+		result.addAll(RPCMessageBenchmarks.benchmarks());
+		result.addAll(Base64Benchmarks.benchmarks());
+		result.addAll(RPCBenchmarks.benchmarks());
+		return result;
+	}
+
+	/**
+	 * Runs one benchmark, including its setUp() and tearDown().
+	 * @return Its results, in the layout of the results file
+	 */
+	public JSONObject run(Benchmark benchmark) throws Exception {
+		benchmark.setUp();
+		try {
+			int batch = _calibrate(benchmark);
+			for ( int i=0; i<mWarmupIterations; i++ ) _iteration(benchmark, batch);
+
+			double[] scores = new double[mIterations];
+			for ( int i=0; i<mIterations; i++ ) {
+				long[] timeAndOps = _iteration(benchmark, batch);
+				scores[i] = (double)timeAndOps[0] / timeAndOps[1];
+			}
+			return _result(benchmark, scores);
+		} finally {
+			benchmark.tearDown();
+		}
+	}
+
+	/**
+	 * Finds a batch size large enough that timing a batch costs little compared to running it.
+	 */
+	private int _calibrate(Benchmark benchmark) throws Exception {
+		int batch = 1;
+		while ( batch < MAX_BATCH ) {
+			long start = System.nanoTime();
+			_batch(benchmark, batch);
+			if ( System.nanoTime() - start >= MIN_BATCH_NANOS ) break;
+			batch *= 2;
+		}
+		return batch;
+	}
+
+	/**
+	 * Runs batches of ops until the iteration time has passed.
+	 * @return The elapsed time, in nsec., and the number of ops run
+	 */
+	private long[] _iteration(Benchmark benchmark, int batch) throws Exception {
+		long start = System.nanoTime();
+		long end = start + mIterationTime * 1000000L;
+		long nOps = 0;
+		long now;
+		do {
+			_batch(benchmark, batch);
+			nOps += batch;
+			now = System.nanoTime();
+		} while ( now < end );
+		return new long[] { now - start, nOps };
+	}
+
+	private void _batch(Benchmark benchmark, int batch) throws Exception {
+		int sink = 0;
+		for ( int i=0; i<batch; i++ ) sink ^= benchmark.op();
+		mSink ^= sink;
+	}
+
+	private JSONObject _result(Benchmark benchmark, double[] scores) throws JSONException {
+		double sum = 0.0;
+		for ( double score : scores ) sum += score;
+		double mean = sum / scores.length;
+		double squares = 0.0;
+		for ( double score : scores ) squares += (score - mean) * (score - mean);
+		double stddev = scores.length > 1 ? Math.sqrt(squares / (scores.length - 1)) : 0.0;
+
+		JSONArray rawData = new JSONArray();
+		for ( double score : scores ) rawData.put(score);
+		JSONObject metric = new JSONObject().put("score", mean)
+		                                    .put("scoreError", stddev)
+		                                    .put("scoreUnit", "ns/op")
+		                                    .put("rawData", new JSONArray().put(rawData));
+		JSONObject params = new JSONObject();
+		for ( Map.Entry<String,String> param : benchmark.params().entrySet() ) params.put(param.getKey(), param.getValue());
+
+		JSONObject result = new JSONObject().put("benchmark", benchmark.name())
+		                                    .put("mode", "avgt")
+		                                    .put("warmupIterations", mWarmupIterations)
+		                                    .put("measurementIterations", mIterations)
+		                                    .put("measurementTime", mIterationTime + " ms")
+		                                    .put("primaryMetric", metric);
+		if ( params.length() > 0 ) result.put("params", params);
+		if ( benchmark.bytesPerOp() > 0 ) {
+			double mbPerSec = benchmark.bytesPerOp() / mean * 1000.0;  // bytes per nsec. * 1000 = MB/sec.
+			result.put("secondaryMetrics", new JSONObject().put("throughput", new JSONObject().put("score", mbPerSec).put("scoreUnit", "MB/s")));
+		}
+		return result;
+	}
+
+	/**
+	 * The name of the benchmark a results file entry is for, with its parameters.  (JSONObject doesn't
+	 * keep key order, so unlike Benchmark.fullName() this lists the parameters in sorted order.)
+	 */
+	private static String _fullName(JSONObject result) throws JSONException {
+		StringBuilder sb = new StringBuilder(result.getString("benchmark"));
+		JSONObject params = result.optJSONObject("params");
+		if ( params == null ) return sb.toString();
+		sb.append('[');
+		JSONArray names = params.names();
+		List<String> keys = new ArrayList<String>();
+		for ( int i=0; i<names.length(); i++ ) keys.add(names.getString(i));
+		Collections.sort(keys);
+		for ( String key : keys ) {
+			if ( sb.charAt(sb.length()-1) != '[' ) sb.append(',');
+			sb.append(key).append('=').append(params.getString(key));
+		}
+		return sb.append(']').toString();
+	}
+
+	/**
+	 * Compares results with a baseline's.
+	 * @param maxRegression Allowed increase in a score, in percent
+	 * @return The number of benchmarks whose scores increased by more than that
+	 */
+	static int compare(JSONArray results, JSONArray baseline, double maxRegression) throws JSONException {
+		Map<String,Double> baseScores = new HashMap<String,Double>();
+		for ( int i=0; i<baseline.length(); i++ ) {
+			JSONObject result = baseline.getJSONObject(i);
+			baseScores.put(_fullName(result), result.getJSONObject("primaryMetric").getDouble("score"));
+		}
+		int nRegressions = 0;
+		for ( int i=0; i<results.length(); i++ ) {
+			JSONObject result = results.getJSONObject(i);
+			String name = _fullName(result);
+			Double base = baseScores.get(name);
+			if ( base == null || base <= 0.0 ) continue;
+			double score = result.getJSONObject("primaryMetric").getDouble("score");
+			double change = (score - base) / base * 100.0;
+			String verdict = change > maxRegression ? "REGRESSION" : "ok";
+			if ( change > maxRegression ) nRegressions++;
+			System.out.println(String.format("%-55s %12.1f -> %12.1f ns/op  %+6.1f%%  %s", name, base, score, change, verdict));
+		}
+		return nRegressions;
+	}
+
+	private static JSONArray _readResults(File file) throws IOException, JSONException {
+		FileReader reader = new FileReader(file);
+		try {
+			return new JSONArray(new JSONTokener(reader));
+		} finally {
+			reader.close();
+		}
+	}
+
+	private static void _bootNetBase(File configFile) throws Exception {
+		ConfigManager configMgr = new ConfigManager(new FileInputStream(configFile));
+		configMgr.setProperty("config.directory", configFile.getAbsoluteFile().getParent());
+		Log.configure(configMgr, Log.DebugLevel.WARN.toInt());
+		IPFinder.setIP(configMgr.getProperty("net.host.ip", "localhost"));
+		new NetBaseConsole(configMgr);
+	}
+
+	public static void main(String[] args) {
+		int status = 0;
+		try {
+			Options options = new Options();
+			options.addOption("f", "configfile", true, "Path name of config file (Default: benchmark.config.ini)");
+			options.addOption("b", "benchmarks", true, "Run only benchmarks whose names match this regular expression");
+			options.addOption("w", "warmup", true, "Number of warmup iterations (Default: 3)");
+			options.addOption("i", "iterations", true, "Number of measurement iterations (Default: 5)");
+			options.addOption("t", "time", true, "Length of an iteration, in msec. (Default: 1000)");
+			options.addOption("o", "output", true, "Write results to this file, as JSON");
+			options.addOption("c", "compare", true, "Compare results with those in this file (written by -o)");
+			options.addOption("r", "regression", true, "Percentage increase in a score counted as a regression (Default: 10)");
+			options.addOption("l", "list", false, "List the benchmarks and exit");
+			options.addOption("H", "help", false, "Print this message");
+
+			CommandLineParser parser = new PosixParser();
+			CommandLine line = parser.parse(options, args);
+			if ( line.hasOption("help") ) {
+				HelpFormatter formatter = new HelpFormatter();
+				formatter.printHelp("java BenchmarkRunner", options );
+				return;
+			}
+
+			List<Benchmark> benchmarks = allBenchmarks();
+			if ( line.hasOption("benchmarks") ) {
+				Pattern pattern = Pattern.compile(line.getOptionValue("benchmarks"));
+				List<Benchmark> selected = new ArrayList<Benchmark>();
+				for ( Benchmark benchmark : benchmarks ) {
+					if ( pattern.matcher(benchmark.fullName()).find() ) selected.add(benchmark);
+				}
+				benchmarks = selected;
+			}
+			if ( line.hasOption("list") ) {
+				for ( Benchmark benchmark : benchmarks ) System.out.println(benchmark.fullName());
+				return;
+			}
+
+			File configFile = new File(line.getOptionValue("configfile", "benchmark.config.ini"));
+			if ( !configFile.canRead() ) {
+				System.err.println("Can't read config file " + configFile.getCanonicalPath());
+				System.exit(-1);
+			}
+			_bootNetBase(configFile);
+
+			BenchmarkRunner runner = new BenchmarkRunner(Integer.parseInt(line.getOptionValue("warmup", "3")),
+			                                             Math.max(1, Integer.parseInt(line.getOptionValue("iterations", "5"))),
+			                                             Math.max(1, Integer.parseInt(line.getOptionValue("time", "1000"))));
+			JSONArray results = new JSONArray();
+			try {
+				for ( Benchmark benchmark : benchmarks ) {
+					JSONObject result = runner.run(benchmark);
+					JSONObject metric = result.getJSONObject("primaryMetric");
+					String throughput = "";
+					if ( result.has("secondaryMetrics") ) {
+						throughput = String.format("  %9.1f MB/s", result.getJSONObject("secondaryMetrics").getJSONObject("throughput").getDouble("score"));
+					}
+					System.out.println(String.format("%-55s %12.1f +- %10.1f ns/op%s", benchmark.fullName(),
+					                                 metric.getDouble("score"), metric.getDouble("scoreError"), throughput));
+					results.put(result);
+				}
+			} finally {
+				NetBase.theNetBase().shutdown();
+			}
+
+			if ( line.hasOption("output") ) {
+				FileWriter writer = new FileWriter(line.getOptionValue("output"));
+				try {
+					writer.write(results.toString(2));
+					writer.write('\n');
+				} finally {
+					writer.close();
+				}
+			}
+
+			if ( line.hasOption("compare") ) {
+				JSONArray baseline = _readResults(new File(line.getOptionValue("compare")));
+				double maxRegression = Double.parseDouble(line.getOptionValue("regression", "10"));
+				int nRegressions = compare(results, baseline, maxRegression);
+				if ( nRegressions > 0 ) {
+					System.out.println(nRegressions + " benchmark(s) regressed by more than " + maxRegression + "%");
+					status = 1;
+				}
+			}
+		} catch (Exception e) {
+			Log.e(TAG, "Caught " + e.getClass().getName() + " exception: " + e.getMessage());
+			status = -1;
+		}
+		System.exit(status);
+	}
+}
@@ -0,0 +1,67 @@
+package edu.uw.cs.cse461.benchmarks;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.json.JSONObject;
+
+import edu.uw.cs.cse461.net.base.NetBase;
+import edu.uw.cs.cse461.net.rpc.RPCCall;
+import edu.uw.cs.cse461.net.rpc.RPCService;
+import edu.uw.cs.cse461.service.EchoRPCService;
+import edu.uw.cs.cse461.service.EchoServiceBase;
+import edu.uw.cs.cse461.util.IPFinder;
+
+/**
+ * Complete RPC round trips: RPCCall.invoke() of the echo service running in this process, over loopback.
+ * The NetBase the runner boots must be running RPCService, RPCCall and EchoRPCService.  Whether the
+ * binary encoding and compression are used is up to its config.
+ *
+ * @author zahorjan
+ *
+ */
+public class RPCBenchmarks {
+	static final int[] PAYLOAD_SIZES = { 16, 16 * 1024 };
+
+	public static List<Benchmark> benchmarks() {
+		List<Benchmark> result = new ArrayList<Benchmark>();
+		for ( int size : PAYLOAD_SIZES ) result.add(new Invoke(size));
+		return result;
+	}
+
+	private static class Invoke extends Benchmark {
+		private final int mSize;
+		private String mIP;
+		private int mPort;
+		private int mTimeout;
+		private JSONObject mArgs;
+
+		Invoke(int size) {
+			super("rpc.invoke");
+			param("payload", size);
+			mSize = size;
+		}
+
+		@Override
+		public void setUp() throws Exception {
+			RPCService rpcService = (RPCService)NetBase.theNetBase().getService("rpc");
+			if ( rpcService == null || NetBase.theNetBase().getService("echorpc") == null ) {
+				throw new Exception("rpc.invoke needs the rpc and echorpc services to be running");
+			}
+			mIP = IPFinder.localIP();
+			mPort = rpcService.localPort();
+			mTimeout = NetBase.theNetBase().config().getAsInt("net.timeout.socket", 5000);
+			char[] payload = new char[mSize];
+			Arrays.fill(payload, 'x');
+			mArgs = new JSONObject().put(EchoRPCService.HEADER_KEY, new JSONObject().put(EchoRPCService.HEADER_TAG_KEY, EchoServiceBase.HEADER_STR))
+			                        .put(EchoRPCService.PAYLOAD_KEY, new String(payload));
+		}
+
+		@Override
+		public int op() throws Exception {
+			JSONObject response = RPCCall.invoke(mIP, mPort, "echorpc", "echo", mArgs, mTimeout);
+			return response.getString(EchoRPCService.PAYLOAD_KEY).length();
+		}
+	}
+}
@@ -0,0 +1,85 @@
+package edu.uw.cs.cse461.net.rpc;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import edu.uw.cs.cse461.benchmarks.Benchmark;
+import edu.uw.cs.cse461.net.rpc.RPCMessage.RPCCallMessage.RPCInvokeMessage;
+
+/**
+ * Decoding of an incoming invoke message, as the callee does it: RPCMessage.unmarshall() of the message
+ * text for the JSON encoding, and RPCBinaryCodec.decode() followed by unmarshall() for the binary one.
+ * (This class is in the rpc package because both are package private.)
+ *
+ * @author zahorjan
+ *
+ */
+public class RPCMessageBenchmarks {
+	static final int[] PAYLOAD_SIZES = { 16, 1024, 64 * 1024 };
+
+	public static List<Benchmark> benchmarks() {
+		List<Benchmark> result = new ArrayList<Benchmark>();
+		for ( int size : PAYLOAD_SIZES ) result.add(new UnmarshallJSON(size));
+		for ( int size : PAYLOAD_SIZES ) result.add(new UnmarshallBinary(size));
+		return result;
+	}
+
+	/**
+	 * An echo invoke message with a payload of size chars.  Building one needs a NetBase.
+	 */
+	static RPCInvokeMessage invokeMessage(int size) throws JSONException {
+		char[] payload = new char[size];
+		Arrays.fill(payload, 'x');
+		JSONObject args = new JSONObject().put("header", new JSONObject().put("tag", "echo"))
+		                                  .put("payload", new String(payload));
+		return new RPCInvokeMessage("echorpc", "echo", args);
+	}
+
+	private static class UnmarshallJSON extends Benchmark {
+		private final int mSize;
+		private String mText;
+
+		UnmarshallJSON(int size) {
+			super("rpcmessage.unmarshall");
+			param("encoding", "json").param("payload", size);
+			mSize = size;
+		}
+
+		@Override
+		public void setUp() throws Exception {
+			mText = invokeMessage(mSize).marshall().toString();
+		}
+
+		@Override
+		public int op() throws Exception {
+			return RPCMessage.unmarshall(mText).id();
+		}
+	}
+
+	private static class UnmarshallBinary extends Benchmark {
+		private final int mSize;
+		private byte[] mEncoded;
+
+		UnmarshallBinary(int size) {
+			super("rpcmessage.unmarshall");
+			param("encoding", "binary").param("payload", size);
+			mSize = size;
+		}
+
+		@Override
+		public void setUp() throws Exception {
+			mEncoded = new RPCBinaryCodec().encode(invokeMessage(mSize), new ArrayList<ByteBuffer>());
+		}
+
+		@Override
+		public int op() throws Exception {
+			// a new codec each time, as the encoding defines its interned strings as it goes
+			return RPCMessage.unmarshall(new RPCBinaryCodec().decode(mEncoded)).id();
+		}
+	}
+}
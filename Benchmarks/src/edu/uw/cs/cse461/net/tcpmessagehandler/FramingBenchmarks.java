@@ -0,0 +1,111 @@
+package edu.uw.cs.cse461.net.tcpmessagehandler;
+
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+
+import edu.uw.cs.cse461.benchmarks.Benchmark;
+
+/**
+ * TCPMessageHandler's framing: the length header conversions, and sending and reading whole messages.
+ * (This class is in TCPMessageHandler's package so it can get at intToByte() and byteToInt().)
+ *
+ * @author zahorjan
+ *
+ */
+public class FramingBenchmarks {
+	static final int[] MESSAGE_SIZES = { 16, 1024, 64 * 1024, 1024 * 1024 };
+
+	public static List<Benchmark> benchmarks() {
+		List<Benchmark> result = new ArrayList<Benchmark>();
+		result.add(new Benchmark("framing.intToByte") {
+			private int mNext = 0;
+			@Override
+			public int op() {
+				return TCPMessageHandler.intToByte(mNext++)[0];
+			}
+		});
+		result.add(new Benchmark("framing.byteToInt") {
+			private final byte[][] mHeaders = new byte[16][];
+			private int mNext = 0;
+			@Override
+			public void setUp() {
+				for ( int i=0; i<mHeaders.length; i++ ) mHeaders[i] = TCPMessageHandler.intToByte(i * 100003);
+			}
+			@Override
+			public int op() {
+				return TCPMessageHandler.byteToInt(mHeaders[mNext++ & 15]);
+			}
+		});
+		for ( int size : MESSAGE_SIZES ) result.add(new RoundTrip(size));
+		return result;
+	}
+
+	/**
+	 * sendMessage() of a message over a loopback connection, and readMessageAsBytes() of the reply.
+	 * A thread on the other end of the connection reads each message and sends it back, so each op
+	 * is two sends and two reads.
+	 */
+	private static class RoundTrip extends Benchmark {
+		private final int mSize;
+		private byte[] mMessage;
+		private TCPMessageHandler mClient;
+		private TCPMessageHandler mServer;
+		private Thread mEchoThread;
+
+		RoundTrip(int size) {
+			super("framing.sendAndRead");
+			param("size", size);
+			mSize = size;
+		}
+
+		@Override
+		public long bytesPerOp() {
+			return 2L * mSize;
+		}
+
+		@Override
+		public void setUp() throws Exception {
+			mMessage = new byte[mSize];
+			ServerSocket serverSocket = new ServerSocket(0, 1, InetAddress.getByName("127.0.0.1"));
+			try {
+				Socket clientSocket = new Socket(serverSocket.getInetAddress(), serverSocket.getLocalPort());
+				clientSocket.setTcpNoDelay(true);
+				Socket serverSide = serverSocket.accept();
+				serverSide.setTcpNoDelay(true);
+				mClient = new TCPMessageHandler(clientSocket);
+				mServer = new TCPMessageHandler(serverSide);
+			} finally {
+				serverSocket.close();
+			}
+			mEchoThread = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						while ( true ) mServer.sendMessage(mServer.readMessageAsBytes());
+					} catch (Exception e) {
+						// the client closed the connection
+					}
+				}
+			}, "FramingBenchmarks echo");
+			mEchoThread.setDaemon(true);
+			mEchoThread.start();
+		}
+
+		@Override
+		public void tearDown() throws Exception {
+			mClient.close();
+			mEchoThread.join(1000);
+			mServer.close();
+			mMessage = null;
+		}
+
+		@Override
+		public int op() throws Exception {
+			mClient.sendMessage(mMessage);
+			return mClient.readMessageAsBytes().length;
+		}
+	}
+}
@@ -0,0 +1,377 @@
+package edu.uw.cs.cse461.consoleapps;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import org.json.JSONObject;
+
+import edu.uw.cs.cse461.net.base.NetBase;
+import edu.uw.cs.cse461.net.base.NetLoadable.NetLoadableConsoleApp;
+import edu.uw.cs.cse461.net.rpc.RPCCall;
+import edu.uw.cs.cse461.net.tcpmessagehandler.TCPMessageHandler;
+import edu.uw.cs.cse461.service.EchoRPCService;
+import edu.uw.cs.cse461.service.EchoServiceBase;
+import edu.uw.cs.cse461.util.ConfigManager;
+import edu.uw.cs.cse461.util.Log;
+import edu.uw.cs.cse461.util.SampledStatistic.ElapsedTime;
+import edu.uw.cs.cse461.util.SampledStatistic.ElapsedTimeInterval;
+
+/**
+ * A load generator for the echo services.  Unlike the ping apps, it asks no questions -- everything comes
+ * from the config file (or from -D options to ConsoleStart, which override it) -- and it keeps many requests
+ * in progress at once.  That makes it usable from scripts, e.g.
+ * <pre>
+ *   java ConsoleStart -f client.config.ini -D console.initialapp=loadgen -D loadgen.transport=rpc -D loadgen.server.port=46120
+ * </pre>
+ * Config file keys (defaults in parentheses):
+ * <ul>
+ * <li>loadgen.transport: udp, tcp, tcpmessagehandler or rpc (rpc).  udp and tcp talk to EchoRawService,
+ *     tcpmessagehandler to EchoTCPMessageHandlerService, and rpc to EchoRPCService.
+ * <li>loadgen.server.ip (net.server.ip) and loadgen.server.port: where the echo service is.
+ * <li>loadgen.mode: closed or open (closed).  In closed mode, loadgen.clients (8) clients each send a
+ *     request, wait for the response, and send the next.  In open mode, requests are started at a fixed
+ *     rate, loadgen.rate (100) per second, whether or not earlier ones have finished, by up to loadgen.clients
+ *     clients.  A request's latency is measured from when it should have started, so a server that falls
+ *     behind shows up as higher latency rather than as a lower request rate.
+ * <li>loadgen.warmup (2000) and loadgen.duration (10000): msec. of load before measuring starts, and then
+ *     msec. of load measured.
+ * <li>loadgen.payload (0): bytes echoed by each request.
+ * <li>loadgen.timeout (net.timeout.socket): msec. to wait for a response.
+ * </ul>
+ * Raw TCP requests use a connection each, as that's what EchoRawService expects; the other transports
+ * keep a connection (or socket) per client.
+ *
+ * @author zahorjan
+ *
+ */
+public class LoadGen extends NetLoadableConsoleApp {
+	private static final String TAG="LoadGen";
+
+	/**
+	 * The client side of one transport.  Each Client is used by one thread at a time.
+	 */
+	private static abstract class Client {
+		/**
+		 * Performs one echo request.
+		 * @throws Exception If it fails, or the response isn't the echo expected
+		 */
+		abstract void request() throws Exception;
+
+		void close() {}
+	}
+
+	// the ElapsedTime key latencies are recorded under
+	private static final String TIMER_KEY = "LoadGen_Latency";
+
+	private String mServerIP;
+	private int mServerPort;
+	private int mTimeout;
+	private byte[] mPayload;
+
+	public LoadGen() {
+		super("loadgen");
+	}
+
+	@Override
+	public void run() {
+		try {
+			ConfigManager config = NetBase.theNetBase().config();
+			String transport = config.getProperty("loadgen.transport", "rpc");
+			String mode = config.getProperty("loadgen.mode", "closed");
+			mServerIP = config.getProperty("loadgen.server.ip", config.getProperty("net.server.ip"));
+			mServerPort = config.getAsInt("loadgen.server.port", 0);
+			mTimeout = config.getAsInt("loadgen.timeout", config.getAsInt("net.timeout.socket", 5000), 1);
+			mPayload = new byte[config.getAsInt("loadgen.payload", 0, 0)];
+			Arrays.fill(mPayload, (byte)'x');
+			int nClients = config.getAsInt("loadgen.clients", 8, 1);
+			int rate = config.getAsInt("loadgen.rate", 100, 1);
+			int warmup = config.getAsInt("loadgen.warmup", 2000, 0);
+			int duration = config.getAsInt("loadgen.duration", 10000, 1);
+
+			if ( mServerIP == null || mServerPort <= 0 ) {
+				System.out.println("LoadGen needs loadgen.server.ip (or net.server.ip) and loadgen.server.port config values");
+				return;
+			}
+			if ( !Arrays.asList("udp", "tcp", "tcpmessagehandler", "rpc").contains(transport) ) {
+				System.out.println("Unknown loadgen.transport '" + transport + "'");
+				return;
+			}
+			if ( transport.equals("udp") && mPayload.length > 64 * 1024 - 1024 ) {
+				System.out.println("loadgen.payload is too large for udp");
+				return;
+			}
+
+			System.out.println(String.format("%s load on %s:%d, %s, payload %d bytes, warmup %d msec., duration %d msec.",
+			                                 transport, mServerIP, mServerPort,
+			                                 mode.equals("open") ? "open loop at " + rate + " requests/sec. by up to " + nClients + " clients"
+			                                                     : "closed loop with " + nClients + " clients",
+			                                 mPayload.length, warmup, duration));
+
+			ElapsedTime.clear();
+			long start = System.nanoTime();
+			long measureStart = start + warmup * 1000000L;
+			long end = measureStart + duration * 1000000L;
+			if ( mode.equals("open") ) _runOpen(transport, nClients, rate, measureStart, end);
+			else _runClosed(transport, nClients, measureStart, end);
+
+			ElapsedTimeInterval latencies = ElapsedTime.get(TIMER_KEY);
+			if ( latencies == null ) latencies = new ElapsedTimeInterval();
+			System.out.println(String.format("completed: %d  failed: %d  throughput: %.1f requests/sec.",
+			                                 latencies.nSamples(), latencies.nAborted(), latencies.nSamples() / (duration / 1000.0)));
+			if ( latencies.nSamples() > 0 ) {
+				System.out.println(String.format("latency (msec.): mean %.3f  p50 %.3f  p90 %.3f  p99 %.3f  p99.9 %.3f  max %.3f",
+				                                 latencies.mean(), latencies.p50(), latencies.p90(), latencies.p99(), latencies.p999(), latencies.max()));
+			}
+
+		} catch (Exception e) {
+			System.out.println("LoadGen.run() caught exception: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Each of nClients threads sends requests one after another until the end time.
+	 */
+	private void _runClosed(final String transport, int nClients, final long measureStart, final long end) throws InterruptedException {
+		List<Thread> threads = new ArrayList<Thread>();
+		for ( int i=0; i<nClients; i++ ) {
+			Thread thread = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					Client client = null;
+					try {
+						client = _newClient(transport);
+						long now;
+						while ( (now = System.nanoTime()) < end ) {
+							_request(client, now, measureStart, end);
+						}
+					} catch (Exception e) {
+						Log.e(TAG, "Client couldn't start: " + e.getMessage());
+					} finally {
+						if ( client != null ) client.close();
+					}
+				}
+			}, "LoadGen client " + i);
+			threads.add(thread);
+			thread.start();
+		}
+		for ( Thread thread : threads ) thread.join();
+	}
+
+	/**
+	 * Starts requests at rate per second until the end time, on a pool of nClients threads, each with its own client.
+	 */
+	private void _runOpen(final String transport, int nClients, int rate, final long measureStart, final long end) throws InterruptedException {
+		final List<Client> clients = new ArrayList<Client>();
+		final ThreadLocal<Client> threadClient = new ThreadLocal<Client>();
+		ExecutorService pool = Executors.newFixedThreadPool(nClients);
+		long interval = 1000000000L / rate;
+		long start = System.nanoTime();
+		try {
+			for ( long i=0; ; i++ ) {
+				final long intended = start + i * interval;
+				if ( intended >= end ) break;
+				long wait;
+				while ( (wait = intended - System.nanoTime()) > 0 ) LockSupport.parkNanos(wait);
+				pool.execute(new OpenRequest(intended) {
+					@Override
+					public void run() {
+						Client client = threadClient.get();
+						try {
+							if ( client == null ) {
+								client = _newClient(transport);
+								threadClient.set(client);
+								synchronized(clients) { clients.add(client); }
+							}
+						} catch (Exception e) {
+							Log.e(TAG, "Client couldn't start: " + e.getMessage());
+							if ( intended >= measureStart ) ElapsedTime.recordAbort(TIMER_KEY);
+							return;
+						}
+						_request(client, intended, measureStart, end);
+					}
+				});
+			}
+		} finally {
+			// requests started before the end are counted, so wait for them (but not forever)
+			pool.shutdown();
+			if ( !pool.awaitTermination(mTimeout + 1000L, TimeUnit.MILLISECONDS) ) {
+				// requests still queued never got a client; the server fell that far behind, so they count as failures
+				for ( Runnable task : pool.shutdownNow() ) {
+					if ( ((OpenRequest)task).mIntended >= measureStart ) ElapsedTime.recordAbort(TIMER_KEY);
+				}
+			}
+			synchronized(clients) {
+				for ( Client client : clients ) client.close();
+			}
+		}
+	}
+
+	/**
+	 * A request of the open mode, remembering when it was meant to start.
+	 */
+	private static abstract class OpenRequest implements Runnable {
+		final long mIntended;  // as System.nanoTime()
+
+		OpenRequest(long intended) {
+			mIntended = intended;
+		}
+	}
+
+	/**
+	 * Performs one request, recording its outcome if it was meant to start in the measured period.
+	 * @param started When the request was meant to start (as System.nanoTime())
+	 */
+	private void _request(Client client, long started, long measureStart, long end) {
+		boolean measured = started >= measureStart && started < end;
+		try {
+			client.request();
+			if ( measured ) ElapsedTime.record(TIMER_KEY, started);
+		} catch (Exception e) {
+			if ( measured ) ElapsedTime.recordAbort(TIMER_KEY);
+			Log.d(TAG, "Request failed: " + e.getMessage());
+		}
+	}
+
+	private Client _newClient(String transport) throws Exception {
+		if ( transport.equals("udp") ) return new UDPClient();
+		if ( transport.equals("tcp") ) return new TCPClient();
+		if ( transport.equals("tcpmessagehandler") ) return new TCPMessageHandlerClient();
+		return new RPCClient();
+	}
+
+	//---------------------------------------------------------------------------------------------------
+	// Transports
+	//---------------------------------------------------------------------------------------------------
+
+	/**
+	 * A datagram holding the header and payload, answered by one holding the okay response and payload.
+	 */
+	private class UDPClient extends Client {
+		private final DatagramSocket mSocket;
+		private final DatagramPacket mRequest;
+		private final byte[] mResponseBuf;
+
+		UDPClient() throws Exception {
+			mSocket = new DatagramSocket();
+			mSocket.setSoTimeout(mTimeout);
+			byte[] request = new byte[EchoServiceBase.HEADER_BYTES.length + mPayload.length];
+			System.arraycopy(EchoServiceBase.HEADER_BYTES, 0, request, 0, EchoServiceBase.HEADER_BYTES.length);
+			System.arraycopy(mPayload, 0, request, EchoServiceBase.HEADER_BYTES.length, mPayload.length);
+			mRequest = new DatagramPacket(request, request.length, new InetSocketAddress(mServerIP, mServerPort));
+			mResponseBuf = new byte[request.length + 1];
+		}
+
+		@Override
+		void request() throws Exception {
+			mSocket.send(mRequest);
+			DatagramPacket response = new DatagramPacket(mResponseBuf, mResponseBuf.length);
+			mSocket.receive(response);
+			_checkResponse(new String(mResponseBuf, 0, Math.min(response.getLength(), EchoServiceBase.RESPONSE_OKAY_STR.length())),
+			               response.getLength() - EchoServiceBase.RESPONSE_OKAY_STR.length());
+		}
+
+		@Override
+		void close() {
+			mSocket.close();
+		}
+	}
+
+	/**
+	 * A connection per request: send the header and payload and close the sending side, then read
+	 * until the server closes.
+	 */
+	private class TCPClient extends Client {
+		private final byte[] mBuf = new byte[8192];
+
+		@Override
+		void request() throws Exception {
+			Socket socket = new Socket(mServerIP, mServerPort);
+			try {
+				socket.setSoTimeout(mTimeout);
+				socket.setTcpNoDelay(true);
+				OutputStream os = socket.getOutputStream();
+				os.write(EchoServiceBase.HEADER_BYTES);
+				os.write(mPayload);
+				socket.shutdownOutput();
+				InputStream is = socket.getInputStream();
+				int headerLength = EchoServiceBase.RESPONSE_OKAY_STR.length();
+				byte[] header = new byte[headerLength];
+				int total = 0;
+				int len;
+				while ( (len = is.read(mBuf)) >= 0 ) {
+					if ( total < headerLength ) System.arraycopy(mBuf, 0, header, total, Math.min(len, headerLength - total));
+					total += len;
+				}
+				_checkResponse(new String(header, 0, Math.min(total, headerLength)), total - headerLength);
+			} finally {
+				socket.close();
+			}
+		}
+	}
+
+	/**
+	 * Header and payload messages on a connection kept open across requests (reopened after a failure).
+	 */
+	private class TCPMessageHandlerClient extends Client {
+		private TCPMessageHandler mHandler;
+
+		@Override
+		void request() throws Exception {
+			if ( mHandler == null ) {
+				mHandler = new TCPMessageHandler(new Socket(mServerIP, mServerPort));
+				mHandler.setTimeout(mTimeout);
+				mHandler.setNoDelay(true);
+			}
+			try {
+				mHandler.sendMessage(EchoServiceBase.HEADER_STR);
+				mHandler.sendMessage(mPayload);
+				String header = mHandler.readMessageAsString();
+				_checkResponse(header, mHandler.readMessageAsBytes().length);
+			} catch (Exception e) {
+				close();
+				throw e;
+			}
+		}
+
+		@Override
+		void close() {
+			if ( mHandler != null ) mHandler.close();
+			mHandler = null;
+		}
+	}
+
+	/**
+	 * An RPC call of EchoRPCService's echo method.  RPCCall pools the connections.
+	 */
+	private class RPCClient extends Client {
+		private final JSONObject mArgs;
+
+		RPCClient() throws Exception {
+			mArgs = new JSONObject().put(EchoRPCService.HEADER_KEY, new JSONObject().put(EchoRPCService.HEADER_TAG_KEY, EchoRPCService.HEADER_STR))
+			                        .put(EchoRPCService.PAYLOAD_KEY, new String(mPayload));
+		}
+
+		@Override
+		void request() throws Exception {
+			JSONObject response = RPCCall.invoke(mServerIP, mServerPort, "echorpc", "echo", mArgs, mTimeout);
+			JSONObject header = response.optJSONObject(EchoRPCService.HEADER_KEY);
+			_checkResponse(header == null ? null : header.optString(EchoRPCService.HEADER_TAG_KEY), response.optString(EchoRPCService.PAYLOAD_KEY).length());
+		}
+	}
+
+	private void _checkResponse(String header, int payloadLength) throws Exception {
+		if ( header == null || !header.equalsIgnoreCase(EchoServiceBase.RESPONSE_OKAY_STR) ) throw new Exception("Bad response header: '" + header + "'");
+		if ( payloadLength != mPayload.length ) throw new Exception("Bad response payload length: got " + payloadLength + " but expected " + mPayload.length);
+	}
+}
@@ -6,6 +6,7 @@ import java.util.List;
 
 import edu.uw.cs.cse461.net.base.NetBase;
 import edu.uw.cs.cse461.net.base.NetLoadable.NetLoadableConsoleApp;
+import edu.uw.cs.cse461.util.Log;
 
 /**
  * An AppManager acts someting like a shell on a traditional system - it lets
@@ -44,6 +45,8 @@ public class AppManager extends NetLoadableConsoleApp {
 
 		// sit in loop reading user input and executing apps
 		while (true) {
+			// so that the last app's log messages come before the prompt, not after it
+			Log.flush();
 			System.out.print("Select application (empty for list, exit to exit)> ");
 			String appName = console.readLine();
 			if ( appName == null ) break; // EOF reached (via ^d in Eclipse, at least)
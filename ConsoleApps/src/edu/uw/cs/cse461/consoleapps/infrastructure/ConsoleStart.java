@@ -47,6 +47,7 @@ public abstract class ConsoleStart implements NetBaseInterface {
 			options.addOption("d", "configdir", true, "Config file directory (Default: " + configDir + ")");
 			options.addOption("f", "configfile", true, "Path name of config file");
 			options.addOption("h", "hostname", true, "Specify hostname.  (Overrides any value in config file.)");
+			options.addOption("D", "define", true, "Set a config property, as name=value.  (Overrides any value in config file.  May be repeated.)");
 			options.addOption("H", "help", false, "Print this message");
 
 			CommandLineParser parser = new PosixParser();
@@ -137,6 +138,18 @@ public abstract class ConsoleStart implements NetBaseInterface {
 			// Override the config's net.host.name property with the hostname specified as a command line argument
 			if ( line.hasOption("hostname") ) configMgr.setProperty("net.host.name", line.getOptionValue("hostname"));
 			
+			// Override config properties set by -D name=value options (so that apps can be driven from scripts)
+			if ( line.hasOption("define") ) {
+				for ( String define : line.getOptionValues("define") ) {
+					int eq = define.indexOf('=');
+					if ( eq <= 0 ) {
+						System.err.println("Bad -D option '" + define + "': should be name=value");
+						System.exit(-1);
+					}
+					configMgr.setProperty(define.substring(0, eq).trim(), define.substring(eq+1).trim());
+				}
+			}
+			
 			// Save the directory we found the config file in in the config itself.  (Used by DDNSService to locate ddns.nodefile.)
 			configMgr.setProperty("config.directory", configFile.getParent() );
 			
@@ -144,10 +157,11 @@ public abstract class ConsoleStart implements NetBaseInterface {
 			// Initialize Logging
 			//------------------------------------------------------------------------
 			
-			int showDebug = configMgr.getAsInt("debug.enable", 1);
-			Log.setShowLog(showDebug != 0);
-			int debugLevel = configMgr.getAsInt("debug.level", Log.DebugLevel.DEBUG.toInt());
-			Log.setLevel(debugLevel);
+			Log.configure(configMgr, Log.DebugLevel.DEBUG.toInt());
+			
+			// Pick up edits to the config file while running (0 means don't)
+			int reloadInterval = configMgr.getAsInt("net.config.reload", 5000, 0);
+			if ( reloadInterval > 0 ) configMgr.watch(configFile, reloadInterval);
 
 			//------------------------------------------------------------------------
 			// Initialize IPFinder
@@ -101,6 +101,9 @@ public class DataXferRPC extends NetLoadableConsoleApp implements DataXferInterf
 						               "' but wanted a JSONOBject with key '" + DataXferRPCService.HEADER_TAG_KEY + "' and string value '" +
 						               DataXferServiceBase.RESPONSE_OKAY_STR + "'");
 
+			// binary attachments arrive as byte[]; a callee that only speaks JSON sends Base64
+			Object data = response.get("data");
+			if ( data instanceof byte[] ) return (byte[])data;
 			return Base64.decode(response.getString("data"));
 		} catch (Exception e) {
 			throw new Exception ("Exception: " + e.getMessage());
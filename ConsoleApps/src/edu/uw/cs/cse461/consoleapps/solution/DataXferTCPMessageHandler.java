@@ -106,11 +106,11 @@ public class DataXferTCPMessageHandler extends NetLoadableConsoleApp implements
 		} else {
 			
 			// read the messages if the request amount of data is >= PACKET_SIZE bytes
+			// messages are read straight into totalBuf, with no per-message array
 			for(int i = 0; i < xferLength/PACKET_SIZE; i++){
-				byte[] buf = tcpHandler.readMessageAsBytes();
-				if (buf.length > 0){
-					totalBuf.put(buf);
-					dataLength += buf.length;
+				int len = tcpHandler.readMessageInto(totalBuf);
+				if (len > 0){
+					dataLength += len;
 				}else{
 					TransferRate.abort("tcp", xferLength);
 					System.out.println("Bad response: got " + dataLength + " data but expected " + xferLength + " data.");
@@ -119,11 +119,9 @@ public class DataXferTCPMessageHandler extends NetLoadableConsoleApp implements
 			
 			// read the first/last message if it's < PACKET_SIZE bytes
 			if (xferLength % PACKET_SIZE != 0){
-				byte[] buf = tcpHandler.readMessageAsBytes();
-				dataLength += buf.length;
-				if (buf.length == xferLength % PACKET_SIZE){
-					totalBuf.put(buf);
-				}else{
+				int len = tcpHandler.readMessageInto(totalBuf);
+				dataLength += len;
+				if (len != xferLength % PACKET_SIZE){
 					TransferRate.abort("tcp", xferLength);
 				}
 			}
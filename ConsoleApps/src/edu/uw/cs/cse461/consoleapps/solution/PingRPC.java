@@ -57,7 +57,7 @@ public class PingRPC extends NetLoadableConsoleApp implements PingInterface{
 			}
 			
 			if ( tcpResult != null ) {
-				System.out.println("TCP: " + String.format("%.2f msec (%d failures)", tcpResult.mean(), tcpResult.nAborted()));
+				System.out.println("TCP: " + String.format("%.2f msec (p50 %.2f, p99 %.2f, max %.2f; %d failures)", tcpResult.mean(), tcpResult.p50(), tcpResult.p99(), tcpResult.max(), tcpResult.nAborted()));
 			}
 
 		} catch (Exception e) {
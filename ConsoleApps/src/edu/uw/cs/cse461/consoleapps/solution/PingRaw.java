@@ -93,8 +93,8 @@ public class PingRaw extends NetLoadableConsoleApp implements PingRawInterface {
 					tcpResult = tcpPing(EchoServiceBase.HEADER_BYTES, targetIP, targetTCPPort, socketTimeout, nTrials);
 				}
 
-				if ( udpResult != null ) System.out.println("UDP: " + String.format("%.2f msec (%d failures)", udpResult.mean(), udpResult.nAborted()));
-				if ( tcpResult != null ) System.out.println("TCP: " + String.format("%.2f msec (%d failures)", tcpResult.mean(), tcpResult.nAborted()));
+				if ( udpResult != null ) System.out.println("UDP: " + String.format("%.2f msec (p50 %.2f, p99 %.2f, max %.2f; %d failures)", udpResult.mean(), udpResult.p50(), udpResult.p99(), udpResult.max(), udpResult.nAborted()));
+				if ( tcpResult != null ) System.out.println("TCP: " + String.format("%.2f msec (p50 %.2f, p99 %.2f, max %.2f; %d failures)", tcpResult.mean(), tcpResult.p50(), tcpResult.p99(), tcpResult.max(), tcpResult.nAborted()));
 
 			} catch (Exception e) {
 				System.out.println("Exception: " + e.getMessage());
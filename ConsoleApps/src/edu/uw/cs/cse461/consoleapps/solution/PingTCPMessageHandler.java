@@ -136,7 +136,7 @@ public class PingTCPMessageHandler extends NetLoadableConsoleApp implements Ping
 					ElapsedTime.clear();
 					tcpResult = ping(EchoServiceBase.HEADER_STR, targetIP, targetTCPPort, socketTimeout, nTrials);
 				}
-				if ( tcpResult != null ) System.out.println("TCP: " + String.format("%.2f msec (%d failures)", tcpResult.mean(), tcpResult.nAborted()));
+				if ( tcpResult != null ) System.out.println("TCP: " + String.format("%.2f msec (p50 %.2f, p99 %.2f, max %.2f; %d failures)", tcpResult.mean(), tcpResult.p50(), tcpResult.p99(), tcpResult.max(), tcpResult.nAborted()));
 
 			} catch (Exception e) {
 				System.out.println("Exception: " + e.getMessage());
@@ -0,0 +1,374 @@
+package edu.uw.cs.cse461.net.base;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import edu.uw.cs.cse461.util.LatencyHistogram;
+
+/**
+ * Process-wide registry of named metrics -- counters, gauges, and latency histograms -- that the
+ * MetricsService exports in the Prometheus text format.
+ * <p>
+ * A metric is named by a name plus a set of label values, e.g. rpc_server_calls_total{service="echorpc",method="echo"}.
+ * The counter(), gauge(), and histogram() methods return the metric with the given name and labels, creating it
+ * if it doesn't exist yet, so every component that asks for the same metric gets the same object.  Looking a
+ * metric up builds a string, so code on a hot path should look its metrics up once and keep them.
+ * <p>
+ * Updating a metric takes no locks that other threads are likely to hold: counters and histograms are
+ * striped, each thread updating the stripe its id hashes to, and reads add up the stripes.
+ * <p>
+ * Metrics live as long as the process does.  Their values carry over a NetBase restart, as Prometheus
+ * expects of counters.
+ *
+ * @author zahorjan
+ *
+ */
+public class MetricsRegistry {
+	private static final MetricsRegistry theRegistry = new MetricsRegistry();
+
+	// quantiles reported for each histogram
+	private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+
+	// a power of two, about twice the number of processors
+	private static final int NSTRIPES = _stripeCount();
+	// counter stripes are this many longs apart, so that two of them don't share a cache line
+	private static final int COUNTER_STRIDE = 8;
+
+	private final ConcurrentHashMap<String, Family> mFamilies = new ConcurrentHashMap<String, Family>();
+
+	public static MetricsRegistry theRegistry() {
+		return theRegistry;
+	}
+
+	private static int _stripeCount() {
+		int count = 1;
+		while ( count < 2 * Runtime.getRuntime().availableProcessors() && count < 64 ) count *= 2;
+		return count;
+	}
+
+	/**
+	 * The stripe the calling thread updates.
+	 */
+	private static int _stripeIndex() {
+		// spread thread ids, which are usually consecutive, over the stripes
+		return (int)((Thread.currentThread().getId() * 0x9E3779B97F4A7C15L) >>> 32) & (NSTRIPES - 1);
+	}
+
+	//--------------------------------------------------------------------------------------------
+	// Metric types
+	//--------------------------------------------------------------------------------------------
+
+	/**
+	 * Base class of all metric types.
+	 */
+	public static abstract class Metric {
+		/**
+		 * Appends this metric's sample lines to sb.
+		 * @param labels The metric's labels, formatted as "{a="x",b="y"}", or "" if it has none
+		 */
+		abstract void write(StringBuilder sb, String name, String labels);
+	}
+
+	/**
+	 * A count that only goes up (e.g., calls made, bytes sent).
+	 */
+	public static class Counter extends Metric {
+		private final AtomicLongArray mStripes = new AtomicLongArray(NSTRIPES * COUNTER_STRIDE);
+
+		Counter() {}
+
+		public void inc() {
+			add(1);
+		}
+
+		/**
+		 * Adds n, which should not be negative.
+		 */
+		public void add(long n) {
+			mStripes.addAndGet(_stripeIndex() * COUNTER_STRIDE, n);
+		}
+
+		public long get() {
+			long sum = 0;
+			for ( int i=0; i<NSTRIPES; i++ ) sum += mStripes.get(i * COUNTER_STRIDE);
+			return sum;
+		}
+
+		@Override
+		void write(StringBuilder sb, String name, String labels) {
+			sb.append(name).append(labels).append(' ').append(get()).append('\n');
+		}
+	}
+
+	/**
+	 * A value that can go up and down (e.g., open connections).  Either set it, or subclass it and
+	 * override value() to compute the value when the metrics are read.
+	 */
+	public static class Gauge extends Metric {
+		private final AtomicLong mValue = new AtomicLong(0);
+
+		public Gauge() {}
+
+		public void set(long value) {
+			mValue.set(value);
+		}
+
+		public void add(long delta) {
+			mValue.addAndGet(delta);
+		}
+
+		public double value() {
+			return mValue.get();
+		}
+
+		@Override
+		void write(StringBuilder sb, String name, String labels) {
+			sb.append(name).append(labels).append(' ').append(_format(value())).append('\n');
+		}
+	}
+
+	/**
+	 * A distribution of durations, recorded in usec.  It's exported as a Prometheus summary, in seconds:
+	 * a few quantiles, plus the sum and count of everything recorded since the process started.
+	 */
+	public static class Histogram extends Metric {
+		// created when first used; a stripe is updated only while holding its lock
+		private final AtomicReferenceArray<LatencyHistogram> mStripes = new AtomicReferenceArray<LatencyHistogram>(NSTRIPES);
+
+		Histogram() {}
+
+		/**
+		 * Records one duration.
+		 * @param usec The duration, in usec.
+		 */
+		public void record(long usec) {
+			int index = _stripeIndex();
+			LatencyHistogram stripe = mStripes.get(index);
+			if ( stripe == null ) {
+				mStripes.compareAndSet(index, null, new LatencyHistogram());
+				stripe = mStripes.get(index);
+			}
+			synchronized(stripe) {
+				stripe.recordValue(usec);
+			}
+		}
+
+		/**
+		 * Records the time elapsed since startNanos, a value returned by System.nanoTime().
+		 */
+		public void recordSince(long startNanos) {
+			record((System.nanoTime() - startNanos) / 1000);
+		}
+
+		/**
+		 * Everything recorded so far, merged into a single histogram (in usec.).
+		 */
+		public LatencyHistogram snapshot() {
+			LatencyHistogram result = new LatencyHistogram();
+			for ( int i=0; i<NSTRIPES; i++ ) {
+				LatencyHistogram stripe = mStripes.get(i);
+				if ( stripe == null ) continue;
+				synchronized(stripe) {
+					result.add(stripe);
+				}
+			}
+			return result;
+		}
+
+		@Override
+		void write(StringBuilder sb, String name, String labels) {
+			LatencyHistogram h = snapshot();
+			// the quantile label goes in with any others
+			String prefix = labels.length() == 0 ? "{" : labels.substring(0, labels.length()-1) + ",";
+			for ( double q : QUANTILES ) {
+				sb.append(name).append(prefix).append("quantile=\"").append(q).append("\"} ")
+				  .append(_format(h.valueAtPercentile(100.0 * q) / 1e6)).append('\n');
+			}
+			sb.append(name).append("_sum").append(labels).append(' ').append(_format(h.mean() * h.totalCount() / 1e6)).append('\n');
+			sb.append(name).append("_count").append(labels).append(' ').append(h.totalCount()).append('\n');
+		}
+	}
+
+	/**
+	 * All the metrics with a given name, keyed by their formatted labels.
+	 */
+	private static class Family {
+		final String name;
+		final String help;
+		final String type;
+		final ConcurrentHashMap<String, Metric> metrics = new ConcurrentHashMap<String, Metric>();
+
+		Family(String name, String help, String type) {
+			this.name = name;
+			this.help = help;
+			this.type = type;
+		}
+	}
+
+	//--------------------------------------------------------------------------------------------
+	// Lookup
+	//--------------------------------------------------------------------------------------------
+
+	/**
+	 * Returns the counter with the given name and labels, creating it if need be.
+	 * @param help A description of the metric, used if this call creates it
+	 * @param labels Label names and values, alternating: "service", "echorpc", "method", "echo"
+	 */
+	public Counter counter(String name, String help, String... labels) {
+		Family family = _family(name, help, "counter");
+		String key = _formatLabels(labels);
+		Metric metric = family.metrics.get(key);
+		if ( metric == null ) {
+			Counter newCounter = new Counter();
+			metric = family.metrics.putIfAbsent(key, newCounter);
+			if ( metric == null ) metric = newCounter;
+		}
+		return (Counter)metric;
+	}
+
+	/**
+	 * Returns the gauge with the given name and labels, creating it if need be.
+	 */
+	public Gauge gauge(String name, String help, String... labels) {
+		Family family = _family(name, help, "gauge");
+		String key = _formatLabels(labels);
+		Metric metric = family.metrics.get(key);
+		if ( metric == null ) {
+			Gauge newGauge = new Gauge();
+			metric = family.metrics.putIfAbsent(key, newGauge);
+			if ( metric == null ) metric = newGauge;
+		}
+		return (Gauge)metric;
+	}
+
+	/**
+	 * Registers gauge under the given name and labels, replacing any gauge already there.  Used for
+	 * gauges that override value(): a service that is restarted registers a gauge reading the new instance.
+	 */
+	public Gauge gauge(String name, String help, Gauge gauge, String... labels) {
+		Family family = _family(name, help, "gauge");
+		family.metrics.put(_formatLabels(labels), gauge);
+		return gauge;
+	}
+
+	/**
+	 * Returns the histogram with the given name and labels, creating it if need be.  By Prometheus
+	 * convention, the name should end in _seconds.
+	 */
+	public Histogram histogram(String name, String help, String... labels) {
+		Family family = _family(name, help, "summary");
+		String key = _formatLabels(labels);
+		Metric metric = family.metrics.get(key);
+		if ( metric == null ) {
+			Histogram newHistogram = new Histogram();
+			metric = family.metrics.putIfAbsent(key, newHistogram);
+			if ( metric == null ) metric = newHistogram;
+		}
+		return (Histogram)metric;
+	}
+
+	/**
+	 * Removes the metric with the given name and labels, if there is one.
+	 */
+	public void remove(String name, String... labels) {
+		Family family = mFamilies.get(name);
+		if ( family != null ) family.metrics.remove(_formatLabels(labels));
+	}
+
+	private Family _family(String name, String help, String type) {
+		Family family = mFamilies.get(name);
+		if ( family == null ) {
+			if ( !_isValidName(name) ) throw new IllegalArgumentException("Bad metric name: '" + name + "'");
+			Family newFamily = new Family(name, help, type);
+			family = mFamilies.putIfAbsent(name, newFamily);
+			if ( family == null ) family = newFamily;
+		}
+		if ( !family.type.equals(type) ) throw new IllegalArgumentException("Metric " + name + " is a " + family.type + ", not a " + type);
+		return family;
+	}
+
+	//--------------------------------------------------------------------------------------------
+	// Export
+	//--------------------------------------------------------------------------------------------
+
+	/**
+	 * All the metrics, in the Prometheus text exposition format (version 0.0.4), sorted by name.
+	 */
+	public String prometheusText() {
+		List<String> names = new ArrayList<String>(mFamilies.keySet());
+		Collections.sort(names);
+		StringBuilder sb = new StringBuilder();
+		for ( String name : names ) {
+			Family family = mFamilies.get(name);
+			if ( family.metrics.isEmpty() ) continue;
+			sb.append("# HELP ").append(name).append(' ').append(_escapeHelp(family.help)).append('\n');
+			sb.append("# TYPE ").append(name).append(' ').append(family.type).append('\n');
+			List<String> keys = new ArrayList<String>(family.metrics.keySet());
+			Collections.sort(keys);
+			for ( String key : keys ) {
+				Metric metric = family.metrics.get(key);
+				if ( metric != null ) metric.write(sb, name, key);
+			}
+		}
+		return sb.toString();
+	}
+
+	@Override
+	public String toString() {
+		int nMetrics = 0;
+		for ( Family family : mFamilies.values() ) nMetrics += family.metrics.size();
+		return "Metrics registry: " + mFamilies.size() + " names, " + nMetrics + " metrics";
+	}
+
+	//--------------------------------------------------------------------------------------------
+	// Formatting helpers
+	//--------------------------------------------------------------------------------------------
+
+	private static boolean _isValidName(String name) {
+		if ( name == null || name.length() == 0 ) return false;
+		for ( int i=0; i<name.length(); i++ ) {
+			char c = name.charAt(i);
+			boolean ok = c >= 'a' && c <= 'z' || c >= 'A' && c <= 'Z' || c == '_' || c == ':' || (i > 0 && c >= '0' && c <= '9');
+			if ( !ok ) return false;
+		}
+		return true;
+	}
+
+	private static String _formatLabels(String[] labels) {
+		if ( labels.length == 0 ) return "";
+		if ( labels.length % 2 != 0 ) throw new IllegalArgumentException("Labels must be name/value pairs");
+		StringBuilder sb = new StringBuilder("{");
+		for ( int i=0; i<labels.length; i+=2 ) {
+			if ( !_isValidName(labels[i]) || labels[i].indexOf(':') >= 0 ) throw new IllegalArgumentException("Bad label name: '" + labels[i] + "'");
+			if ( i > 0 ) sb.append(',');
+			sb.append(labels[i]).append("=\"");
+			String value = labels[i+1] == null ? "" : labels[i+1];
+			for ( int j=0; j<value.length(); j++ ) {
+				char c = value.charAt(j);
+				if ( c == '\\' ) sb.append("\\\\");
+				else if ( c == '"' ) sb.append("\\\"");
+				else if ( c == '\n' ) sb.append("\\n");
+				else sb.append(c);
+			}
+			sb.append('"');
+		}
+		return sb.append('}').toString();
+	}
+
+	private static String _escapeHelp(String help) {
+		if ( help == null ) return "";
+		return help.replace("\\", "\\\\").replace("\n", "\\n");
+	}
+
+	private static String _format(double value) {
+		if ( Double.isNaN(value) ) return "NaN";
+		if ( Double.isInfinite(value) ) return value > 0 ? "+Inf" : "-Inf";
+		if ( value == Math.rint(value) && Math.abs(value) < 1e15 ) return Long.toString((long)value);
+		return Double.toString(value);
+	}
+}
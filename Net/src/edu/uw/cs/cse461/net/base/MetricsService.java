@@ -0,0 +1,163 @@
+package edu.uw.cs.cse461.net.base;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+
+import edu.uw.cs.cse461.net.base.NetLoadable.NetLoadableService;
+import edu.uw.cs.cse461.util.ConfigManager;
+import edu.uw.cs.cse461.util.Log;
+
+/**
+ * Serves the contents of the MetricsRegistry over HTTP, in the Prometheus text format, so that a
+ * Prometheus server (or curl) can scrape them:  GET http://127.0.0.1:&lt;port&gt;/metrics
+ * <p>
+ * The service listens on the loopback interface only -- the metrics aren't meant for the world at large;
+ * a scraper on another machine should go through an ssh tunnel or a local agent.  The port is config field
+ * metrics.server.port (0, the default, means an ephemeral port; dumpservicestate shows which).
+ * <p>
+ * This is just enough HTTP for a scraper: each connection carries a single request, which is answered
+ * and the connection closed.  Requests are served one at a time, on the acceptor thread.
+ *
+ * @author zahorjan
+ *
+ */
+public class MetricsService extends NetLoadableService {
+	private static final String TAG="MetricsService";
+	// longest request (request line plus headers) we'll read
+	private static final int MAX_REQUEST_LENGTH = 8 * 1024;
+
+	private ServerSocket mServerSocket;
+	private final int mSocketTimeout;
+	private final MetricsRegistry mRegistry = MetricsRegistry.theRegistry();
+	private final MetricsRegistry.Counter mScrapes;
+
+	public MetricsService() throws Exception {
+		super("metrics");
+		ConfigManager config = NetBase.theNetBase().config();
+		int port = config.getAsInt("metrics.server.port", 0, 0);
+		mSocketTimeout = config.getAsInt("net.timeout.socket", 5000);
+		mScrapes = mRegistry.counter("metrics_scrapes_total", "Requests served by the metrics endpoint");
+
+		mServerSocket = new ServerSocket();
+		mServerSocket.setReuseAddress(true);
+		mServerSocket.bind(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), port));
+		mServerSocket.setSoTimeout(config.getAsInt("net.timeout.granularity", 500));
+		Log.i(TAG, "Serving metrics at http://127.0.0.1:" + mServerSocket.getLocalPort() + "/metrics");
+
+		Thread t = new Thread() {
+			public void run() {
+				try {
+					while ( !mAmShutdown ) {
+						try {
+							Socket sock = mServerSocket.accept();
+							_handleRequest(sock);
+						} catch (SocketTimeoutException e) {
+							// normal; loop back and see if we're terminating
+						}
+					}
+				} catch (Exception e) {
+					if ( !mAmShutdown ) Log.w(TAG, "Server thread exiting due to exception: " + e.getMessage());
+				} finally {
+					if ( mServerSocket != null ) try { mServerSocket.close(); } catch (Exception e) {}
+					mServerSocket = null;
+				}
+			}
+		};
+		t.setDaemon(true);
+		t.start();
+	}
+
+	/**
+	 * Reads one request from sock, answers it, and closes sock.
+	 */
+	private void _handleRequest(Socket sock) {
+		try {
+			sock.setSoTimeout(mSocketTimeout);
+			String requestLine = _readRequest(new BufferedInputStream(sock.getInputStream()));
+			OutputStream os = sock.getOutputStream();
+			if ( requestLine == null ) {
+				_respond(os, "400 Bad Request", "text/plain", "Bad request\n", true);
+				return;
+			}
+			String[] parts = requestLine.split(" ");
+			String method = parts[0];
+			String path = parts.length > 1 ? parts[1] : "";
+			int query = path.indexOf('?');
+			if ( query >= 0 ) path = path.substring(0, query);
+			boolean isHead = method.equals("HEAD");
+			if ( !method.equals("GET") && !isHead ) {
+				_respond(os, "405 Method Not Allowed", "text/plain", "Only GET is supported\n", true);
+			} else if ( path.equals("/metrics") || path.equals("/") ) {
+				mScrapes.inc();
+				_respond(os, "200 OK", "text/plain; version=0.0.4; charset=utf-8", mRegistry.prometheusText(), !isHead);
+			} else {
+				_respond(os, "404 Not Found", "text/plain", "Not found: " + path + "\n", true);
+			}
+		} catch (Exception e) {
+			if ( !mAmShutdown ) Log.d(TAG, "Request failed: " + e.getMessage());
+		} finally {
+			try { sock.close(); } catch (Exception e) {}
+		}
+	}
+
+	/**
+	 * Reads the request line and headers, up to the empty line that ends them.
+	 * @return The request line, or null if the request is malformed or too long
+	 */
+	private static String _readRequest(InputStream is) throws IOException {
+		StringBuilder request = new StringBuilder();
+		int c;
+		while ( (c = is.read()) >= 0 ) {
+			request.append((char)c);
+			if ( request.length() > MAX_REQUEST_LENGTH ) return null;
+			// the headers end with an empty line
+			if ( c == '\n' && (request.toString().endsWith("\r\n\r\n") || request.toString().endsWith("\n\n")) ) break;
+		}
+		int eol = request.indexOf("\n");
+		if ( eol <= 0 ) return null;
+		String requestLine = request.substring(0, eol).trim();
+		return requestLine.length() == 0 ? null : requestLine;
+	}
+
+	private static void _respond(OutputStream os, String status, String contentType, String body, boolean sendBody) throws IOException {
+		byte[] bodyBytes = body.getBytes("UTF-8");
+		String header = "HTTP/1.0 " + status + "\r\n" +
+						"Content-Type: " + contentType + "\r\n" +
+						"Content-Length: " + bodyBytes.length + "\r\n" +
+						"Connection: close\r\n\r\n";
+		os.write(header.getBytes("US-ASCII"));
+		if ( sendBody ) os.write(bodyBytes);
+		os.flush();
+	}
+
+	/**
+	 * Returns the port the service is listening on, or -1 if it isn't.
+	 */
+	public int localPort() {
+		ServerSocket ss = mServerSocket;
+		return ss != null ? ss.getLocalPort() : -1;
+	}
+
+	@Override
+	public void shutdown() {
+		super.shutdown();
+		Log.d(TAG, "Shutting down");
+	}
+
+	@Override
+	public String dumpState() {
+		StringBuilder sb = new StringBuilder(loadablename()).append(mAmShutdown ? " is down" : " is up");
+		sb.append("\nListening on: ");
+		if ( mServerSocket != null ) sb.append("http://127.0.0.1:").append(mServerSocket.getLocalPort()).append("/metrics");
+		else sb.append("Not listening");
+		sb.append("\n").append(mRegistry).append("\n");
+		return sb.toString();
+	}
+}
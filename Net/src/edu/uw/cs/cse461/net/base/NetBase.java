@@ -34,6 +34,7 @@ public abstract class NetBase implements NetBaseInterface {
 	private boolean mAmShutdown = true;
 	private ConfigManager mConfig;
 	private String mHostname;
+	private NetConnectionExecutor mConnectionExecutor;
 
 	/**
 	 * Used to keep track of started services. The String key is the name
@@ -104,6 +105,9 @@ public abstract class NetBase implements NetBaseInterface {
 			}
 			Log.i(TAG, "Booting host '" + mHostname + "' at " + IPFinder.localIP());
 			
+			// services hand their connections to this as they're accepted, so it has to exist before they start
+			mConnectionExecutor = new NetConnectionExecutor(mConfig);
+			
 			// At this point, we're up, but with no services running.
 			// Advertise ourselves -- some service and/or app constructors may need us
 			mAmShutdown = false;
@@ -214,6 +218,7 @@ public abstract class NetBase implements NetBaseInterface {
 			}
 			// We can't remove items from the HashMap while iterating
 			serviceMap.clear();
+			mConnectionExecutor.shutdown();
 		} catch (Exception e) {
 			Log.e(TAG, "Error shutting down services: " + e.getMessage());
 			throw new RuntimeException(e.getMessage());
@@ -244,6 +249,16 @@ public abstract class NetBase implements NetBaseInterface {
 		return mConfig;
 	}
 
+	/**
+	 * Returns the executor that the socket based services use to serve each connection they accept
+	 * on a thread of its own.
+	 */
+	@Override
+	public NetConnectionExecutor connectionExecutor() {
+		check("connectionExecutor");
+		return mConnectionExecutor;
+	}
+
 	/**
 	 * Returns this host's name, if it has one, otherwise null. (This isn't
 	 * useful until Project 4.)
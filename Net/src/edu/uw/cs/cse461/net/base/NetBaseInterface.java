@@ -27,6 +27,7 @@ public interface NetBaseInterface {
 	// config file related methods
 	public ConfigManager config();   // Provides access to a parsed version of the config file read during boot
 	public String hostname();        // Convenience method to get the host name (as specified in the boot config file)
+	public NetConnectionExecutor connectionExecutor();  // Runs services' per-connection code, one thread per connection
 	
 	// general utility methods
 	public String version();        // Version number of assignment software
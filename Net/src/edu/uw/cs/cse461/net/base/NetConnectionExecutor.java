@@ -0,0 +1,163 @@
+package edu.uw.cs.cse461.net.base;
+
+import java.lang.reflect.Method;
+import java.net.Socket;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import edu.uw.cs.cse461.util.ConfigManager;
+import edu.uw.cs.cse461.util.Log;
+
+/**
+ * Runs the per-connection code of the socket based services, so that a service's acceptor thread
+ * can go straight back to accept() rather than serving each client to completion before taking the next.
+ * One instance, shared by all services, is created by NetBase (see NetBase.connectionExecutor()).
+ * <p>
+ * Each connection gets its own thread.  On a JVM with virtual threads, those are virtual threads
+ * (unless config field net.connections.virtualthreads is false); otherwise they come from a pool of
+ * platform threads that grows on demand and shrinks when idle.  At most net.connections.max connections
+ * are served at once; serve() blocks the acceptor when that many are active, which leaves further
+ * clients waiting in the listen queue.
+ * <p>
+ * shutdown() closes the sockets of connections still being served, which unblocks any thread reading
+ * from them, and then stops the threads.
+ *
+ * @author zahorjan
+ *
+ */
+public class NetConnectionExecutor {
+	private static final String TAG="NetConnectionExecutor";
+
+	private final ExecutorService mExecutor;
+	private final boolean mVirtual;
+	private final int mMaxConnections;
+	private final int mGranularity;
+	private final Semaphore mPermits;
+	private final Set<Socket> mActive = Collections.newSetFromMap(new ConcurrentHashMap<Socket, Boolean>());
+	private final AtomicInteger mNServed = new AtomicInteger(0);
+	private volatile boolean mAmShutdown = false;
+
+	NetConnectionExecutor(ConfigManager config) {
+		mMaxConnections = config.getAsInt("net.connections.max", 256, 1);
+		mGranularity = config.getAsInt("net.timeout.granularity", 500, 1);
+		mPermits = new Semaphore(mMaxConnections);
+
+		ExecutorService executor = null;
+		if ( !"false".equalsIgnoreCase(config.getProperty("net.connections.virtualthreads", "true")) ) executor = _virtualThreadExecutor();
+		mVirtual = executor != null;
+		if ( executor == null ) {
+			// the permits, not the pool, limit concurrency: a finishing handler releases its permit before its thread is idle
+			executor = new ThreadPoolExecutor(0, Integer.MAX_VALUE, 60, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(),
+					new ThreadFactory() {
+						private final AtomicInteger nThreads = new AtomicInteger(0);
+						@Override
+						public Thread newThread(Runnable r) {
+							Thread t = new Thread(r, "NetConnection-" + nThreads.incrementAndGet());
+							t.setDaemon(true);
+							return t;
+						}
+					});
+		}
+		mExecutor = executor;
+		Log.d(TAG, "Serving up to " + mMaxConnections + " connections on " + (mVirtual ? "virtual" : "platform") + " threads");
+	}
+
+	/**
+	 * Uses Executors.newVirtualThreadPerTaskExecutor() if this JVM has it.  (It's looked up reflectively,
+	 * as the code is built to run on older JVMs as well.)
+	 */
+	private static ExecutorService _virtualThreadExecutor() {
+		try {
+			Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			return (ExecutorService)factory.invoke(null);
+		} catch (Exception e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Runs handler, which serves the connection on sock, on a thread of its own.  Blocks while the maximum
+	 * number of connections are being served.  Sock is closed when handler returns (if handler hasn't
+	 * already closed it), or when the executor shuts down.
+	 * @return false if the connection couldn't be served because the executor is shutting down.  Sock has been closed.
+	 */
+	public boolean serve(final Socket sock, final Runnable handler) {
+		boolean acquired = false;
+		try {
+			while ( !mAmShutdown && !(acquired = mPermits.tryAcquire(mGranularity, TimeUnit.MILLISECONDS)) ) {}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		if ( !acquired ) {
+			_close(sock);
+			return false;
+		}
+
+		mActive.add(sock);
+		try {
+			mExecutor.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						handler.run();
+					} catch (Throwable t) {
+						Log.w(TAG, "Connection handler for " + sock.getRemoteSocketAddress() + " threw " + t);
+					} finally {
+						mActive.remove(sock);
+						_close(sock);
+						mPermits.release();
+					}
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			mActive.remove(sock);
+			_close(sock);
+			mPermits.release();
+			return false;
+		}
+		mNServed.incrementAndGet();
+		return true;
+	}
+
+	private static void _close(Socket sock) {
+		try { sock.close(); } catch (Exception e) {}
+	}
+
+	/**
+	 * Number of connections currently being served.
+	 */
+	public int nActive() {
+		return mMaxConnections - mPermits.availablePermits();
+	}
+
+	/**
+	 * Closes all connections still being served and stops the connection threads.  Called by NetBase.shutdown().
+	 */
+	void shutdown() {
+		mAmShutdown = true;
+		for ( Socket sock : mActive ) _close(sock);
+		mExecutor.shutdownNow();
+		try {
+			if ( !mExecutor.awaitTermination(mGranularity, TimeUnit.MILLISECONDS) )
+				Log.w(TAG, "Some connection handlers didn't terminate within " + mGranularity + " msec.");
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "Connections: " + nActive() + " active (max " + mMaxConnections + "), " + mNServed.get() + " served, " +
+	           (mVirtual ? "virtual" : "platform") + " threads";
+	}
+}
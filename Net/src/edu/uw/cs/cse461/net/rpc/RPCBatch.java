@@ -0,0 +1,68 @@
+package edu.uw.cs.cse461.net.rpc;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import edu.uw.cs.cse461.net.rpc.RPCMessage.RPCCallMessage.RPCInvokeMessage;
+
+/**
+ * A set of invocations to be sent to one remote RPC service as a single message, so that
+ * all of them together cost one round trip.  Build it with add(), then issue it with
+ * RPCCall.invokeBatch(), which returns one Future per call:
+ * <pre>
+ *   RPCBatch batch = new RPCBatch();
+ *   for ( ... ) batch.add("echorpc", "echo", args);
+ *   List&lt;Future&lt;JSONObject&gt;&gt; results = RPCCall.invokeBatch(ip, port, batch);
+ * </pre>
+ * By default the callee runs the calls one at a time, in the order they were added.
+ * setParallel(true) lets it run them concurrently instead.  Either way, each call succeeds
+ * or fails on its own.
+ * 
+ * @author zahorjan
+ *
+ */
+public class RPCBatch {
+	private final ArrayList<RPCInvokeMessage> mCalls = new ArrayList<RPCInvokeMessage>();
+	private boolean mParallel = false;
+
+	/**
+	 * Adds a call to the batch.
+	 * @param serviceName Name of service to be invoked
+	 * @param method Name of method of the service to invoke
+	 * @param args Arguments to call
+	 * @return The call's index in the batch, which is also the index of its Future in the list returned by RPCCall.invokeBatch()
+	 * @throws JSONException
+	 */
+	public int add(String serviceName, String method, JSONObject args) throws JSONException {
+		mCalls.add(new RPCInvokeMessage(serviceName, method, args));
+		return mCalls.size() - 1;
+	}
+
+	/**
+	 * Says whether the callee may run the batch's calls concurrently.  (The default is false.)
+	 * @return this
+	 */
+	public RPCBatch setParallel(boolean parallel) {
+		mParallel = parallel;
+		return this;
+	}
+
+	public boolean isParallel() {
+		return mParallel;
+	}
+
+	/**
+	 * Number of calls added so far.
+	 */
+	public int size() {
+		return mCalls.size();
+	}
+
+	List<RPCInvokeMessage> calls() {
+		return Collections.unmodifiableList(mCalls);
+	}
+}
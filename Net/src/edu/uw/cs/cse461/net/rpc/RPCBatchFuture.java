@@ -0,0 +1,68 @@
+package edu.uw.cs.cse461.net.rpc;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.Future;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import edu.uw.cs.cse461.net.rpc.RPCMessage.RPCResponseMessage.RPCBatchResponseMessage;
+
+/**
+ * The pending result of a batch issued on an RPCCallerSocket.  It's what the socket waits on for
+ * the batch response, and it completes the futures of the batch's individual calls when that
+ * response arrives.  If the batch as a whole fails, so do all of its calls.
+ *
+ * @author zahorjan
+ *
+ */
+class RPCBatchFuture extends RPCCallFuture {
+	private final LinkedHashMap<Integer, RPCCallFuture> mCalls = new LinkedHashMap<Integer, RPCCallFuture>();
+
+	/**
+	 * @param batchId The id of the batch message
+	 * @param callIds The ids of the batch's calls, in order
+	 */
+	RPCBatchFuture(int batchId, List<Integer> callIds) {
+		super(batchId);
+		for ( Integer callId : callIds ) mCalls.put(callId, new RPCCallFuture(callId));
+	}
+
+	/**
+	 * The futures of the batch's calls, in the order the calls were added to the batch.
+	 */
+	List<Future<JSONObject>> calls() {
+		return new ArrayList<Future<JSONObject>>(mCalls.values());
+	}
+
+	/**
+	 * Completes each call's future from its entry in the response.
+	 */
+	synchronized void completeBatch(RPCBatchResponseMessage response) {
+		try {
+			JSONArray results = response.results();
+			for ( int i=0; i<results.length(); i++ ) {
+				JSONObject result = results.getJSONObject(i);
+				RPCCallFuture call = mCalls.get(result.getInt("callid"));
+				if ( call == null ) continue;
+				if ( result.getString("type").equals("OK") ) call.complete(result.optJSONObject("value"));
+				else call.fail(new Exception("RPC error: " + result.getString("message")));
+			}
+		} catch (JSONException e) {
+			fail(new Exception("Malformed batch response: " + e.getMessage()));
+			return;
+		}
+		// anything the callee didn't report on has no result coming
+		for ( RPCCallFuture call : mCalls.values() ) call.fail(new Exception("Batch response has no result for call " + call.callId()));
+		complete(null);
+	}
+
+	@Override
+	synchronized void fail(Exception e) {
+		super.fail(e);
+		for ( RPCCallFuture call : mCalls.values() ) call.fail(e);
+	}
+}
@@ -0,0 +1,534 @@
+package edu.uw.cs.cse461.net.rpc;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * The compact binary encoding of RPCMessages, an alternative to sending their JSON text.
+ * The two ends of a connection agree to use it during the connect handshake (option "encoding":"binary");
+ * otherwise JSON is used.
+ * <p>
+ * A binary message starts with the MAGIC byte (which can't start a JSON message), then a message type byte,
+ * then the message's fields in a fixed order.  Ints are zigzag varints.  Field values that are JSON
+ * (args, value, options, callargs) are written as tag/value trees.
+ * <p>
+ * Strings that recur on a connection -- the host name, service and method names, and object keys -- are
+ * interned: the first time one is sent it's defined in line and given the next id in the connection's
+ * table, and after that only the id is sent.  That means each connection needs its own codec, that messages
+ * must be decoded in the order they were encoded, and that encode() calls on a connection must be serialized
+ * by the caller along with the send itself.  (The encode and decode sides keep separate tables, so one
+ * thread may encode while another decodes.)
+ * <p>
+ * Values that are ByteBuffers or byte[]s are sent as attachments: the message holds only a placeholder,
+ * and each attachment's raw bytes follow the message as a frame of its own, in placeholder order.  That
+ * avoids Base64 encoding bulk data, and lets the sender write it straight from the buffer it's in.
+ * The receiver gets each attachment as a byte[].
+ *
+ * @author zahorjan
+ *
+ */
+class RPCBinaryCodec {
+	static final byte MAGIC = (byte)0xB1;
+	static final String ENCODING_NAME = "binary";
+
+	// message types
+	private static final int MSG_CONTROL = 1;
+	private static final int MSG_INVOKE = 2;
+	private static final int MSG_OK = 3;
+	private static final int MSG_ERROR = 4;
+	private static final int MSG_BATCH = 5;
+	private static final int MSG_BATCH_RESULT = 6;
+	private static final int MSG_INVOKE_STREAM = 7;  // an invoke whose caller takes a streamed response
+	private static final int MSG_CHUNK = 8;
+	private static final int MSG_INVOKE_EXT = 9;  // an invoke with optional fields, announced by flags
+	private static final int MSG_ERROR_RETRY = 10;  // an error due to overload, with a retry-after hint
+	
+	// flags of MSG_INVOKE_EXT
+	private static final int INVOKE_STREAM = 1;
+	private static final int INVOKE_TIMEOUT = 2;
+	private static final int INVOKE_REQUESTID = 4;
+
+	// value tags
+	private static final int TAG_NULL = 0;
+	private static final int TAG_TRUE = 1;
+	private static final int TAG_FALSE = 2;
+	private static final int TAG_INT = 3;
+	private static final int TAG_DOUBLE = 4;
+	private static final int TAG_STRING = 5;
+	private static final int TAG_OBJECT = 6;
+	private static final int TAG_ARRAY = 7;
+	private static final int TAG_ABSENT = 8;  // a field the message doesn't have (as opposed to JSON null)
+	private static final int TAG_ATTACHMENT = 9;
+
+	// interned string codes: a literal, a definition, or (INTERN_REF + id) a reference
+	private static final int INTERN_LITERAL = 0;
+	private static final int INTERN_DEFINE = 1;
+	private static final int INTERN_REF = 2;
+	private static final int MAX_INTERNED = 1024;
+	private static final int MAX_RETAINED_BUFFER = 64 * 1024;
+	// deepest nesting of objects and arrays decoded; a deeper message is rejected rather than overflow the stack
+	private static final int MAX_DEPTH = 256;
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	// encode side
+	private final HashMap<String, Integer> mEncodeTable = new HashMap<String, Integer>();
+	private byte[] mBuf = new byte[256];
+	private int mPos;
+
+	private List<ByteBuffer> mAttachments;
+
+	// decode side
+	private final ArrayList<String> mDecodeTable = new ArrayList<String>();
+	private byte[] mIn;
+	private int mInPos;
+	private int mDepth;
+	// where the attachments of the message last decoded go: a JSONObject and its key, or a JSONArray and an index
+	private final ArrayList<Object> mSlotContainers = new ArrayList<Object>();
+	private final ArrayList<Object> mSlotKeys = new ArrayList<Object>();
+	private int mNextSlot;
+
+	/**
+	 * True if buf holds a binary encoded message (as opposed to JSON text).
+	 */
+	static boolean isBinary(byte[] buf) {
+		return buf.length > 0 && buf[0] == MAGIC;
+	}
+
+	//--------------------------------------------------------------------------------------
+	// encoding
+	//--------------------------------------------------------------------------------------
+
+	/**
+	 * Encodes msg.  The returned array is newly allocated.
+	 * @param attachments The message's attachments are appended to this list, in the order they must be sent.
+	 *        They aren't copied, so their contents mustn't change until they have been sent.
+	 */
+	byte[] encode(RPCMessage msg, List<ByteBuffer> attachments) throws JSONException {
+		JSONObject obj = msg.marshall();
+		mPos = 0;
+		mAttachments = attachments;
+		_writeByte(MAGIC);
+
+		String type = obj.getString("type");
+		if ( type.equals("control") ) {
+			_writeEnvelope(MSG_CONTROL, obj);
+			_writeInterned(obj.getString("action"));
+			_writeField(obj, "options");
+		} else if ( type.equals("invoke") ) {
+			int flags = (obj.optBoolean("stream") ? INVOKE_STREAM : 0) | (obj.optInt("timeout") > 0 ? INVOKE_TIMEOUT : 0) |
+			            (obj.optLong("requestid") != 0 ? INVOKE_REQUESTID : 0);
+			if ( (flags & ~INVOKE_STREAM) == 0 ) {
+				_writeEnvelope(flags != 0 ? MSG_INVOKE_STREAM : MSG_INVOKE, obj);
+			} else {
+				_writeEnvelope(MSG_INVOKE_EXT, obj);
+				_writeVarint(flags);
+				if ( (flags & INVOKE_TIMEOUT) != 0 ) _writeVarint(obj.getInt("timeout"));
+				if ( (flags & INVOKE_REQUESTID) != 0 ) _writeVarlong(obj.getLong("requestid"));
+			}
+			_writeInterned(obj.getString("app"));
+			_writeInterned(obj.getString("method"));
+			_writeField(obj, "args");
+		} else if ( type.equals("OK") ) {
+			_writeEnvelope(MSG_OK, obj);
+			_writeVarint(obj.getInt("callid"));
+			_writeField(obj, "value");
+		} else if ( type.equals("chunk") ) {
+			_writeEnvelope(MSG_CHUNK, obj);
+			_writeVarint(obj.getInt("callid"));
+			_writeField(obj, "value");
+		} else if ( type.equals("ERROR") ) {
+			int retryAfter = obj.optInt("retryafter");
+			_writeEnvelope(retryAfter > 0 ? MSG_ERROR_RETRY : MSG_ERROR, obj);
+			_writeVarint(obj.getInt("callid"));
+			_writeString(obj.getString("message"));
+			_writeField(obj, "callargs");
+			if ( retryAfter > 0 ) _writeVarint(retryAfter);
+		} else if ( type.equals("batch") ) {
+			_writeEnvelope(MSG_BATCH, obj);
+			_writeByte(obj.optBoolean("parallel") ? 1 : 0);
+			JSONArray calls = obj.getJSONArray("calls");
+			_writeVarint(calls.length());
+			for ( int i=0; i<calls.length(); i++ ) {
+				JSONObject call = calls.getJSONObject(i);
+				_writeVarint(call.getInt("id"));
+				_writeInterned(call.getString("app"));
+				_writeInterned(call.getString("method"));
+				_writeField(call, "args");
+			}
+		} else if ( type.equals("batchresult") ) {
+			_writeEnvelope(MSG_BATCH_RESULT, obj);
+			_writeVarint(obj.getInt("callid"));
+			JSONArray results = obj.getJSONArray("results");
+			_writeVarint(results.length());
+			for ( int i=0; i<results.length(); i++ ) {
+				JSONObject result = results.getJSONObject(i);
+				_writeVarint(result.getInt("callid"));
+				if ( result.getString("type").equals("OK") ) {
+					_writeByte(1);
+					_writeField(result, "value");
+				} else {
+					_writeByte(0);
+					_writeString(result.getString("message"));
+				}
+			}
+		} else {
+			throw new JSONException("Can't encode message of type " + type);
+		}
+		mAttachments = null;
+		byte[] result = Arrays.copyOf(mBuf, mPos);
+		// don't hang on to the space a large message needed
+		if ( mBuf.length > MAX_RETAINED_BUFFER ) mBuf = new byte[256];
+		return result;
+	}
+
+	private void _writeEnvelope(int msgType, JSONObject obj) throws JSONException {
+		_writeByte(msgType);
+		_writeVarint(obj.getInt("id"));
+		_writeInterned(obj.getString("host"));
+	}
+
+	private void _writeField(JSONObject obj, String key) throws JSONException {
+		if ( obj.has(key) ) _writeValue(obj.get(key));
+		else _writeByte(TAG_ABSENT);
+	}
+
+	private void _writeValue(Object value) throws JSONException {
+		if ( value == null || value == JSONObject.NULL ) {
+			_writeByte(TAG_NULL);
+		} else if ( value instanceof String ) {
+			_writeByte(TAG_STRING);
+			_writeString((String)value);
+		} else if ( value instanceof Integer || value instanceof Long || value instanceof Short || value instanceof Byte ) {
+			_writeByte(TAG_INT);
+			_writeVarlong(((Number)value).longValue());
+		} else if ( value instanceof Double || value instanceof Float ) {
+			_writeByte(TAG_DOUBLE);
+			long bits = Double.doubleToLongBits(((Number)value).doubleValue());
+			for ( int shift=56; shift>=0; shift-=8 ) _writeByte((int)(bits >>> shift));
+		} else if ( value instanceof Boolean ) {
+			_writeByte(((Boolean)value).booleanValue() ? TAG_TRUE : TAG_FALSE);
+		} else if ( value instanceof JSONObject ) {
+			JSONObject obj = (JSONObject)value;
+			_writeByte(TAG_OBJECT);
+			_writeVarint(obj.length());
+			Iterator<?> keys = obj.keys();
+			while ( keys.hasNext() ) {
+				String key = (String)keys.next();
+				_writeInterned(key);
+				_writeValue(obj.get(key));
+			}
+		} else if ( value instanceof JSONArray ) {
+			JSONArray array = (JSONArray)value;
+			_writeByte(TAG_ARRAY);
+			_writeVarint(array.length());
+			for ( int i=0; i<array.length(); i++ ) _writeValue(array.get(i));
+		} else if ( value instanceof ByteBuffer ) {
+			_writeByte(TAG_ATTACHMENT);
+			mAttachments.add(((ByteBuffer)value).duplicate());
+		} else if ( value instanceof byte[] ) {
+			_writeByte(TAG_ATTACHMENT);
+			mAttachments.add(ByteBuffer.wrap((byte[])value));
+		} else {
+			// anything else JSON would have sent as its string form
+			_writeByte(TAG_STRING);
+			_writeString(value.toString());
+		}
+	}
+
+	private void _writeInterned(String s) {
+		Integer id = mEncodeTable.get(s);
+		if ( id != null ) {
+			_writeVarint(INTERN_REF + id);
+		} else if ( mEncodeTable.size() < MAX_INTERNED ) {
+			mEncodeTable.put(s, mEncodeTable.size());
+			_writeVarint(INTERN_DEFINE);
+			_writeString(s);
+		} else {
+			_writeVarint(INTERN_LITERAL);
+			_writeString(s);
+		}
+	}
+
+	private void _writeString(String s) {
+		byte[] bytes = s.getBytes(UTF8);
+		_writeVarint(bytes.length);
+		_ensure(bytes.length);
+		System.arraycopy(bytes, 0, mBuf, mPos, bytes.length);
+		mPos += bytes.length;
+	}
+
+	private void _writeVarint(int v) {
+		_writeVarlong(v);
+	}
+
+	/**
+	 * Zigzag varint: small magnitudes, positive or negative, take few bytes.
+	 */
+	private void _writeVarlong(long v) {
+		long zz = (v << 1) ^ (v >> 63);
+		while ( (zz & ~0x7FL) != 0 ) {
+			_writeByte((int)((zz & 0x7F) | 0x80));
+			zz >>>= 7;
+		}
+		_writeByte((int)zz);
+	}
+
+	private void _writeByte(int b) {
+		_ensure(1);
+		mBuf[mPos++] = (byte)b;
+	}
+
+	private void _ensure(int n) {
+		if ( mPos + n <= mBuf.length ) return;
+		mBuf = Arrays.copyOf(mBuf, Math.max(mBuf.length * 2, mPos + n));
+	}
+
+	//--------------------------------------------------------------------------------------
+	// decoding
+	//--------------------------------------------------------------------------------------
+
+	/**
+	 * Decodes a binary encoded message back into the JSON form the RPCMessage classes are built from.
+	 * If needsAttachment() is then true, the frames that follow must be passed to attach() before the
+	 * result is complete.
+	 * @throws IOException If the message is malformed
+	 */
+	JSONObject decode(byte[] buf) throws IOException {
+		mIn = buf;
+		mInPos = 0;
+		mDepth = 0;
+		mSlotContainers.clear();
+		mSlotKeys.clear();
+		mNextSlot = 0;
+		try {
+			if ( _readByte() != (MAGIC & 0xFF) ) throw new IOException("Not a binary RPC message");
+			int msgType = _readByte();
+			JSONObject obj = new JSONObject();
+			obj.put("id", _readVarint());
+			obj.put("host", _readInterned());
+			switch ( msgType ) {
+			case MSG_CONTROL:
+				obj.put("type", "control");
+				obj.put("action", _readInterned());
+				_readField(obj, "options");
+				break;
+			case MSG_INVOKE:
+			case MSG_INVOKE_STREAM:
+			case MSG_INVOKE_EXT:
+				obj.put("type", "invoke");
+				if ( msgType == MSG_INVOKE_EXT ) {
+					int flags = _readVarint();
+					if ( (flags & INVOKE_STREAM) != 0 ) obj.put("stream", true);
+					if ( (flags & INVOKE_TIMEOUT) != 0 ) obj.put("timeout", _readVarint());
+					if ( (flags & INVOKE_REQUESTID) != 0 ) obj.put("requestid", _readVarlong());
+				}
+				obj.put("app", _readInterned());
+				obj.put("method", _readInterned());
+				_readField(obj, "args");
+				if ( msgType == MSG_INVOKE_STREAM ) obj.put("stream", true);
+				break;
+			case MSG_CHUNK:
+				obj.put("type", "chunk");
+				obj.put("callid", _readVarint());
+				_readField(obj, "value");
+				break;
+			case MSG_OK:
+				obj.put("type", "OK");
+				obj.put("callid", _readVarint());
+				_readField(obj, "value");
+				break;
+			case MSG_ERROR:
+			case MSG_ERROR_RETRY:
+				obj.put("type", "ERROR");
+				obj.put("callid", _readVarint());
+				obj.put("message", _readString());
+				_readField(obj, "callargs");
+				if ( msgType == MSG_ERROR_RETRY ) obj.put("retryafter", _readVarint());
+				break;
+			case MSG_BATCH: {
+				obj.put("type", "batch");
+				obj.put("parallel", _readByte() != 0);
+				int nCalls = _readVarint();
+				JSONArray calls = new JSONArray();
+				for ( int i=0; i<nCalls; i++ ) {
+					JSONObject call = new JSONObject();
+					call.put("id", _readVarint());
+					call.put("app", _readInterned());
+					call.put("method", _readInterned());
+					_readField(call, "args");
+					calls.put(call);
+				}
+				obj.put("calls", calls);
+				break;
+			}
+			case MSG_BATCH_RESULT: {
+				obj.put("type", "batchresult");
+				obj.put("callid", _readVarint());
+				int nResults = _readVarint();
+				JSONArray results = new JSONArray();
+				for ( int i=0; i<nResults; i++ ) {
+					JSONObject result = new JSONObject();
+					result.put("callid", _readVarint());
+					if ( _readByte() != 0 ) {
+						result.put("type", "OK");
+						_readField(result, "value");
+					} else {
+						result.put("type", "ERROR");
+						result.put("message", _readString());
+					}
+					results.put(result);
+				}
+				obj.put("results", results);
+				break;
+			}
+			default:
+				throw new IOException("Unknown binary message type " + msgType);
+			}
+			return obj;
+		} catch (JSONException e) {
+			throw new IOException("Undecodable binary message: " + e.getMessage());
+		} catch (ArrayIndexOutOfBoundsException e) {
+			throw new IOException("Truncated binary message");
+		} finally {
+			mIn = null;
+		}
+	}
+
+	/**
+	 * True if the message last decoded is still waiting for attachments.
+	 */
+	boolean needsAttachment() {
+		return mNextSlot < mSlotContainers.size();
+	}
+
+	/**
+	 * Fills in the next attachment of the message last decoded.
+	 */
+	void attach(byte[] data) throws IOException {
+		if ( !needsAttachment() ) throw new IOException("Unexpected attachment");
+		Object container = mSlotContainers.get(mNextSlot);
+		Object key = mSlotKeys.get(mNextSlot);
+		mSlotContainers.set(mNextSlot, null);
+		mNextSlot++;
+		try {
+			if ( container instanceof JSONObject ) ((JSONObject)container).put((String)key, data);
+			else ((JSONArray)container).put(((Integer)key).intValue(), data);
+		} catch (JSONException e) {
+			throw new IOException("Couldn't attach: " + e.getMessage());
+		}
+	}
+
+	private void _readField(JSONObject obj, String key) throws IOException, JSONException {
+		int tag = _readByte();
+		if ( tag == TAG_ATTACHMENT ) _addSlot(obj, key);
+		if ( tag != TAG_ABSENT ) obj.put(key, _readValue(tag));
+	}
+
+	private void _addSlot(Object container, Object key) {
+		mSlotContainers.add(container);
+		mSlotKeys.add(key);
+	}
+
+	private Object _readValue(int tag) throws IOException, JSONException {
+		switch ( tag ) {
+		case TAG_NULL:
+			return JSONObject.NULL;
+		case TAG_TRUE:
+			return Boolean.TRUE;
+		case TAG_FALSE:
+			return Boolean.FALSE;
+		case TAG_INT:
+			long v = _readVarlong();
+			if ( v >= Integer.MIN_VALUE && v <= Integer.MAX_VALUE ) return Integer.valueOf((int)v);
+			return Long.valueOf(v);
+		case TAG_DOUBLE:
+			long bits = 0;
+			for ( int i=0; i<8; i++ ) bits = (bits << 8) | _readByte();
+			return Double.valueOf(Double.longBitsToDouble(bits));
+		case TAG_STRING:
+			return _readString();
+		case TAG_OBJECT:
+			if ( ++mDepth > MAX_DEPTH ) throw new IOException("Values nested more than " + MAX_DEPTH + " deep");
+			int nFields = _readVarint();
+			JSONObject obj = new JSONObject();
+			for ( int i=0; i<nFields; i++ ) {
+				String key = _readInterned();
+				int fieldTag = _readByte();
+				if ( fieldTag == TAG_ATTACHMENT ) _addSlot(obj, key);
+				obj.put(key, _readValue(fieldTag));
+			}
+			mDepth--;
+			return obj;
+		case TAG_ARRAY:
+			if ( ++mDepth > MAX_DEPTH ) throw new IOException("Values nested more than " + MAX_DEPTH + " deep");
+			int nElements = _readVarint();
+			JSONArray array = new JSONArray();
+			for ( int i=0; i<nElements; i++ ) {
+				int elementTag = _readByte();
+				if ( elementTag == TAG_ATTACHMENT ) _addSlot(array, Integer.valueOf(i));
+				array.put(_readValue(elementTag));
+			}
+			mDepth--;
+			return array;
+		case TAG_ATTACHMENT:
+			// a placeholder, until attach() supplies the bytes
+			return JSONObject.NULL;
+		default:
+			throw new IOException("Unknown value tag " + tag);
+		}
+	}
+
+	private String _readInterned() throws IOException {
+		int code = _readVarint();
+		if ( code == INTERN_LITERAL ) return _readString();
+		if ( code == INTERN_DEFINE ) {
+			// our encoder never defines more than this; a peer that does would grow the table without bound
+			if ( mDecodeTable.size() >= MAX_INTERNED ) throw new IOException("More than " + MAX_INTERNED + " interned strings defined");
+			String s = _readString();
+			mDecodeTable.add(s);
+			return s;
+		}
+		int id = code - INTERN_REF;
+		if ( id < 0 || id >= mDecodeTable.size() ) throw new IOException("Reference to undefined interned string " + id);
+		return mDecodeTable.get(id);
+	}
+
+	private String _readString() throws IOException {
+		int len = _readVarint();
+		if ( len < 0 || len > mIn.length - mInPos ) throw new IOException("Bad string length " + len);
+		String s = new String(mIn, mInPos, len, UTF8);
+		mInPos += len;
+		return s;
+	}
+
+	private int _readVarint() throws IOException {
+		long v = _readVarlong();
+		if ( v < Integer.MIN_VALUE || v > Integer.MAX_VALUE ) throw new IOException("Varint out of int range: " + v);
+		return (int)v;
+	}
+
+	private long _readVarlong() throws IOException {
+		long zz = 0;
+		for ( int shift=0; shift<64; shift+=7 ) {
+			int b = _readByte();
+			zz |= (long)(b & 0x7F) << shift;
+			if ( (b & 0x80) == 0 ) return (zz >>> 1) ^ -(zz & 1);
+		}
+		throw new IOException("Malformed varint");
+	}
+
+	private int _readByte() {
+		return mIn[mInPos++] & 0xFF;
+	}
+}
@@ -1,21 +1,23 @@
 package edu.uw.cs.cse461.net.rpc;
 
 import java.io.IOException;
-import java.net.Socket;
-import java.net.SocketException;
-import java.util.HashMap;
-import java.util.Iterator;
-import java.util.LinkedList;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.json.JSONException;
 import org.json.JSONObject;
 
 import edu.uw.cs.cse461.net.base.NetBase;
 import edu.uw.cs.cse461.net.base.NetLoadable.NetLoadableService;
-import edu.uw.cs.cse461.net.tcpmessagehandler.TCPMessageHandler;
-import edu.uw.cs.cse461.util.Log;
+import edu.uw.cs.cse461.net.rpc.RPCMessage.RPCCallMessage.RPCInvokeMessage;
+import edu.uw.cs.cse461.util.ConfigManager;
 
 
 /**
@@ -27,23 +29,29 @@ import edu.uw.cs.cse461.util.Log;
  * This class is responsible for implementing persistent connections. 
  * (What you might think of as the actual remote call code is in RCPCallerSocket.java.)
  * Implementing persistence requires keeping a cache that must be cleaned periodically.
- * We do that using a cleaner thread.
+ * That's the RPCConnectionPool, which has its own cleaner thread.  Connections idle for
+ * longer than rpc.persistence.timeout are closed, and at most rpc.pool.maxperendpoint connections
+ * are opened to any one remote service.
+ * <p>
+ * Persistent connections are multiplexed: concurrent callers share the pooled RPCCallerSockets for
+ * a remote endpoint, and their calls are pipelined on them.  invokeAsync() exposes that directly,
+ * returning as soon as the call has been sent.  invokeBatch() sends many calls in a single message,
+ * and invokeStreaming() delivers a response in chunks as the remote method produces them.
+ * <p>
+ * Unless the config file sets rpc.encoding=json, connections ask the remote side to use the compact binary
+ * message encoding (RPCBinaryCodec).  Callees that don't support it just keep using JSON.
+ * If the config file sets rpc.compression=deflate, connections also ask for long messages to be compressed.
  * 
  * @author zahorjan
  *
  */
 public class RPCCall extends NetLoadableService {
 	private static final String TAG="RPCCall";
-	private static final String connection = "keep-alive";
-	private static final long DELAY = 300000; // 5 minute -- when to clean the cache
 	
-	//private Task cleanCache;
+	// the persistent connections
+	private RPCConnectionPool pool;
 	
-	// a cache for persistent connection
-	private HashMap<HashMap<String, Integer>, Socket> socketCache;
-
-	boolean persistentConnection;
-	private Timer timer;
+	private static final AtomicLong sNextRequestId = new AtomicLong(new Random().nextLong());
 	
 
 	//-------------------------------------------------------------------------------------------
@@ -61,6 +69,7 @@ public class RPCCall extends NetLoadableService {
 	 * @param userRequest Arguments to call
 	 * @param socketTimeout Maximum time to wait for a response, in msec.
 	 * @return Returns whatever the remote method returns.
+	 * @throws RPCOverloadException If the remote service was too busy to run the call
 	 * @throws Exception 
 	 */
 	public static JSONObject invoke(
@@ -71,9 +80,107 @@ public class RPCCall extends NetLoadableService {
 			JSONObject userRequest,   // arguments to send to remote method,
 			int socketTimeout         // timeout for this call, in msec.
 			) throws Exception {
+		return _rpcCallObj()._invoke(ip, port, serviceName, method, userRequest, socketTimeout, _nextRequestId(), true);
+	}
+	
+	/**
+	 * Issues a call without waiting for its response.  The call is pipelined on the persistent
+	 * connection to ip:port, shared with any other calls in flight to that endpoint.
+	 * (Connection setup, if needed, is done synchronously, and is bounded by the net.timeout.socket
+	 * config value.)
+	 * @return A Future yielding whatever the remote method returns.  Its get() throws an
+	 *         ExecutionException wrapping the failure if the remote method or the connection fails.
+	 * @throws Exception If the call couldn't be sent
+	 */
+	public static Future<JSONObject> invokeAsync(
+			String ip,				  // ip or dns name of remote host
+			int port,                 // port that RPC is listening on on the remote host
+			String serviceName,       // name of the remote service
+			String method,            // name of that service's method to invoke
+			JSONObject userRequest    // arguments to send to remote method,
+			) throws Exception {
+		int socketTimeout  = NetBase.theNetBase().config().snapshot().socketTimeout(2000);
+		RPCCall rpcCallObj = _rpcCallObj();
+		RPCEndpoint endpoint = new RPCEndpoint(ip, port);
+		RPCCallerSocket socket = rpcCallObj.pool.checkout(endpoint, socketTimeout);
+		long requestId = _nextRequestId();
+		try {
+			return socket.invoke(serviceName, method, userRequest, 0, requestId);
+		} catch (IOException e) {
+			// most likely a pooled connection the remote side has since closed
+			rpcCallObj.pool.invalidate(endpoint, socket);
+			return rpcCallObj.pool.checkout(endpoint, socketTimeout).invoke(serviceName, method, userRequest, 0, requestId);
+		}
+	}
+	
+	/**
+	 * Issues a call whose response the remote method may stream in chunks (see RPCStreamingHandler).
+	 * Returns as soon as the call has been sent; the chunks are consumed by iterating over the RPCStream.
+	 * A method that doesn't stream its response just produces no chunks, and its return value is the
+	 * stream's final value.
+	 * The call is sent on a new connection of its own, not a pooled one, so that a consumer slow to take
+	 * the chunks holds up only its own stream.
+	 * @param socketTimeout Max time to wait for each chunk, in msec.
+	 * @throws Exception If the call couldn't be sent
+	 */
+	public static RPCStream invokeStreaming(
+			String ip,				  // ip or dns name of remote host
+			int port,                 // port that RPC is listening on on the remote host
+			String serviceName,       // name of the remote service
+			String method,            // name of that service's method to invoke
+			JSONObject userRequest,   // arguments to send to remote method
+			int socketTimeout         // max time to wait for each chunk, in msec.
+			) throws Exception {
+		RPCCall rpcCallObj = _rpcCallObj();
+		RPCCallerSocket socket = rpcCallObj.pool.connect(new RPCEndpoint(ip, port), socketTimeout);
+		try {
+			return socket.invokeStreaming(serviceName, method, userRequest, socketTimeout);
+		} catch (JSONException e) {
+			socket.discard();
+			throw e;
+		}
+	}
+	
+	/**
+	 * Sends all the calls of batch to the service at ip:port in a single message, and returns without
+	 * waiting for the response.  If the remote side doesn't accept batches, the calls are issued
+	 * individually instead, as with invokeAsync().
+	 * @return One Future per call, in the order the calls were added to the batch.  Each yields whatever
+	 *         its remote method returns, or throws an ExecutionException wrapping that call's failure.
+	 * @throws Exception If the batch couldn't be sent
+	 */
+	public static List<Future<JSONObject>> invokeBatch(
+			String ip,				  // ip or dns name of remote host
+			int port,                 // port that RPC is listening on on the remote host
+			RPCBatch batch            // the calls
+			) throws Exception {
+		List<RPCInvokeMessage> calls = batch.calls();
+		if ( calls.isEmpty() ) return new ArrayList<Future<JSONObject>>();
+		int socketTimeout  = NetBase.theNetBase().config().snapshot().socketTimeout(2000);
+		RPCCall rpcCallObj = _rpcCallObj();
+		RPCEndpoint endpoint = new RPCEndpoint(ip, port);
+		RPCCallerSocket socket = rpcCallObj.pool.checkout(endpoint, socketTimeout);
+
+		if ( !socket.supportsBatch() ) {
+			if ( !socket.isPersistent() ) socket.discard();
+			List<Future<JSONObject>> results = new ArrayList<Future<JSONObject>>(calls.size());
+			for ( RPCInvokeMessage call : calls ) results.add(invokeAsync(ip, port, call.app(), call.method(), call.args()));
+			return results;
+		}
+		
+		try {
+			return socket.invokeBatch(calls, batch.isParallel());
+		} catch (IOException e) {
+			// most likely a pooled connection the remote side has since closed
+			rpcCallObj.pool.invalidate(endpoint, socket);
+			return rpcCallObj.pool.checkout(endpoint, socketTimeout).invokeBatch(calls, batch.isParallel());
+		}
+	}
+	
+	private static RPCCall _rpcCallObj() throws IOException {
 		RPCCall rpcCallObj =  (RPCCall)NetBase.theNetBase().getService( "rpccall" );
 		if ( rpcCallObj == null ) throw new IOException("RPCCall.invoke() called but the RPCCall service isn't loaded");
-		return rpcCallObj._invoke(ip, port, serviceName, method, userRequest, socketTimeout, true);
+		return rpcCallObj;
 	}
 	
 	/**
@@ -89,7 +196,7 @@ public class RPCCall extends NetLoadableService {
 			String method,            // name of that service's method to invoke
 			JSONObject userRequest    // arguments to send to remote method,
 			) throws Exception {
-		int socketTimeout  = NetBase.theNetBase().config().getAsInt("net.timeout.socket", 2000);
+		int socketTimeout  = NetBase.theNetBase().config().snapshot().socketTimeout(2000);
 		return invoke(ip, port, serviceName, method, userRequest, socketTimeout);
 	}
 
@@ -101,16 +208,23 @@ public class RPCCall extends NetLoadableService {
 	 */
 	public RPCCall() {
 		super("rpccall");
-		socketCache = new HashMap<HashMap<String, Integer>, Socket>();
-		//set a new timer and set delay for 5 minutes
-		timer = new Timer();
-		persistentConnection = false;
+		ConfigManager config = NetBase.theNetBase().config();
+		boolean wantBinary = !config.getProperty("rpc.encoding", RPCBinaryCodec.ENCODING_NAME).equalsIgnoreCase("json");
+		pool = new RPCConnectionPool(config.getAsInt("rpc.pool.maxperendpoint", 4, 1),
+				                     config.getAsInt("rpc.persistence.timeout", 30000, 1000),
+				                     wantBinary,
+				                     RPCService.compressionThreshold(config));
 	}
 
 	/**
 	 * This private method performs the actual invocation, including the management of persistent connections.
-	 * Note that because we may issue the call twice, we  may (a) cause it to be executed twice at the server(!),
-	 * and (b) may end up blocking the caller for around twice the timeout specified in the call. (!)
+	 * Because we may issue the call twice, both attempts carry the same request id.  A callee that remembers
+	 * recent request ids replies to the retry with the outcome of the first attempt, rather than executing
+	 * the call twice.  (An older callee ignores the id, and so may execute it twice.)
+	 * The retry gets only what's left of the timeout, though, so the caller never waits much longer than socketTimeout.
+	 * <p>
+	 * The callee is told the timeout, and doesn't start the call if it can't do so before the timeout expires.
+	 * If we time out while it's running, it's told the call is cancelled.
 	 * 
 	 * @param ip
 	 * @param port
@@ -118,6 +232,7 @@ public class RPCCall extends NetLoadableService {
 	 * @param method
 	 * @param userRequest
 	 * @param socketTimeout Max time to wait for this call
+	 * @param requestId Identifies the call, across retries
 	 * @param tryAgain Set to true if you want to repeat call if a socket error occurs; e.g., persistent socket is no good when you use it
 	 * @return
 	 * @throws Exception 
@@ -129,102 +244,71 @@ public class RPCCall extends NetLoadableService {
 			String method,            // name of that service's method to invoke
 			JSONObject userRequest,   // arguments to send to remote method
 			int socketTimeout,        // max time to wait for reply
+			long requestId,           // same on every attempt at this call
 			boolean tryAgain          // true if an invocation failure on a persistent connection should cause a re-try of the call, false to give up
 	) throws Exception {
-		HashMap<String, Integer> key = new HashMap<String, Integer>();
-		key.put(ip, port);
-		Socket socket =  socketCache.get(key);
-		boolean firstConnect = false;
-		
-		//stop current timer once _invoke is called
-		timer.cancel();
-
-		if (socket == null){
-			firstConnect = true;
-			socket = new Socket(ip, port);
-			socket.setKeepAlive(true);
-			socket.setReuseAddress(true);
-			socketCache.put(key, socket);
-		}
-
-		TCPMessageHandler tcpMessageHandlerSocket = new TCPMessageHandler(socket);
-		tcpMessageHandlerSocket.setTimeout(socketTimeout);
-		tcpMessageHandlerSocket.setNoDelay(true);
-
-		/* Initial control handshake: calling RPC service */
-		if (firstConnect){
-			// send connect msg
-			JSONObject option = new JSONObject().put("connection", connection);
-			RPCMessage rpcConnect = new RPCMessage();
-			JSONObject jsonConnect = rpcConnect.marshall();
-			jsonConnect.put("action", "connect").put("type", "control").put("options", option);
-			persistentConnection = option.getString("connection").equalsIgnoreCase("keep-alive");
-			RPCMessage connectMSG = RPCMessage.unmarshall(jsonConnect.toString());
-			tcpMessageHandlerSocket.sendMessage(connectMSG.marshall());
-
-			// read response msg
-			JSONObject connectResponse = tcpMessageHandlerSocket.readMessageAsJSONObject();
-			int callid = connectResponse.getInt("callid");
-			String type = connectResponse.getString("type");
-			if ( ! type.equalsIgnoreCase("OK") || callid != connectMSG.id()){
-				throw new Exception("Bad connect response: '"  + "'");
+		long deadline = socketTimeout > 0 ? System.currentTimeMillis() + socketTimeout : 0;
+		RPCEndpoint endpoint = new RPCEndpoint(ip, port);
+		RPCCallerSocket socket = pool.checkout(endpoint, socketTimeout);
+		Future<JSONObject> result = null;
+		try {
+			// connection setup may have used up some of the time
+			int remaining = deadline > 0 ? (int)Math.max(deadline - System.currentTimeMillis(), 1) : 0;
+			result = socket.invoke(serviceName, method, userRequest, remaining, requestId);
+			if ( remaining > 0 ) return result.get(remaining, TimeUnit.MILLISECONDS);
+			return result.get();
+		} catch (TimeoutException e) {
+			socket.abandon(result);
+			throw new SocketTimeoutException("RPC " + serviceName + "." + method + " to " + ip + ":" + port + " timed out after " + socketTimeout + " msec.");
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if ( cause instanceof IOException && tryAgain ) {
+				// the connection failed under us (e.g., the remote side timed out a persistent connection)
+				pool.invalidate(endpoint, socket);
+				return _invoke(ip, port, serviceName, method, userRequest, _remaining(deadline, serviceName, method), requestId, false);
 			}
+			if ( cause instanceof Exception ) throw (Exception)cause;
+			throw e;
+		} catch (IOException e) {
+			// couldn't send the call on the pooled socket
+			pool.invalidate(endpoint, socket);
+			if ( tryAgain ) return _invoke(ip, port, serviceName, method, userRequest, _remaining(deadline, serviceName, method), requestId, false);
+			throw e;
+		} finally {
+			// a one-shot connection isn't in the pool, which has already given up its slot, so nobody else will close it
+			if ( !socket.isPersistent() ) socket.discard();
 		}
-		/* RPC Invocation */
-		// send invoke msg
-		RPCMessage rpcInvoke = new RPCMessage();
-		JSONObject jsonInvoke = rpcInvoke.marshall();
-
-		jsonInvoke.put("app", serviceName).put("args", userRequest)
-		.put("type", "invoke").put("method", method);
-
-		RPCMessage invokeMSG = RPCMessage.unmarshall(jsonInvoke.toString());
-		tcpMessageHandlerSocket.sendMessage(invokeMSG.marshall());
-
-		// read response invocation msg
-		JSONObject invokeResponse = tcpMessageHandlerSocket.readMessageAsJSONObject();
-		String type = invokeResponse.getString("type");
-		int callid = invokeResponse.getInt("callid");
-		if ( ! type.equalsIgnoreCase("OK") || callid != invokeMSG.id() || !invokeResponse.has("value"))
-			throw new Exception("Bad invoke response");
-
-		//if initially the header send to service without requiring persistent connection
-		//close socket here
-
-		if (!persistentConnection){
-			socket.close();
-		}
-		
-		timer = new Timer();
-		timer.schedule(new Task(), DELAY);
-		
-		return invokeResponse.getJSONObject("value");
+	}
+	
+	/**
+	 * A new request id.  Ids start at a random point, so that callers on the same host (which the callee
+	 * can't tell apart) don't reuse each other's ids.  0 is never used; it means "no id".
+	 */
+	private static long _nextRequestId() {
+		long id;
+		while ( (id = sNextRequestId.getAndIncrement()) == 0 ) {}
+		return id;
+	}
+	
+	/**
+	 * Time left until deadline, for a retry.
+	 * @throws SocketTimeoutException If there's none left
+	 */
+	private static int _remaining(long deadline, String serviceName, String method) throws SocketTimeoutException {
+		if ( deadline == 0 ) return 0;
+		long remaining = deadline - System.currentTimeMillis();
+		if ( remaining <= 0 ) throw new SocketTimeoutException("RPC " + serviceName + "." + method + " timed out before it could be retried");
+		return (int)remaining;
 	}
 	
 	@Override
 	public void shutdown() {
-		
+		super.shutdown();
+		pool.shutdown();
 	}
 	
 	@Override
 	public String dumpState() {
-		return "Current persistent connections are ...";
-	}
-	
-	/*
-	 * clean cache -- mapping from (ip, port) --> (socket) 
-	 */
-	class Task extends TimerTask {
-
-		@Override
-		public void run() {
-			//remove all the mapping in socketcache
-			for(HashMap<String, Integer> key: socketCache.keySet()){
-				for(String s: key.keySet()){
-					key.remove(s);
-				}
-				socketCache.remove(key);
-			}
-		}	
+		return pool.toString();
 	}
 }
@@ -0,0 +1,86 @@
+package edu.uw.cs.cse461.net.rpc;
+
+/**
+ * What the callee knows about an incoming call beyond its arguments: when the caller will stop
+ * waiting for it, and whether the caller has cancelled it.
+ * <p>
+ * A handler can get the context of the call it's handling from RPCCallContext.current().  A handler that
+ * does a lot of work can check isAbandoned() now and then, and give up early if nobody wants the result.
+ * Calls whose callers have already given up by the time a worker gets to them aren't run at all.
+ *
+ * @author zahorjan
+ *
+ */
+public class RPCCallContext {
+	private static final ThreadLocal<RPCCallContext> sCurrent = new ThreadLocal<RPCCallContext>();
+
+	private final int mCallId;
+	private final long mDeadline;
+	private volatile boolean mCancelled = false;
+
+	/**
+	 * @param callId The id of the invoke (or batch) message
+	 * @param timeout How long the caller will wait, in msec. from now, or 0 if it didn't say
+	 */
+	RPCCallContext(int callId, int timeout) {
+		mCallId = callId;
+		mDeadline = timeout > 0 ? System.currentTimeMillis() + timeout : 0;
+	}
+
+	/**
+	 * The context of the call being handled by the current thread, or null if it isn't handling one.
+	 */
+	public static RPCCallContext current() {
+		return sCurrent.get();
+	}
+
+	static void setCurrent(RPCCallContext context) {
+		if ( context == null ) sCurrent.remove();
+		else sCurrent.set(context);
+	}
+
+	int callId() {
+		return mCallId;
+	}
+
+	/**
+	 * The time (as System.currentTimeMillis()) after which the caller no longer wants the response,
+	 * or 0 if the caller will wait indefinitely.
+	 */
+	public long deadline() {
+		return mDeadline;
+	}
+
+	/**
+	 * Msec. until the deadline (negative if it has passed), or Long.MAX_VALUE if there's no deadline.
+	 */
+	public long remaining() {
+		if ( mDeadline == 0 ) return Long.MAX_VALUE;
+		return mDeadline - System.currentTimeMillis();
+	}
+
+	public boolean isExpired() {
+		return mDeadline != 0 && System.currentTimeMillis() > mDeadline;
+	}
+
+	public boolean isCancelled() {
+		return mCancelled;
+	}
+
+	/**
+	 * True if the caller has cancelled the call or its deadline has passed, so that there's no point
+	 * finishing it.
+	 */
+	public boolean isAbandoned() {
+		return mCancelled || isExpired();
+	}
+
+	void cancel() {
+		mCancelled = true;
+	}
+
+	@Override
+	public String toString() {
+		return "RPCCallContext[" + mCallId + (mDeadline != 0 ? ", " + remaining() + " msec. left" : "") + (mCancelled ? ", cancelled" : "") + "]";
+	}
+}
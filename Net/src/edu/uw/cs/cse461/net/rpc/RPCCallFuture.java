@@ -0,0 +1,85 @@
+package edu.uw.cs.cse461.net.rpc;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.json.JSONObject;
+
+/**
+ * The pending result of an RPC issued on an RPCCallerSocket.  The socket's reader thread
+ * completes it when the response carrying the matching callid arrives, or fails it if the
+ * connection dies first.
+ *
+ * @author zahorjan
+ *
+ */
+class RPCCallFuture implements Future<JSONObject> {
+	private final int mCallId;
+	private final CountDownLatch mDone = new CountDownLatch(1);
+	private volatile JSONObject mValue;
+	private volatile Exception mException;
+	private volatile boolean mCancelled = false;
+
+	RPCCallFuture(int callId) {
+		mCallId = callId;
+	}
+
+	int callId() {
+		return mCallId;
+	}
+
+	synchronized void complete(JSONObject value) {
+		if ( mDone.getCount() == 0 ) return;
+		mValue = value;
+		mDone.countDown();
+	}
+
+	synchronized void fail(Exception e) {
+		if ( mDone.getCount() == 0 ) return;
+		mException = e;
+		mDone.countDown();
+	}
+
+	/**
+	 * Cancelling only stops us from waiting for the response.  The remote call still runs.
+	 */
+	@Override
+	public synchronized boolean cancel(boolean mayInterruptIfRunning) {
+		if ( mDone.getCount() == 0 ) return false;
+		mCancelled = true;
+		mDone.countDown();
+		return true;
+	}
+
+	@Override
+	public boolean isCancelled() {
+		return mCancelled;
+	}
+
+	@Override
+	public boolean isDone() {
+		return mDone.getCount() == 0;
+	}
+
+	@Override
+	public JSONObject get() throws InterruptedException, ExecutionException {
+		mDone.await();
+		return _result();
+	}
+
+	@Override
+	public JSONObject get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+		if ( !mDone.await(timeout, unit) ) throw new TimeoutException("No response to call " + mCallId + " after " + unit.toMillis(timeout) + " msec.");
+		return _result();
+	}
+
+	private JSONObject _result() throws ExecutionException {
+		if ( mCancelled ) throw new CancellationException("Call " + mCallId + " was cancelled");
+		if ( mException != null ) throw new ExecutionException(mException);
+		return mValue;
+	}
+}
@@ -3,8 +3,11 @@ package edu.uw.cs.cse461.net.rpc;
 import java.io.PrintWriter;
 import java.io.StringWriter;
 import java.io.Writer;
+import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 
+import org.json.JSONArray;
+import org.json.JSONException;
 import org.json.JSONObject;
 
 import edu.uw.cs.cse461.util.Log;
@@ -13,46 +16,153 @@ import edu.uw.cs.cse461.util.Log;
  * An object of this type represents an RPC callable method.  You'll have one
  * object of this type for each method you expose by RPC.
  * <p>
- * The parameterized type, T, is the class exposing the method.
+ * It can be built either from an object and the name of one of its methods, which is
+ * then invoked by reflection, or from an RPCHandler, which is called directly.  The
+ * latter avoids reflection on each call.  Built from an RPCStreamingHandler, it represents a method
+ * whose response is streamed in chunks.
  * <p>
  * See the source in EchoRPCService.java for an example of its use.
  * @author zahorjan
  *
- * @param <T>
  */
-public class RPCCallableMethod {
+public class RPCCallableMethod implements RPCHandler {
 	private static final String TAG="RPCCallableMethod";
-	
+
 	Object service;
 	Method method;
+	private final RPCHandler mHandler;  // null if the call goes through method
+	private final RPCStreamingHandler mStreamingHandler;  // non-null for a method with a streamed response
+
 	/**
 	 * Constructor.
 	 * @param serviceObject The Java instance of the object that will field the RPC
 	 * @param methodName The name of the Java method to invoke on that object, as a String
 	 * @throws NoSuchMethodException
 	 */
-	public RPCCallableMethod(Object serviceObject, String methodName) throws NoSuchMethodException { 
-		service = serviceObject; 
+	public RPCCallableMethod(Object serviceObject, String methodName) throws NoSuchMethodException {
+		service = serviceObject;
 		Class<? extends Object> serviceClass = (Class<? extends Object>)service.getClass();
 		method = serviceClass.getMethod(methodName, JSONObject.class);
+		// skip the access check on every call (the method is public, but its class may not be)
+		try {
+			method.setAccessible(true);
+		} catch (SecurityException e) {}
+		mHandler = null;
+		mStreamingHandler = null;
+	}
+
+	/**
+	 * Constructor for a method implemented by an RPCHandler.
+	 * @param handler The code that fields the RPC
+	 */
+	public RPCCallableMethod(RPCHandler handler) {
+		if ( handler == null ) throw new IllegalArgumentException("handler is null");
+		service = handler;
+		method = null;
+		mHandler = handler;
+		mStreamingHandler = null;
 	}
+
+	/**
+	 * Constructor for a method whose response is streamed.
+	 * @param handler The code that fields the RPC
+	 */
+	public RPCCallableMethod(RPCStreamingHandler handler) {
+		if ( handler == null ) throw new IllegalArgumentException("handler is null");
+		service = handler;
+		method = null;
+		mHandler = null;
+		mStreamingHandler = handler;
+	}
+
+	/**
+	 * True if the method's response is streamed.
+	 */
+	public boolean isStreaming() {
+		return mStreamingHandler != null;
+	}
+
 	/**
 	 * This method is called to actually invoke the method that handles the RPC.
 	 * @param args  The arguments to pass on this call
 	 * @return The JSONObject returned by the RPC handling method of the service
-	 * @throws Exception
+	 * @throws Exception Whatever the handling method threw
 	 */
+	@Override
 	public JSONObject handleCall(JSONObject args) throws Exception {
 		try {
+			if ( mHandler != null ) return mHandler.handleCall(args);
+			if ( mStreamingHandler != null ) return _collect(args);
 			return (JSONObject)method.invoke(service, args);
+		} catch (InvocationTargetException e) {
+			// report what the service method threw, not the reflection wrapper
+			Throwable cause = e.getCause();
+			_logFailure(cause);
+			if ( cause instanceof Exception ) throw (Exception)cause;
+			if ( cause instanceof Error ) throw (Error)cause;
+			throw e;
 		} catch (Exception e) {
-			final Writer trace = new StringWriter();
-			final PrintWriter printWriter = new PrintWriter(trace);
-			e.printStackTrace(printWriter);
-			Log.e(TAG, "Caught Exception: " + e.getMessage() + "\n" + trace.toString());
-			printWriter.close();
-			trace.close();
+			_logFailure(e);
 			throw e;
 		}
 	}
+
+	/**
+	 * Invokes the method with a sink for its response chunks.  A method that doesn't stream its
+	 * response just returns it; the sink isn't used.
+	 * @return The final value, sent after all the chunks
+	 * @throws Exception Whatever the handling method threw
+	 */
+	public JSONObject handleCall(JSONObject args, RPCResponseSink sink) throws Exception {
+		if ( mStreamingHandler == null ) return handleCall(args);
+		try {
+			return mStreamingHandler.handleCall(args, sink);
+		} catch (Exception e) {
+			_logFailure(e);
+			throw e;
+		}
+	}
+
+	/**
+	 * Runs a streaming handler for a caller that wants a single response, collecting the chunks into
+	 * the array "chunks" of the final value.
+	 */
+	private JSONObject _collect(JSONObject args) throws Exception {
+		final JSONArray chunks = new JSONArray();
+		JSONObject value = mStreamingHandler.handleCall(args, new RPCResponseSink() {
+			@Override
+			public void send(JSONObject chunk) {
+				chunks.put(chunk);
+			}
+		});
+		if ( value == null ) value = new JSONObject();
+		try {
+			value.put("chunks", chunks);
+		} catch (JSONException e) {
+			throw new Exception("Couldn't collect streamed response: " + e.getMessage());
+		}
+		return value;
+	}
+
+	/**
+	 * Logs a failed call, including its stack trace.  The trace is formatted only if the message will be shown.
+	 */
+	private void _logFailure(final Throwable e) {
+		Log.e(TAG, new Log.MessageSupplier() {
+			public String get() {
+				Writer trace = new StringWriter();
+				PrintWriter printWriter = new PrintWriter(trace);
+				e.printStackTrace(printWriter);
+				printWriter.close();
+				return "Caught Exception: " + e.getMessage() + "\n" + trace.toString();
+			}
+		});
+	}
+
+	@Override
+	public String toString() {
+		if ( mHandler != null ) return "RPCCallableMethod[" + mHandler.getClass().getName() + "]";
+		if ( mStreamingHandler != null ) return "RPCCallableMethod[" + mStreamingHandler.getClass().getName() + ", streaming]";
+		return "RPCCallableMethod[" + service.getClass().getName() + "." + method.getName() + "]";
+	}
 }
@@ -0,0 +1,325 @@
+package edu.uw.cs.cse461.net.rpc;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import edu.uw.cs.cse461.net.rpc.RPCMessage.RPCCallMessage;
+import edu.uw.cs.cse461.net.rpc.RPCMessage.RPCCallMessage.RPCBatchMessage;
+import edu.uw.cs.cse461.net.rpc.RPCMessage.RPCCallMessage.RPCControlMessage;
+import edu.uw.cs.cse461.net.rpc.RPCMessage.RPCCallMessage.RPCInvokeMessage;
+import edu.uw.cs.cse461.net.rpc.RPCMessage.RPCResponseMessage;
+import edu.uw.cs.cse461.net.rpc.RPCMessage.RPCResponseMessage.RPCChunkMessage;
+import edu.uw.cs.cse461.net.rpc.RPCMessage.RPCResponseMessage.RPCErrorResponseMessage;
+import edu.uw.cs.cse461.net.rpc.RPCMessage.RPCResponseMessage.RPCNormalResponseMessage;
+import edu.uw.cs.cse461.net.tcpmessagehandler.NonblockingTCPMessageHandler;
+import edu.uw.cs.cse461.util.Log;
+
+/**
+ * The callee side of a single RPC connection.  Instances are owned by an
+ * RPCSelectorThread, which calls handleReadable() and handleWritable() when
+ * the underlying non-blocking channel is ready.
+ * <p>
+ * Framing is done by a NonblockingTCPMessageHandler, which decodes messages incrementally
+ * from whatever partial reads the channel provides.  The first message on a
+ * connection must be the connect control handshake, which may switch the connection from JSON to the
+ * binary message encoding (and to compressed messages), and tells the caller whether batch messages are accepted.  After that,
+ * each invoke or batch message is handed to the RPCService for execution on its worker pool, along with
+ * an RPCCallContext that a later cancel control message from the caller can mark.  Responses may be queued by any thread;
+ * they're written by the selector thread.  If a caller stops reading its responses, the handler
+ * stops reading its calls.
+ *
+ * @author zahorjan
+ *
+ */
+class RPCCalleeSocket {
+	private static final String TAG="RPCCalleeSocket";
+
+	private final RPCService mService;
+	private final NonblockingTCPMessageHandler mHandler;
+	private final String mPeerAddress;
+
+	// read side state -- touched only by the selector thread
+	private boolean mHandshakeDone = false;
+	private boolean mPersistent = false;
+	private volatile RPCBinaryCodec mCodec = null;  // set if the caller negotiated binary encoding
+	private JSONObject mAwaitingAttachments = null;  // a decoded message whose attachments are still arriving
+
+	private final Object mSendLock = new Object();
+	private volatile boolean mCloseAfterWrite = false;
+	private final AtomicInteger mCallsInProgress = new AtomicInteger(0);
+	// contexts of the calls dispatched but not yet completed, by callid, so they can be cancelled
+	private final ConcurrentHashMap<Integer, RPCCallContext> mInFlight = new ConcurrentHashMap<Integer, RPCCallContext>();
+	private volatile boolean mClosed = false;
+
+	RPCCalleeSocket(RPCService service, final RPCSelectorThread ioThread, SocketChannel channel) throws IOException {
+		mService = service;
+		mHandler = new NonblockingTCPMessageHandler(channel);
+		mPeerAddress = channel.socket().getInetAddress().getHostAddress();
+		mHandler.setNoDelay(true);
+		// the header of a message from a caller says how much to allocate for it; don't take its word for just anything
+		mHandler.setMaxReadLength(service.maxMessageLength());
+		mHandler.setWriteRequestCallback(new Runnable() {
+			@Override
+			public void run() {
+				ioThread.requestWrite(RPCCalleeSocket.this);
+			}
+		});
+	}
+
+	/**
+	 * The IP address of the caller, as seen by this end of the connection (unlike the host name in its
+	 * messages, which is whatever the caller says it is).
+	 */
+	String peerAddress() {
+		return mPeerAddress;
+	}
+
+	/**
+	 * Registers the connection with its selector thread's Selector.  Called on that thread.
+	 */
+	SelectionKey register(Selector selector) throws IOException {
+		return mHandler.register(selector, this);
+	}
+
+	//--------------------------------------------------------------------------------------
+	// read side
+	//--------------------------------------------------------------------------------------
+
+	/**
+	 * Reads whatever is available on the channel, dispatching each complete message.
+	 * @throws IOException On EOF or a broken connection.  The caller closes the connection.
+	 */
+	void handleReadable() throws IOException {
+		mHandler.handleReadable();
+		while ( mHandler.hasMessage() && !mCloseAfterWrite && !mClosed ) {
+			_handleFrame(mHandler.readMessageAsBytes());
+		}
+	}
+
+	private void _handleFrame(byte[] payload) throws IOException {
+		RPCMessage msg;
+		try {
+			if ( mAwaitingAttachments != null ) {
+				mCodec.attach(payload);
+				if ( mCodec.needsAttachment() ) return;
+				msg = RPCMessage.unmarshall(mAwaitingAttachments);
+				mAwaitingAttachments = null;
+			} else if ( mCodec != null && RPCBinaryCodec.isBinary(payload) ) {
+				JSONObject obj = mCodec.decode(payload);
+				if ( mCodec.needsAttachment() ) {
+					mAwaitingAttachments = obj;
+					return;
+				}
+				msg = RPCMessage.unmarshall(obj);
+			} else {
+				msg = RPCMessage.unmarshall(new String(payload));
+			}
+		} catch (JSONException e) {
+			throw new IOException("Malformed message from " + this + ": " + e.getMessage());
+		}
+		_handleMessage(msg);
+	}
+
+	private void _handleMessage(RPCMessage msg) throws IOException {
+		try {
+			if ( !mHandshakeDone ) {
+				_handleConnect(msg);
+				return;
+			}
+
+			if ( msg instanceof RPCInvokeMessage || msg instanceof RPCBatchMessage ) {
+				// a non-persistent connection carries exactly one call (or batch)
+				if ( !mPersistent ) {
+					mCloseAfterWrite = true;
+					mHandler.setReadEnabled(false);
+				}
+				// the deadline is reckoned from when the call arrived, on our clock
+				int timeout = msg instanceof RPCInvokeMessage ? ((RPCInvokeMessage)msg).timeout() : 0;
+				RPCCallContext context = new RPCCallContext(msg.id(), timeout);
+				mInFlight.put(context.callId(), context);
+				mCallsInProgress.incrementAndGet();
+				if ( msg instanceof RPCInvokeMessage ) mService.dispatch(this, (RPCInvokeMessage)msg, context);
+				else mService.dispatchBatch(this, (RPCBatchMessage)msg, context);
+			} else if ( msg instanceof RPCControlMessage && ((RPCControlMessage)msg).action().equalsIgnoreCase("cancel") ) {
+				_handleCancel((RPCControlMessage)msg);
+			} else if ( msg instanceof RPCControlMessage ) {
+				Log.w(TAG, "Ignoring unexpected control message after handshake: " + msg);
+			} else {
+				Log.w(TAG, "Ignoring unexpected message: " + msg);
+			}
+		} catch (JSONException e) {
+			throw new IOException("Malformed message from " + this + ": " + e.getMessage());
+		}
+	}
+
+	/**
+	 * The caller no longer wants the response to call options.callid.  If the call hasn't started it
+	 * won't be run; if it has, its handler can find out from its RPCCallContext.  Either way the call
+	 * still gets a response, which the caller ignores.
+	 */
+	private void _handleCancel(RPCControlMessage cancelMsg) {
+		try {
+			RPCCallContext context = mInFlight.get(Integer.valueOf(cancelMsg.getOption("callid")));
+			if ( context != null ) context.cancel();
+		} catch (NumberFormatException e) {
+			Log.w(TAG, "Ignoring malformed cancel message: " + cancelMsg);
+		}
+	}
+
+	private void _handleConnect(RPCMessage msg) throws JSONException {
+		if ( !(msg instanceof RPCControlMessage) || !((RPCControlMessage)msg).action().equalsIgnoreCase("connect") ) {
+			RPCCallMessage callMsg = msg instanceof RPCCallMessage ? (RPCCallMessage)msg : null;
+			send(new RPCErrorResponseMessage(msg.id(), "Expected connect control message", callMsg));
+			mCloseAfterWrite = true;
+			mHandler.setReadEnabled(false);
+			return;
+		}
+		RPCControlMessage connectMsg = (RPCControlMessage)msg;
+		String connection = connectMsg.getOption("connection");
+		mPersistent = connection != null && connection.equalsIgnoreCase("keep-alive");
+		String encoding = connectMsg.getOption("encoding");
+		boolean binary = encoding != null && encoding.equalsIgnoreCase(RPCBinaryCodec.ENCODING_NAME);
+
+		// callers that don't ask about batching never send batches, so don't tell them
+		boolean batch = "true".equalsIgnoreCase(connectMsg.getOption("batch"));
+		boolean cancel = "true".equalsIgnoreCase(connectMsg.getOption("cancel"));
+		int compressionThreshold = RPCService.COMPRESSION_NAME.equalsIgnoreCase(connectMsg.getOption("compression")) ? mService.compressionThreshold() : 0;
+
+		JSONObject value = null;
+		if ( mPersistent || binary || batch || cancel || compressionThreshold > 0 ) value = new JSONObject();
+		if ( mPersistent ) value.put("connection", "keep-alive");
+		if ( binary ) value.put("encoding", RPCBinaryCodec.ENCODING_NAME);
+		if ( batch ) value.put("batch", true);
+		if ( cancel ) value.put("cancel", true);
+		if ( compressionThreshold > 0 ) value.put("compression", RPCService.COMPRESSION_NAME);
+		// the handshake response itself is JSON and uncompressed; everything after it uses the negotiated encoding
+		send(new RPCNormalResponseMessage(connectMsg.id(), value));
+		if ( binary ) mCodec = new RPCBinaryCodec();
+		if ( compressionThreshold > 0 ) mHandler.setCompression(compressionThreshold);
+		mHandshakeDone = true;
+	}
+
+	//--------------------------------------------------------------------------------------
+	// write side
+	//--------------------------------------------------------------------------------------
+
+	/**
+	 * Called by a worker thread when an invocation (or batch) this connection dispatched has completed.
+	 */
+	void callCompleted(RPCCallContext context, RPCResponseMessage response) {
+		mInFlight.remove(context.callId());
+		mCallsInProgress.decrementAndGet();
+		if ( response == null ) {
+			// no sensible response could be built; dropping the connection at least tells the caller
+			close();
+			return;
+		}
+		send(response);
+	}
+
+	/**
+	 * Returns a sink that sends the chunks of a call's response on this connection.  A handler
+	 * writing to it blocks whenever more than the connection's output limit is queued, until half of
+	 * that has been written, so a call streaming to a slow caller holds only a bounded amount of its
+	 * response in memory.
+	 */
+	RPCResponseSink streamSink(final RPCCallContext context) {
+		return new RPCResponseSink() {
+			@Override
+			public void send(JSONObject chunk) throws IOException {
+				if ( mClosed ) throw new IOException("Connection closed: " + RPCCalleeSocket.this);
+				if ( context.isAbandoned() ) throw new IOException("Caller abandoned call " + context.callId());
+				try {
+					RPCCalleeSocket.this.send(new RPCChunkMessage(context.callId(), chunk));
+				} catch (JSONException e) {
+					throw new IOException("Couldn't build chunk: " + e.getMessage());
+				}
+				long limit = mHandler.getOutputLimit();
+				if ( mHandler.pendingOutputBytes() <= limit ) return;
+				try {
+					if ( !mHandler.awaitOutputBelow(limit / 2, mService.persistenceTimeout()) )
+						throw new IOException("Caller isn't reading streamed response: " + RPCCalleeSocket.this);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new IOException("Interrupted while streaming response");
+				}
+			}
+		};
+	}
+
+	/**
+	 * Queues a message for sending.  Callable from any thread.
+	 * <p>
+	 * Any attachments are queued as they are, so bulk data in a (direct) ByteBuffer is written
+	 * straight from it to the channel.
+	 */
+	void send(RPCMessage msg) {
+		if ( mClosed ) return;
+		// encoding and queueing must happen in the same order, since the binary codec interns strings
+		synchronized(mSendLock) {
+			ArrayList<ByteBuffer> attachments = new ArrayList<ByteBuffer>();
+			try {
+				mHandler.sendMessage(msg.toBytes(mCodec, attachments));
+				for ( ByteBuffer attachment : attachments ) mHandler.sendMessage(attachment);
+			} catch (JSONException e) {
+				Log.e(TAG, "Couldn't encode " + msg + ": " + e.getMessage());
+				close();
+			} catch (IOException e) {
+				// the connection has been closed
+			}
+		}
+	}
+
+	/**
+	 * Called on the selector thread when there is queued output.
+	 */
+	void enableWriteInterest() {
+		mHandler.enableWriteInterest();
+	}
+
+	/**
+	 * Writes as much queued output as the channel will take.
+	 * @throws IOException
+	 */
+	void handleWritable() throws IOException {
+		mHandler.handleWritable();
+		if ( mCloseAfterWrite && mCallsInProgress.get() == 0 && !mHandler.hasPendingOutput() ) close();
+	}
+
+	//--------------------------------------------------------------------------------------
+	// lifetime
+	//--------------------------------------------------------------------------------------
+
+	/**
+	 * True if the connection has had no traffic or outstanding calls for longer than its timeout.
+	 */
+	boolean isIdleSince(long now) {
+		if ( mCallsInProgress.get() > 0 || mHandler.hasPendingOutput() ) return false;
+		int timeout = mPersistent ? mService.persistenceTimeout() : mService.socketTimeout();
+		return now - mHandler.lastActivity() > timeout;
+	}
+
+	boolean isClosed() {
+		return mClosed;
+	}
+
+	void close() {
+		if ( mClosed ) return;
+		mClosed = true;
+		mHandler.close();
+	}
+
+	@Override
+	public String toString() {
+		return "RPCCalleeSocket[" + mHandler + "]";
+	}
+}
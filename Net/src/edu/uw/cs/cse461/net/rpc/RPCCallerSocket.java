@@ -1,17 +1,25 @@
 package edu.uw.cs.cse461.net.rpc;
 
 import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.net.Socket;
-import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
 
 import org.json.JSONException;
 import org.json.JSONObject;
 
-import edu.uw.cs.cse461.net.base.NetBase;
-import edu.uw.cs.cse461.net.rpc.RPCMessage.RPCCallMessage;
+import edu.uw.cs.cse461.net.rpc.RPCMessage.RPCCallMessage.RPCBatchMessage;
 import edu.uw.cs.cse461.net.rpc.RPCMessage.RPCCallMessage.RPCControlMessage;
 import edu.uw.cs.cse461.net.rpc.RPCMessage.RPCCallMessage.RPCInvokeMessage;
 import edu.uw.cs.cse461.net.rpc.RPCMessage.RPCResponseMessage;
+import edu.uw.cs.cse461.net.rpc.RPCMessage.RPCResponseMessage.RPCBatchResponseMessage;
+import edu.uw.cs.cse461.net.rpc.RPCMessage.RPCResponseMessage.RPCChunkMessage;
+import edu.uw.cs.cse461.net.rpc.RPCMessage.RPCResponseMessage.RPCErrorResponseMessage;
 import edu.uw.cs.cse461.net.rpc.RPCMessage.RPCResponseMessage.RPCNormalResponseMessage;
 import edu.uw.cs.cse461.net.tcpmessagehandler.TCPMessageHandler;
 import edu.uw.cs.cse461.util.Log;
@@ -19,29 +27,326 @@ import edu.uw.cs.cse461.util.Log;
 /**
  * Implements a Socket to use in sending remote RPC invocations.  (It must engage
  * in the RPC handshake before sending the invocation request.)
+ * <p>
+ * Calls are multiplexed: any number of threads may invoke() concurrently on the same
+ * connection.  Each call is sent as soon as it is issued, and a reader thread matches
+ * each response to its caller by callid, so many calls can be in flight at once.
+ * Calls can also be sent in batches, one message per batch, if the callee accepts them.  A call's
+ * response may be streamed as a series of chunks, which the reader hands to the call's RPCStream;
+ * a streamed call has a connection of its own.
  * @author zahorjan
  *
  */
  class RPCCallerSocket extends Socket {
-	private static final String TAG = "RPCCallerSocket";	
-	
+	private static final String TAG = "RPCCallerSocket";
+
+	private final String mRemote;
+	private final TCPMessageHandler mHandler;
+	private final boolean mPersistent;
+	private final boolean mBatch;  // true if the callee accepts batch messages
+	private final boolean mCancel;  // true if the callee accepts cancel messages
+	private final RPCBinaryCodec mCodec;  // null if the connection uses JSON
+	private final ConcurrentHashMap<Integer, RPCCallFuture> mPending = new ConcurrentHashMap<Integer, RPCCallFuture>();
+	private volatile boolean mDiscarded = false;
+	private volatile long mLastUsed;
+
 	/**
 	 * Create a socket for sending RPC invocations, connecting it to the specified remote ip and port.
-	 * @param Remote host's name. In Project 3, it's not terribly meaningful - repeat the ip.
-	 *  In Project 4, it's intended to be the string name of the remote system, allowing a degree of sanity checking.
+	 * The connect handshake is completed before the constructor returns, and a reader thread is started.
 	 * @param ip  Remote system IP address.
 	 * @param port Remote RPC service's port.
 	 * @param wantPersistent True if caller wants to try to establish a persistent connection, false otherwise
+	 * @param wantBinary True if caller wants to use the binary message encoding, if the remote side supports it
+	 * @param compressionThreshold If not 0, ask for messages at least this long to be compressed
+	 * @param timeout Max time to wait for the connection to be established, and then for the handshake response, in msec.
+	 *        0 means wait indefinitely.
 	 * @throws IOException
 	 * @throws JSONException
 	 */
-	RPCCallerSocket(String ip, int port, boolean wantPersistent) throws IOException, JSONException {
-		super(ip, port);	
+	RPCCallerSocket(String ip, int port, boolean wantPersistent, boolean wantBinary, int compressionThreshold, int timeout) throws IOException, JSONException {
+		mRemote = ip + ":" + port;
+		try {
+			connect(new InetSocketAddress(ip, port), timeout);
+		} catch (IOException e) {
+			close();
+			throw e;
+		}
+		setKeepAlive(true);
+		mHandler = new TCPMessageHandler(this);
+		mHandler.setNoDelay(true);
+		mHandler.setTimeout(timeout);
+
+		try {
+			JSONObject options = new JSONObject();
+			if ( wantPersistent ) options.put("connection", "keep-alive");
+			if ( wantBinary ) options.put("encoding", RPCBinaryCodec.ENCODING_NAME);
+			options.put("batch", true);
+			options.put("cancel", true);
+			if ( compressionThreshold > 0 ) options.put("compression", RPCService.COMPRESSION_NAME);
+			RPCControlMessage connectMsg = new RPCControlMessage("connect", options);
+			mHandler.sendMessage(connectMsg.marshall());
+
+			RPCMessage response = RPCMessage.unmarshall(mHandler.readMessageAsString());
+			if ( !(response instanceof RPCNormalResponseMessage) || ((RPCResponseMessage)response).callid() != connectMsg.id() )
+				throw new IOException("Bad connect response from " + mRemote + ": '" + response + "'");
+			JSONObject value = ((RPCNormalResponseMessage)response).value();
+			mPersistent = value != null && value.optString("connection").equalsIgnoreCase("keep-alive");
+			// a callee that doesn't know about binary encoding ignores the option, and we stay with JSON
+			boolean binary = value != null && value.optString("encoding").equalsIgnoreCase(RPCBinaryCodec.ENCODING_NAME);
+			mCodec = binary ? new RPCBinaryCodec() : null;
+			mBatch = value != null && value.optBoolean("batch");
+			mCancel = value != null && value.optBoolean("cancel");
+			// each side compresses what it sends as soon as the callee has agreed to it in the response
+			if ( compressionThreshold > 0 && value != null && value.optString("compression").equalsIgnoreCase(RPCService.COMPRESSION_NAME) )
+				mHandler.setCompression(compressionThreshold);
+		} catch (IOException e) {
+			close();
+			throw e;
+		} catch (JSONException e) {
+			close();
+			throw e;
+		}
+
+		// responses are matched to callers by the reader thread, so reads never time out
+		mHandler.setTimeout(0);
+		mLastUsed = System.currentTimeMillis();
+		Thread reader = new Thread("RPCCallerSocket-" + mRemote) {
+			@Override
+			public void run() {
+				_readResponses();
+			}
+		};
+		reader.setDaemon(true);
+		reader.start();
+	}
+
+	/**
+	 * Sends an invocation and returns without waiting for the response.
+	 * @return A Future that yields the remote method's return value.
+	 * @throws IOException If the call can't be sent.  The socket is discarded in that case.
+	 */
+	Future<JSONObject> invoke(String serviceName, String method, JSONObject userRequest) throws IOException, JSONException {
+		return invoke(serviceName, method, userRequest, 0);
+	}
+	
+	/**
+	 * Like invoke(String, String, JSONObject), but also tells the callee how long we'll wait for the
+	 * response, so it can skip the call if it can't get to it in time.
+	 * @param timeout In msec.  0 means we'll wait indefinitely.
+	 */
+	Future<JSONObject> invoke(String serviceName, String method, JSONObject userRequest, int timeout) throws IOException, JSONException {
+		return invoke(serviceName, method, userRequest, timeout, 0);
+	}
+	
+	/**
+	 * Like invoke(String, String, JSONObject, int), but also gives the call a request id.  Every attempt at a
+	 * call should carry the same request id, so that the callee can recognize a retry and not run it again.
+	 * @param requestId 0 means the call has none
+	 */
+	Future<JSONObject> invoke(String serviceName, String method, JSONObject userRequest, int timeout, long requestId) throws IOException, JSONException {
+		if ( mDiscarded ) throw new IOException("RPCCallerSocket to " + mRemote + " has been discarded");
+		RPCInvokeMessage invokeMsg = new RPCInvokeMessage(serviceName, method, userRequest);
+		invokeMsg.setTimeout(timeout);
+		invokeMsg.setRequestId(requestId);
+		RPCCallFuture future = new RPCCallFuture(invokeMsg.id());
+		_send(invokeMsg, future);
+		return future;
+	}
+	
+	/**
+	 * Sends an invocation whose response may be streamed, and returns without waiting for any of it.
+	 * The stream takes over the connection:  while its buffer is full the reader waits for the consumer,
+	 * so no other call should be issued on this socket, and the stream discards it when the call ends.
+	 * @param timeout Max time the returned stream waits for each chunk, in msec.
+	 * @throws IOException If the call can't be sent.  The socket is discarded in that case.
+	 */
+	RPCStream invokeStreaming(String serviceName, String method, JSONObject userRequest, int timeout) throws IOException, JSONException {
+		if ( mDiscarded ) throw new IOException("RPCCallerSocket to " + mRemote + " has been discarded");
+		RPCInvokeMessage invokeMsg = new RPCInvokeMessage(serviceName, method, userRequest, true);
+		RPCStream stream = new RPCStream(invokeMsg.id(), this, timeout);
+		_send(invokeMsg, stream);
+		return stream;
+	}
+	
+	/**
+	 * Sends several invocations as a single batch message, and returns without waiting for the response.
+	 * Should be called only if supportsBatch() is true.
+	 * @param calls The invocations, built with RPCBatch
+	 * @param parallel True if the callee may run the calls concurrently
+	 * @return Futures yielding the calls' return values, in the order of calls
+	 * @throws IOException If the batch can't be sent.  The socket is discarded in that case.
+	 */
+	List<Future<JSONObject>> invokeBatch(List<RPCInvokeMessage> calls, boolean parallel) throws IOException, JSONException {
+		if ( mDiscarded ) throw new IOException("RPCCallerSocket to " + mRemote + " has been discarded");
+		RPCBatchMessage batchMsg = new RPCBatchMessage(calls, parallel);
+		ArrayList<Integer> callIds = new ArrayList<Integer>(calls.size());
+		for ( RPCInvokeMessage call : calls ) callIds.add(call.id());
+		RPCBatchFuture future = new RPCBatchFuture(batchMsg.id(), callIds);
+		_send(batchMsg, future);
+		return future.calls();
+	}
+	
+	/**
+	 * Registers future as waiting for the response to msg, then sends msg.
+	 */
+	private void _send(RPCMessage msg, RPCCallFuture future) throws IOException, JSONException {
+		mPending.put(future.callId(), future);
+		mLastUsed = System.currentTimeMillis();
+		try {
+			// encoding and sending must happen in the same order, since the codec interns strings
+			synchronized(mHandler) {
+				ArrayList<ByteBuffer> attachments = new ArrayList<ByteBuffer>();
+				mHandler.sendMessage(msg.toBytes(mCodec, attachments));
+				for ( ByteBuffer attachment : attachments ) mHandler.sendMessage(_toArray(attachment));
+			}
+		} catch (IOException e) {
+			mPending.remove(future.callId());
+			discard();
+			throw e;
+		}
+		// the connection may have died between our check and the put()
+		if ( mDiscarded ) future.fail(new IOException("RPCCallerSocket to " + mRemote + " was discarded"));
+	}
+
+	/**
+	 * Stops waiting for the response to a call issued by invoke().  (Used when the caller times out.)
+	 * If the callee accepts cancel messages, it's told it needn't finish the call.
+	 */
+	void abandon(Future<JSONObject> call) {
+		RPCCallFuture future = (RPCCallFuture)call;
+		boolean wasPending = mPending.remove(future.callId()) != null;
+		// the cancel goes out before the future is cancelled, since cancelling an RPCStream discards its connection
+		if ( wasPending && mCancel && !mDiscarded ) {
+			try {
+				RPCControlMessage cancelMsg = new RPCControlMessage("cancel", new JSONObject().put("callid", future.callId()));
+				synchronized(mHandler) {
+					mHandler.sendMessage(cancelMsg.toBytes(mCodec, new ArrayList<ByteBuffer>()));
+				}
+			} catch (IOException e) {
+				discard();
+			} catch (JSONException e) {
+				Log.w(TAG, "Couldn't build cancel message for call " + future.callId() + ": " + e.getMessage());
+			}
+		}
+		future.cancel(false);
+	}
+
+	/**
+	 * Reader thread body.  Runs until the connection fails or is discarded.
+	 */
+	private void _readResponses() {
+		try {
+			while ( !mDiscarded ) {
+				RPCMessage msg = _readMessage();
+				if ( !(msg instanceof RPCResponseMessage) ) {
+					Log.w(TAG, "Ignoring non-response message from " + mRemote + ": " + msg);
+					continue;
+				}
+				RPCResponseMessage response = (RPCResponseMessage)msg;
+				if ( response instanceof RPCChunkMessage ) {
+					// more of a streamed response; the call is still pending
+					RPCCallFuture future = mPending.get(response.callid());
+					if ( future instanceof RPCStream ) ((RPCStream)future).chunk(((RPCChunkMessage)response).value());
+					else Log.d(TAG, "Chunk for unknown (abandoned?) call " + response.callid() + " from " + mRemote);
+					mLastUsed = System.currentTimeMillis();
+					continue;
+				}
+				RPCCallFuture future = mPending.remove(response.callid());
+				if ( future == null ) {
+					Log.d(TAG, "Response for unknown (timed out?) call " + response.callid() + " from " + mRemote);
+					continue;
+				}
+				mLastUsed = System.currentTimeMillis();
+				if ( response instanceof RPCBatchResponseMessage && future instanceof RPCBatchFuture ) ((RPCBatchFuture)future).completeBatch((RPCBatchResponseMessage)response);
+				else if ( response instanceof RPCNormalResponseMessage ) future.complete(((RPCNormalResponseMessage)response).value());
+				else if ( response instanceof RPCErrorResponseMessage ) future.fail(_error((RPCErrorResponseMessage)response));
+				else future.fail(new IOException("Mismatched response from " + mRemote + ": " + response));
+			}
+		} catch (Exception e) {
+			if ( !mDiscarded ) Log.d(TAG, "Connection to " + mRemote + " failed: " + e.getMessage());
+		} finally {
+			discard();
+		}
+	}
+
+	/**
+	 * The exception an error response causes the call to throw.
+	 */
+	private Exception _error(RPCErrorResponseMessage response) throws JSONException {
+		String message = "RPC error from " + mRemote + ": " + response.message();
+		if ( response.retryAfter() > 0 ) return new RPCOverloadException(message, response.retryAfter());
+		return new Exception(message);
+	}
+
+	/**
+	 * Reads the next message, along with any attachments that follow it.
+	 */
+	private RPCMessage _readMessage() throws IOException, JSONException {
+		byte[] buf = mHandler.readMessageAsBytes();
+		if ( mCodec == null || !RPCBinaryCodec.isBinary(buf) ) return RPCMessage.unmarshall(new String(buf));
+		JSONObject obj = mCodec.decode(buf);
+		while ( mCodec.needsAttachment() ) mCodec.attach(mHandler.readMessageAsBytes());
+		return RPCMessage.unmarshall(obj);
+	}
+
+	private static byte[] _toArray(ByteBuffer buf) {
+		if ( buf.hasArray() && buf.arrayOffset() == 0 && buf.position() == 0 && buf.remaining() == buf.array().length ) return buf.array();
+		byte[] bytes = new byte[buf.remaining()];
+		buf.duplicate().get(bytes);
+		return bytes;
 	}
 
 	/**
-	 * Close this socket.
+	 * True if the remote side agreed to keep the connection open for further calls.
+	 */
+	boolean isPersistent() {
+		return mPersistent;
+	}
+
+	/**
+	 * True if the remote side accepts batch messages.
+	 */
+	boolean supportsBatch() {
+		return mBatch;
+	}
+
+	/**
+	 * True if this socket can still be used to issue calls.
+	 */
+	boolean isUsable() {
+		return !mDiscarded && !isClosed();
+	}
+
+	/**
+	 * Number of calls sent whose responses haven't yet arrived.
+	 */
+	int nPending() {
+		return mPending.size();
+	}
+
+	/**
+	 * Time of the last call issued or response received, as System.currentTimeMillis().
+	 */
+	long lastUsed() {
+		return mLastUsed;
+	}
+
+	/**
+	 * Close this socket.  Any calls still waiting for responses fail with an IOException.
 	 */
 	synchronized public void discard() {
+		if ( mDiscarded ) return;
+		mDiscarded = true;
+		mHandler.close();
+		Iterator<RPCCallFuture> it = mPending.values().iterator();
+		while ( it.hasNext() ) {
+			it.next().fail(new IOException("Connection to " + mRemote + " closed before response arrived"));
+			it.remove();
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "RPCCallerSocket[" + mRemote + (mCodec != null ? ", binary, " : ", ") + mPending.size() + " pending]";
 	}
 }
@@ -0,0 +1,285 @@
+package edu.uw.cs.cse461.net.rpc;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.json.JSONException;
+
+import edu.uw.cs.cse461.net.base.MetricsRegistry;
+import edu.uw.cs.cse461.util.Log;
+
+/**
+ * The caller side's pool of persistent connections, keyed by remote endpoint.
+ * <p>
+ * Connections are multiplexed, so checkout doesn't grant exclusive use -- it picks the
+ * least loaded healthy connection to the endpoint.  Another connection is opened only when
+ * every existing one has calls in flight, up to a per-endpoint cap.  Checkout takes no locks
+ * unless it has to wait: each endpoint's connections are kept in a copy-on-write list, and the
+ * cap is enforced by reserving a slot with an atomic counter before connecting.  A checkout that
+ * finds the cap taken up by connects in progress waits until one of them finishes.
+ * <p>
+ * A connection is healthy if its reader is still running and it hasn't sat idle long enough that
+ * the remote side may have timed it out.  A single cleaner thread evicts idle connections, and
+ * forgets endpoints that no longer have any.
+ * <p>
+ * Checkout hits and misses, connects, and evictions are counted in the MetricsRegistry.
+ *
+ * @author zahorjan
+ *
+ */
+class RPCConnectionPool {
+	private static final String TAG="RPCConnectionPool";
+	private static final int RETIRED = -1;  // the reservation count of an entry that has been dropped from the pool
+
+	private final int mMaxPerEndpoint;
+	private final int mIdleTimeout;
+	private final boolean mWantBinary;
+	private final int mCompressionThreshold;
+	private final ConcurrentHashMap<RPCEndpoint, EndpointConnections> mPool = new ConcurrentHashMap<RPCEndpoint, EndpointConnections>();
+	private final Timer mCleaner;
+
+	private final MetricsRegistry.Counter mHits;
+	private final MetricsRegistry.Counter mMisses;
+	private final MetricsRegistry.Counter mEvictions;
+	private final MetricsRegistry.Counter mConnects;
+	private final MetricsRegistry.Counter mConnectFailures;
+
+	/**
+	 * The connections to a single endpoint.
+	 */
+	private static class EndpointConnections {
+		final CopyOnWriteArrayList<RPCCallerSocket> sockets = new CopyOnWriteArrayList<RPCCallerSocket>();
+		// sockets plus connects in progress, or RETIRED once the entry has been dropped from the pool
+		final AtomicInteger nReserved = new AtomicInteger(0);
+		private int mVersion = 0;  // bumped whenever a socket is added or a slot released
+
+		synchronized int version() {
+			return mVersion;
+		}
+
+		/**
+		 * Wakes checkouts waiting for a slot.
+		 */
+		synchronized void changed() {
+			mVersion++;
+			notifyAll();
+		}
+
+		/**
+		 * Waits for changed(), if it hasn't been called since version() returned version, for at most timeout msec.
+		 */
+		synchronized void awaitChange(int version, long timeout) throws InterruptedException {
+			if ( mVersion == version ) wait(timeout);
+		}
+
+		void release() {
+			nReserved.decrementAndGet();
+			changed();
+		}
+	}
+
+	/**
+	 * @param maxPerEndpoint Max number of connections to any one endpoint
+	 * @param idleTimeout Connections idle this long (msec.) are closed, and are never reused
+	 * @param wantBinary True if new connections should ask for the binary message encoding
+	 * @param compressionThreshold If not 0, new connections ask for messages at least this long to be compressed
+	 */
+	RPCConnectionPool(int maxPerEndpoint, int idleTimeout, boolean wantBinary, int compressionThreshold) {
+		mMaxPerEndpoint = maxPerEndpoint;
+		mIdleTimeout = idleTimeout;
+		mWantBinary = wantBinary;
+		mCompressionThreshold = compressionThreshold;
+		MetricsRegistry metrics = MetricsRegistry.theRegistry();
+		mHits = metrics.counter("rpc_client_pool_hits_total", "Calls sent on an already open pooled connection");
+		mMisses = metrics.counter("rpc_client_pool_misses_total", "Calls that needed a new connection");
+		mEvictions = metrics.counter("rpc_client_pool_evictions_total", "Pooled connections closed as idle or broken");
+		mConnects = metrics.counter("rpc_client_connects_total", "Connections opened to remote RPC services");
+		mConnectFailures = metrics.counter("rpc_client_connect_failures_total", "Failed attempts to connect to remote RPC services");
+		mCleaner = new Timer("RPCConnectionPool-cleaner", true);
+		long period = Math.max(idleTimeout / 2, 1000);
+		mCleaner.schedule(new TimerTask() {
+			@Override
+			public void run() {
+				evictIdle();
+			}
+		}, period, period);
+	}
+
+	/**
+	 * Returns a healthy connection to the endpoint, opening a new one if needed (and allowed).
+	 * @param timeout Max time to wait for a connection slot and for the connect handshake, in msec.
+	 *        0 (or less) means wait indefinitely, as with socket timeouts.
+	 */
+	RPCCallerSocket checkout(RPCEndpoint endpoint, int timeout) throws IOException, JSONException {
+		EndpointConnections conns = _connections(endpoint);
+		long deadline = timeout > 0 ? System.currentTimeMillis() + timeout : Long.MAX_VALUE;
+		while ( true ) {
+			int version = conns.version();
+			// the cleaner may have dropped the endpoint's (empty) entry since we looked it up
+			if ( conns.nReserved.get() == RETIRED ) {
+				conns = _connections(endpoint);
+				continue;
+			}
+			long now = System.currentTimeMillis();
+			RPCCallerSocket best = null;
+			for ( RPCCallerSocket socket : conns.sockets ) {
+				if ( !_isHealthy(socket, now) ) {
+					_evict(conns, socket);
+					continue;
+				}
+				if ( best == null || socket.nPending() < best.nPending() ) best = socket;
+			}
+
+			// use an existing connection unless they're all busy and we're allowed to open another
+			if ( best != null && (best.nPending() == 0 || !_reserve(conns)) ) {
+				mHits.inc();
+				return best;
+			}
+			if ( best != null || _reserve(conns) ) break;
+
+			// no usable connection, and the cap is taken up by connects in progress; wait for one of them
+			if ( now >= deadline ) throw new IOException("Timed out waiting for a connection to " + endpoint);
+			try {
+				conns.awaitChange(version, deadline == Long.MAX_VALUE ? 0 : deadline - now);
+			} catch (InterruptedException e) {
+				throw new IOException("Interrupted waiting for a connection to " + endpoint);
+			}
+		}
+
+		mMisses.inc();
+		RPCCallerSocket socket;
+		try {
+			socket = new RPCCallerSocket(endpoint.host(), endpoint.port(), true, mWantBinary, mCompressionThreshold, Math.max(timeout, 0));
+		} catch (IOException e) {
+			conns.release();
+			mConnectFailures.inc();
+			throw e;
+		} catch (JSONException e) {
+			conns.release();
+			mConnectFailures.inc();
+			throw e;
+		}
+		mConnects.inc();
+		if ( socket.isPersistent() ) {
+			conns.sockets.add(socket);
+			conns.changed();
+		} else {
+			conns.release();  // one-shot; caller discards it after the call
+		}
+		return socket;
+	}
+
+	/**
+	 * The entry for the endpoint's connections, created if it doesn't exist.
+	 */
+	private EndpointConnections _connections(RPCEndpoint endpoint) {
+		EndpointConnections conns = mPool.get(endpoint);
+		if ( conns == null ) {
+			EndpointConnections newConns = new EndpointConnections();
+			conns = mPool.putIfAbsent(endpoint, newConns);
+			if ( conns == null ) conns = newConns;
+		}
+		return conns;
+	}
+
+	/**
+	 * Opens a connection to the endpoint that isn't pooled, for a call that needs a connection to itself.
+	 * It doesn't count against the per-endpoint cap.  The caller discards it when done with it.
+	 * @param timeout Max time to wait for the connect handshake, in msec.  0 (or less) means wait indefinitely.
+	 */
+	RPCCallerSocket connect(RPCEndpoint endpoint, int timeout) throws IOException, JSONException {
+		RPCCallerSocket socket;
+		try {
+			socket = new RPCCallerSocket(endpoint.host(), endpoint.port(), false, mWantBinary, mCompressionThreshold, Math.max(timeout, 0));
+		} catch (IOException e) {
+			mConnectFailures.inc();
+			throw e;
+		} catch (JSONException e) {
+			mConnectFailures.inc();
+			throw e;
+		}
+		mConnects.inc();
+		return socket;
+	}
+
+	/**
+	 * Removes a connection known to be bad (e.g., a send on it failed).
+	 */
+	void invalidate(RPCEndpoint endpoint, RPCCallerSocket socket) {
+		EndpointConnections conns = mPool.get(endpoint);
+		if ( conns != null ) _evict(conns, socket);
+		else socket.discard();
+	}
+
+	/**
+	 * Closes connections that have been idle for longer than the idle timeout, and drops the entries
+	 * of endpoints left with no connections.
+	 */
+	void evictIdle() {
+		long now = System.currentTimeMillis();
+		for ( Map.Entry<RPCEndpoint, EndpointConnections> entry : mPool.entrySet() ) {
+			EndpointConnections conns = entry.getValue();
+			for ( RPCCallerSocket socket : conns.sockets ) {
+				if ( !_isHealthy(socket, now) ) _evict(conns, socket);
+			}
+			// retiring the entry first means no checkout can reserve a slot in it after it's gone
+			if ( conns.nReserved.compareAndSet(0, RETIRED) ) {
+				mPool.remove(entry.getKey(), conns);
+				conns.changed();
+			}
+		}
+	}
+
+	/**
+	 * Closes all connections and stops the cleaner thread.
+	 */
+	void shutdown() {
+		mCleaner.cancel();
+		for ( EndpointConnections conns : mPool.values() ) {
+			for ( RPCCallerSocket socket : conns.sockets ) _evict(conns, socket);
+		}
+		mPool.clear();
+	}
+
+	private boolean _isHealthy(RPCCallerSocket socket, long now) {
+		if ( !socket.isUsable() ) return false;
+		// the callee may already have closed a connection this idle, so don't risk it
+		return socket.nPending() > 0 || now - socket.lastUsed() < mIdleTimeout;
+	}
+
+	private boolean _reserve(EndpointConnections conns) {
+		while ( true ) {
+			int n = conns.nReserved.get();
+			if ( n == RETIRED || n >= mMaxPerEndpoint ) return false;
+			if ( conns.nReserved.compareAndSet(n, n+1) ) return true;
+		}
+	}
+
+	private void _evict(EndpointConnections conns, RPCCallerSocket socket) {
+		// only the thread that actually removes the socket releases its slot
+		if ( conns.sockets.remove(socket) ) {
+			conns.release();
+			mEvictions.inc();
+			Log.d(TAG, "Evicting " + socket);
+		}
+		socket.discard();
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		sb.append("Connection pool: ").append(mHits.get()).append(" hits, ").append(mMisses.get()).append(" misses, ")
+		  .append(mEvictions.get()).append(" evictions, ").append(mConnects.get()).append(" connects");
+		for ( RPCEndpoint endpoint : mPool.keySet() ) {
+			EndpointConnections conns = mPool.get(endpoint);
+			if ( conns == null ) continue;
+			for ( RPCCallerSocket socket : conns.sockets ) sb.append("\n\t").append(socket);
+		}
+		return sb.toString();
+	}
+}
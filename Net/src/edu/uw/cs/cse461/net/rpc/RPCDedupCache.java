@@ -0,0 +1,309 @@
+package edu.uw.cs.cse461.net.rpc;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * The callee side's record of recently run calls, so that a call retried by its caller (e.g., because
+ * the connection it was first sent on died) isn't run a second time.  Calls are identified by the address
+ * the caller connected from, the host name it gives, and the requestid it gave the call, which is the same
+ * on every attempt.  (The host name alone won't do:  it's whatever the caller says, and many callers
+ * share the default.)
+ * <p>
+ * The outcome of each call -- its return value, or the message of the exception it threw -- is kept for
+ * ttl msec. after the call was started.  At most (about) maxEntries outcomes holding at most (about) maxBytes
+ * of return values are kept, oldest dropped first.  A return value bigger than maxResultBytes isn't kept at all:
+ * duplicates already waiting for it get it, but later ones run the call again.
+ * A duplicate that arrives while the original is still running is answered when the original finishes.
+ * <p>
+ * The record is split into stripes, each with its own lock and its share of the limits, so calls from
+ * different callers seldom contend.
+ *
+ * @author zahorjan
+ *
+ */
+class RPCDedupCache {
+	private static final int NSTRIPES = 16;
+	
+	private final int mTtl;
+	private final int mMaxEntries;
+	private final long mMaxBytes;
+	private final long mMaxResultBytes;
+	private final Stripe[] mStripes;
+	private final AtomicLong mNDuplicates = new AtomicLong(0);
+	private final AtomicLong mNTooBig = new AtomicLong(0);
+
+	/**
+	 * One stripe of the record:  its entries, in order of insertion (so oldest first), and the
+	 * bytes of return value they hold.  Accessed only holding the stripe's lock.
+	 */
+	private static final class Stripe extends LinkedHashMap<Key, Outcome> {
+		private static final long serialVersionUID = 1L;
+		private final int mMaxEntries;
+		private final long mMaxBytes;
+		private long mBytes = 0;
+		
+		Stripe(int maxEntries, long maxBytes) {
+			super(16, 0.75f, false);
+			mMaxEntries = maxEntries;
+			mMaxBytes = maxBytes;
+		}
+		
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Key, Outcome> eldest) {
+			if ( size() <= mMaxEntries ) return false;
+			// a call still running is kept, so its duplicates don't run it again; the oldest completed one goes instead
+			Iterator<Outcome> it = values().iterator();
+			while ( it.hasNext() ) {
+				Outcome entry = it.next();
+				if ( !entry.mDone ) continue;
+				it.remove();
+				mBytes -= entry.mBytes;
+				break;
+			}
+			return false;
+		}
+		
+		/**
+		 * Removes entry, if it's still the one recorded for its key.
+		 */
+		boolean removeEntry(Outcome entry) {
+			if ( get(entry.mKey) != entry ) return false;
+			remove(entry.mKey);
+			mBytes -= entry.mBytes;
+			return true;
+		}
+		
+		/**
+		 * Removes expired entries, and then completed entries, oldest first, until the stripe is within its byte budget.
+		 */
+		void trim(long oldest) {
+			Iterator<Outcome> it = values().iterator();
+			while ( it.hasNext() ) {
+				Outcome entry = it.next();
+				if ( entry.mCreated >= oldest && mBytes <= mMaxBytes ) break;
+				// a call still running is kept, so its duplicates don't run it again
+				if ( !entry.mDone ) continue;
+				if ( entry.mCreated >= oldest && entry.mBytes == 0 ) continue;
+				it.remove();
+				mBytes -= entry.mBytes;
+			}
+		}
+	}
+
+	/**
+	 * The identity of a request.  The hash is computed once, at construction.
+	 */
+	private static final class Key {
+		private final String mPeer;
+		private final String mHost;
+		private final long mRequestId;
+		private final int mHash;
+
+		Key(String peer, String host, long requestId) {
+			mPeer = peer;
+			mHost = host;
+			mRequestId = requestId;
+			mHash = 31 * (31 * peer.hashCode() + host.hashCode()) + (int)(requestId ^ (requestId >>> 32));
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if ( this == o ) return true;
+			if ( !(o instanceof Key) ) return false;
+			Key other = (Key)o;
+			return mRequestId == other.mRequestId && mPeer.equals(other.mPeer) && mHost.equals(other.mHost);
+		}
+
+		@Override
+		public int hashCode() {
+			return mHash;
+		}
+	}
+
+	/**
+	 * The outcome of one call, once it has completed.
+	 */
+	static class Outcome {
+		private Key mKey;  // set when begin() records it
+		private final long mCreated = System.currentTimeMillis();
+		private volatile boolean mDone = false;
+		private List<Runnable> mWaiters = new ArrayList<Runnable>();  // guarded by this; null once done
+		private long mBytes = 0;  // the estimated size of mValue, once it's counted against the stripe's budget
+		private volatile JSONObject mValue;
+		private volatile String mError;
+
+		/**
+		 * Runs callback once the call has completed:  right away, on this thread, if it already has, and
+		 * otherwise on the thread that completes it.
+		 */
+		void whenDone(Runnable callback) {
+			synchronized(this) {
+				if ( mWaiters != null ) {
+					mWaiters.add(callback);
+					return;
+				}
+			}
+			callback.run();
+		}
+
+		private void _complete() {
+			List<Runnable> waiters;
+			synchronized(this) {
+				mDone = true;
+				waiters = mWaiters;
+				mWaiters = null;
+			}
+			for ( Runnable callback : waiters ) callback.run();
+		}
+
+		/**
+		 * The call's return value (valid once it has completed without error).
+		 */
+		JSONObject value() {
+			return mValue;
+		}
+
+		/**
+		 * The message of the exception the call threw, or null if it returned normally.
+		 */
+		String error() {
+			return mError;
+		}
+	}
+
+	/**
+	 * @param ttl How long an outcome is kept, in msec.
+	 * @param maxEntries Max number of outcomes kept
+	 * @param maxBytes Max total (estimated) size of the return values kept
+	 * @param maxResultBytes Return values bigger than this (estimated) aren't kept
+	 */
+	RPCDedupCache(int ttl, int maxEntries, long maxBytes, long maxResultBytes) {
+		mTtl = ttl;
+		mMaxEntries = maxEntries;
+		mMaxBytes = maxBytes;
+		mMaxResultBytes = Math.min(maxResultBytes, maxBytes / NSTRIPES);
+		mStripes = new Stripe[NSTRIPES];
+		for ( int i=0; i<NSTRIPES; i++ ) mStripes[i] = new Stripe(Math.max(1, (maxEntries + NSTRIPES - 1) / NSTRIPES), maxBytes / NSTRIPES);
+	}
+	
+	private Stripe _stripe(Key key) {
+		int h = key.hashCode();
+		h ^= (h >>> 16);
+		return mStripes[(h & 0x7fffffff) % NSTRIPES];
+	}
+
+	/**
+	 * Called before running a call.  If the call has already been run (or is running), returns its outcome,
+	 * and the caller should reply with that outcome rather than run the call.  Otherwise records mine as the
+	 * call's outcome and returns null, and the caller must run the call and then report its outcome with
+	 * finish(mine, ...) (or call forget(mine)).
+	 */
+	Outcome begin(String peer, String host, long requestId, Outcome mine) {
+		if ( mMaxEntries == 0 ) return null;
+		Key key = new Key(peer, host, requestId);
+		Stripe stripe = _stripe(key);
+		synchronized(stripe) {
+			stripe.trim(System.currentTimeMillis() - mTtl);
+			Outcome entry = stripe.get(key);
+			if ( entry != null ) {
+				mNDuplicates.incrementAndGet();
+				return entry;
+			}
+			mine.mKey = key;
+			stripe.put(key, mine);
+			return null;
+		}
+	}
+
+	/**
+	 * Records the outcome of a call for which begin() returned null, and answers any duplicates waiting for it.
+	 * @param mine The outcome passed to begin()
+	 * @param error The message of the exception the call threw, or null if it returned value
+	 */
+	void finish(Outcome mine, JSONObject value, String error) {
+		mine.mValue = value;
+		mine.mError = error;
+		if ( mine.mKey != null ) {
+			long bytes = value == null ? 0 : sizeOf(value);
+			Stripe stripe = _stripe(mine.mKey);
+			synchronized(stripe) {
+				if ( bytes > mMaxResultBytes ) {
+					// too big to keep; duplicates already waiting still get it through their reference to mine
+					if ( stripe.removeEntry(mine) ) mNTooBig.incrementAndGet();
+				} else if ( stripe.get(mine.mKey) == mine ) {
+					mine.mBytes = bytes;
+					stripe.mBytes += bytes;
+					if ( stripe.mBytes > stripe.mMaxBytes ) stripe.trim(System.currentTimeMillis() - mTtl);
+				}
+			}
+		}
+		mine._complete();
+	}
+
+	/**
+	 * Drops the record of a call for which begin() returned null, without recording an outcome.
+	 * Used when the call didn't complete; a retry will run it.
+	 * @param mine The outcome passed to begin()
+	 */
+	void forget(Outcome mine) {
+		if ( mine.mKey != null ) {
+			Stripe stripe = _stripe(mine.mKey);
+			synchronized(stripe) {
+				stripe.removeEntry(mine);
+			}
+		}
+		mine.mError = "Original call was not run";
+		mine._complete();
+	}
+	
+	/**
+	 * A rough estimate of the memory a return value takes:  its strings, binary attachments, and
+	 * a few bytes for each other value.
+	 */
+	static long sizeOf(Object value) {
+		if ( value instanceof JSONObject ) {
+			JSONObject obj = (JSONObject)value;
+			long size = 16;
+			Iterator<?> keys = obj.keys();
+			while ( keys.hasNext() ) {
+				String key = (String)keys.next();
+				size += 2 * key.length() + sizeOf(obj.opt(key));
+			}
+			return size;
+		}
+		if ( value instanceof JSONArray ) {
+			JSONArray array = (JSONArray)value;
+			long size = 16;
+			for ( int i=0; i<array.length(); i++ ) size += sizeOf(array.opt(i));
+			return size;
+		}
+		if ( value instanceof String ) return 16 + 2 * ((String)value).length();
+		if ( value instanceof byte[] ) return 16 + ((byte[])value).length;
+		if ( value instanceof ByteBuffer ) return 16 + ((ByteBuffer)value).remaining();
+		return 16;
+	}
+
+	@Override
+	public String toString() {
+		int size = 0;
+		long bytes = 0;
+		for ( Stripe stripe : mStripes ) {
+			synchronized(stripe) {
+				size += stripe.size();
+				bytes += stripe.mBytes;
+			}
+		}
+		return "Duplicate suppression: " + size + " recent calls remembered (max " + mMaxEntries + ", ttl " + mTtl + " msec.), " +
+		       bytes + " bytes of results kept (max " + mMaxBytes + "), " +
+		       mNDuplicates.get() + " duplicates not rerun, " + mNTooBig.get() + " results too big to keep";
+	}
+}
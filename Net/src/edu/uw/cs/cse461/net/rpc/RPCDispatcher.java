@@ -0,0 +1,353 @@
+package edu.uw.cs.cse461.net.rpc;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import edu.uw.cs.cse461.util.ConfigManager;
+import edu.uw.cs.cse461.util.Log;
+
+/**
+ * The worker pools that run incoming calls, along with the admission control that keeps them from
+ * being buried under more calls than they can get to.
+ * <p>
+ * Calls run on a shared pool of rpc.server.workers threads, except that a service may have a pool
+ * of its own, so that its calls can't take up the workers other services need.  (A service that does bulk
+ * transfers shouldn't hold up one that answers pings.)  A service asks for its own pool with
+ * RPCService.setServiceThreads(); config fields rpc.service.&lt;name&gt;.threads and rpc.service.&lt;name&gt;.queue
+ * override what the service asks for, and can give any service its own pool.  A threads value of 0 puts
+ * the service on the shared pool.
+ * <p>
+ * At most rpc.server.queue calls wait for a worker of the shared pool (rpc.service.&lt;name&gt;.queue for a
+ * service's own pool).  What happens to a call that arrives when that many are waiting depends on
+ * rpc.server.overload:
+ * <ul>
+ * <li>reject (the default) -- the new call is refused.
+ * <li>lifo -- the call that has waited longest is refused instead, to make room for the new one.  Also,
+ *     once the queue is more than half full, workers take the newest calls first.  Under overload the oldest
+ *     calls are the ones whose callers are most likely to have given up already.
+ * </ul>
+ * Config field rpc.service.&lt;name&gt;.maxconcurrent limits the number of calls to a service that may be
+ * waiting or running at once; calls beyond that are refused, so one slow service can't fill the queue.
+ * <p>
+ * A refused call is answered right away with an error carrying a hint (rpc.overload.retryafter msec.)
+ * of how long the caller should wait before trying again.
+ *
+ * @author zahorjan
+ *
+ */
+class RPCDispatcher {
+	private static final String TAG="RPCDispatcher";
+
+	/**
+	 * A call (or a batch's calls to one service) to run.
+	 */
+	static abstract class Task implements Runnable {
+		private final String mService;  // null if the call isn't made to any one service
+		private RPCDispatcher mDispatcher;
+		private Pool mPool;
+		private long mQueuedAt;  // System.nanoTime() when admitted
+
+		/**
+		 * @param service The service called, or null
+		 */
+		Task(String service) {
+			mService = service;
+		}
+
+		/**
+		 * Runs the call, on a worker thread.
+		 */
+		abstract void execute();
+
+		/**
+		 * Refuses the call.  Called on the thread submitting the call, or (for a call pushed out of
+		 * the queue) on that of the call that replaced it.
+		 * @param reason Why
+		 * @param retryAfter Msec. the caller should wait before trying again
+		 */
+		abstract void reject(String reason, int retryAfter);
+
+		@Override
+		public final void run() {
+			mPool.mNQueued.decrementAndGet();
+			try {
+				execute();
+			} finally {
+				mDispatcher._release(this);
+			}
+		}
+	}
+
+	/**
+	 * A set of worker threads and the queue of calls waiting for them.
+	 */
+	private class Pool {
+		private final String mName;
+		private final ThreadPoolExecutor mWorkers;
+		private final LinkedBlockingDeque<Runnable> mQueue;
+		private final int mMaxQueued;
+		private final AtomicInteger mNQueued = new AtomicInteger(0);
+
+		Pool(String name, int nThreads, int maxQueued) {
+			mName = name;
+			mMaxQueued = maxQueued;
+			// The queue is unbounded, as the bound applies only to calls (see admit()); work spawned by a call
+			// already admitted, such as the calls of a parallel batch, is always accepted.
+			mQueue = new LinkedBlockingDeque<Runnable>() {
+				private static final long serialVersionUID = 1L;
+				@Override
+				public boolean offer(Runnable r) {
+					if ( mLifo && mNQueued.get() > mMaxQueued / 2 ) return offerFirst(r);
+					return offerLast(r);
+				}
+			};
+			mWorkers = new ThreadPoolExecutor(nThreads, nThreads, 0, TimeUnit.MILLISECONDS, mQueue,
+					new ThreadFactory() {
+						private final AtomicInteger nThreads = new AtomicInteger(0);
+						@Override
+						public Thread newThread(Runnable r) {
+							return new Thread(r, "RPCWorker-" + mName + "-" + nThreads.incrementAndGet());
+						}
+					});
+			Log.d(TAG, "Pool " + name + ": " + nThreads + " workers, queue of " + maxQueued);
+		}
+
+		/**
+		 * Queues task, or refuses it (or, under the lifo policy, the oldest task waiting) if the queue is full.
+		 * @throws RejectedExecutionException If the pool has been shut down
+		 */
+		void admit(Task task) {
+			task.mPool = this;
+			while ( true ) {
+				int nQueued = mNQueued.get();
+				if ( nQueued < mMaxQueued ) {
+					if ( mNQueued.compareAndSet(nQueued, nQueued + 1) ) break;
+					continue;
+				}
+				// overloaded
+				if ( mLifo ) {
+					Task oldest = _oldestQueued();
+					if ( oldest != null && mQueue.remove(oldest) ) {
+						// the new call takes over the oldest one's place in the count
+						_release(oldest);
+						_reject(oldest, "Server overloaded: call pushed out of queue by newer calls");
+						break;
+					}
+					// a worker took it just now, so there's room after all
+					if ( oldest != null ) continue;
+				}
+				_release(task);
+				_reject(task, "Server overloaded: " + nQueued + " calls waiting for " + mName + " workers");
+				return;
+			}
+
+			task.mQueuedAt = System.nanoTime();
+			try {
+				mWorkers.execute(task);
+			} catch (RejectedExecutionException e) {
+				mNQueued.decrementAndGet();
+				_release(task);
+				throw e;
+			}
+		}
+
+		/**
+		 * The call that has waited longest, or null if only work that can't be dropped (the parts of a call
+		 * already running) is waiting.  The queue mixes calls added at its tail with calls added (under lifo)
+		 * at its head, so the oldest can be anywhere in it.
+		 */
+		private Task _oldestQueued() {
+			Task oldest = null;
+			for ( Runnable r : mQueue ) {
+				if ( !(r instanceof Task) ) continue;
+				Task task = (Task)r;
+				if ( oldest == null || task.mQueuedAt - oldest.mQueuedAt < 0 ) oldest = task;
+			}
+			return oldest;
+		}
+
+		@Override
+		public String toString() {
+			return mName + ": " + mWorkers.getActiveCount() + " of " + mWorkers.getMaximumPoolSize() + " workers busy, " +
+			       mNQueued.get() + " calls waiting (max " + mMaxQueued + ")";
+		}
+	}
+
+	private final ConfigManager mConfig;
+	private final boolean mLifo;
+	private final int mRetryAfter;
+	private final Pool mShared;
+	// the pool of each service called so far; services without a pool of their own map to mShared
+	private final ConcurrentHashMap<String, Pool> mPools = new ConcurrentHashMap<String, Pool>();
+	// the pools services have asked for, as {threads, queue}
+	private final Map<String, int[]> mDeclaredPools = new HashMap<String, int[]>();
+	// per-service limits and counts of calls waiting or running, created as services are first called
+	private final ConcurrentHashMap<String, Integer> mServiceLimits = new ConcurrentHashMap<String, Integer>();
+	private final ConcurrentHashMap<String, AtomicInteger> mServiceCalls = new ConcurrentHashMap<String, AtomicInteger>();
+	private final AtomicLong mNRejected = new AtomicLong(0);
+	private volatile boolean mAmShutdown = false;
+
+	RPCDispatcher(ConfigManager config) {
+		mConfig = config;
+		mLifo = "lifo".equalsIgnoreCase(config.getProperty("rpc.server.overload", "reject"));
+		mRetryAfter = config.getAsInt("rpc.overload.retryafter", 100, 1);
+		mShared = new Pool("shared", config.getAsInt("rpc.server.workers", 8, 1), config.getAsInt("rpc.server.queue", 1024, 1));
+		Log.d(TAG, (mLifo ? "lifo" : "reject") + " when overloaded");
+	}
+
+	/**
+	 * Gives service a pool of its own, unless the config file says otherwise.  If the service already has
+	 * a pool, it's replaced; calls already queued on the old one still run.
+	 * @param nThreads 0 means the service's calls run on the shared pool
+	 * @param maxQueued Max number of calls waiting for the pool's workers
+	 */
+	void setServiceThreads(String service, int nThreads, int maxQueued) {
+		synchronized(mDeclaredPools) {
+			mDeclaredPools.put(service, new int[] { nThreads, maxQueued });
+			_retire(mPools.remove(service));
+		}
+	}
+
+	/**
+	 * Shuts down service's pool, if it has one of its own.  Calls already queued on it still run.
+	 * Its calls go back to the shared pool, unless the service asks for a pool again (or has one in the config file).
+	 */
+	void forgetService(String service) {
+		synchronized(mDeclaredPools) {
+			mDeclaredPools.remove(service);
+			_retire(mPools.remove(service));
+		}
+	}
+
+	private void _retire(Pool pool) {
+		if ( pool != null && pool != mShared ) pool.mWorkers.shutdown();
+	}
+
+	/**
+	 * The pool that runs the calls of service.
+	 */
+	private Pool _pool(String service) {
+		if ( service == null ) return mShared;
+		Pool pool = mPools.get(service);
+		if ( pool != null ) return pool;
+		synchronized(mDeclaredPools) {
+			pool = mPools.get(service);
+			if ( pool != null ) return pool;
+			int[] declared = mDeclaredPools.get(service);
+			int nThreads = mConfig.getAsInt("rpc.service." + service + ".threads", declared == null ? 0 : declared[0], 0);
+			if ( nThreads == 0 ) {
+				pool = mShared;
+			} else {
+				int maxQueued = mConfig.getAsInt("rpc.service." + service + ".queue", declared == null ? mShared.mMaxQueued : declared[1], 1);
+				pool = new Pool(service, nThreads, maxQueued);
+			}
+			mPools.put(service, pool);
+			return pool;
+		}
+	}
+
+	/**
+	 * Queues task to run on a worker of its service's pool, unless that would overload the service or the pool,
+	 * in which case task is refused (by calling its reject()).
+	 * @throws RejectedExecutionException If the dispatcher has been shut down
+	 */
+	void submit(Task task) {
+		task.mDispatcher = this;
+		if ( task.mService != null ) {
+			int limit = _serviceLimit(task.mService);
+			if ( limit > 0 ) {
+				AtomicInteger nCalls = _serviceCalls(task.mService);
+				if ( nCalls.incrementAndGet() > limit ) {
+					nCalls.decrementAndGet();
+					_reject(task, "Service " + task.mService + " has " + limit + " calls in progress");
+					return;
+				}
+			}
+		}
+
+		try {
+			_pool(task.mService).admit(task);
+		} catch (RejectedExecutionException e) {
+			if ( mAmShutdown ) throw e;
+			// the service's pool was replaced just as we used it
+			_reject(task, "Service " + task.mService + " is being reconfigured");
+		}
+	}
+
+	/**
+	 * Runs r on a worker of service's pool.  r isn't subject to admission control; it's for work that's part of
+	 * a call that has already been admitted.
+	 * @param service The service r calls, or null
+	 * @throws RejectedExecutionException If the dispatcher has been shut down
+	 */
+	void execute(String service, Runnable r) {
+		try {
+			_pool(service).mWorkers.execute(r);
+		} catch (RejectedExecutionException e) {
+			if ( mAmShutdown ) throw e;
+			mShared.mWorkers.execute(r);
+		}
+	}
+
+	private void _reject(Task task, String reason) {
+		mNRejected.incrementAndGet();
+		task.reject(reason, mRetryAfter);
+	}
+
+	/**
+	 * Called when a task that was admitted is done, or when one that was counted against its service's limit
+	 * turns out not to be admitted after all.
+	 */
+	private void _release(Task task) {
+		if ( task.mService == null || _serviceLimit(task.mService) <= 0 ) return;
+		_serviceCalls(task.mService).decrementAndGet();
+	}
+
+	private int _serviceLimit(String service) {
+		Integer limit = mServiceLimits.get(service);
+		if ( limit == null ) {
+			limit = mConfig.getAsInt("rpc.service." + service + ".maxconcurrent", 0, 0);
+			mServiceLimits.put(service, limit);
+		}
+		return limit;
+	}
+
+	private AtomicInteger _serviceCalls(String service) {
+		AtomicInteger nCalls = mServiceCalls.get(service);
+		if ( nCalls == null ) {
+			mServiceCalls.putIfAbsent(service, new AtomicInteger(0));
+			nCalls = mServiceCalls.get(service);
+		}
+		return nCalls;
+	}
+
+	void shutdown() {
+		mAmShutdown = true;
+		mShared.mWorkers.shutdownNow();
+		for ( Pool pool : mPools.values() ) pool.mWorkers.shutdownNow();
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder("Workers: ").append(mShared);
+		List<String> pools = new ArrayList<String>();
+		for ( Pool pool : mPools.values() ) {
+			if ( pool != mShared ) pools.add(pool.toString());
+		}
+		Collections.sort(pools);
+		for ( String pool : pools ) sb.append("; ").append(pool);
+		sb.append("; ").append(mLifo ? "lifo" : "reject").append(" when full, ").append(mNRejected.get()).append(" calls refused");
+		return sb.toString();
+	}
+}
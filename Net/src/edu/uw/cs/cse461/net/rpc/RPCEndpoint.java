@@ -0,0 +1,47 @@
+package edu.uw.cs.cse461.net.rpc;
+
+/**
+ * Immutable (host, port) pair identifying a remote RPC service.  Used as the key
+ * for the caller-side connection pool.  The hash is computed once, at construction.
+ * 
+ * @author zahorjan
+ *
+ */
+final class RPCEndpoint {
+	private final String mHost;
+	private final int mPort;
+	private final int mHash;
+
+	RPCEndpoint(String host, int port) {
+		if ( host == null ) throw new NullPointerException("RPCEndpoint host is null");
+		mHost = host;
+		mPort = port;
+		mHash = 31 * host.hashCode() + port;
+	}
+
+	String host() {
+		return mHost;
+	}
+
+	int port() {
+		return mPort;
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if ( this == o ) return true;
+		if ( !(o instanceof RPCEndpoint) ) return false;
+		RPCEndpoint other = (RPCEndpoint)o;
+		return mPort == other.mPort && mHost.equals(other.mHost);
+	}
+
+	@Override
+	public int hashCode() {
+		return mHash;
+	}
+
+	@Override
+	public String toString() {
+		return mHost + ":" + mPort;
+	}
+}
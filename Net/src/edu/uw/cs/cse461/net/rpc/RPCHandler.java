@@ -0,0 +1,28 @@
+package edu.uw.cs.cse461.net.rpc;
+
+import org.json.JSONObject;
+
+/**
+ * The code that fields calls to one RPC method.
+ * <p>
+ * Register an implementation directly with RPCServiceInterface.registerHandler() to have
+ * calls dispatched to it without reflection, for example:
+ * <pre>
+ *   rpcService.registerHandler(loadablename(), "echo", new RPCHandler() {
+ *       public JSONObject handleCall(JSONObject args) throws Exception { return _echo(args); }
+ *   });
+ * </pre>
+ * RPCCallableMethod adapts an existing method, named by a String, to this interface.
+ * 
+ * @author zahorjan
+ *
+ */
+public interface RPCHandler {
+	/**
+	 * Called, on an RPC worker thread, for each incoming invocation of the method.
+	 * @param args The arguments sent by the caller
+	 * @return The value returned to the caller (may be null)
+	 * @throws Exception The caller receives an error response carrying the exception's description
+	 */
+	public JSONObject handleCall(JSONObject args) throws Exception;
+}
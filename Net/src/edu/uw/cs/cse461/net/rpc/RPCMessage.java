@@ -1,15 +1,23 @@
 package edu.uw.cs.cse461.net.rpc;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.List;
 
+import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
 import edu.uw.cs.cse461.net.base.NetBase;
+import edu.uw.cs.cse461.net.rpc.RPCMessage.RPCCallMessage.RPCBatchMessage;
 import edu.uw.cs.cse461.net.rpc.RPCMessage.RPCCallMessage.RPCControlMessage;
 import edu.uw.cs.cse461.net.rpc.RPCMessage.RPCCallMessage.RPCInvokeMessage;
+import edu.uw.cs.cse461.net.rpc.RPCMessage.RPCResponseMessage.RPCBatchResponseMessage;
+import edu.uw.cs.cse461.net.rpc.RPCMessage.RPCResponseMessage.RPCChunkMessage;
 import edu.uw.cs.cse461.net.rpc.RPCMessage.RPCResponseMessage.RPCErrorResponseMessage;
 import edu.uw.cs.cse461.net.rpc.RPCMessage.RPCResponseMessage.RPCNormalResponseMessage;
+import edu.uw.cs.cse461.util.Base64;
 import edu.uw.cs.cse461.util.Log;
 
 /**
@@ -64,23 +72,92 @@ class RPCMessage {
 		if ( jsonFormatString == null ) throw new IOException("RPCMessage.stringToMessage was passed null");
 
 		try {
-			JSONObject jsonObj = new JSONObject(jsonFormatString);
-			
-			String type = jsonObj.getString("type"); 
-			
-			if ( type.equalsIgnoreCase("control") ) return new RPCControlMessage(jsonObj);
-			if ( type.equalsIgnoreCase("invoke") )  return new RPCInvokeMessage(jsonObj);
-			if ( type.equalsIgnoreCase("OK") )      return new RPCNormalResponseMessage(jsonObj);
-			if ( type.equalsIgnoreCase("ERROR") )   return new RPCErrorResponseMessage(jsonObj);
-			String msg = "Got unrecognized type in message: " + type + " [" + jsonFormatString + "]"; 
-			Log.e(TAG, msg );
-			
-			throw new IOException(msg);
-
+			return unmarshall(new JSONObject(jsonFormatString));
 		} catch (JSONException je) {
 			throw new IOException("Unparsable message: '" + jsonFormatString + "'");
 		}
+	}
+	
+	/**
+	 * Builds a message from its JSON form (as parsed from text, or decoded by an RPCBinaryCodec).
+	 */
+	static RPCMessage unmarshall(JSONObject jsonObj) throws IOException, JSONException {
+		String type = jsonObj.getString("type"); 
+		
+		if ( type.equalsIgnoreCase("control") ) return new RPCControlMessage(jsonObj);
+		if ( type.equalsIgnoreCase("invoke") )  return new RPCInvokeMessage(jsonObj);
+		if ( type.equalsIgnoreCase("batch") )   return new RPCBatchMessage(jsonObj);
+		if ( type.equalsIgnoreCase("batchresult") ) return new RPCBatchResponseMessage(jsonObj);
+		if ( type.equalsIgnoreCase("chunk") )   return new RPCChunkMessage(jsonObj);
+		if ( type.equalsIgnoreCase("OK") )      return new RPCNormalResponseMessage(jsonObj);
+		if ( type.equalsIgnoreCase("ERROR") )   return new RPCErrorResponseMessage(jsonObj);
+		String msg = "Got unrecognized type in message: " + type + " [" + jsonObj + "]"; 
+		Log.e(TAG, msg );
 		
+		throw new IOException(msg);
+	}
+	
+	/**
+	 * Encodes the message for sending, in binary if a codec is given and as JSON text otherwise.
+	 * Calls passing the same codec must be serialized, in the order the messages are sent.
+	 * <p>
+	 * ByteBuffer and byte[] values in the message are binary attachments.  With a codec they are
+	 * appended to attachments, to be sent as frames of their own following the message.  Without one,
+	 * they're replaced by their Base64 encodings, as JSON has no way to carry binary data.
+	 * <p>
+	 * The message itself is never modified:  its values (a return value remembered for replay, say) may be
+	 * shared with other messages being encoded at the same time, perhaps for connections that take binary.
+	 */
+	byte[] toBytes(RPCBinaryCodec codec, List<ByteBuffer> attachments) throws JSONException {
+		if ( codec != null ) return codec.encode(this, attachments);
+		return _withBase64Attachments(mObject).toString().getBytes();
+	}
+	
+	/**
+	 * Returns value with its attachments replaced by their Base64 encodings.  The parts of value that
+	 * hold attachments are copied; value itself is returned if it has none.
+	 */
+	private static Object _withBase64Attachments(Object value) throws JSONException {
+		if ( value instanceof ByteBuffer || value instanceof byte[] ) return _toBase64(value);
+		if ( value instanceof JSONObject ) {
+			JSONObject obj = (JSONObject)value;
+			JSONObject copy = null;
+			Iterator<?> keys = obj.keys();
+			while ( keys.hasNext() ) {
+				String key = (String)keys.next();
+				Object field = obj.get(key);
+				Object encoded = _withBase64Attachments(field);
+				if ( encoded == field ) continue;
+				if ( copy == null ) copy = new JSONObject(obj, JSONObject.getNames(obj));
+				copy.put(key, encoded);
+			}
+			return copy != null ? copy : obj;
+		}
+		if ( value instanceof JSONArray ) {
+			JSONArray array = (JSONArray)value;
+			JSONArray copy = null;
+			for ( int i=0; i<array.length(); i++ ) {
+				Object element = array.get(i);
+				Object encoded = _withBase64Attachments(element);
+				if ( encoded == element ) continue;
+				if ( copy == null ) {
+					copy = new JSONArray();
+					for ( int j=0; j<array.length(); j++ ) copy.put(array.get(j));
+				}
+				copy.put(i, encoded);
+			}
+			return copy != null ? copy : array;
+		}
+		return value;
+	}
+	
+	private static String _toBase64(Object attachment) {
+		if ( attachment instanceof byte[] ) return Base64.encodeBytes((byte[])attachment);
+		ByteBuffer buf = (ByteBuffer)attachment;
+		if ( buf.hasArray() ) return Base64.encodeBytes(buf.array(), buf.arrayOffset() + buf.position(), buf.remaining());
+		byte[] bytes = new byte[buf.remaining()];
+		buf.duplicate().get(bytes);
+		return Base64.encodeBytes(bytes);
 	}
 	
 	//---------------------------------------------------------
@@ -150,12 +227,64 @@ class RPCMessage {
 				if ( args != null ) mObject.put("args", args);
 			}
 			
+			/**
+			 * @param stream True if the caller can take the response as a stream of chunks
+			 */
+			RPCInvokeMessage(String service, String method, JSONObject args, boolean stream) throws JSONException {
+				this(service, method, args);
+				if ( stream ) mObject.put("stream", true);
+			}
+			
 			RPCInvokeMessage(JSONObject jsonObject) throws JSONException {
 				super(jsonObject);
 				mObject.put("type", "invoke")
 				       .put("app", jsonObject.getString("app"))
 				       .put("method", jsonObject.getString("method"));
 				if ( jsonObject.has("args") ) mObject.put("args", jsonObject.getJSONObject("args"));
+				if ( jsonObject.optBoolean("stream") ) mObject.put("stream", true);
+				if ( jsonObject.optInt("timeout") > 0 ) mObject.put("timeout", jsonObject.getInt("timeout"));
+				if ( jsonObject.optLong("requestid") != 0 ) mObject.put("requestid", jsonObject.getLong("requestid"));
+			}
+			
+			/**
+			 * Sets the caller-chosen id that identifies this request across retries.  (Unlike the message id,
+			 * it's the same for each attempt.)  The callee runs a call at most once per requestid.
+			 * @param requestId 0 means none
+			 */
+			void setRequestId(long requestId) throws JSONException {
+				if ( requestId != 0 ) mObject.put("requestid", requestId);
+				else mObject.remove("requestid");
+			}
+			
+			/**
+			 * The id that identifies this request across retries, or 0 if the caller didn't give one.
+			 */
+			long requestId() {
+				return mObject.optLong("requestid");
+			}
+			
+			/**
+			 * Tells the callee how long the caller will wait for the response.  It's sent as a duration,
+			 * rather than as a time, since the two ends' clocks needn't agree.
+			 * @param timeout In msec.  0 means the caller waits indefinitely.
+			 */
+			void setTimeout(int timeout) throws JSONException {
+				if ( timeout > 0 ) mObject.put("timeout", timeout);
+				else mObject.remove("timeout");
+			}
+			
+			/**
+			 * How long the caller will wait for the response, in msec., or 0 if it didn't say.
+			 */
+			int timeout() {
+				return mObject.optInt("timeout");
+			}
+			
+			/**
+			 * True if the caller can take the response as a stream of chunks.
+			 */
+			boolean stream() {
+				return mObject.optBoolean("stream");
 			}
 			
 			String app() throws JSONException {
@@ -166,6 +295,46 @@ class RPCMessage {
 				return mObject.getString("method");
 			}
 		}
+		
+		/**
+		 * Carries several invocations in one message.  Each element of calls is an object with
+		 * the id, app, method, and args fields of the invocation it stands for.  The callee answers
+		 * with a single RPCBatchResponseMessage.  If parallel is true, the callee may run the
+		 * calls concurrently; otherwise it runs them one after another, in order.
+		 * @author zahorjan
+		 *
+		 */
+		static public class RPCBatchMessage extends RPCCallMessage {
+			RPCBatchMessage(List<RPCInvokeMessage> calls, boolean parallel) throws JSONException {
+				JSONArray callArray = new JSONArray();
+				for ( RPCInvokeMessage call : calls ) {
+					JSONObject entry = new JSONObject().put("id", call.id())
+					                                   .put("app", call.app())
+					                                   .put("method", call.method());
+					JSONObject args = call.args();
+					if ( args != null ) entry.put("args", args);
+					callArray.put(entry);
+				}
+				mObject.put("type", "batch")
+				       .put("parallel", parallel)
+				       .put("calls", callArray);
+			}
+			
+			RPCBatchMessage(JSONObject jsonObject) throws JSONException {
+				super(jsonObject);
+				mObject.put("type", "batch")
+				       .put("parallel", jsonObject.optBoolean("parallel"))
+				       .put("calls", jsonObject.getJSONArray("calls"));
+			}
+			
+			JSONArray calls() throws JSONException {
+				return mObject.getJSONArray("calls");
+			}
+			
+			boolean parallel() {
+				return mObject.optBoolean("parallel");
+			}
+		}
 	}
 	
 	
@@ -212,7 +381,8 @@ class RPCMessage {
 
 		static public class RPCErrorResponseMessage extends RPCResponseMessage {
 
-			public static final String FATAL_ERROR_RESPONSE = "{\"id\":-1, \"host\":\"" + NetBase.theNetBase().hostname() +
+			// (without a NetBase, e.g. in a test harness, the host is left empty rather than failing to load the class)
+			public static final String FATAL_ERROR_RESPONSE = "{\"id\":-1, \"host\":\"" + (NetBase.theNetBase() != null ? NetBase.theNetBase().hostname() : "") +
 					"\", \"type\":\"ERROR\", \"message\":\"Fatal JSON errors prevented sending a sensible response\"}";
 			
 			RPCErrorResponseMessage(int callid, String msg, RPCCallMessage callMessage ) throws JSONException {
@@ -227,7 +397,96 @@ class RPCMessage {
 				super(jsonObj);
 				mObject.put("type", "ERROR");
 				mObject.put("message", jsonObj.getString("message") );
-				if ( jsonObj.has("callargs") ) mObject.put("callargs", jsonObj.getJSONObject("callargs"));
+				// callargs is the string "unrecognizable" if the callee couldn't parse the call
+				if ( jsonObj.has("callargs") ) mObject.put("callargs", jsonObj.get("callargs"));
+				if ( jsonObj.optInt("retryafter") > 0 ) mObject.put("retryafter", jsonObj.getInt("retryafter"));
+			}
+			
+			public String message() throws JSONException {
+				return mObject.getString("message");
+			}
+			
+			/**
+			 * Marks the error as due to the callee being overloaded, and suggests how long the caller should
+			 * wait before trying again.
+			 * @param msec 0 means the error isn't due to overload
+			 */
+			RPCErrorResponseMessage setRetryAfter(int msec) throws JSONException {
+				if ( msec > 0 ) mObject.put("retryafter", msec);
+				else mObject.remove("retryafter");
+				return this;
+			}
+			
+			/**
+			 * Msec. the callee suggests waiting before trying the call again, or 0 if the error isn't due to overload.
+			 */
+			public int retryAfter() {
+				return mObject.optInt("retryafter");
+			}
+		}
+		
+		/**
+		 * One chunk of a streamed response.  Any number of them precede the normal (or error)
+		 * response that ends the call.
+		 * @author zahorjan
+		 *
+		 */
+		static public class RPCChunkMessage extends RPCResponseMessage {
+			RPCChunkMessage(int callid, JSONObject chunk) throws JSONException {
+				super(callid);
+				mObject.put("type", "chunk");
+				if ( chunk != null ) mObject.put("value", chunk);
+			}
+			
+			RPCChunkMessage(JSONObject jsonObj) throws JSONException {
+				super(jsonObj);
+				mObject.put("type", "chunk");
+				if ( jsonObj.has("value") && jsonObj.get("value") != null ) mObject.put("value", jsonObj.getJSONObject("value"));
+			}
+			
+			public JSONObject value() throws JSONException {
+				if ( mObject.has("value") ) return mObject.getJSONObject("value");
+				return null;
+			}
+		}
+		
+		/**
+		 * The response to an RPCBatchMessage.  Each element of results is an object with the callid of
+		 * one of the batch's calls and a type of OK or ERROR, plus that call's value or error message.
+		 * @author zahorjan
+		 *
+		 */
+		static public class RPCBatchResponseMessage extends RPCResponseMessage {
+			RPCBatchResponseMessage(int callid, JSONArray results) throws JSONException {
+				super(callid);
+				mObject.put("type", "batchresult");
+				mObject.put("results", results);
+			}
+			
+			RPCBatchResponseMessage(JSONObject jsonObj) throws JSONException {
+				super(jsonObj);
+				mObject.put("type", "batchresult");
+				mObject.put("results", jsonObj.getJSONArray("results"));
+			}
+			
+			JSONArray results() throws JSONException {
+				return mObject.getJSONArray("results");
+			}
+			
+			/**
+			 * Builds the element of results reporting a call that returned normally.
+			 */
+			static JSONObject okResult(int callid, JSONObject value) throws JSONException {
+				JSONObject result = new JSONObject().put("callid", callid).put("type", "OK");
+				if ( value != null ) result.put("value", value);
+				return result;
+			}
+			
+			/**
+			 * Builds the element of results reporting a call that failed.
+			 */
+			static JSONObject errorResult(int callid, String message) throws JSONException {
+				return new JSONObject().put("callid", callid).put("type", "ERROR").put("message", message);
 			}
 		}
 	}
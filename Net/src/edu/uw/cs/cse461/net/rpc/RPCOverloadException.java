@@ -0,0 +1,26 @@
+package edu.uw.cs.cse461.net.rpc;
+
+/**
+ * Thrown by a call that the remote service refused to run because it was overloaded.  Nothing was done, so
+ * the call can safely be issued again -- preferably after waiting retryAfter() msec.
+ *
+ * @author zahorjan
+ *
+ */
+public class RPCOverloadException extends Exception {
+	private static final long serialVersionUID = 1L;
+
+	private final int mRetryAfter;
+
+	RPCOverloadException(String message, int retryAfter) {
+		super(message);
+		mRetryAfter = retryAfter;
+	}
+
+	/**
+	 * How long the remote service suggests waiting before trying again, in msec.
+	 */
+	public int retryAfter() {
+		return mRetryAfter;
+	}
+}
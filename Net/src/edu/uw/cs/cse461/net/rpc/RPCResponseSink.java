@@ -0,0 +1,22 @@
+package edu.uw.cs.cse461.net.rpc;
+
+import java.io.IOException;
+
+import org.json.JSONObject;
+
+/**
+ * Where an RPCStreamingHandler writes the chunks of its response.
+ * 
+ * @author zahorjan
+ *
+ */
+public interface RPCResponseSink {
+	/**
+	 * Sends one chunk of the response.  ByteBuffer and byte[] values in the chunk are sent as they are,
+	 * without copying, so they must not be modified after being passed in.
+	 * <p>
+	 * May block while earlier chunks are still waiting to be written to a slow caller.
+	 * @throws IOException If the caller has gone away, or stopped reading.  The handler should give up.
+	 */
+	public void send(JSONObject chunk) throws IOException;
+}
@@ -0,0 +1,169 @@
+package edu.uw.cs.cse461.net.rpc;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import edu.uw.cs.cse461.util.Log;
+
+/**
+ * One of the RPCService's I/O threads.  Each owns a Selector and multiplexes
+ * all the connections the acceptor has handed it.  The thread does only
+ * non-blocking reads and writes; decoded invocations are handed back to the
+ * RPCService, which runs them on its worker pool.
+ * <p>
+ * Other threads never touch the Selector's keys directly.  Instead they queue
+ * a request (new connection, write interest) and wake the selector up.
+ * <p>
+ * Whatever goes wrong while serving one connection (even an Error, such as running out of memory
+ * decoding a huge message) closes just that connection.  If the thread dies anyway, the RPCService
+ * replaces it (see isAlive()); connections handed to it after it died are closed.
+ *
+ * @author zahorjan
+ *
+ */
+class RPCSelectorThread extends Thread {
+	private static final String TAG="RPCSelectorThread";
+
+	private final RPCService mService;
+	private final Selector mSelector;
+	private final int mGranularity;
+
+	private final ConcurrentLinkedQueue<SocketChannel> mNewChannels = new ConcurrentLinkedQueue<SocketChannel>();
+	private final ConcurrentLinkedQueue<RPCCalleeSocket> mWriteRequests = new ConcurrentLinkedQueue<RPCCalleeSocket>();
+
+	// touched only by this thread
+	private final HashSet<RPCCalleeSocket> mConnections = new HashSet<RPCCalleeSocket>();
+	private long mLastIdleCheck = 0;
+	private volatile boolean mExited = false;
+
+	RPCSelectorThread(RPCService service, int index, int granularity) throws IOException {
+		super("RPCSelectorThread-" + index);
+		mService = service;
+		mSelector = Selector.open();
+		mGranularity = granularity;
+	}
+
+	/**
+	 * Called by the acceptor thread.  The channel is registered the next time this thread wakes up.
+	 */
+	void addConnection(SocketChannel channel) {
+		mNewChannels.add(channel);
+		mSelector.wakeup();
+		// nobody will register it if we died meanwhile
+		if ( mExited ) _closeNewChannels();
+	}
+
+	/**
+	 * Called (by any thread) when a connection has queued output.
+	 */
+	void requestWrite(RPCCalleeSocket conn) {
+		mWriteRequests.add(conn);
+		mSelector.wakeup();
+	}
+
+	/**
+	 * Number of connections currently being served by this thread.  (Approximate if called from another thread.)
+	 */
+	int nConnections() {
+		return mConnections.size();
+	}
+
+	void shutdown() {
+		mSelector.wakeup();
+	}
+
+	@Override
+	public void run() {
+		try {
+			while ( !mService.isShutdown() ) {
+				mSelector.select(mGranularity);
+
+				_registerNewChannels();
+				_processWriteRequests();
+
+				Iterator<SelectionKey> it = mSelector.selectedKeys().iterator();
+				while ( it.hasNext() ) {
+					SelectionKey key = it.next();
+					it.remove();
+					RPCCalleeSocket conn = (RPCCalleeSocket)key.attachment();
+					try {
+						if ( key.isValid() && key.isReadable() ) conn.handleReadable();
+						if ( key.isValid() && key.isWritable() ) conn.handleWritable();
+					} catch (Throwable e) {
+						Log.d(TAG, "Closing connection " + conn + ": " + e);
+						_close(conn);
+					}
+				}
+
+				_closeIdleConnections();
+			}
+		} catch (Throwable e) {
+			if ( !mService.isShutdown() ) Log.e(TAG, "Selector thread exiting due to exception: " + e);
+		} finally {
+			mExited = true;
+			_closeNewChannels();
+			for ( RPCCalleeSocket conn : mConnections ) conn.close();
+			mConnections.clear();
+			try { mSelector.close(); } catch (Exception e) {}
+		}
+	}
+
+	private void _registerNewChannels() {
+		SocketChannel channel;
+		while ( (channel = mNewChannels.poll()) != null ) {
+			try {
+				RPCCalleeSocket conn = new RPCCalleeSocket(mService, this, channel);
+				conn.register(mSelector);
+				mConnections.add(conn);
+			} catch (Throwable e) {
+				Log.w(TAG, "Couldn't register new connection: " + e);
+				try { channel.close(); } catch (Exception ce) {}
+			}
+		}
+	}
+	
+	private void _closeNewChannels() {
+		SocketChannel channel;
+		while ( (channel = mNewChannels.poll()) != null ) {
+			try { channel.close(); } catch (Exception e) {}
+		}
+	}
+
+	private void _processWriteRequests() {
+		RPCCalleeSocket conn;
+		while ( (conn = mWriteRequests.poll()) != null ) {
+			try {
+				conn.enableWriteInterest();
+			} catch (Throwable e) {
+				_close(conn);
+			}
+		}
+	}
+
+	/**
+	 * Closes connections that have been idle longer than their timeout.  Runs at most once per granularity interval.
+	 */
+	private void _closeIdleConnections() {
+		long now = System.currentTimeMillis();
+		if ( now - mLastIdleCheck < mGranularity ) return;
+		mLastIdleCheck = now;
+		Iterator<RPCCalleeSocket> it = mConnections.iterator();
+		while ( it.hasNext() ) {
+			RPCCalleeSocket conn = it.next();
+			if ( conn.isClosed() || conn.isIdleSince(now) ) {
+				it.remove();
+				conn.close();
+			}
+		}
+	}
+
+	private void _close(RPCCalleeSocket conn) {
+		mConnections.remove(conn);
+		conn.close();
+	}
+}
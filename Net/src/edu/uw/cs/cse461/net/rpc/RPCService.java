@@ -2,38 +2,157 @@ package edu.uw.cs.cse461.net.rpc;
 
 import java.io.IOException;
 import java.net.InetSocketAddress;
-import java.net.ServerSocket;
-import java.net.Socket;
-import java.net.SocketTimeoutException;
-import java.util.HashMap;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import edu.uw.cs.cse461.net.base.MetricsRegistry;
 import edu.uw.cs.cse461.net.base.NetBase;
 import edu.uw.cs.cse461.net.base.NetLoadable.NetLoadableService;
-import edu.uw.cs.cse461.net.tcpmessagehandler.TCPMessageHandler;
+import edu.uw.cs.cse461.net.rpc.RPCMessage.RPCCallMessage.RPCBatchMessage;
+import edu.uw.cs.cse461.net.rpc.RPCMessage.RPCCallMessage.RPCInvokeMessage;
+import edu.uw.cs.cse461.net.rpc.RPCMessage.RPCResponseMessage;
+import edu.uw.cs.cse461.net.rpc.RPCMessage.RPCResponseMessage.RPCBatchResponseMessage;
+import edu.uw.cs.cse461.net.rpc.RPCMessage.RPCResponseMessage.RPCErrorResponseMessage;
+import edu.uw.cs.cse461.net.rpc.RPCMessage.RPCResponseMessage.RPCNormalResponseMessage;
 import edu.uw.cs.cse461.util.ConfigManager;
 import edu.uw.cs.cse461.util.IPFinder;
 import edu.uw.cs.cse461.util.Log;
 
 /**
  * Implements the side of RPC that receives remote invocation requests.
+ * <p>
+ * The server is event driven.  The thread created by the constructor accepts connections on a
+ * non-blocking ServerSocketChannel and hands each one to one of a small set of RPCSelectorThreads
+ * (config field rpc.server.iothreads).  Those threads multiplex all the persistent connections, doing
+ * only non-blocking reads and writes.  Each decoded invocation is executed on a pool of worker
+ * threads (config field rpc.server.workers), so a slow handler never stalls other clients.
+ * A service can have workers of its own (setServiceThreads()), so that its calls don't hold up those of other
+ * services.  The number of calls waiting for a worker is bounded, and calls beyond that are refused right
+ * away rather than left to time out (see RPCDispatcher).
+ * A batch message carries many invocations; its calls are admitted and run on the pools of the services
+ * they call, perhaps on several workers at once, and their results go back in a single response.  (Config field rpc.batch.maxcalls bounds batch size.)
+ * Methods registered with registerStreamingHandler() send their responses as a stream of chunks.
+ * <p>
+ * Callers may say how long they'll wait for a response, and may cancel calls.  A call whose caller has
+ * given up by the time a worker would start it isn't run, and handlers can check RPCCallContext.current()
+ * to see whether the call they're running is still wanted.
+ * <p>
+ * A call that carries a request id is remembered (config fields rpc.dedup.ttl, rpc.dedup.maxentries, rpc.dedup.maxbytes
+ * and rpc.dedup.maxresultbytes), and a retry of it gets the outcome of the first attempt rather than running the call again.
+ * <p>
+ * The number of calls to each registered method, how many of them failed, and how long they took are kept
+ * in the MetricsRegistry.
  * 
  * @author zahorjan
  *
  */
 public class RPCService extends NetLoadableService implements Runnable, RPCServiceInterface {
 	private static final String TAG="RPCService";
+	// the name of the message compression scheme, as negotiated in the connect handshake
+	static final String COMPRESSION_NAME = "deflate";
+	
 	private int port;
-	private ServerSocket serverSocket;
-	private HashMap<String, HashMap<String, RPCCallableMethod>> map;
+	private ServerSocketChannel serverChannel;
+	private Selector acceptSelector;
+	private RPCSelectorThread[] ioThreads;
+	private int nextIOThread = 0;
+	private RPCDispatcher dispatcher;
+	// registrations may come and go while calls are being dispatched, so lookups take no locks.
+	// Keyed by service and then by method, so that looking up a call's method allocates nothing.
+	private final ConcurrentHashMap<String, ConcurrentHashMap<String, MethodEntry>> registry = new ConcurrentHashMap<String, ConcurrentHashMap<String, MethodEntry>>();
+
+	private int granularity;
+	// these two follow the config file as it's edited
+	private volatile int socketTimeout;
+	private volatile int persistenceTimeout;
+	private ConfigManager config;  // the config configListener is registered with
+	private final ConfigManager.Listener configListener = new ConfigManager.Listener() {
+		@Override
+		public void configChanged(ConfigManager config, Set<String> changedKeys) {
+			ConfigManager.Snapshot snapshot = config.snapshot();
+			socketTimeout = snapshot.socketTimeout(5000);
+			persistenceTimeout = snapshot.getAsInt("rpc.persistence.timeout", 30000);
+			Log.d(TAG, "Timeouts now " + socketTimeout + " (socket), " + persistenceTimeout + " (persistence)");
+		}
+	};
+	private int maxBatchCalls;
+	private int maxMessageLength;
+	private int compressionThreshold;
+	private final MetricsRegistry.Counter nShed = MetricsRegistry.theRegistry().counter("rpc_server_calls_shed_total", "Calls not run because their callers had given up");
+	private RPCDedupCache dedup;
+	
+	private final MetricsRegistry.Counter unknownMethodCalls;
 	
 	/**
-	 * Constructor.  Creates the Java ServerSocket and binds it to a port.
+	 * A method that is (or once was) registered, and the metrics of the calls to it.  An entry outlives
+	 * the method's registration, so its metrics carry on if the method is registered again.
+	 */
+	private static class MethodEntry {
+		final String service;
+		final String method;
+		final AtomicReference<RPCCallableMethod> callable = new AtomicReference<RPCCallableMethod>();  // null while unregistered
+		private volatile CallMetrics metrics;  // created when the method is first called
+		
+		MethodEntry(String service, String method) {
+			this.service = service;
+			this.method = method;
+		}
+		
+		CallMetrics metrics() {
+			CallMetrics m = metrics;
+			if ( m != null ) return m;
+			synchronized(this) {
+				if ( metrics == null ) metrics = new CallMetrics(service, method);
+				return metrics;
+			}
+		}
+		
+		@Override
+		public String toString() {
+			return service + "." + method;
+		}
+	}
+	
+	/**
+	 * The metrics kept for the calls to one method.
+	 */
+	private static class CallMetrics {
+		final MetricsRegistry.Counter calls;
+		final MetricsRegistry.Counter errors;
+		final MetricsRegistry.Histogram latency;
+		
+		CallMetrics(String service, String method) {
+			MetricsRegistry metrics = MetricsRegistry.theRegistry();
+			calls = metrics.counter("rpc_server_calls_total", "RPC calls handled", "service", service, "method", method);
+			errors = metrics.counter("rpc_server_errors_total", "RPC calls whose handler threw", "service", service, "method", method);
+			latency = metrics.histogram("rpc_server_call_duration_seconds", "Time spent in RPC handlers", "service", service, "method", method);
+		}
+	}
+	
+	/**
+	 * Constructor.  Creates the server channel and binds it to a port.
 	 * If the config file specifies an rpc.server.port value, it should be bound to that port.
 	 * Otherwise, you should specify port 0, meaning the operating system should choose a currently unused port.
 	 * <p>
-	 * Once the port is created, a thread needs to be spun up to listen for connections on it.
+	 * Once the port is created, a thread is spun up to accept connections on it, along with the
+	 * I/O threads and worker pool that serve those connections.
 	 * 
 	 * @throws Exception
 	 */
@@ -43,13 +162,44 @@ public class RPCService extends NetLoadableService implements Runnable, RPCServi
 		port = config.getAsInt("rpc.server.port", 0);
 		String serverIP = IPFinder.localIP();
 		if ( serverIP == null ) throw new Exception("IPFinder isn't providing the local IP address.  Can't run.");
+
+		granularity = config.getAsInt("net.timeout.granularity", 500);
+		socketTimeout = config.getAsInt("net.timeout.socket", 5000);
+		persistenceTimeout = config.getAsInt("rpc.persistence.timeout", 30000);
+		config.addListener(configListener);
+		this.config = config;
+		maxBatchCalls = config.getAsInt("rpc.batch.maxcalls", 1024, 1);
+		maxMessageLength = config.getAsInt("rpc.maxmessage", 32*1024*1024, 1024);
+		compressionThreshold = compressionThreshold(config);
+		dedup = new RPCDedupCache(config.getAsInt("rpc.dedup.ttl", 30000, 0), config.getAsInt("rpc.dedup.maxentries", 10000, 0),
+		                          config.getAsInt("rpc.dedup.maxbytes", 32*1024*1024, 0), config.getAsInt("rpc.dedup.maxresultbytes", 1024*1024, 0));
+		MetricsRegistry metrics = MetricsRegistry.theRegistry();
+		unknownMethodCalls = metrics.counter("rpc_server_unknown_method_calls_total", "RPC calls naming a method that isn't registered");
+		metrics.gauge("rpc_server_connections", "Open RPC connections", new MetricsRegistry.Gauge() {
+			@Override
+			public double value() {
+				int n = 0;
+				for ( RPCSelectorThread t : ioThreads ) n += t.nConnections();
+				return n;
+			}
+		});
+		int nIOThreads = config.getAsInt("rpc.server.iothreads", 2, 1);
 		
-		serverSocket =  new ServerSocket();
-		serverSocket.setReuseAddress(true);
-		serverSocket.bind(new InetSocketAddress(serverIP, port));
-		serverSocket.setSoTimeout( NetBase.theNetBase().config().getAsInt("net.timeout.granularity", 500));
+		serverChannel = ServerSocketChannel.open();
+		serverChannel.socket().setReuseAddress(true);
+		serverChannel.socket().bind(new InetSocketAddress(serverIP, port));
+		serverChannel.configureBlocking(false);
+		port = serverChannel.socket().getLocalPort();
+		acceptSelector = Selector.open();
+		serverChannel.register(acceptSelector, SelectionKey.OP_ACCEPT);
 		
-		map = new HashMap<String, HashMap<String, RPCCallableMethod>>();
+		dispatcher = new RPCDispatcher(config);
+		
+		ioThreads = new RPCSelectorThread[nIOThreads];
+		for ( int i=0; i<nIOThreads; i++ ) {
+			ioThreads[i] = new RPCSelectorThread(this, i, granularity);
+			ioThreads[i].start();
+		}
 		
 		Thread t = new Thread(this);
 		t.start();
@@ -57,133 +207,473 @@ public class RPCService extends NetLoadableService implements Runnable, RPCServi
 	
 	/**
 	 * Executed by an RPCService-created thread.  Sits in loop waiting for
-	 * connections, then creates an RPCCalleeSocket to handle each one.
+	 * connections, then hands each one to an RPCSelectorThread, which creates an RPCCalleeSocket to handle it.
 	 */
 	@Override
 	public void run() {
-		Socket socket = null;
-		boolean persistentConnection = false;
-		boolean firstConnect = false;
 		try {
 			while ( !mAmShutdown ) {
-
-				try {
-					if (socket == null){
-						socket = serverSocket.accept();
-						firstConnect = true;
+				// the timeout lets us notice we're terminating
+				acceptSelector.select(granularity);
+				Iterator<SelectionKey> it = acceptSelector.selectedKeys().iterator();
+				while ( it.hasNext() ) {
+					it.next();
+					it.remove();
+					SocketChannel channel;
+					while ( (channel = serverChannel.accept()) != null ) {
+						_ioThread(nextIOThread).addConnection(channel);
+						nextIOThread = (nextIOThread + 1) % ioThreads.length;
 					}
-					TCPMessageHandler tcpMessageHandler = null;
-					JSONObject sendMSG = null;
-					JSONObject readMSG = null;
-					JSONObject readMSG2 = null;
-					JSONObject sendMSG2 = null;
-
+				}
+			}
+		} catch (Exception e) {
+			Log.w(TAG, "Server thread exiting due to exception: " + e.getMessage());
+		} finally {
+			try { acceptSelector.close(); } catch (Exception e) {}
+			if ( serverChannel != null )  try { serverChannel.close(); } catch (Exception e) {}
+			serverChannel = null;
+		}
+	}
+	
+	/**
+	 * Returns I/O thread i, first replacing it if it has died.  Called only by the acceptor thread.
+	 */
+	private RPCSelectorThread _ioThread(int i) throws IOException {
+		RPCSelectorThread t = ioThreads[i];
+		if ( t.isAlive() || mAmShutdown ) return t;
+		Log.e(TAG, t.getName() + " has died; starting a replacement");
+		t = new RPCSelectorThread(this, i, granularity);
+		t.start();
+		ioThreads[i] = t;
+		return t;
+	}
+	
+	/**
+	 * Called by an RPCCalleeSocket, on its selector thread, when it has decoded an invocation.
+	 * The call is run on the worker pool, and its response queued back on the connection.
+	 * If the pool is overloaded the call is refused right away (see RPCDispatcher).
+	 * If the caller has given up on the call by the time a worker gets to it, it isn't run.
+	 */
+	void dispatch(final RPCCalleeSocket conn, final RPCInvokeMessage invokeMsg, final RPCCallContext context) {
+		String service;
+		try {
+			service = invokeMsg.app();
+		} catch (JSONException e) {
+			// the call will fail when run, for the same reason
+			service = null;
+		}
+		_submit(conn, context, new RPCDispatcher.Task(service) {
+			@Override
+			void execute() {
+				_execute(conn, invokeMsg, context);
+			}
+			@Override
+			void reject(String reason, int retryAfter) {
+				conn.callCompleted(context, _refusal(invokeMsg, reason, retryAfter));
+			}
+		});
+	}
+	
+	/**
+	 * Called by an RPCCalleeSocket, on its selector thread, when it has decoded a batch of invocations.
+	 * The calls of a batch are admitted by the dispatcher just as single calls are, on the pools of the services
+	 * they call, and count against those services' limits (see RPCDispatcher):
+	 * <ul>
+	 * <li>A sequential batch is split into runs of consecutive calls to the same service.  Each run is admitted
+	 *     as one task, when the run before it has finished, and its calls run one after another on a single worker.
+	 * <li>The calls of a parallel batch are grouped by service.  Each group is admitted as one task, and its
+	 *     calls are spread across the workers of that service's pool.
+	 * </ul>
+	 * If a run or group is refused, its calls (and, in a sequential batch, all the calls after it) fail with
+	 * the reason; if that's all of the batch's calls, the batch as a whole is refused.  Whichever call finishes
+	 * last sends the batch's response.
+	 */
+	void dispatchBatch(final RPCCalleeSocket conn, final RPCBatchMessage batchMsg, final RPCCallContext context) {
+		final JSONArray calls;
+		try {
+			calls = batchMsg.calls();
+			if ( calls.length() > maxBatchCalls ) {
+				conn.callCompleted(context, new RPCErrorResponseMessage(batchMsg.id(), "Batch of " + calls.length() + " calls exceeds limit of " + maxBatchCalls, null));
+				return;
+			}
+		} catch (JSONException e) {
+			Log.e(TAG, "Couldn't construct response for batch " + batchMsg + ": " + e.getMessage());
+			conn.callCompleted(context, null);
+			return;
+		}
+		
+		BatchRun run = new BatchRun(conn, batchMsg, context, calls);
+		if ( calls.length() == 0 ) {
+			conn.callCompleted(context, _batchResponse(batchMsg, run.results));
+		} else if ( !batchMsg.parallel() ) {
+			run.submitSegment(0);
+		} else {
+			// group the calls by service, keeping the order they're in within each group
+			Map<String, List<Integer>> groups = new LinkedHashMap<String, List<Integer>>();
+			for ( int i=0; i<calls.length(); i++ ) {
+				String service = _service(calls.optJSONObject(i));
+				List<Integer> group = groups.get(service);
+				if ( group == null ) {
+					group = new ArrayList<Integer>();
+					groups.put(service, group);
+				}
+				group.add(i);
+			}
+			for ( Map.Entry<String, List<Integer>> group : groups.entrySet() ) run.submitGroup(group.getKey(), group.getValue());
+		}
+	}
+	
+	/**
+	 * The state of a batch while its calls run.
+	 */
+	private class BatchRun {
+		private final RPCCalleeSocket conn;
+		private final RPCBatchMessage batchMsg;
+		private final RPCCallContext context;
+		private final JSONArray calls;
+		final JSONObject[] results;
+		// the decrement of each call's completion also makes its result visible to the thread sending the response
+		private final AtomicInteger nRemaining;
+		
+		BatchRun(RPCCalleeSocket conn, RPCBatchMessage batchMsg, RPCCallContext context, JSONArray calls) {
+			this.conn = conn;
+			this.batchMsg = batchMsg;
+			this.context = context;
+			this.calls = calls;
+			results = new JSONObject[calls.length()];
+			nRemaining = new AtomicInteger(calls.length());
+		}
+		
+		/**
+		 * Admits the run of consecutive calls to one service starting at call start, of a sequential batch.
+		 * When it has run, the next run is admitted.
+		 */
+		void submitSegment(final int start) {
+			final String service = _service(calls.optJSONObject(start));
+			int e = start + 1;
+			while ( e < calls.length() && _sameService(service, _service(calls.optJSONObject(e))) ) e++;
+			final int end = e;
+			_submit(conn, context, new RPCDispatcher.Task(service) {
+				@Override
+				void execute() {
+					for ( int i=start; i<end; i++ ) results[i] = _executeBatchEntry(calls.optJSONObject(i), context);
+					// the next run is admitted before this one's calls are counted as done, so the response can't go early
+					if ( end < calls.length() ) submitSegment(end);
+					_completed(end - start);
+				}
+				@Override
+				void reject(String reason, int retryAfter) {
+					_refuse(start, calls.length(), null, reason, retryAfter);
+				}
+			});
+		}
+		
+		/**
+		 * Admits the calls of a parallel batch to one service.  The worker that runs the group runs the group's
+		 * first call itself, and hands the others to other workers of the service's pool.
+		 */
+		void submitGroup(final String service, final List<Integer> group) {
+			_submit(conn, context, new RPCDispatcher.Task(service) {
+				@Override
+				void execute() {
 					try {
-						tcpMessageHandler = new TCPMessageHandler(socket);
-						tcpMessageHandler.setTimeout(NetBase.theNetBase().config().getAsInt("net.timeout.socket", 5000));
-						tcpMessageHandler.setNoDelay(true);
-
-						// Initial Control Handshake
-						if (firstConnect){
-							firstConnect = false;
-							readMSG = tcpMessageHandler.readMessageAsJSONObject();
-							
-							// send response msg
-							RPCMessage rpcMSG = new RPCMessage();
-							sendMSG = rpcMSG.marshall();
-							if (readMSG.has("options")){
-								JSONObject options = readMSG.getJSONObject("options");
-								
-								if (options.has("connection")){
-									String connection = options.getString("connection");
-									persistentConnection = connection.equalsIgnoreCase("keep-alive");
-									
-									if (persistentConnection){
-										sendMSG.put("value", options);
-									}
+						for ( int g=group.size()-1; g>=0; g-- ) {
+							final int index = group.get(g);
+							Runnable entry = new Runnable() {
+								@Override
+								public void run() {
+									results[index] = _executeBatchEntry(calls.optJSONObject(index), context);
+									_completed(1);
 								}
-							}
-							sendMSG.put("callid", readMSG.get("id")).put("type", "OK");
-							tcpMessageHandler.sendMessage(sendMSG);
-						}
-						
-						// RPC Call Inovcation
-						readMSG2 = tcpMessageHandler.readMessageAsJSONObject();
-						int callid = readMSG2.getInt("id");
-						String serviceName = readMSG2.getString("app");
-						String methodName = readMSG2.getString("method");
-
-						RPCCallableMethod method = map.get(serviceName).get(methodName);
-						JSONObject retval = method.handleCall(readMSG2.getJSONObject("args"));
-
-						// send invoke msg
-						RPCMessage rpcMSG2 = new RPCMessage();
-						sendMSG2 = rpcMSG2.marshall();
-						sendMSG2.put("callid", callid).put("type", "OK")
-						.put("value", retval);
-						tcpMessageHandler.sendMessage(sendMSG2);
-
-					} catch (Exception e){
-						// check for sanity
-						if(readMSG != null && !sendMSG.has("type")){
-							String type = readMSG.getString("type");
-
-							// Initial Control Handshake Error Response
-							if (type.equalsIgnoreCase("control")){
-								sendMSG.put("callid", readMSG.get("id")).put("type", "ERROR")
-								.put("msg", e);
-								try {
-									tcpMessageHandler.sendMessage(sendMSG);
-								} catch (IOException e1) {
-									e1.printStackTrace();
-								}
-							}
-
-							// RPC Call Inovcation Error Response
-							if (type.equalsIgnoreCase("invoke")){
-								sendMSG.put("callid", readMSG.get("id")).put("type", "ERROR")
-								.put("message", e).put("callargs", readMSG);
-								try {
-									tcpMessageHandler.sendMessage(sendMSG);
-								} catch (IOException e1) {
-									e1.printStackTrace();
-								}
-							}
-						}
-					} finally {
-						if ( socket != null && !persistentConnection){ 
-							try { socket.close(); socket = null;} catch (Exception e) {}
+							};
+							if ( g == 0 ) entry.run();
+							else dispatcher.execute(service, entry);
 						}
+					} catch (RejectedExecutionException e) {
+						// we're shutting down
+						conn.close();
 					}
-
-				} catch (SocketTimeoutException e) {
-					// this is normal.  Just loop back and see if we're terminating.
+				}
+				@Override
+				void reject(String reason, int retryAfter) {
+					_refuse(0, 0, group, reason, retryAfter);
+				}
+			});
+		}
+		
+		/**
+		 * Fails the calls the dispatcher refused:  those from start to end, or those in group if it isn't null.
+		 * If that's all of the batch's calls, the batch itself is refused.
+		 */
+		private void _refuse(int start, int end, List<Integer> group, String reason, int retryAfter) {
+			int n = group != null ? group.size() : end - start;
+			if ( n == calls.length() ) {
+				conn.callCompleted(context, _refusal(batchMsg, reason, retryAfter));
+				return;
+			}
+			try {
+				if ( group != null ) {
+					for ( int index : group ) results[index] = RPCBatchResponseMessage.errorResult(_callid(index), reason);
+				} else {
+					for ( int i=start; i<end; i++ ) results[i] = RPCBatchResponseMessage.errorResult(_callid(i), reason);
+				}
+			} catch (JSONException e) {
+				Log.e(TAG, "Couldn't construct result for batch " + batchMsg + ": " + e.getMessage());
+			}
+			_completed(n);
+		}
+		
+		private int _callid(int index) {
+			JSONObject call = calls.optJSONObject(index);
+			return call == null ? -1 : call.optInt("id", -1);
+		}
+		
+		private void _completed(int n) {
+			if ( nRemaining.addAndGet(-n) == 0 ) conn.callCompleted(context, _batchResponse(batchMsg, results));
+		}
+	}
+	
+	private static boolean _sameService(String a, String b) {
+		return a == null ? b == null : a.equals(b);
+	}
+	
+	/**
+	 * The service a batch entry calls, or null if it's malformed.
+	 */
+	private static String _service(JSONObject call) {
+		return call == null ? null : call.optString("app", null);
+	}
+	
+	private void _submit(RPCCalleeSocket conn, RPCCallContext context, RPCDispatcher.Task task) {
+		try {
+			dispatcher.submit(task);
+		} catch (RejectedExecutionException e) {
+			// we're shutting down
+			conn.close();
+		}
+	}
+	
+	/**
+	 * The response to a call the dispatcher refused to run.
+	 */
+	private RPCResponseMessage _refusal(RPCMessage callMsg, String reason, int retryAfter) {
+		try {
+			return new RPCErrorResponseMessage(callMsg.id(), reason, null).setRetryAfter(retryAfter);
+		} catch (JSONException e) {
+			Log.e(TAG, "Couldn't construct refusal of " + callMsg + ": " + e.getMessage());
+			return null;
+		}
+	}
+	
+	/**
+	 * Runs a single invocation, and queues its response on conn.  If the method streams its response, and
+	 * the caller can take a stream, the chunks are sent on conn as the method produces them.
+	 */
+	private void _execute(RPCCalleeSocket conn, RPCInvokeMessage invokeMsg, RPCCallContext context) {
+		RPCResponseMessage response;
+		try {
+			// a streamed response can't be replayed, so streamed calls aren't deduplicated
+			long requestId = invokeMsg.stream() ? 0 : invokeMsg.requestId();
+			RPCDedupCache.Outcome outcome = null;
+			String shedReason = _shedReason(context);
+			if ( shedReason != null ) {
+				response = new RPCErrorResponseMessage(invokeMsg.id(), shedReason, null);
+			} else {
+				if ( requestId != 0 ) {
+					outcome = new RPCDedupCache.Outcome();
+					RPCDedupCache.Outcome prior = dedup.begin(conn.peerAddress(), invokeMsg.host(), requestId, outcome);
+					if ( prior != null ) {
+						_replay(conn, invokeMsg, prior, context);
+						return;
+					}
+				}
+				response = _run(conn, invokeMsg, context, outcome);
+			}
+		} catch (Exception e) {
+			// couldn't even build an error response (JSON trouble)
+			Log.e(TAG, "Couldn't construct response for " + invokeMsg + ": " + e.getMessage());
+			response = null;
+		}
+		conn.callCompleted(context, response);
+	}
+	
+	/**
+	 * Calls the handler for an invocation, recording its outcome in outcome (if it isn't null) for any
+	 * duplicates of the call.
+	 */
+	private RPCResponseMessage _run(RPCCalleeSocket conn, RPCInvokeMessage invokeMsg, RPCCallContext context, RPCDedupCache.Outcome outcome) throws JSONException {
+		JSONObject retval = null;
+		String error = null;
+		boolean completed = false;
+		RPCCallContext.setCurrent(context);
+		try {
+			retval = _invokeHandler(invokeMsg.app(), invokeMsg.method(), invokeMsg.args(), invokeMsg.stream() ? conn.streamSink(context) : null);
+			completed = true;
+		} catch (Exception e) {
+			error = e.toString();
+			completed = true;
+		} finally {
+			RPCCallContext.setCurrent(null);
+			// if the handler died with an Error, a retry gets to run it again
+			if ( outcome != null ) {
+				if ( completed ) dedup.finish(outcome, retval, error);
+				else dedup.forget(outcome);
+			}
+		}
+		if ( error != null ) return new RPCErrorResponseMessage(invokeMsg.id(), error, invokeMsg);
+		return new RPCNormalResponseMessage(invokeMsg.id(), retval);
+	}
+	
+	/**
+	 * Answers a call that has already been run (or is being run) for an earlier attempt by the same caller,
+	 * with the outcome of that run.  If the earlier run hasn't finished, the answer is sent by whichever thread
+	 * finishes it, so the duplicate doesn't hold a worker while it waits.
+	 */
+	private void _replay(final RPCCalleeSocket conn, final RPCInvokeMessage invokeMsg, final RPCDedupCache.Outcome prior, final RPCCallContext context) {
+		prior.whenDone(new Runnable() {
+			@Override
+			public void run() {
+				RPCResponseMessage response;
+				try {
+					Log.d(TAG, "Replaying outcome of request " + invokeMsg.requestId() + " from " + invokeMsg.host());
+					if ( prior.error() != null ) response = new RPCErrorResponseMessage(invokeMsg.id(), prior.error(), invokeMsg);
+					else response = new RPCNormalResponseMessage(invokeMsg.id(), prior.value());
 				} catch (JSONException e) {
-					System.out.println("RPC JSONException: " + e);
-				} 
+					Log.e(TAG, "Couldn't construct replayed response for " + invokeMsg + ": " + e.getMessage());
+					response = null;
+				}
+				conn.callCompleted(context, response);
 			}
-		}catch (Exception e) {
-			Log.w(TAG, "Server thread exiting due to exception: " + e.getMessage());
+		});
+	}
+	
+	/**
+	 * Runs one call of a batch, producing the element of the batch response's results that reports it.
+	 */
+	private JSONObject _executeBatchEntry(JSONObject call, RPCCallContext context) {
+		int callid = call == null ? -1 : call.optInt("id", -1);
+		try {
+			String shedReason = _shedReason(context);
+			if ( shedReason != null ) return RPCBatchResponseMessage.errorResult(callid, shedReason);
+			RPCCallContext.setCurrent(context);
+			try {
+				if ( call == null ) throw new Exception("Malformed batch entry");
+				JSONObject retval = _invokeHandler(call.getString("app"), call.getString("method"), call.optJSONObject("args"), null);
+				return RPCBatchResponseMessage.okResult(callid, retval);
+			} catch (Exception e) {
+				return RPCBatchResponseMessage.errorResult(callid, e.toString());
+			} finally {
+				RPCCallContext.setCurrent(null);
+			}
+		} catch (JSONException e) {
+			Log.e(TAG, "Couldn't construct result for batch entry " + call + ": " + e.getMessage());
+			return null;
+		}
+	}
+	
+	/**
+	 * Says why a call shouldn't be run, or returns null if it should.  Runs when a worker picks up the call.
+	 */
+	private String _shedReason(RPCCallContext context) {
+		String reason = null;
+		if ( context.isCancelled() ) reason = "Call " + context.callId() + " was cancelled before it started";
+		else if ( context.isExpired() ) reason = "Deadline of call " + context.callId() + " passed before it started";
+		if ( reason != null ) nShed.inc();
+		return reason;
+	}
+	
+	private RPCResponseMessage _batchResponse(RPCBatchMessage batchMsg, JSONObject[] results) {
+		try {
+			JSONArray resultArray = new JSONArray();
+			for ( JSONObject result : results ) {
+				if ( result == null ) return null;
+				resultArray.put(result);
+			}
+			return new RPCBatchResponseMessage(batchMsg.id(), resultArray);
+		} catch (JSONException e) {
+			Log.e(TAG, "Couldn't construct response for batch " + batchMsg + ": " + e.getMessage());
+			return null;
+		}
+	}
+	
+	/**
+	 * Finds the registered method and calls it, recording the call in the method's metrics.
+	 * @param sink Where to stream the response, if the method streams and the caller can take a stream; null otherwise
+	 */
+	private JSONObject _invokeHandler(String app, String methodName, JSONObject args, RPCResponseSink sink) throws Exception {
+		MethodEntry entry = _entry(app, methodName);
+		RPCCallableMethod method = entry == null ? null : entry.callable.get();
+		if ( method == null ) {
+			unknownMethodCalls.inc();
+			throw new Exception("No method " + methodName + " registered for service " + app);
+		}
+		CallMetrics metrics = entry.metrics();
+		long start = System.nanoTime();
+		boolean succeeded = false;
+		try {
+			JSONObject retval = method.isStreaming() && sink != null ? method.handleCall(args, sink) : method.handleCall(args);
+			succeeded = true;
+			return retval;
 		} finally {
-			if ( serverSocket != null )  try { serverSocket.close(); } catch (Exception e) {}
-			serverSocket = null;
+			metrics.calls.inc();
+			if ( !succeeded ) metrics.errors.inc();
+			metrics.latency.recordSince(start);
 		}
-
 	}
 	
 	/**
 	 * Services and applications with RPC callable methods register them with the RPC service using this routine.
 	 * Those methods are then invoked as callbacks when an remote RPC request for them arrives.
+	 * A service may register any number of methods.  Registering a method that's already registered
+	 * replaces the earlier registration.  Registration can happen at any time, including while calls are
+	 * being handled.
 	 * @param serviceName  The name of the service.
 	 * @param methodName  The external, well-known name of the service's method to call
 	 * @param method The descriptor allowing invocation of the Java method implementing the call
 	 * @throws Exception
 	 */
 	@Override
-	public synchronized void registerHandler(String serviceName, String methodName, RPCCallableMethod method) throws Exception {
-		HashMap<String, RPCCallableMethod> value = new HashMap<String, RPCCallableMethod>();
-		value.put(methodName, method);
-		map.put(serviceName, value);
+	public void registerHandler(String serviceName, String methodName, RPCCallableMethod method) throws Exception {
+		if ( method == null ) throw new IllegalArgumentException("Null method registered for " + serviceName + "." + methodName);
+		if ( serviceName == null || methodName == null ) throw new NullPointerException("Null service or method name registered");
+		ConcurrentHashMap<String, MethodEntry> methods = registry.get(serviceName);
+		if ( methods == null ) {
+			ConcurrentHashMap<String, MethodEntry> newMethods = new ConcurrentHashMap<String, MethodEntry>();
+			methods = registry.putIfAbsent(serviceName, newMethods);
+			if ( methods == null ) methods = newMethods;
+		}
+		MethodEntry entry = methods.get(methodName);
+		if ( entry == null ) {
+			MethodEntry newEntry = new MethodEntry(serviceName, methodName);
+			entry = methods.putIfAbsent(methodName, newEntry);
+			if ( entry == null ) entry = newEntry;
+		}
+		RPCCallableMethod old = entry.callable.getAndSet(method);
+		if ( old != null ) Log.d(TAG, "Replaced registration for " + serviceName + "." + methodName);
+	}
+	
+	/**
+	 * Registers a method whose calls are dispatched directly to handler, with no reflection.
+	 * @param serviceName  The name of the service.
+	 * @param methodName  The external, well-known name of the service's method to call
+	 * @param handler The code that fields calls to the method
+	 * @throws Exception
+	 */
+	@Override
+	public void registerHandler(String serviceName, String methodName, RPCHandler handler) throws Exception {
+		registerHandler(serviceName, methodName, handler instanceof RPCCallableMethod ? (RPCCallableMethod)handler : new RPCCallableMethod(handler));
+	}
+	
+	/**
+	 * Registers a method whose response is streamed to the caller in chunks.
+	 * @param serviceName  The name of the service.
+	 * @param methodName  The external, well-known name of the service's method to call
+	 * @param handler The code that fields calls to the method
+	 * @throws Exception
+	 */
+	@Override
+	public void registerStreamingHandler(String serviceName, String methodName, RPCStreamingHandler handler) throws Exception {
+		registerHandler(serviceName, methodName, new RPCCallableMethod(handler));
 	}
 	
 	/**
@@ -195,11 +685,57 @@ public class RPCService extends NetLoadableService implements Runnable, RPCServi
 	 * @return The existing registration for that method of that service, or null if no registration exists.
 	 */
 	public RPCCallableMethod getRegistrationFor( String serviceName, String methodName) {
-		HashMap<String, RPCCallableMethod> value = map.get(serviceName);
-		if(value == null){
-			return null;
+		MethodEntry entry = _entry(serviceName, methodName);
+		return entry == null ? null : entry.callable.get();
+	}
+	
+	/**
+	 * The registry's entry for a method, or null if it has never been registered.
+	 */
+	private MethodEntry _entry(String serviceName, String methodName) {
+		if ( serviceName == null || methodName == null ) return null;
+		ConcurrentHashMap<String, MethodEntry> methods = registry.get(serviceName);
+		return methods == null ? null : methods.get(methodName);
+	}
+	
+	/**
+	 * Removes the registration for a method.  Calls already dispatched to it run to completion;
+	 * later calls get a "no method registered" error response.
+	 * @return True if the method was registered
+	 */
+	@Override
+	public boolean unregisterHandler(String serviceName, String methodName) {
+		MethodEntry entry = _entry(serviceName, methodName);
+		return entry != null && entry.callable.getAndSet(null) != null;
+	}
+	
+	/**
+	 * Removes the registrations of all of a service's methods.
+	 * @return The number of registrations removed
+	 */
+	@Override
+	public int unregisterService(String serviceName) {
+		int nRemoved = 0;
+		ConcurrentHashMap<String, MethodEntry> methods = serviceName == null ? null : registry.get(serviceName);
+		if ( methods != null ) {
+			for ( MethodEntry entry : methods.values() ) {
+				if ( entry.callable.getAndSet(null) != null ) nRemoved++;
+			}
 		}
-		return value.get(methodName);
+		dispatcher.forgetService(serviceName);
+		return nRemoved;
+	}
+	
+	/**
+	 * Runs the calls to serviceName on a pool of threads of their own, rather than on the pool shared by all
+	 * services.  Config fields rpc.service.&lt;serviceName&gt;.threads and .queue override the arguments.
+	 * @param nThreads Number of threads; 0 means use the shared pool
+	 * @param maxQueued Max number of calls waiting for those threads
+	 */
+	@Override
+	public void setServiceThreads(String serviceName, int nThreads, int maxQueued) {
+		if ( nThreads < 0 || maxQueued < 1 ) throw new IllegalArgumentException("Bad pool size for " + serviceName + ": " + nThreads + " threads, queue of " + maxQueued);
+		dispatcher.setServiceThreads(serviceName, nThreads, maxQueued);
 	}
 	
 	/**
@@ -211,11 +747,69 @@ public class RPCService extends NetLoadableService implements Runnable, RPCServi
 		return port;
 	}
 	
+	int socketTimeout() {
+		return socketTimeout;
+	}
+	
+	/**
+	 * The length of the shortest message a connection should compress, or 0 if connections shouldn't
+	 * compress (or agree to compression).
+	 */
+	int compressionThreshold() {
+		return compressionThreshold;
+	}
+	
+	/**
+	 * The compression threshold set by the config file:  rpc.compression.threshold if rpc.compression is
+	 * deflate, 0 otherwise.
+	 */
+	static int compressionThreshold(ConfigManager config) {
+		if ( !COMPRESSION_NAME.equalsIgnoreCase(config.getProperty("rpc.compression", "none")) ) return 0;
+		return config.getAsInt("rpc.compression.threshold", 1024, 1);
+	}
+	
+	int persistenceTimeout() {
+		return persistenceTimeout;
+	}
+	
+	/**
+	 * The longest message (after decompression) accepted from a caller.  A caller sending a longer one is cut off.
+	 */
+	int maxMessageLength() {
+		return maxMessageLength;
+	}
+	
+	/**
+	 * Stops the acceptor, the I/O threads, and the worker pool.
+	 */
+	@Override
+	public void shutdown() {
+		super.shutdown();
+		config.removeListener(configListener);
+		acceptSelector.wakeup();
+		for ( RPCSelectorThread t : ioThreads ) t.shutdown();
+		dispatcher.shutdown();
+		Log.d(TAG, "Shutting down");
+	}
+	
 	@Override
 	public String dumpState() {
 		StringBuilder sb = new StringBuilder("RPC service");
 		sb.append("\nListening on: ");
-		if ( serverSocket != null ) sb.append(serverSocket.toString());
+		if ( serverChannel != null ) sb.append(serverChannel.socket().toString());
+		sb.append("\nConnections:");
+		for ( RPCSelectorThread t : ioThreads ) sb.append(" ").append(t.getName()).append("=").append(t.nConnections());
+		List<String> methods = new ArrayList<String>();
+		for ( ConcurrentHashMap<String, MethodEntry> serviceMethods : registry.values() ) {
+			for ( MethodEntry entry : serviceMethods.values() ) {
+				if ( entry.callable.get() != null ) methods.add(entry.toString());
+			}
+		}
+		Collections.sort(methods);
+		sb.append("\nRegistered methods: ").append(methods);
+		sb.append("\n").append(dispatcher);
+		sb.append("\nCalls not run because their callers had given up: ").append(nShed.get());
+		sb.append("\n").append(dedup);
 		sb.append("\n");
 		return sb.toString();
 	}
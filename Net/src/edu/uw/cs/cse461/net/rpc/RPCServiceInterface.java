@@ -16,6 +16,46 @@ public interface RPCServiceInterface {
 	 * @throws Exception 
 	 */
 	public void registerHandler(String serviceName, String methodName, RPCCallableMethod method) throws Exception;
+
+	/**
+	 * Like registerHandler(String, String, RPCCallableMethod), but incoming calls are passed directly
+	 * to handler, without going through reflection.
+	 * @param serviceName  The name the service or appliation is known by for RPC.
+	 * @param methodName  The name for the method, as used in RPC invocations.
+	 * @param handler  The code that fields calls to the method
+	 * @throws Exception 
+	 */
+	public void registerHandler(String serviceName, String methodName, RPCHandler handler) throws Exception;
+
+	/**
+	 * Registers a method whose response is streamed to the caller in chunks.
+	 * @param serviceName  The name the service or appliation is known by for RPC.
+	 * @param methodName  The name for the method, as used in RPC invocations.
+	 * @param handler  The code that fields calls to the method
+	 * @throws Exception 
+	 */
+	public void registerStreamingHandler(String serviceName, String methodName, RPCStreamingHandler handler) throws Exception;
+	
+	/**
+	 * Removes the registration for serviceName/methodName, if there is one.
+	 * @return True if a registration was removed
+	 */
+	public boolean unregisterHandler(String serviceName, String methodName);
+	
+	/**
+	 * Removes the registrations for all methods of serviceName.
+	 * @return The number of registrations removed
+	 */
+	public int unregisterService(String serviceName);
+	
+	/**
+	 * Runs the calls to serviceName on threads of their own, so that slow calls to it can't hold up calls to
+	 * other services.  (The config file can override the numbers given here.)
+	 * @param serviceName  The name the service or appliation is known by for RPC.
+	 * @param nThreads  Number of threads; 0 means share the threads of the other services
+	 * @param maxQueued  Max number of calls waiting for one of those threads
+	 */
+	public void setServiceThreads(String serviceName, int nThreads, int maxQueued);
 	
 	/**
 	 * Some of the testing code needs to retrieve the current registration for a particular service and method,
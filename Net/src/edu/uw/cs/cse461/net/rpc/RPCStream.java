@@ -0,0 +1,158 @@
+package edu.uw.cs.cse461.net.rpc;
+
+import java.net.SocketTimeoutException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import org.json.JSONObject;
+
+/**
+ * The response to a call issued with RPCCall.invokeStreaming().  Iterating over it yields the chunks
+ * of the response as they arrive, possibly well before the call completes.  As a Future, it yields the
+ * final value the remote method returned once the last chunk has been sent.
+ * <p>
+ * Iteration ends when the call completes, fails, or waits longer than the call's timeout for the next
+ * chunk.  get() then says which: it returns the final value, or throws an ExecutionException
+ * wrapping the failure (a SocketTimeoutException if it timed out).
+ * <p>
+ * A stream has a connection to itself, which is closed when the call ends.  Up to MAX_BUFFERED_CHUNKS
+ * chunks are buffered until they're consumed.  When the buffer is full, the connection's reader waits for
+ * the consumer to take one, so no more is read from the connection (and the remote method, its output
+ * backed up, is slowed to the consumer's pace).  Since no other call shares the connection, none waits
+ * along with it.  A consumer that takes no chunk for longer than the call's timeout fails the stream,
+ * as if it had timed out.  close() abandons the call, discarding any chunks still to come.
+ * 
+ * @author zahorjan
+ *
+ */
+public class RPCStream extends RPCCallFuture implements Iterator<JSONObject> {
+	private static final Object END = new Object();
+	static final int MAX_BUFFERED_CHUNKS = 64;
+
+	private final LinkedBlockingQueue<Object> mChunks = new LinkedBlockingQueue<Object>();
+	private final Semaphore mRoom = new Semaphore(MAX_BUFFERED_CHUNKS);  // one permit per chunk the buffer has room for
+	private final RPCCallerSocket mSocket;
+	private final int mTimeout;
+	private Object mNext = null;  // consumer side only
+
+	/**
+	 * @param timeout Max time to wait for each chunk, in msec.  0 means forever.
+	 */
+	RPCStream(int callId, RPCCallerSocket socket, int timeout) {
+		super(callId);
+		mSocket = socket;
+		mTimeout = timeout;
+	}
+
+	/**
+	 * Called by the socket's reader thread when a chunk arrives.  Waits (up to the call's timeout) if the
+	 * buffer is full.
+	 */
+	void chunk(JSONObject chunk) {
+		if ( isDone() ) return;
+		try {
+			if ( mTimeout > 0 ) {
+				if ( !mRoom.tryAcquire(mTimeout, TimeUnit.MILLISECONDS) ) {
+					fail(new SocketTimeoutException("Chunks of call " + callId() + " not consumed in " + mTimeout + " msec."));
+					close();
+					return;
+				}
+			} else {
+				mRoom.acquire();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			fail(new InterruptedException("Interrupted waiting to buffer a chunk of call " + callId()));
+			return;
+		}
+		// the call may have ended while we waited
+		if ( isDone() ) {
+			mRoom.release();
+			return;
+		}
+		mChunks.add(chunk != null ? chunk : new JSONObject());
+	}
+
+	@Override
+	void complete(JSONObject value) {
+		// the connection is discarded outside the lock, since discarding it fails its pending calls (including this one)
+		synchronized(this) {
+			super.complete(value);
+			mChunks.add(END);
+		}
+		mSocket.discard();
+	}
+
+	@Override
+	void fail(Exception e) {
+		synchronized(this) {
+			super.fail(e);
+			mChunks.add(END);
+			// wake a reader waiting for room, to discard its chunk
+			mRoom.release(MAX_BUFFERED_CHUNKS);
+		}
+		mSocket.discard();
+	}
+
+	@Override
+	public boolean cancel(boolean mayInterruptIfRunning) {
+		boolean cancelled;
+		synchronized(this) {
+			cancelled = super.cancel(mayInterruptIfRunning);
+			mChunks.add(END);
+			mRoom.release(MAX_BUFFERED_CHUNKS);
+		}
+		mSocket.discard();
+		return cancelled;
+	}
+
+	/**
+	 * Waits (up to the call's timeout) for the next chunk, or for the call to end.
+	 */
+	@Override
+	public boolean hasNext() {
+		if ( mNext == null ) {
+			try {
+				if ( mTimeout > 0 ) mNext = mChunks.poll(mTimeout, TimeUnit.MILLISECONDS);
+				else mNext = mChunks.take();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				fail(new InterruptedException("Interrupted waiting for call " + callId()));
+			}
+			if ( mNext == null ) {
+				fail(new SocketTimeoutException("No chunk of call " + callId() + " arrived in " + mTimeout + " msec."));
+				close();
+				mNext = END;
+			} else if ( mNext != END ) {
+				mRoom.release();
+			}
+		}
+		// once the end is reached mNext stays END, so later calls don't wait
+		return mNext != END;
+	}
+
+	@Override
+	public JSONObject next() {
+		if ( !hasNext() ) throw new NoSuchElementException();
+		JSONObject chunk = (JSONObject)mNext;
+		mNext = null;
+		return chunk;
+	}
+
+	@Override
+	public void remove() {
+		throw new UnsupportedOperationException();
+	}
+
+	/**
+	 * Stops receiving the response.  The remote side is told the call is cancelled, and the stream's connection is closed.
+	 */
+	public void close() {
+		mSocket.abandon(this);
+		mChunks.clear();
+		mChunks.add(END);
+	}
+}
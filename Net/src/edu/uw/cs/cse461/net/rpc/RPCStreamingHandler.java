@@ -0,0 +1,25 @@
+package edu.uw.cs.cse461.net.rpc;
+
+import org.json.JSONObject;
+
+/**
+ * The code that fields calls to an RPC method whose response is a stream of chunks, rather than a
+ * single JSONObject.  Register it with RPCServiceInterface.registerStreamingHandler().
+ * <p>
+ * A caller using RPCCall.invokeStreaming() receives each chunk as soon as it's sent, so only the chunks
+ * not yet written need be in memory.  A caller using an ordinary invoke() gets a single response instead,
+ * in which the chunks are collected in a JSONArray under key "chunks".
+ * 
+ * @author zahorjan
+ *
+ */
+public interface RPCStreamingHandler {
+	/**
+	 * Called, on an RPC worker thread, for each incoming invocation of the method.
+	 * @param args The arguments sent by the caller
+	 * @param sink Where to send the response's chunks
+	 * @return A final value, delivered to the caller after all the chunks (may be null)
+	 * @throws Exception The caller receives an error, after any chunks already sent
+	 */
+	public JSONObject handleCall(JSONObject args, RPCResponseSink sink) throws Exception;
+}
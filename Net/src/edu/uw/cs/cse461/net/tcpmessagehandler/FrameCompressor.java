@@ -0,0 +1,176 @@
+package edu.uw.cs.cse461.net.tcpmessagehandler;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Deflate compression of individual message payloads, for the message handlers.
+ * <p>
+ * A compressed message is marked by the high bit of its length header (which is otherwise never set, as
+ * lengths are non-negative).  Its payload is the 4-byte little endian length of the original payload,
+ * followed by the deflated original payload.  Only messages at least threshold bytes long are compressed,
+ * and then only if compressing them makes them shorter.
+ * <p>
+ * Compression and decompression may go on in different threads at once, but each is done by one thread at a time.
+ *
+ * @author zahorjan
+ *
+ */
+class FrameCompressor {
+	static final int COMPRESSED_FLAG = 0x80000000;
+	// deflate can't do better than about 1032:1, so a payload claiming more than this is corrupt
+	private static final int MAX_RATIO = 1100;
+	private static final int CHUNK_SIZE = 64 * 1024;
+
+	private final int mThreshold;
+	private final Deflater mDeflater = new Deflater(Deflater.BEST_SPEED);
+	private final Inflater mInflater = new Inflater();
+	private byte[] mChunk;  // for copying out of ByteBuffers that have no array
+	private boolean mEnded = false;
+
+	// compression output -- touched only while holding mDeflater's lock
+	private byte[] mOut;
+	private int mOutPos;
+	private int mOutLimit;
+
+	/**
+	 * @param threshold Messages shorter than this aren't compressed
+	 */
+	FrameCompressor(int threshold) {
+		// deflate can't shorten anything much shorter than this
+		mThreshold = Math.max(threshold, 16);
+	}
+
+	/**
+	 * Compresses len bytes of buf, starting at offset.
+	 * @return The payload of the compressed message, or null if the message shouldn't be compressed
+	 */
+	byte[] compress(byte[] buf, int offset, int len) {
+		if ( len < mThreshold ) return null;
+		synchronized(mDeflater) {
+			if ( mEnded ) return null;
+			_start(len);
+			mDeflater.setInput(buf, offset, len);
+			return _finish();
+		}
+	}
+
+	/**
+	 * Compresses the buffer's remaining bytes.  Its position and limit aren't affected.
+	 * @return The payload of the compressed message, or null if the message shouldn't be compressed
+	 */
+	byte[] compress(ByteBuffer buf) {
+		int len = buf.remaining();
+		if ( len < mThreshold ) return null;
+		if ( buf.hasArray() ) return compress(buf.array(), buf.arrayOffset() + buf.position(), len);
+		synchronized(mDeflater) {
+			if ( mEnded ) return null;
+			if ( mChunk == null ) mChunk = new byte[CHUNK_SIZE];
+			_start(len);
+			ByteBuffer src = buf.duplicate();
+			while ( src.hasRemaining() ) {
+				int n = Math.min(src.remaining(), mChunk.length);
+				src.get(mChunk, 0, n);
+				mDeflater.setInput(mChunk, 0, n);
+				while ( !mDeflater.needsInput() ) {
+					if ( !_deflate() ) {
+						mOut = null;
+						return null;
+					}
+				}
+			}
+			return _finish();
+		}
+	}
+
+	private void _start(int len) {
+		mDeflater.reset();
+		// not worth it unless the result is shorter than the original
+		mOutLimit = len;
+		mOut = new byte[Math.min(len, Math.max(64, len / 8))];
+		mOut[0] = (byte)len;
+		mOut[1] = (byte)(len >>> 8);
+		mOut[2] = (byte)(len >>> 16);
+		mOut[3] = (byte)(len >>> 24);
+		mOutPos = 4;
+	}
+
+	/**
+	 * Runs the deflater into the output buffer, growing it if it's full.
+	 * @return False if the output has reached the limit
+	 */
+	private boolean _deflate() {
+		if ( mOutPos == mOut.length ) {
+			if ( mOut.length >= mOutLimit ) return false;
+			mOut = Arrays.copyOf(mOut, (int)Math.min(2L * mOut.length, mOutLimit));
+		}
+		mOutPos += mDeflater.deflate(mOut, mOutPos, mOut.length - mOutPos);
+		return true;
+	}
+
+	private byte[] _finish() {
+		mDeflater.finish();
+		while ( !mDeflater.finished() ) {
+			if ( !_deflate() ) {
+				mOut = null;
+				return null;
+			}
+		}
+		byte[] result = Arrays.copyOf(mOut, mOutPos);
+		mOut = null;
+		return result;
+	}
+
+	/**
+	 * Restores the original payload of a compressed message.
+	 * @param maxLength Longest original payload allowed
+	 * @throws IOException If the payload is corrupt, or its original is longer than maxLength
+	 */
+	byte[] decompress(byte[] payload, int offset, int len, int maxLength) throws IOException {
+		if ( len < 4 ) throw new IOException("Truncated compressed message");
+		int origLength = (payload[offset] & 0xFF) | ((payload[offset+1] & 0xFF) << 8) | ((payload[offset+2] & 0xFF) << 16) | ((payload[offset+3] & 0xFF) << 24);
+		if ( origLength < 0 ) throw new IOException("Bad compressed message length " + origLength);
+		if ( origLength > maxLength ) throw new IOException("Compressed message length " + origLength + " exceeds max read length " + maxLength);
+		// check before allocating for it
+		if ( origLength > (long)(len - 4) * MAX_RATIO + 64 ) throw new IOException("Corrupt compressed message: " + (len - 4) + " bytes can't inflate to " + origLength);
+		byte[] result = new byte[origLength];
+		synchronized(mInflater) {
+			if ( mEnded ) throw new IOException("Message handler has been closed");
+			mInflater.reset();
+			mInflater.setInput(payload, offset + 4, len - 4);
+			try {
+				int pos = 0;
+				while ( pos < origLength ) {
+					int n = mInflater.inflate(result, pos, origLength - pos);
+					if ( n == 0 && (mInflater.finished() || mInflater.needsInput() || mInflater.needsDictionary()) ) break;
+					pos += n;
+				}
+				// the end of the stream may not have been seen yet if the output exactly filled the result
+				if ( pos == origLength && !mInflater.finished() && mInflater.inflate(new byte[1]) != 0 ) pos++;
+				if ( pos != origLength || !mInflater.finished() ) throw new IOException("Corrupt compressed message");
+			} catch (DataFormatException e) {
+				throw new IOException("Corrupt compressed message: " + e.getMessage());
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Frees the native resources of the deflater and inflater.  After this, nothing is compressed, and
+	 * decompress() throws.
+	 */
+	void end() {
+		synchronized(mDeflater) {
+			synchronized(mInflater) {
+				if ( mEnded ) return;
+				mEnded = true;
+				mDeflater.end();
+				mInflater.end();
+			}
+		}
+	}
+}
@@ -0,0 +1,527 @@
+package edu.uw.cs.cse461.net.tcpmessagehandler;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.SocketException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.IllegalBlockingModeException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import edu.uw.cs.cse461.net.base.MetricsRegistry;
+
+/**
+ * A TCPMessageHandler for a non-blocking SocketChannel, so that one thread, using a Selector,
+ * can serve many connections.  The framing is the same as TCPMessageHandler's (a 4-byte little
+ * endian length, then the payload), so either kind of handler can be at the other end.
+ * <p>
+ * The thread that owns the Selector registers the handler with register(), and calls handleReadable()
+ * and handleWritable() when the key is ready.  handleReadable() decodes whatever complete messages
+ * the bytes read so far contain; the read routines then return those messages.  The read routines
+ * never block: if there's no complete message they throw IllegalBlockingModeException, so callers
+ * should check hasMessage() first.  Reads must all be done on the selector thread.
+ * <p>
+ * The send routines may be called from any thread.  They queue the message, and the selector thread
+ * writes it when the channel can take it.  Only the selector thread touches the key's interest ops, so a
+ * sending thread asks it to with the write request callback (see setWriteRequestCallback()).  If more than the output limit is queued (the peer isn't
+ * reading what we send), the handler stops reading new messages until the backlog drains.
+ * <p>
+ * If both ends agree to it (see setCompression()), long messages are sent deflated (see FrameCompressor).
+ * Compression is done by the sending thread; decompression by the selector thread.
+ * <p>
+ * Traffic is counted in the MetricsRegistry, under the same names as TCPMessageHandler's (with label handler="nonblocking").
+ *
+ * @author zahorjan
+ *
+ */
+public class NonblockingTCPMessageHandler implements TCPMessageHandlerInterface {
+	private static final String TAG="NonblockingTCPMessageHandler";
+	private static final int READ_BUFFER_SIZE = 8 * 1024;
+	private static final int WRITE_BATCH_SIZE = 16;
+	
+	private static final MetricsRegistry.Counter sFramesOut = MetricsRegistry.theRegistry().counter("tcpmessagehandler_frames_sent_total", "Messages sent", "handler", "nonblocking");
+	private static final MetricsRegistry.Counter sBytesOut = MetricsRegistry.theRegistry().counter("tcpmessagehandler_bytes_sent_total", "Bytes sent, including message headers", "handler", "nonblocking");
+	private static final MetricsRegistry.Counter sFramesIn = MetricsRegistry.theRegistry().counter("tcpmessagehandler_frames_received_total", "Messages received", "handler", "nonblocking");
+	private static final MetricsRegistry.Counter sBytesIn = MetricsRegistry.theRegistry().counter("tcpmessagehandler_bytes_received_total", "Bytes received, including message headers", "handler", "nonblocking");
+
+	private final SocketChannel channel;
+	private SelectionKey key;
+	private volatile Runnable writeRequestCallback;
+	private int maxLength;
+	private int timeout;
+	private volatile long lastActivity;
+	private volatile boolean closed = false;
+
+	// read side -- touched only by the selector thread
+	private final ByteBuffer readBuf = ByteBuffer.allocate(READ_BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+	private byte[] payload;         // the message currently being decoded, if its header has been read
+	private int payloadPos;
+	private boolean payloadCompressed;
+	private ByteBuffer payloadView;  // for reading a large payload directly from the channel
+	private final ArrayDeque<byte[]> messages = new ArrayDeque<byte[]>();
+	private boolean readEnabled = true;
+	private boolean readThrottled = false;
+
+	// write side
+	private final ConcurrentLinkedQueue<ByteBuffer> outQueue = new ConcurrentLinkedQueue<ByteBuffer>();
+	private final AtomicLong queuedBytes = new AtomicLong(0);
+	private final ByteBuffer[] writeBatch = new ByteBuffer[WRITE_BATCH_SIZE];
+	private volatile int outputLimit = 1024 * 1024;
+	private final Object drainLock = new Object();
+	private volatile int nDrainWaiters = 0;
+	private volatile FrameCompressor compressor;  // null unless compression is on
+
+	/**
+	 * Constructor.  Puts the channel in non-blocking mode.
+	 * @param channel A connected SocketChannel
+	 * @throws IOException
+	 */
+	public NonblockingTCPMessageHandler(SocketChannel channel) throws IOException {
+		if ( channel == null ) throw new NullPointerException("channel is null");
+		if ( !channel.isConnected() ) throw new IOException("channel is not connected");
+		this.channel = channel;
+		channel.configureBlocking(false);
+		maxLength = Integer.MAX_VALUE;
+		lastActivity = System.currentTimeMillis();
+	}
+
+	/**
+	 * Registers the channel with a selector, initially for reading (and for writing, if output has already
+	 * been queued).  Must be called on the selector's thread, after setWriteRequestCallback().
+	 * @param attachment The key's attachment
+	 * @return The new SelectionKey
+	 */
+	public SelectionKey register(Selector selector, Object attachment) throws IOException {
+		if ( writeRequestCallback == null ) throw new IllegalStateException("No write request callback set");
+		int ops = SelectionKey.OP_READ;
+		if ( !outQueue.isEmpty() ) ops |= SelectionKey.OP_WRITE;
+		key = channel.register(selector, ops, attachment);
+		return key;
+	}
+
+	/**
+	 * Sets the code run when a thread queues output, which must eventually cause the selector thread to
+	 * call enableWriteInterest() (typically by queueing the request and waking the selector).  Required:
+	 * a key's interest ops may only be changed on the selector thread, or a change made by a sending thread
+	 * can be overwritten, and its output left unsent.
+	 */
+	public void setWriteRequestCallback(Runnable callback) {
+		writeRequestCallback = callback;
+	}
+
+	/**
+	 * Sets the number of bytes of queued output above which the handler stops reading.
+	 * @return The previous limit
+	 */
+	public int setOutputLimit(int limit) {
+		int prev = outputLimit;
+		outputLimit = limit;
+		return prev;
+	}
+
+	public int getOutputLimit() {
+		return outputLimit;
+	}
+
+	/**
+	 * Turns compression on or off.  While it's on, messages at least threshold bytes long are sent
+	 * compressed, and compressed messages can be read.  Turn it on only once the other end has agreed to it,
+	 * and before sending or reading any compressed message.
+	 * @param threshold Length of the shortest message to compress.  0 turns compression off.
+	 */
+	public void setCompression(int threshold) {
+		if ( compressor != null ) compressor.end();
+		compressor = threshold > 0 ? new FrameCompressor(threshold) : null;
+	}
+
+	/**
+	 * Closes the channel.  Queued output is discarded.
+	 */
+	@Override
+	public void close() {
+		if ( closed ) return;
+		closed = true;
+		if ( key != null ) key.cancel();
+		try { channel.close(); } catch (IOException e) {}
+		outQueue.clear();
+		queuedBytes.set(0);
+		_notifyDrainWaiters();
+		if ( compressor != null ) compressor.end();
+	}
+
+	public boolean isClosed() {
+		return closed;
+	}
+
+	/**
+	 * There's no blocking read to time out, so the timeout is just recorded; see isIdleSince().
+	 * @return The previous timeout
+	 */
+	@Override
+	public int setTimeout(int timeout) throws SocketException {
+		int prev = this.timeout;
+		this.timeout = timeout;
+		return prev;
+	}
+
+	/**
+	 * True if a timeout has been set, there's no queued output, and nothing has been read or
+	 * written for longer than the timeout.
+	 */
+	public boolean isIdleSince(long now) {
+		return timeout > 0 && !hasPendingOutput() && now - lastActivity > timeout;
+	}
+
+	/**
+	 * Time of the last read or write, as System.currentTimeMillis().
+	 */
+	public long lastActivity() {
+		return lastActivity;
+	}
+
+	@Override
+	public boolean setNoDelay(boolean value) throws SocketException {
+		boolean prev = channel.socket().getTcpNoDelay();
+		channel.socket().setTcpNoDelay(value);
+		return prev;
+	}
+
+	/**
+	 * A message claiming to be longer than this is a protocol error:  handleReadable() throws an IOException
+	 * rather than buffer it.
+	 * @return The previous setting of the maximum allowed message length.
+	 * 		   If maxLen is invalid input return -1, no new max length is set.
+	 */
+	@Override
+	public int setMaxReadLength(int maxLen) {
+		if ( maxLen < 0 ) return -1;
+		int prev = maxLength;
+		maxLength = maxLen;
+		return prev;
+	}
+
+	@Override
+	public int getMaxReadLength() {
+		return maxLength;
+	}
+
+	//--------------------------------------------------------------------------------------
+	// selector thread routines
+	//--------------------------------------------------------------------------------------
+
+	/**
+	 * Stops (or resumes) reading from the channel, e.g., because the connection's protocol expects no more input.
+	 * Messages already decoded can still be read.  Must be called on the selector thread.
+	 */
+	public void setReadEnabled(boolean enabled) {
+		readEnabled = enabled;
+		_updateInterest();
+	}
+
+	/**
+	 * Reads what's available from the channel and decodes any complete messages in it.
+	 * @throws EOFException If the peer closed the connection
+	 * @throws IOException On a broken connection, or a message longer than the max read length.
+	 *         The caller should close the handler.
+	 */
+	public void handleReadable() throws IOException {
+		while ( true ) {
+			int n;
+			if ( payload != null && payload.length - payloadPos >= readBuf.capacity() ) {
+				// a large payload: read straight into it rather than through readBuf
+				if ( payloadView == null ) payloadView = ByteBuffer.wrap(payload);
+				payloadView.position(payloadPos);
+				n = channel.read(payloadView);
+				if ( n < 0 ) throw new EOFException("EOF in the middle of a message from " + this);
+				payloadPos += n;
+				if ( payloadPos == payload.length ) _messageComplete();
+			} else {
+				n = channel.read(readBuf);
+				if ( n < 0 ) {
+					if ( payload != null || readBuf.position() > 0 ) throw new EOFException("EOF in the middle of a message from " + this);
+					throw new EOFException("EOF from " + this);
+				}
+				readBuf.flip();
+				_decode();
+				readBuf.compact();
+			}
+			if ( n > 0 ) {
+				lastActivity = System.currentTimeMillis();
+				sBytesIn.add(n);
+			}
+			// a short read means the socket has nothing more for now
+			if ( n == 0 || readBuf.hasRemaining() && payload == null ) return;
+		}
+	}
+
+	private void _decode() throws IOException {
+		while ( true ) {
+			if ( payload == null ) {
+				if ( readBuf.remaining() < 4 ) return;
+				int len = readBuf.getInt();
+				payloadCompressed = (len & FrameCompressor.COMPRESSED_FLAG) != 0;
+				if ( payloadCompressed ) {
+					if ( compressor == null ) throw new IOException("Compressed message from " + this + ", but compression isn't on");
+					len &= ~FrameCompressor.COMPRESSED_FLAG;
+				}
+				if ( len > maxLength ) throw new IOException("Message length " + len + " exceeds max read length " + maxLength + " from " + this);
+				payload = new byte[len];
+				payloadPos = 0;
+				payloadView = null;
+			}
+			int n = Math.min(readBuf.remaining(), payload.length - payloadPos);
+			readBuf.get(payload, payloadPos, n);
+			payloadPos += n;
+			if ( payloadPos < payload.length ) return;
+			_messageComplete();
+		}
+	}
+
+	private void _messageComplete() throws IOException {
+		sFramesIn.inc();
+		if ( payloadCompressed ) payload = compressor.decompress(payload, 0, payload.length, maxLength);
+		messages.add(payload);
+		payload = null;
+		payloadView = null;
+	}
+
+	/**
+	 * True if a complete message has been decoded and not yet read.
+	 */
+	public boolean hasMessage() {
+		return !messages.isEmpty();
+	}
+
+	/**
+	 * Called on the selector thread when another thread has queued output.
+	 */
+	public void enableWriteInterest() {
+		_updateInterest();
+	}
+
+	/**
+	 * Writes as much queued output as the channel will take.
+	 * @throws IOException On a broken connection.  The caller should close the handler.
+	 */
+	public void handleWritable() throws IOException {
+		while ( !outQueue.isEmpty() ) {
+			// gather several queued buffers (e.g., a header and its payload) into each write
+			int n = 0;
+			for ( ByteBuffer buf : outQueue ) {
+				writeBatch[n++] = buf;
+				if ( n == writeBatch.length ) break;
+			}
+			long written = channel.write(writeBatch, 0, n);
+			queuedBytes.addAndGet(-written);
+			sBytesOut.add(written);
+			for ( int i=0; i<n; i++ ) {
+				if ( writeBatch[i].hasRemaining() ) break;
+				outQueue.poll();
+			}
+			boolean full = writeBatch[n-1].hasRemaining();
+			Arrays.fill(writeBatch, 0, n, null);
+			if ( written > 0 ) lastActivity = System.currentTimeMillis();
+			if ( full ) break;  // socket buffer is full; wait for the next writable event
+		}
+		_updateInterest();
+		_notifyDrainWaiters();
+	}
+	
+	/**
+	 * Blocks until no more than limit bytes of output are queued.  For threads that produce output faster
+	 * than the peer takes it; mustn't be called on the selector thread.
+	 * @param timeout Max time to wait, in msec.  0 means forever.
+	 * @return True if the output drained, false if the timeout expired or the handler was closed
+	 */
+	public boolean awaitOutputBelow(long limit, int timeout) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + timeout;
+		synchronized(drainLock) {
+			// the selector thread checks nDrainWaiters after updating queuedBytes, so one of us sees the other
+			nDrainWaiters++;
+			try {
+				while ( !closed && queuedBytes.get() > limit ) {
+					long remaining = deadline - System.currentTimeMillis();
+					if ( timeout > 0 && remaining <= 0 ) return false;
+					drainLock.wait(timeout > 0 ? remaining : 0);
+				}
+			} finally {
+				nDrainWaiters--;
+			}
+		}
+		return !closed;
+	}
+	
+	private void _notifyDrainWaiters() {
+		if ( nDrainWaiters == 0 ) return;
+		synchronized(drainLock) {
+			drainLock.notifyAll();
+		}
+	}
+
+	/**
+	 * Sets the key's interest ops from the current state.  Called only on the selector thread.
+	 */
+	private void _updateInterest() {
+		if ( closed || key == null || !key.isValid() ) return;
+		long queued = queuedBytes.get();
+		// stop reading while the peer isn't taking our output; resume when half of it has drained
+		if ( queued > outputLimit ) readThrottled = true;
+		else if ( queued <= outputLimit / 2 ) readThrottled = false;
+		int ops = 0;
+		if ( readEnabled && !readThrottled ) ops |= SelectionKey.OP_READ;
+		if ( !outQueue.isEmpty() ) ops |= SelectionKey.OP_WRITE;
+		if ( key.interestOps() != ops ) key.interestOps(ops);
+	}
+
+	/**
+	 * True if some output has been queued but not yet written.
+	 */
+	public boolean hasPendingOutput() {
+		return !outQueue.isEmpty();
+	}
+
+	/**
+	 * Number of bytes queued but not yet written.
+	 */
+	public long pendingOutputBytes() {
+		return queuedBytes.get();
+	}
+
+	//--------------------------------------------------------------------------------------
+	// send routines
+	//   These queue the message, and may be called from any thread.
+	//--------------------------------------------------------------------------------------
+
+	@Override
+	public void sendMessage(byte[] buf) throws IOException {
+		FrameCompressor c = compressor;
+		byte[] compressed = c != null ? c.compress(buf, 0, buf.length) : null;
+		if ( compressed != null ) buf = compressed;
+		ByteBuffer frame = ByteBuffer.allocate(4 + buf.length).order(ByteOrder.LITTLE_ENDIAN);
+		frame.putInt(buf.length | (compressed != null ? FrameCompressor.COMPRESSED_FLAG : 0)).put(buf);
+		frame.flip();
+		_enqueue(frame, null);
+	}
+
+	/**
+	 * Sends the buffer's remaining bytes as one message.  The buffer isn't copied -- it's written
+	 * to the channel directly -- so its contents must not change until it has been sent.
+	 * (Its position and limit aren't affected.)  If the message is compressed, though, the buffer
+	 * is done with when this returns.
+	 */
+	public void sendMessage(ByteBuffer buf) throws IOException {
+		FrameCompressor c = compressor;
+		byte[] compressed = c != null ? c.compress(buf) : null;
+		if ( compressed != null ) {
+			ByteBuffer frame = ByteBuffer.allocate(4 + compressed.length).order(ByteOrder.LITTLE_ENDIAN);
+			frame.putInt(compressed.length | FrameCompressor.COMPRESSED_FLAG).put(compressed);
+			frame.flip();
+			_enqueue(frame, null);
+			return;
+		}
+		ByteBuffer header = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+		header.putInt(0, buf.remaining());
+		_enqueue(header, buf.duplicate());
+	}
+
+	/**
+	 * Uses str.getBytes() for conversion.
+	 */
+	@Override
+	public void sendMessage(String str) throws IOException {
+		sendMessage(str.getBytes());
+	}
+
+	@Override
+	public void sendMessage(int value) throws IOException {
+		ByteBuffer frame = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+		frame.putInt(0, 4).putInt(4, value);
+		_enqueue(frame, null);
+	}
+
+	@Override
+	public void sendMessage(JSONArray jsArray) throws IOException {
+		sendMessage(jsArray.toString().getBytes());
+	}
+
+	@Override
+	public void sendMessage(JSONObject jsObject) throws IOException {
+		sendMessage(jsObject.toString().getBytes());
+	}
+
+	private void _enqueue(ByteBuffer first, ByteBuffer second) throws IOException {
+		if ( closed ) throw new IOException("NonblockingTCPMessageHandler has been closed");
+		// a header and its payload must be adjacent in the queue
+		synchronized(outQueue) {
+			outQueue.add(first);
+			if ( second != null ) outQueue.add(second);
+		}
+		queuedBytes.addAndGet(first.remaining() + (second != null ? second.remaining() : 0));
+		// (every call queues exactly one message)
+		sFramesOut.inc();
+		// before registration there's no key to update; register() sees the queued output
+		if ( writeRequestCallback != null ) writeRequestCallback.run();
+	}
+
+	//--------------------------------------------------------------------------------------
+	// read routines
+	//   These return messages already decoded by handleReadable().  They never block.
+	//--------------------------------------------------------------------------------------
+
+	@Override
+	public byte[] readMessageAsBytes() throws IOException {
+		byte[] msg = messages.poll();
+		if ( msg == null ) throw new IllegalBlockingModeException();
+		return msg;
+	}
+
+	/**
+	 * @throws BufferOverflowException If the message doesn't fit in the buffer's remaining space.
+	 *         The message is consumed anyway.
+	 */
+	@Override
+	public int readMessageInto(ByteBuffer dst) throws IOException {
+		byte[] msg = readMessageAsBytes();
+		if ( msg.length > dst.remaining() ) throw new BufferOverflowException();
+		dst.put(msg);
+		return msg.length;
+	}
+
+	@Override
+	public String readMessageAsString() throws IOException {
+		return new String(readMessageAsBytes());
+	}
+
+	@Override
+	public int readMessageAsInt() throws IOException {
+		byte[] buf = readMessageAsBytes();
+		if ( buf.length != 4 ) return 0;
+		return (buf[0] & 0xFF) | ((buf[1] & 0xFF) << 8) | ((buf[2] & 0xFF) << 16) | ((buf[3] & 0xFF) << 24);
+	}
+
+	@Override
+	public JSONArray readMessageAsJSONArray() throws IOException, JSONException {
+		return new JSONArray(readMessageAsString());
+	}
+
+	@Override
+	public JSONObject readMessageAsJSONObject() throws IOException, JSONException {
+		return new JSONObject(readMessageAsString());
+	}
+
+	@Override
+	public String toString() {
+		return TAG + "[" + channel.socket().getRemoteSocketAddress() + "]";
+	}
+}
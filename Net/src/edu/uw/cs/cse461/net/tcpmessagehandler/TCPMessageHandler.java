@@ -8,13 +8,14 @@ import java.net.InetAddress;
 import java.net.Socket;
 import java.net.SocketException;
 import java.net.SocketTimeoutException;
+import java.nio.BufferOverflowException;
 import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
 
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import edu.uw.cs.cse461.net.base.MetricsRegistry;
 import edu.uw.cs.cse461.net.base.NetBase;
 import edu.uw.cs.cse461.util.Log;
 
@@ -28,14 +29,46 @@ import edu.uw.cs.cse461.util.Log;
  * Design note: TCPMessageHandler cannot usefully subclass Socket, but rather must
  * wrap an existing Socket, because servers must use ServerSocket.accept(), which
  * returns a Socket that must then be turned into a TCPMessageHandler.
+ * <p>
+ * Performance note: framing doesn't allocate per message.  A send copies the length header and payload
+ * into a reusable buffer and writes both with a single write (so a small message is a single segment
+ * even with TCP_NODELAY set).  Reads reuse a header buffer, and the readMessageAs*() methods that convert
+ * the payload read it into a reusable buffer first.  readMessageInto() reads a payload in place into a
+ * caller-supplied buffer.  A TCPMessageHandler may be used by one sending and one reading thread at once.
+ * <p>
+ * Reads return whole messages or throw.  A message longer than the max read length is skipped, and the read
+ * throws an IOException; the next read returns the message after it.  If a read fails part way through a
+ * message (EOF, a timeout, or a broken connection), message boundaries are lost, so all later reads throw too.
+ * <p>
+ * If both ends agree to it (see setCompression()), long messages are sent deflated (see FrameCompressor).
+ * <p>
+ * Messages and bytes (headers included) sent and received by all TCPMessageHandlers are counted in the MetricsRegistry.
  *  
  * @author zahorjan
  *
  */
 public class TCPMessageHandler implements TCPMessageHandlerInterface {
 	private static final String TAG="TCPMessageHandler";
+	// messages at most this long are coalesced with their header into a single write, and read through the reusable read buffer
+	private static final int MAX_BUFFERED_LENGTH = 64 * 1024;
+	
+	private static final MetricsRegistry.Counter sFramesOut = MetricsRegistry.theRegistry().counter("tcpmessagehandler_frames_sent_total", "Messages sent", "handler", "blocking");
+	private static final MetricsRegistry.Counter sBytesOut = MetricsRegistry.theRegistry().counter("tcpmessagehandler_bytes_sent_total", "Bytes sent, including message headers", "handler", "blocking");
+	private static final MetricsRegistry.Counter sFramesIn = MetricsRegistry.theRegistry().counter("tcpmessagehandler_frames_received_total", "Messages received", "handler", "blocking");
+	private static final MetricsRegistry.Counter sBytesIn = MetricsRegistry.theRegistry().counter("tcpmessagehandler_bytes_received_total", "Bytes received, including message headers", "handler", "blocking");
+
 	private Socket socket;
+	private InputStream is;
+	private OutputStream os;
 	private int maxLength;
+
+	private final byte[] headerBuf = new byte[4];
+	private byte[] readBuf = new byte[1024];
+	private byte[] writeBuf = new byte[1024];
+	private int lastReadLength;
+	private FrameCompressor compressor;  // null unless compression is on
+	private boolean lastReadCompressed;  // whether the message whose header was just read is compressed
+	private boolean outOfSync = false;  // set when a read fails part way through a message
 	/**
 	 * We need an "on the wire" format for a binary integer.
 	 * This method encodes into that format, which is little endian
@@ -44,13 +77,18 @@ public class TCPMessageHandler implements TCPMessageHandlerInterface {
 	 * @return A byte[4] encoding the integer argument.
 	 */
 	protected static byte[] intToByte(int i) {
-		ByteBuffer b = ByteBuffer.allocate(4);
-		b.order(ByteOrder.LITTLE_ENDIAN);
-		b.putInt(i);
-		byte buf[] = b.array();
+		byte buf[] = new byte[4];
+		_putInt(i, buf, 0);
 		return buf;
 	}
 	
+	private static void _putInt(int i, byte[] buf, int offset) {
+		buf[offset]   = (byte)i;
+		buf[offset+1] = (byte)(i >>> 8);
+		buf[offset+2] = (byte)(i >>> 16);
+		buf[offset+3] = (byte)(i >>> 24);
+	}
+	
 	/**
 	 * We need an "on the wire" format for a binary integer.
 	 * This method decodes from that format, which is little endian
@@ -60,24 +98,14 @@ public class TCPMessageHandler implements TCPMessageHandlerInterface {
 	 * @return return int store in buf, unless buf contain not 4 bytes
 	 */
 	protected static int byteToInt(byte buf[]) {
-		// You need to implement this.  It's the inverse of intToByte().
 		if(buf.length == 4){
-			ByteBuffer b = ByteBuffer.wrap(reverse(buf));
-			return b.getInt(0);
+			return _getInt(buf, 0);
 		}
 		return 0;
 	}
-
-	/*
-	 * helper function to byteToInt to reverse bytes. 
-	 * Because ByteBuffer ordering does not reverse bytes.
-	 */
-	private static byte[] reverse(byte buf[]) {
-		byte r[] = new byte[4];
-		for(int i = 0; i < 4; i++){
-			r[i] = buf[3-i];
-		}
-		return r;
+	
+	private static int _getInt(byte[] buf, int offset) {
+		return (buf[offset] & 0xFF) | ((buf[offset+1] & 0xFF) << 8) | ((buf[offset+2] & 0xFF) << 16) | ((buf[offset+3] & 0xFF) << 24);
 	}
 	
 	
@@ -95,6 +123,8 @@ public class TCPMessageHandler implements TCPMessageHandlerInterface {
 			throw new IOException("socket is not connected");
 		}	
 		socket = sock;
+		is = sock.getInputStream();
+		os = sock.getOutputStream();
 		maxLength = Integer.MAX_VALUE;
 	}
 	
@@ -102,6 +132,7 @@ public class TCPMessageHandler implements TCPMessageHandlerInterface {
 	 * Closes the underlying socket and renders this TCPMessageHandler useless.
 	 */
 	public void close() {
+		if ( compressor != null ) compressor.end();
 		if(socket != null){
 			try {
 				socket.close();
@@ -138,6 +169,7 @@ public class TCPMessageHandler implements TCPMessageHandlerInterface {
 	
 	/**
 	 * Sets the maximum allowed size for which decoding of a message will be attempted.
+	 * Reading a longer message skips it and throws an IOException.
 	 * @return The previous setting of the maximum allowed message length.
 	 * 		   If maxLen is invalid input return -1, no new max length is set.
 	 */
@@ -160,16 +192,56 @@ public class TCPMessageHandler implements TCPMessageHandlerInterface {
 		return maxLength;
 	}
 	
+	/**
+	 * Turns compression on or off.  While it's on, messages at least threshold bytes long are sent
+	 * compressed, and compressed messages can be read.  Turn it on only once the other end has agreed to it,
+	 * and before sending or reading any compressed message.
+	 * @param threshold Length of the shortest message to compress.  0 turns compression off.
+	 */
+	public void setCompression(int threshold) {
+		if ( compressor != null ) compressor.end();
+		compressor = threshold > 0 ? new FrameCompressor(threshold) : null;
+	}
+	
 	//--------------------------------------------------------------------------------------
 	// send routines
 	//--------------------------------------------------------------------------------------
 	
 	@Override
 	public void sendMessage(byte[] buf) throws IOException {
-		OutputStream os = socket.getOutputStream();
-		byte[] length = intToByte(buf.length);
-		os.write(length);
-		os.write(buf);
+		sendMessage(buf, 0, buf.length);
+	}
+	
+	/**
+	 * Sends len bytes of buf, starting at offset, as one message.
+	 */
+	public void sendMessage(byte[] buf, int offset, int len) throws IOException {
+		if ( compressor != null ) {
+			byte[] compressed = compressor.compress(buf, offset, len);
+			if ( compressed != null ) {
+				_sendFrame(compressed, 0, compressed.length, FrameCompressor.COMPRESSED_FLAG);
+				return;
+			}
+		}
+		_sendFrame(buf, offset, len, 0);
+	}
+	
+	/**
+	 * Sends a message whose payload is len bytes of buf, starting at offset.
+	 * @param flags Or'ed into the length header
+	 */
+	private void _sendFrame(byte[] buf, int offset, int len, int flags) throws IOException {
+		if ( writeBuf.length < 4 + len && writeBuf.length < MAX_BUFFERED_LENGTH )
+			writeBuf = new byte[Math.min(Math.max(4 + len, 2 * writeBuf.length), MAX_BUFFERED_LENGTH)];
+		// the header goes out with as much of the payload as fits in the write buffer; a large payload's
+		// remainder is written straight from the caller's array
+		int nCoalesced = Math.min(len, writeBuf.length - 4);
+		_putInt(len | flags, writeBuf, 0);
+		System.arraycopy(buf, offset, writeBuf, 4, nCoalesced);
+		os.write(writeBuf, 0, 4 + nCoalesced);
+		if ( nCoalesced < len ) os.write(buf, offset + nCoalesced, len - nCoalesced);
+		sFramesOut.inc();
+		sBytesOut.add(4 + len);
 	}
 	
 	/**
@@ -186,8 +258,12 @@ public class TCPMessageHandler implements TCPMessageHandlerInterface {
 	 */
 	@Override
 	public void sendMessage(int value) throws IOException{
-		byte[] buf = intToByte(value);
-		sendMessage(buf);
+		byte[] buf = writeBuf;
+		_putInt(4, buf, 0);
+		_putInt(value, buf, 4);
+		os.write(buf, 0, 8);
+		sFramesOut.inc();
+		sBytesOut.add(8);
 	}
 	
 	/**
@@ -217,69 +293,159 @@ public class TCPMessageHandler implements TCPMessageHandlerInterface {
 	
 	@Override
 	public byte[] readMessageAsBytes() throws IOException {
-		InputStream is = socket.getInputStream();
-
-		// read the length
-		int bufLen;
-		byte[] headerBuf = new byte[4];
-		int len = is.read(headerBuf, 0, 4);
-
-		int payloadLength = byteToInt(headerBuf);
-
-		// use the smaller length between the "length" in the frame and the maxLength
-		if (payloadLength < maxLength){
-			bufLen = payloadLength;
-		}else{
-			bufLen = maxLength;
-		}
-
-		// read the payload
+		int bufLen = _readPayloadLength();
 		byte[] buf = new byte[bufLen];
-		if(bufLen == 0){
-			// there's no payload
-			return buf;
-		} else { 
-			// keep reading the payload and store it in the buf[]
-			int counter = 0;
-			try {
-				while ( len >= 0 && counter < bufLen) {
-					len = is.read(buf, counter, bufLen-counter);
-					if (len > -1){
-						counter += len;
-					}
-				}
-			} catch (Exception e) {
-				System.out.println("TCP read failed: " + e.getMessage());
+		_readPayload(buf, 0, bufLen);
+		if ( lastReadCompressed ) return compressor.decompress(buf, 0, bufLen, maxLength);
+		return buf;
+	}
+	
+	/**
+	 * Reads the next message's payload directly into dst, starting at its position, and advances the position
+	 * past it.  No intermediate buffer is used if dst is backed by an array.
+	 * @return The length of the message read.
+	 * @throws BufferOverflowException If the message doesn't fit in dst's remaining space.  The message is consumed
+	 *         (and discarded) anyway, so that the next read starts at the next message.
+	 */
+	@Override
+	public int readMessageInto(ByteBuffer dst) throws IOException {
+		int bufLen = _readPayloadLength();
+		if ( lastReadCompressed ) {
+			byte[] compressed = new byte[bufLen];
+			_readPayload(compressed, 0, bufLen);
+			byte[] msg = compressor.decompress(compressed, 0, bufLen, maxLength);
+			if ( msg.length > dst.remaining() ) throw new BufferOverflowException();
+			dst.put(msg);
+			return msg.length;
+		}
+		if ( bufLen > dst.remaining() ) {
+			_skipPayload(bufLen);
+			throw new BufferOverflowException();
+		}
+		if ( dst.hasArray() ) {
+			_readPayload(dst.array(), dst.arrayOffset() + dst.position(), bufLen);
+			dst.position(dst.position() + bufLen);
+		} else {
+			for ( int remaining=bufLen; remaining>0; ) {
+				int n = Math.min(remaining, readBuf.length);
+				_readPayload(readBuf, 0, n);
+				dst.put(readBuf, 0, n);
+				remaining -= n;
 			}
 		}
-		return buf;
+		return bufLen;
 	}
 	
 	@Override
 	public String readMessageAsString() throws IOException {
-		byte[] buf = readMessageAsBytes();
-		return new String(buf);
+		byte[] buf = _readBuffered();
+		return new String(buf, 0, lastReadLength);
 	}
 
 	@Override
 	public int readMessageAsInt() throws IOException {
-		byte[] buf = readMessageAsBytes();
-		return byteToInt(buf);
+		byte[] buf = _readBuffered();
+		if ( lastReadLength != 4 ) return 0;
+		return _getInt(buf, 0);
 	}
 	
 	@Override
 	public JSONArray readMessageAsJSONArray() throws IOException, JSONException {
-		byte[] buf = readMessageAsBytes();
-		String str = new String(buf);
-		JSONArray jArray = new JSONArray(str);
-		return jArray;
+		return new JSONArray(readMessageAsString());
 	}
 	
 	@Override
 	public JSONObject readMessageAsJSONObject() throws IOException, JSONException {
-		byte[] buf = readMessageAsBytes();
-		String str = new String(buf);
-		JSONObject jObject = new JSONObject(str);
-		return jObject;
+		return new JSONObject(readMessageAsString());
+	}
+	
+	//--------------------------------------------------------------------------------------
+	// framing helpers
+	//--------------------------------------------------------------------------------------
+	
+	/**
+	 * Reads the next message's length header.
+	 * @return The number of payload bytes to read
+	 * @throws EOFException If the connection was closed before a new message began.
+	 * @throws IOException If the message is longer than the max read length.  Its payload has been skipped,
+	 *         so the next read starts at the next message.
+	 */
+	private int _readPayloadLength() throws IOException {
+		if ( outOfSync ) throw new IOException("An earlier read failed in the middle of a message; no more messages can be read");
+		_readFully(headerBuf, 0, 4, true);
+		sFramesIn.inc();
+		int payloadLength = _getInt(headerBuf, 0);
+		lastReadCompressed = (payloadLength & FrameCompressor.COMPRESSED_FLAG) != 0;
+		if ( lastReadCompressed ) {
+			if ( compressor == null ) {
+				// most likely not a header at all; nothing after it can be trusted
+				outOfSync = true;
+				throw new IOException("Received a compressed message, but compression isn't on");
+			}
+			payloadLength &= ~FrameCompressor.COMPRESSED_FLAG;
+		}
+		// (a compressed message is shorter than its original, which can't be longer than maxLength)
+		if ( payloadLength > maxLength ) {
+			_skipPayload(payloadLength);
+			throw new IOException("Message length " + payloadLength + " exceeds max read length " + maxLength + "; message skipped");
+		}
+		return payloadLength;
+	}
+	
+	private void _readPayload(byte[] buf, int offset, int bufLen) throws IOException {
+		_readFully(buf, offset, bufLen, false);
+	}
+	
+	/**
+	 * Reads exactly len bytes into buf, starting at offset.  If the read fails part way through a message,
+	 * the rest of the stream can't be split into messages any more, and all later reads fail.
+	 * @param atMessageStart True if no part of the current message has been read yet
+	 * @throws EOFException If the connection is closed before len bytes arrive
+	 * @throws SocketTimeoutException If the socket's timeout expires first
+	 */
+	private void _readFully(byte[] buf, int offset, int len, boolean atMessageStart) throws IOException {
+		int nRead = 0;
+		try {
+			while ( nRead < len ) {
+				int n = is.read(buf, offset + nRead, len - nRead);
+				if ( n < 0 ) throw new EOFException(atMessageStart && nRead == 0 ? "EOF while reading message header" : "EOF in the middle of a message");
+				nRead += n;
+			}
+		} catch (IOException e) {
+			if ( !atMessageStart || nRead > 0 ) outOfSync = true;
+			throw e;
+		} finally {
+			sBytesIn.add(nRead);
+		}
+	}
+	
+	private void _skipPayload(int bufLen) throws IOException {
+		for ( int remaining=bufLen; remaining>0; ) {
+			int n = Math.min(remaining, readBuf.length);
+			_readPayload(readBuf, 0, n);
+			remaining -= n;
+		}
+	}
+	
+	/**
+	 * Reads the next message into the reusable read buffer, growing it if need be.  A message too long
+	 * to be worth buffering is read into a newly allocated array instead.
+	 * @return The array holding the message, starting at offset 0.  Its length is left in lastReadLength.
+	 */
+	private byte[] _readBuffered() throws IOException {
+		int bufLen = _readPayloadLength();
+		byte[] buf;
+		if ( bufLen <= readBuf.length ) {
+			buf = readBuf;
+		} else if ( bufLen <= MAX_BUFFERED_LENGTH ) {
+			readBuf = new byte[Math.min(Math.max(bufLen, 2 * readBuf.length), MAX_BUFFERED_LENGTH)];
+			buf = readBuf;
+		} else {
+			buf = new byte[bufLen];
+		}
+		_readPayload(buf, 0, bufLen);
+		if ( lastReadCompressed ) buf = compressor.decompress(buf, 0, bufLen, maxLength);
+		lastReadLength = lastReadCompressed ? buf.length : bufLen;
+		return buf;
 	}
 }
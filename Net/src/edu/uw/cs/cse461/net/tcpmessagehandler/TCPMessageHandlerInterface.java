@@ -2,6 +2,7 @@ package edu.uw.cs.cse461.net.tcpmessagehandler;
 
 import java.io.IOException;
 import java.net.SocketException;
+import java.nio.ByteBuffer;
 
 import org.json.JSONArray;
 import org.json.JSONException;
@@ -30,6 +31,14 @@ public interface TCPMessageHandlerInterface {
 	//--------------------------------------------------------------------------------------
 	
 	public byte[] readMessageAsBytes() throws IOException;
+	/**
+	 * Reads the next message directly into dst, starting at its position, and advances the position past it.
+	 * Lets callers that read many messages reuse one buffer, rather than allocating an array per message.
+	 * @return The length of the message read
+	 * @throws java.nio.BufferOverflowException If the message doesn't fit in the buffer's remaining space.
+	 *         (The message is consumed anyway.)
+	 */
+	public int readMessageInto(ByteBuffer dst) throws IOException;
 	public String readMessageAsString() throws IOException;
 	public int readMessageAsInt() throws IOException;
 	public JSONArray readMessageAsJSONArray() throws IOException, JSONException;
@@ -1,12 +1,17 @@
 package edu.uw.cs.cse461.service;
 
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
 import org.json.JSONException;
 import org.json.JSONObject;
 
 import edu.uw.cs.cse461.net.base.NetBase;
 import edu.uw.cs.cse461.net.rpc.RPCCallableMethod;
+import edu.uw.cs.cse461.net.rpc.RPCHandler;
+import edu.uw.cs.cse461.net.rpc.RPCResponseSink;
 import edu.uw.cs.cse461.net.rpc.RPCService;
-import edu.uw.cs.cse461.util.Base64;
+import edu.uw.cs.cse461.net.rpc.RPCStreamingHandler;
 
 public class DataXferRPCService extends DataXferServiceBase{
 
@@ -18,6 +23,12 @@ public class DataXferRPCService extends DataXferServiceBase{
 	// A variable capable of describing a method that can be invoked by RPC.
 	private RPCCallableMethod dataxfer;
 	
+	private int maxLength;
+	private int chunkSize;
+	// The payload is the same for every call, so it's built once, in a direct buffer the RPC
+	// service can write straight to the socket.  Each response is a read-only slice of it.
+	private ByteBuffer payload = ByteBuffer.allocateDirect(0);
+	
 	public DataXferRPCService() throws Exception {
 		super("dataxferrpc");
 		
@@ -25,11 +36,38 @@ public class DataXferRPCService extends DataXferServiceBase{
 		if ( HEADER_STR.length() != RESPONSE_OKAY_STR.length() )
 			throw new Exception("Header and response strings must be same length: '" + HEADER_STR + "' '" + RESPONSE_OKAY_STR + "'");	
 
+		maxLength = NetBase.theNetBase().config().getAsInt("dataxferrpc.maxlength", 14000000, 0);
+		chunkSize = NetBase.theNetBase().config().getAsInt("dataxferrpc.chunksize", 64 * 1024, 1);
+
 		// Set up the method descriptor variable to refer to this->dataxfer()
-		dataxfer = new RPCCallableMethod(this, "_dataxfer");
+		dataxfer = new RPCCallableMethod(new RPCHandler() {
+			@Override
+			public JSONObject handleCall(JSONObject args) throws Exception {
+				try {
+					return _dataxfer(args);
+				} catch (Exception e) {
+					mMetrics.errors.inc();
+					throw e;
+				}
+			}
+		});
+		// Transfers can take a while; run them on threads of their own, so they don't hold up other services' calls
+		((RPCService)NetBase.theNetBase().getService("rpc")).setServiceThreads(loadablename(), 2, 64);
 		// Register the method with the RPC service as externally invocable method "dataxferrpc"
 		//((RPCService)NetBase.theNetBase().getService("rpc")).registerHandler(loadablename(), "dataxferrpc", dataxfer );
 		((RPCService)NetBase.theNetBase().getService("rpc")).registerHandler(loadablename(), "dataxfer", dataxfer );
+		// The same transfer, with the data streamed in chunks
+		((RPCService)NetBase.theNetBase().getService("rpc")).registerStreamingHandler(loadablename(), "dataxferstream", new RPCStreamingHandler() {
+			@Override
+			public JSONObject handleCall(JSONObject args, RPCResponseSink sink) throws Exception {
+				try {
+					return _dataxferStream(args, sink);
+				} catch (Exception e) {
+					mMetrics.errors.inc();
+					throw e;
+				}
+			}
+		});
 	}
 	
 	/**
@@ -48,23 +86,63 @@ public class DataXferRPCService extends DataXferServiceBase{
 		if ( header == null  || !header.has(HEADER_TAG_KEY) || !header.getString(HEADER_TAG_KEY).equalsIgnoreCase(HEADER_STR) )
 			throw new Exception("Missing or incorrect header value: '" + header + "'");
 		
-		// To-do: some dataxfer work here, not echo
 		int xferLength = header.getInt("xferLength");
+		if ( xferLength < 0 || xferLength > maxLength )
+			throw new Exception("Requested transfer length " + xferLength + " is outside [0, " + maxLength + "]");
 		JSONObject retVal = new JSONObject();
 		JSONObject retHeader = new JSONObject();
 		
 		retHeader.put(HEADER_TAG_KEY, RESPONSE_OKAY_STR).put(HEADER_XFERLENGTH_KEY, xferLength);
 		retVal.put(HEADER_KEY, retHeader);
 		
-		String msg = "!";
-		byte[] buf = new byte[xferLength];
-		// copy the msg i times into buf until buf is full (PACKET_SIZE = 1000 bytes)
-		for (int i = 0; i < xferLength; i++){
-			System.arraycopy(msg.getBytes(), 0, buf, i, msg.getBytes().length);
+		// The RPC layer sends a ByteBuffer as a binary attachment (or as Base64, to callers that only speak JSON)
+		retVal.put("data", _payload(xferLength));
+		mMetrics.requests.inc();
+		mMetrics.bytesSent.add(xferLength);
+		return retVal;
+	}
+	
+	/**
+	 * Streamed version of _dataxfer().  The data is sent in chunks of at most dataxferrpc.chunksize bytes,
+	 * each a JSONObject with the bytes under key "data".  The return value carries only the header.
+	 */
+	public JSONObject _dataxferStream(JSONObject args, RPCResponseSink sink) throws Exception {
+		JSONObject header = args.getJSONObject(HEADER_KEY);
+		if ( header == null  || !header.has(HEADER_TAG_KEY) || !header.getString(HEADER_TAG_KEY).equalsIgnoreCase(HEADER_STR) )
+			throw new Exception("Missing or incorrect header value: '" + header + "'");
+		
+		int xferLength = header.getInt("xferLength");
+		if ( xferLength < 0 || xferLength > maxLength )
+			throw new Exception("Requested transfer length " + xferLength + " is outside [0, " + maxLength + "]");
+		
+		// every chunk is (a prefix of) the same read-only buffer, so none need be copied
+		ByteBuffer chunk = _payload(Math.min(xferLength, chunkSize));
+		for ( int sent = 0; sent < xferLength; sent += chunk.capacity() ) {
+			ByteBuffer data = chunk.duplicate();
+			data.limit(Math.min(chunk.capacity(), xferLength - sent));
+			sink.send(new JSONObject().put("data", data));
 		}
 		
-		retVal.put("data", Base64.encodeBytes(buf));	
-		return retVal;
+		mMetrics.requests.inc();
+		mMetrics.bytesSent.add(xferLength);
+		JSONObject retHeader = new JSONObject().put(HEADER_TAG_KEY, RESPONSE_OKAY_STR).put(HEADER_XFERLENGTH_KEY, xferLength);
+		return new JSONObject().put(HEADER_KEY, retHeader);
+	}
+	
+	/**
+	 * Returns a read-only buffer holding len bytes of payload, growing the shared payload buffer if need be.
+	 */
+	private synchronized ByteBuffer _payload(int len) {
+		if ( payload.capacity() < len ) {
+			ByteBuffer newPayload = ByteBuffer.allocateDirect(Math.max(len, Math.min(2 * payload.capacity(), maxLength)));
+			byte[] chunk = new byte[8192];
+			Arrays.fill(chunk, (byte)'!');
+			while ( newPayload.hasRemaining() ) newPayload.put(chunk, 0, Math.min(chunk.length, newPayload.remaining()));
+			payload = newPayload;
+		}
+		ByteBuffer slice = payload.asReadOnlyBuffer();
+		slice.clear().limit(len);
+		return slice.slice();
 	}
 	
 }
@@ -11,6 +11,7 @@ import java.net.Socket;
 import java.net.SocketException;
 import java.net.SocketTimeoutException;
 import java.nio.ByteBuffer;
+import java.util.Arrays;
 
 import edu.uw.cs.cse461.net.base.NetBase;
 import edu.uw.cs.cse461.util.ConfigManager;
@@ -113,10 +114,13 @@ public class DataXferRawService extends DataXferServiceBase implements NetLoadab
 
 								mDatagramSocket.send( new DatagramPacket(lastBuf, lastBuf.length, packet.getAddress(), packet.getPort()));
 							}
+							mMetrics.requests.inc();
+							mMetrics.bytesSent.add(numBytes);
 							
 						} catch (SocketTimeoutException e) {
 							// socket timeout is normal
 						} catch (Exception e) {
+							mMetrics.errors.inc();
 							Log.w(TAG,  "Dgram reading thread caught " + e.getClass().getName() + " exception: " + e.getMessage());
 						}
 					}
@@ -141,56 +145,23 @@ public class DataXferRawService extends DataXferServiceBase implements NetLoadab
 		Thread tcpThread = new Thread() {
 
 			public void run() {
-				
-				byte[] header = new byte[4];
-				byte[] buf = new byte[4];
-				int socketTimeout = NetBase.theNetBase().config().getAsInt("net.timeout.socket", 5000);
 				try {
 					
 					while ( !isShutdown() ) {
-						Socket sock = null;
 						try {
 							
 							// accept() blocks until a client connects.  When it does, a new socket is created that communicates only
 							// with that client.  That socket is returned.
 						
-							sock = mServerSocket.accept();
-
-							// We're going to read from sock, to get the message to echo, but we can't risk a client mistake
-							// blocking us forever.  So, arrange for the socket to give up if no data arrives for a while.
-							sock.setSoTimeout(socketTimeout);
-							InputStream is = sock.getInputStream();
-							OutputStream os = sock.getOutputStream();
-							// Read the header.  Either it gets here in one chunk or we ignore it.  
-							int len = is.read(header);
-							
-							if ( len != HEADER_STR.length() )
-								throw new Exception("Bad header length: got " + len + " but wanted " + HEADER_STR.length());
-							String headerStr = new String(header); 
-							if ( !headerStr.equalsIgnoreCase(HEADER_STR) )
-								throw new Exception("Bad header: got '" + headerStr + "' but wanted '" + HEADER_STR + "'");
-							
-							System.arraycopy(RESPONSE_OKAY_STR.getBytes(), 0, buf, 0, HEADER_STR.length());
-							String msg = "!";
-							// send the packet
-							os.write(buf, 0, 4);
-							for(int i = 0; i < numBytes; i++){
-								os.write(msg.getBytes());
-							}
-							
-						} catch (SocketTimeoutException e) {
-							// normal behavior, but we're done with the client we were talking with
-						} catch (Exception e) {
-							Log.i(TAG, "TCP thread caught " + e.getClass().getName() + " exception: " + e.getMessage());
-						} finally {
-							if ( sock != null ) {
-								try { 
-									sock.close(); 
-									sock = null;
-								} catch (Exception e) {
-									
+							final Socket sock = mServerSocket.accept();
+							// each transfer runs on its own thread, so a slow client doesn't hold up the others
+							NetBase.theNetBase().connectionExecutor().serve(sock, new Runnable() {
+								public void run() {
+									_handleTcpConnection(sock, numBytes);
 								}
-							}
+							});
+						} catch (SocketTimeoutException e) {
+							// normal behavior; loop back and see if we're terminating
 						}
 					}
 				} catch (Exception e) {
@@ -206,6 +177,47 @@ public class DataXferRawService extends DataXferServiceBase implements NetLoadab
 		tcpThread.start();
 	}
 	
+	/**
+	 * Sends numBytes of data to the client on sock.
+	 */
+	private void _handleTcpConnection(Socket sock, int numBytes) {
+		byte[] header = new byte[4];
+		int socketTimeout = NetBase.theNetBase().config().snapshot().socketTimeout(5000);
+		try {
+			// We're going to read from sock, to get the message to echo, but we can't risk a client mistake
+			// blocking us forever.  So, arrange for the socket to give up if no data arrives for a while.
+			sock.setSoTimeout(socketTimeout);
+			InputStream is = sock.getInputStream();
+			OutputStream os = sock.getOutputStream();
+			// Read the header.  Either it gets here in one chunk or we ignore it.  
+			int len = is.read(header);
+			
+			if ( len != HEADER_STR.length() )
+				throw new Exception("Bad header length: got " + len + " but wanted " + HEADER_STR.length());
+			String headerStr = new String(header); 
+			if ( !headerStr.equalsIgnoreCase(HEADER_STR) )
+				throw new Exception("Bad header: got '" + headerStr + "' but wanted '" + HEADER_STR + "'");
+			
+			// send the response header, then the data a chunk at a time
+			os.write(RESPONSE_OKAY_BYTES, 0, RESPONSE_OKAY_LEN);
+			byte[] buf = new byte[Math.min(numBytes, 64 * 1024)];
+			Arrays.fill(buf, (byte)'!');
+			for (int sent = 0; sent < numBytes; sent += buf.length){
+				os.write(buf, 0, Math.min(buf.length, numBytes - sent));
+			}
+			mMetrics.requests.inc();
+			mMetrics.bytesSent.add(numBytes);
+			
+		} catch (SocketTimeoutException e) {
+			// normal behavior, but we're done with the client we were talking with
+		} catch (Exception e) {
+			mMetrics.errors.inc();
+			if ( !isShutdown() ) Log.i(TAG, "TCP thread caught " + e.getClass().getName() + " exception: " + e.getMessage());
+		} finally {
+			try { sock.close(); } catch (Exception e) {}
+		}
+	}
+	
 	/**
 	 * Returns string summarizing the status of this server.  The string is printed by the dumpservicestate
 	 * console application, and is also available by executing dumpservicestate through the web interface.
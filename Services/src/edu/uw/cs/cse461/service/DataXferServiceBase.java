@@ -13,11 +13,15 @@ public abstract class DataXferServiceBase  extends NetLoadableService {
 	public static final byte[] RESPONSE_OKAY_BYTES = RESPONSE_OKAY_STR.getBytes();
 	public static final int RESPONSE_OKAY_LEN = RESPONSE_OKAY_BYTES.length;
 		
+	// request counts and the like, kept in the MetricsRegistry
+	final ServiceMetrics mMetrics;
+		
 	/**
 	 * Pass subclass's loadable name up to base class.
 	 */
 	protected DataXferServiceBase(String loadablename) {
 		super(loadablename);
+		mMetrics = new ServiceMetrics(loadablename);
 	}
 
 	@Override
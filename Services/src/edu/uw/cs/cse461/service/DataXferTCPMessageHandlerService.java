@@ -5,6 +5,7 @@ import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketTimeoutException;
+import java.util.Arrays;
 
 import org.json.JSONObject;
 
@@ -18,9 +19,12 @@ public class DataXferTCPMessageHandlerService extends DataXferServiceBase {
 	
 	private ServerSocket mServerSocket;
 	private int PACKET_SIZE = 1000;
+	// every packet sent has the same contents, so one buffer serves all of them
+	private final byte[] packet = new byte[PACKET_SIZE];
 	
 	public DataXferTCPMessageHandlerService() throws Exception{
 		super("dataxfertcpmessagehandler");
+		Arrays.fill(packet, (byte)'!');
 		// Sanity check -- code below relies on this property
 		if ( HEADER_STR.length() != RESPONSE_OKAY_STR.length() )
 			throw new Exception("Header and response strings must be same length: '" + HEADER_STR + "' '" + RESPONSE_OKAY_STR + "'");	
@@ -43,61 +47,14 @@ public class DataXferTCPMessageHandlerService extends DataXferServiceBase {
 			public void run() {
 				try {
 					while ( !mAmShutdown ) {
-						Socket sock = null;
-						
 						try {
-							sock = mServerSocket.accept();
-							TCPMessageHandler tcpMessageHandler = null;
-							
-							try {
-								tcpMessageHandler = new TCPMessageHandler(sock);
-								tcpMessageHandler.setTimeout(NetBase.theNetBase().config().getAsInt("net.timeout.socket", 5000));
-								tcpMessageHandler.setNoDelay(true);
-
-								String header = tcpMessageHandler.readMessageAsString();
-								if ( ! header.equalsIgnoreCase(HEADER_STR))
-									throw new Exception("Bad header: '" + header + "'");
-								JSONObject headStr = tcpMessageHandler.readMessageAsJSONObject();
-								int transferSize = headStr.getInt("transferSize");
-								
-								// now respond and send the header
-								tcpMessageHandler.sendMessage(EchoServiceBase.RESPONSE_OKAY_STR);
-
-								// send the messages that are > PACKET_SIZE
-								String msg = "!"; 
-								if ( transferSize >= PACKET_SIZE){
-									byte[] buf = new byte[PACKET_SIZE];
-									// copy the msg i times into buf until buf is full (PACKET_SIZE = 1000 bytes)
-									for (int i = 0; i < PACKET_SIZE; i++){
-										System.arraycopy(msg.getBytes(), 0, buf, i, msg.getBytes().length);
-									}
-
-									// send the packet (PACKET_SIZE bytes) i times until the total bytes sent = transferSize
-									for (int i = 0; i < transferSize/PACKET_SIZE; i++){
-										tcpMessageHandler.sendMessage(buf);
-									}
+							final Socket sock = mServerSocket.accept();
+							// each transfer runs on its own thread, so a slow client doesn't hold up the others
+							NetBase.theNetBase().connectionExecutor().serve(sock, new Runnable() {
+								public void run() {
+									_handleConnection(sock);
 								}
-
-								// send the first/last packet if it's < PACKET_SIZE bytes
-								if (transferSize % PACKET_SIZE != 0){
-									byte[] lastBuf= new byte[transferSize % PACKET_SIZE];
-									for(int i = 0; i < transferSize % PACKET_SIZE ; i++){
-										System.arraycopy(msg.getBytes(), 0, lastBuf, i, msg.getBytes().length);
-									}
-									tcpMessageHandler.sendMessage(lastBuf);
-								}
-
-								sock.shutdownOutput();
-							} catch (SocketTimeoutException e) {
-								Log.e(TAG, "Timed out waiting for data on tcp connection");
-							} catch (EOFException e) {
-								// normal termination of loop
-								Log.d(TAG, "EOF on tcpMessageHandlerSocket.readMessageAsString()");
-							} catch (Exception e) {
-								Log.i(TAG, "Unexpected exception while handling connection: " + e.getMessage());
-							} finally {
-								if ( tcpMessageHandler != null ) try { tcpMessageHandler.close(); } catch (Exception e) {}
-							}
+							});
 						} catch (SocketTimeoutException e) {
 							// this is normal.  Just loop back and see if we're terminating.
 						}
@@ -113,6 +70,47 @@ public class DataXferTCPMessageHandlerService extends DataXferServiceBase {
 		tcpThread.start();
 	}
 	
+	/**
+	 * Serves a single transfer request.
+	 */
+	private void _handleConnection(Socket sock) {
+		TCPMessageHandler tcpMessageHandler = null;
+		try {
+			tcpMessageHandler = new TCPMessageHandler(sock);
+			tcpMessageHandler.setTimeout(NetBase.theNetBase().config().snapshot().socketTimeout(5000));
+			tcpMessageHandler.setNoDelay(true);
+
+			String header = tcpMessageHandler.readMessageAsString();
+			if ( ! header.equalsIgnoreCase(HEADER_STR))
+				throw new Exception("Bad header: '" + header + "'");
+			JSONObject headStr = tcpMessageHandler.readMessageAsJSONObject();
+			int transferSize = headStr.getInt("transferSize");
+			
+			// now respond and send the header
+			tcpMessageHandler.sendMessage(EchoServiceBase.RESPONSE_OKAY_STR);
+
+			// send the payload in PACKET_SIZE messages; the last one may be shorter
+			for (int sent = 0; sent < transferSize; sent += PACKET_SIZE){
+				tcpMessageHandler.sendMessage(packet, 0, Math.min(PACKET_SIZE, transferSize - sent));
+			}
+
+			sock.shutdownOutput();
+			mMetrics.requests.inc();
+			mMetrics.bytesSent.add(transferSize);
+		} catch (SocketTimeoutException e) {
+			mMetrics.errors.inc();
+			Log.e(TAG, "Timed out waiting for data on tcp connection");
+		} catch (EOFException e) {
+			// normal termination of loop
+			Log.d(TAG, "EOF on tcpMessageHandlerSocket.readMessageAsString()");
+		} catch (Exception e) {
+			mMetrics.errors.inc();
+			if ( !mAmShutdown ) Log.i(TAG, "Unexpected exception while handling connection: " + e.getMessage());
+		} finally {
+			if ( tcpMessageHandler != null ) try { tcpMessageHandler.close(); } catch (Exception e) {}
+		}
+	}
+	
 	@Override
 	public String dumpState() {
 		StringBuilder sb = new StringBuilder(super.dumpState());
@@ -7,6 +7,7 @@ import org.json.JSONObject;
 
 import edu.uw.cs.cse461.net.base.NetBase;
 import edu.uw.cs.cse461.net.rpc.RPCCallableMethod;
+import edu.uw.cs.cse461.net.rpc.RPCHandler;
 import edu.uw.cs.cse461.net.rpc.RPCService;
 
 /**
@@ -19,12 +20,13 @@ import edu.uw.cs.cse461.net.rpc.RPCService;
  *      you want to expose.  In this class, that's done with two
  *      statements:
  *      <ol>
- *      <li><tt>private RPCCallableMethod<EchoService> echo;</tt>
+ *      <li><tt>private RPCCallableMethod echo;</tt>
  *      <br>declares a variable that can hold a method description
  *      of the type the infrastructure requires to invoke a method.
- *      <li><tt>echo = new RPCCallableMethod<EchoService>(this, "_echo");</tt>
- *      <br>initializes that variable.  The arguments mean that the method to
- *      invoke is <tt>this->_echo()</tt>.
+ *      <li><tt>echo = new RPCCallableMethod(new RPCHandler() { ... _echo(args) ... });</tt>
+ *      <br>initializes that variable.  The RPCHandler simply calls <tt>this->_echo()</tt>.
+ *      (<tt>new RPCCallableMethod(this, "_echo")</tt> does the same thing, but finds and
+ *      invokes the method by reflection, which costs a bit on every call.)
  *      </ol>
  *  <p>
  *  <li> Register the method with the RPC service:
@@ -62,7 +64,17 @@ public class EchoRPCService extends EchoServiceBase  {
 		super("echorpc");
 		
 		// Set up the method descriptor variable to refer to this->_echo()
-		echo = new RPCCallableMethod(this, "_echo");
+		echo = new RPCCallableMethod(new RPCHandler() {
+			@Override
+			public JSONObject handleCall(JSONObject args) throws Exception {
+				try {
+					return _echo(args);
+				} catch (Exception e) {
+					mMetrics.errors.inc();
+					throw e;
+				}
+			}
+		});
 		// Register the method with the RPC service as externally invocable method "echo"
 		((RPCService)NetBase.theNetBase().getService("rpc")).registerHandler(loadablename(), "echo", echo );
 	}
@@ -85,6 +97,8 @@ public class EchoRPCService extends EchoServiceBase  {
 			throw new Exception("Missing or incorrect header value: '" + header + "'");
 		
 		header.put(HEADER_TAG_KEY, RESPONSE_OKAY_STR);
+		mMetrics.requests.inc();
+		mMetrics.bytesSent.add(args.optString(PAYLOAD_KEY, "").length());
 		return args;
 	}
 }
@@ -79,9 +79,12 @@ public class EchoRawService extends EchoServiceBase  {
 													throw new Exception("Bad header: got '" + headerStr + "', wanted '" + HEADER_STR + "'");
 												System.arraycopy(RESPONSE_OKAY_STR.getBytes(), 0, buf, 0, HEADER_STR.length());
 												mDatagramSocket.send( new DatagramPacket(buf, packet.getLength(), packet.getAddress(), packet.getPort()));
+												mMetrics.requests.inc();
+												mMetrics.bytesSent.add(packet.getLength() - HEADER_STR.length());
 											} catch (SocketTimeoutException e) {
 												// socket timeout is normal
 											} catch (Exception e) {
+												mMetrics.errors.inc();
 												Log.w(TAG,  "Dgram reading thread caught " + e.getClass().getName() + " exception: " + e.getMessage());
 											}
 										}
@@ -92,45 +95,23 @@ public class EchoRawService extends EchoServiceBase  {
 		};
 		dgramThread.start();
 		
-		// Code/thread handling the TCP socket
+		// Code/thread accepting TCP connections.  Each connection is served on a thread of its own.
 		Thread tcpThread = new Thread() {
 
 			public void run() {
-				byte[] header = new byte[4];
-				byte[] buf = new byte[1024];
-				int socketTimeout = NetBase.theNetBase().config().getAsInt("net.timeout.socket", 5000);
 				try {
 					while ( !isShutdown() ) {
-						Socket sock = null;
 						try {
 							// accept() blocks until a client connects.  When it does, a new socket is created that communicates only
 							// with that client.  That socket is returned.
-							sock = mServerSocket.accept();
-							// We're going to read from sock, to get the message to echo, but we can't risk a client mistake
-							// blocking us forever.  So, arrange for the socket to give up if no data arrives for a while.
-							sock.setSoTimeout(socketTimeout);
-							InputStream is = sock.getInputStream();
-							OutputStream os = sock.getOutputStream();
-							// Read the header.  Either it gets here in one chunk or we ignore it.  (That's not exactly the
-							// spec, admittedly.)
-							int len = is.read(header);
-							if ( len != HEADER_STR.length() )
-								throw new Exception("Bad header length: got " + len + " but wanted " + HEADER_STR.length());
-							String headerStr = new String(header); 
-							if ( !headerStr.equalsIgnoreCase(HEADER_STR) )
-								throw new Exception("Bad header: got '" + headerStr + "' but wanted '" + HEADER_STR + "'");
-							os.write(RESPONSE_OKAY_STR.getBytes());
-							
-							// Now read and echo the payload.
-							// Keep reading until the client has closed its side of the connection
-							while ( (len = is.read(buf)) >= 0 ) os.write(buf, 0, len);
-							
+							final Socket sock = mServerSocket.accept();
+							NetBase.theNetBase().connectionExecutor().serve(sock, new Runnable() {
+								public void run() {
+									_handleTcpConnection(sock);
+								}
+							});
 						} catch (SocketTimeoutException e) {
-							// normal behavior, but we're done with the client we were talking with
-						} catch (Exception e) {
-							Log.i(TAG, "TCP thread caught " + e.getClass().getName() + " exception: " + e.getMessage());
-						} finally {
-							if ( sock != null ) try { sock.close(); sock = null;} catch (Exception e) {}
+							// normal behavior; loop back and see if we're terminating
 						}
 					}
 				} catch (Exception e) {
@@ -144,6 +125,47 @@ public class EchoRawService extends EchoServiceBase  {
 	}
 
 	
+	/**
+	 * Echoes whatever arrives on a TCP connection, until the client closes its side.
+	 */
+	private void _handleTcpConnection(Socket sock) {
+		byte[] header = new byte[4];
+		byte[] buf = new byte[1024];
+		int socketTimeout = NetBase.theNetBase().config().snapshot().socketTimeout(5000);
+		try {
+			// We're going to read from sock, to get the message to echo, but we can't risk a client mistake
+			// blocking us forever.  So, arrange for the socket to give up if no data arrives for a while.
+			sock.setSoTimeout(socketTimeout);
+			InputStream is = sock.getInputStream();
+			OutputStream os = sock.getOutputStream();
+			// Read the header.  Either it gets here in one chunk or we ignore it.  (That's not exactly the
+			// spec, admittedly.)
+			int len = is.read(header);
+			if ( len != HEADER_STR.length() )
+				throw new Exception("Bad header length: got " + len + " but wanted " + HEADER_STR.length());
+			String headerStr = new String(header); 
+			if ( !headerStr.equalsIgnoreCase(HEADER_STR) )
+				throw new Exception("Bad header: got '" + headerStr + "' but wanted '" + HEADER_STR + "'");
+			os.write(RESPONSE_OKAY_STR.getBytes());
+			mMetrics.requests.inc();
+			
+			// Now read and echo the payload.
+			// Keep reading until the client has closed its side of the connection
+			while ( (len = is.read(buf)) >= 0 ) {
+				os.write(buf, 0, len);
+				mMetrics.bytesSent.add(len);
+			}
+			
+		} catch (SocketTimeoutException e) {
+			// normal behavior, but we're done with the client we were talking with
+		} catch (Exception e) {
+			mMetrics.errors.inc();
+			if ( !isShutdown() ) Log.i(TAG, "TCP thread caught " + e.getClass().getName() + " exception: " + e.getMessage());
+		} finally {
+			try { sock.close(); } catch (Exception e) {}
+		}
+	}
+	
 	/**
 	 * This method is called when the entire infrastructure
 	 * wants to terminate.  We set a flag indicating all threads
@@ -35,37 +35,15 @@ public class EchoTCPMessageHandlerService extends EchoServiceBase  {
 			public void run() {
 				try {
 					while ( !mAmShutdown ) {
-						Socket sock = null;
 						try {
-							sock = mServerSocket.accept();  // if this fails, we want out of the while loop...
-							// should really spawn a thread here, but the code is already complicated enough that we don't bother
-							TCPMessageHandler tcpMessageHandlerSocket = null;
-							try {
-								// this loop exits when readMessageAsString() throws an IOException indicating EOF, or 
-								// because it has timed out on the read
-								while ( true ) {
-									tcpMessageHandlerSocket = new TCPMessageHandler(sock);
-									tcpMessageHandlerSocket.setTimeout(NetBase.theNetBase().config().getAsInt("net.timeout.socket", 5000));
-									tcpMessageHandlerSocket.setNoDelay(true);
-									String header = tcpMessageHandlerSocket.readMessageAsString();
-		
-									if ( ! header.equalsIgnoreCase(EchoServiceBase.HEADER_STR))
-										throw new Exception("Bad header: '" + header + "'");
-									String msg = tcpMessageHandlerSocket.readMessageAsString();
-									// now respond
-									tcpMessageHandlerSocket.sendMessage(EchoServiceBase.RESPONSE_OKAY_STR);
-									tcpMessageHandlerSocket.sendMessage(msg);
+							// if this fails, we want out of the while loop...
+							final Socket sock = mServerSocket.accept();
+							// each connection is served on its own thread, so a slow client doesn't hold up the others
+							NetBase.theNetBase().connectionExecutor().serve(sock, new Runnable() {
+								public void run() {
+									_handleConnection(sock);
 								}
-							} catch (SocketTimeoutException e) {
-								Log.e(TAG, "Timed out waiting for data on tcp connection");
-							} catch (EOFException e) {
-								// normal termination of loop
-								Log.d(TAG, "EOF on tcpMessageHandlerSocket.readMessageAsString()");
-							} catch (Exception e) {
-								Log.i(TAG, "Unexpected exception while handling connection: " + e.getMessage());
-							} finally {
-								if ( tcpMessageHandlerSocket != null ) try { tcpMessageHandlerSocket.close(); } catch (Exception e) {}
-							}
+							});
 						} catch (SocketTimeoutException e) {
 							// this is normal.  Just loop back and see if we're terminating.
 						}
@@ -81,6 +59,44 @@ public class EchoTCPMessageHandlerService extends EchoServiceBase  {
 		tcpThread.start();
 	}
 
+	/**
+	 * Echoes messages on a single connection until the client closes it or goes quiet.
+	 */
+	private void _handleConnection(Socket sock) {
+		TCPMessageHandler tcpMessageHandlerSocket = null;
+		try {
+			// one handler per connection, so its buffers are reused for every message
+			tcpMessageHandlerSocket = new TCPMessageHandler(sock);
+			tcpMessageHandlerSocket.setTimeout(NetBase.theNetBase().config().snapshot().socketTimeout(5000));
+			tcpMessageHandlerSocket.setNoDelay(true);
+			// this loop exits when readMessageAsString() throws an IOException indicating EOF, or 
+			// because it has timed out on the read
+			while ( true ) {
+				String header = tcpMessageHandlerSocket.readMessageAsString();
+
+				if ( ! header.equalsIgnoreCase(EchoServiceBase.HEADER_STR))
+					throw new Exception("Bad header: '" + header + "'");
+				String msg = tcpMessageHandlerSocket.readMessageAsString();
+				// now respond
+				tcpMessageHandlerSocket.sendMessage(EchoServiceBase.RESPONSE_OKAY_STR);
+				tcpMessageHandlerSocket.sendMessage(msg);
+				mMetrics.requests.inc();
+				mMetrics.bytesSent.add(msg.length());
+			}
+		} catch (SocketTimeoutException e) {
+			mMetrics.errors.inc();
+			Log.e(TAG, "Timed out waiting for data on tcp connection");
+		} catch (EOFException e) {
+			// normal termination of loop
+			Log.d(TAG, "EOF on tcpMessageHandlerSocket.readMessageAsString()");
+		} catch (Exception e) {
+			mMetrics.errors.inc();
+			if ( !mAmShutdown ) Log.i(TAG, "Unexpected exception while handling connection: " + e.getMessage());
+		} finally {
+			if ( tcpMessageHandlerSocket != null ) try { tcpMessageHandlerSocket.close(); } catch (Exception e) {}
+		}
+	}
+
 	@Override
 	public String dumpState() {
 		StringBuilder sb = new StringBuilder(super.dumpState());
@@ -0,0 +1,26 @@
+package edu.uw.cs.cse461.service;
+
+import edu.uw.cs.cse461.net.base.MetricsRegistry;
+
+/**
+ * The metrics every echo and dataxfer service keeps in the MetricsRegistry, labelled with
+ * the service's loadable name.
+ *
+ * @author zahorjan
+ *
+ */
+class ServiceMetrics {
+	/** Requests served (an echo, a transfer) */
+	final MetricsRegistry.Counter requests;
+	/** Requests that failed (bad header, broken connection, ...) */
+	final MetricsRegistry.Counter errors;
+	/** Payload bytes sent back to clients */
+	final MetricsRegistry.Counter bytesSent;
+
+	ServiceMetrics(String serviceName) {
+		MetricsRegistry metrics = MetricsRegistry.theRegistry();
+		requests = metrics.counter("service_requests_total", "Requests served", "service", serviceName);
+		errors = metrics.counter("service_errors_total", "Requests that failed", "service", serviceName);
+		bytesSent = metrics.counter("service_payload_bytes_sent_total", "Payload bytes sent to clients", "service", serviceName);
+	}
+}
@@ -0,0 +1,525 @@
+package edu.uw.cs.cse461.net.rpc;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import edu.uw.cs.cse461.testing.UnitTest;
+
+/**
+ * RPCBinaryCodec: random messages of every type survive an encode and decode (including interned strings
+ * and attachments), and truncated, corrupted, and hostile encodings are rejected with an IOException --
+ * never another exception, a huge allocation, or a stack overflow.
+ * (This class is in the rpc package because the codec and the message classes are package private.)
+ *
+ * @author zahorjan
+ *
+ */
+public class RPCBinaryCodecTests {
+	// the wire constants, as in RPCBinaryCodec
+	private static final int MAGIC = 0xB1;
+	private static final int MSG_OK = 3;
+	private static final int MSG_INVOKE_EXT = 9;
+	private static final int TAG_NULL = 0;
+	private static final int TAG_OBJECT = 6;
+	private static final int TAG_ARRAY = 7;
+	private static final int INTERN_LITERAL = 0;
+	private static final int INTERN_DEFINE = 1;
+	private static final int INTERN_REF = 2;
+
+	private static final String[] HOSTS = { "a.cse461.", "b.cse461.", "long.host.name.cse461." };
+	private static final String[] NAMES = { "echorpc", "echo", "dataxferrpc", "dataxfer", "header", "payload", "tag", "xferLength", "data" };
+
+	public static List<UnitTest> tests() {
+		List<UnitTest> result = new ArrayList<UnitTest>();
+		result.add(new UnitTest("codec.roundTrip") {
+			@Override
+			public void run(Random random) throws Exception {
+				// one codec at each end for all the messages, as on a connection, so interned strings are reused
+				RPCBinaryCodec encoder = new RPCBinaryCodec();
+				RPCBinaryCodec decoder = new RPCBinaryCodec();
+				for ( int i=0; i<2000; i++ ) {
+					RPCMessage msg = randomMessage(random, true);
+					_checkRoundTrip(encoder, decoder, msg, "message " + i);
+				}
+			}
+		});
+		result.add(new UnitTest("codec.roundTripInternTableFull") {
+			@Override
+			public void run(Random random) throws Exception {
+				// past the table's capacity, new strings are sent as literals
+				RPCBinaryCodec encoder = new RPCBinaryCodec();
+				RPCBinaryCodec decoder = new RPCBinaryCodec();
+				for ( int i=0; i<300; i++ ) {
+					JSONObject value = new JSONObject();
+					for ( int k=0; k<10; k++ ) value.put("key" + (i * 10 + k), k);
+					_checkRoundTrip(encoder, decoder, _ok(random.nextInt(1000), value), "message " + i);
+				}
+			}
+		});
+		result.add(new UnitTest("codec.roundTripDeepNesting") {
+			@Override
+			public void run(Random random) throws Exception {
+				JSONObject value = new JSONObject();
+				JSONObject inner = value;
+				for ( int i=0; i<100; i++ ) {
+					JSONObject next = new JSONObject();
+					inner.put("n", new JSONArray().put(next));
+					inner = next;
+				}
+				_checkRoundTrip(new RPCBinaryCodec(), new RPCBinaryCodec(), _ok(1, value), "nested message");
+			}
+		});
+		result.add(new UnitTest("codec.truncated") {
+			@Override
+			public void run(Random random) throws Exception {
+				for ( int i=0; i<200; i++ ) {
+					final byte[] encoded = new RPCBinaryCodec().encode(randomMessage(random, false), new ArrayList<ByteBuffer>());
+					// every strict prefix is missing a field the decoder must read
+					int step = Math.max(1, encoded.length / 200);
+					for ( int len=0; len<encoded.length; len+=step ) {
+						final byte[] prefix = Arrays.copyOf(encoded, len);
+						expect(IOException.class, "decoding " + len + " of " + encoded.length + " bytes of " + hex(encoded), new Block() {
+							@Override
+							public void run() throws Exception {
+								new RPCBinaryCodec().decode(prefix);
+							}
+						});
+					}
+				}
+			}
+		});
+		result.add(new UnitTest("codec.corrupt") {
+			@Override
+			public void run(Random random) throws Exception {
+				for ( int i=0; i<5000; i++ ) {
+					byte[] encoded = new RPCBinaryCodec().encode(randomMessage(random, random.nextBoolean()), new ArrayList<ByteBuffer>());
+					byte[] corrupt = _corrupt(random, encoded);
+					try {
+						_decodeAndUnmarshall(random, corrupt);
+					} catch (IOException e) {
+						// rejected, as it should be (or could be)
+					} catch (JSONException e) {
+						// decoded, but isn't a well formed message
+					} catch (Throwable t) {
+						throw new TestFailure("Decoding corrupted message " + hex(corrupt) + " (from " + hex(encoded) + ") threw " + t, t);
+					}
+				}
+			}
+		});
+		result.add(new UnitTest("codec.randomBytes") {
+			@Override
+			public void run(Random random) throws Exception {
+				for ( int i=0; i<5000; i++ ) {
+					byte[] junk = randomBytes(random, random.nextInt(64), false);
+					if ( junk.length > 0 && random.nextBoolean() ) junk[0] = (byte)MAGIC;
+					try {
+						_decodeAndUnmarshall(random, junk);
+					} catch (IOException e) {
+					} catch (JSONException e) {
+					} catch (Throwable t) {
+						throw new TestFailure("Decoding " + hex(junk) + " threw " + t, t);
+					}
+				}
+			}
+		});
+		result.add(new UnitTest("codec.oversizedLengths") {
+			@Override
+			public void run(Random random) throws Exception {
+				// a string claiming to be longer than the message
+				_expectRejected("huge string length", _okHeaderWithoutHost().varint(INTERN_LITERAL).varint(1 << 30).bytes());
+				_expectRejected("string length past the end of the int range", _okHeaderWithoutHost().varint(INTERN_LITERAL).varint(Integer.MAX_VALUE).bytes());
+				_expectRejected("negative string length", _okHeaderWithoutHost().varint(INTERN_LITERAL).varint(-5).bytes());
+				// counts far beyond what the message holds, which mustn't be allocated up front
+				_expectRejected("huge field count", _okHeader().varint(0).b(TAG_OBJECT).varint(Integer.MAX_VALUE).bytes());
+				_expectRejected("huge element count", _okHeader().varint(0).b(TAG_ARRAY).varint(1 << 30).bytes());
+				// ints that don't fit
+				_expectRejected("varint out of int range", new Bytes().b(MAGIC).b(MSG_OK).varlong(1L << 40).bytes());
+				Bytes endless = new Bytes().b(MAGIC).b(MSG_OK);
+				for ( int i=0; i<11; i++ ) endless.b(0xFF);
+				_expectRejected("varint longer than 64 bits", endless.b(0).bytes());
+				// flags announcing fields that aren't there
+				_expectRejected("invoke flags without fields", new Bytes().b(MAGIC).b(MSG_INVOKE_EXT).varint(1).literal("h").varint(7).bytes());
+			}
+		});
+		result.add(new UnitTest("codec.badInternedStrings") {
+			@Override
+			public void run(Random random) throws Exception {
+				_expectRejected("reference to undefined string", _okHeaderWithoutHost().varint(INTERN_REF + 7).bytes());
+				_expectRejected("negative reference", _okHeaderWithoutHost().varint(-1).bytes());
+				// a reference to a string another connection defined
+				RPCBinaryCodec other = new RPCBinaryCodec();
+				other.decode(_okHeaderWithoutHost().varint(INTERN_DEFINE).string("h").varint(0).b(TAG_NULL).bytes());
+				_expectRejected("reference to another connection's string", _okHeaderWithoutHost().varint(INTERN_REF).varint(0).b(TAG_NULL).bytes());
+				// more definitions than any encoder makes
+				Bytes flood = _okHeader().varint(0).b(TAG_OBJECT).varint(1100);
+				for ( int i=0; i<1100; i++ ) flood.varint(INTERN_DEFINE).string("k" + i).b(TAG_NULL);
+				_expectRejected("too many definitions", flood.bytes());
+			}
+		});
+		result.add(new UnitTest("codec.badTags") {
+			@Override
+			public void run(Random random) throws Exception {
+				_expectRejected("empty message", new byte[0]);
+				_expectRejected("wrong magic", "{\"type\":\"OK\"}".getBytes());
+				_expectRejected("unknown message type", new Bytes().b(MAGIC).b(99).varint(0).literal("h").bytes());
+				_expectRejected("unknown value tag", _okHeader().varint(0).b(42).bytes());
+				Bytes deep = _okHeader().varint(0);
+				for ( int i=0; i<100000; i++ ) deep.b(TAG_ARRAY).varint(1);
+				_expectRejected("values nested 100000 deep", deep.b(TAG_NULL).bytes());
+				expect(IOException.class, "unexpected attachment", new Block() {
+					@Override
+					public void run() throws Exception {
+						RPCBinaryCodec codec = new RPCBinaryCodec();
+						codec.decode(_okHeader().varint(0).b(TAG_NULL).bytes());
+						codec.attach(new byte[1]);
+					}
+				});
+			}
+		});
+		result.add(new UnitTest("rpcmessage.toBytesLeavesMessageAlone") {
+			@Override
+			public void run(Random random) throws Exception {
+				// encoding as JSON text replaces attachments with Base64 in the output, not in the message
+				for ( int i=0; i<200; i++ ) {
+					RPCMessage msg = randomMessage(random, true);
+					JSONObject before = new JSONObject(msg.marshall(), JSONObject.getNames(msg.marshall()));
+					String text = new String(msg.toBytes(null, null));
+					check(!RPCBinaryCodec.isBinary(text.getBytes()), "JSON encoding starts with the binary magic byte");
+					String diff = diff(before, msg.marshall(), "");
+					if ( diff != null ) throw new TestFailure("toBytes() changed the message at " + diff);
+				}
+			}
+		});
+		return result;
+	}
+
+	//--------------------------------------------------------------------------------------
+	// random messages
+	//--------------------------------------------------------------------------------------
+
+	/**
+	 * A random message of any type.  Its JSON values may include byte[] attachments if attachments is true.
+	 */
+	static RPCMessage randomMessage(Random random, boolean attachments) throws IOException, JSONException {
+		JSONObject obj = new JSONObject().put("id", random.nextInt()).put("host", _pick(random, HOSTS));
+		switch ( random.nextInt(7) ) {
+		case 0:
+			obj.put("type", "control").put("action", random.nextBoolean() ? "connect" : randomString(random));
+			if ( random.nextBoolean() ) obj.put("options", randomObject(random, 0, attachments));
+			break;
+		case 1:
+			obj.put("type", "invoke").put("app", _pick(random, NAMES)).put("method", _pick(random, NAMES));
+			if ( random.nextInt(4) != 0 ) obj.put("args", randomObject(random, 0, attachments));
+			if ( random.nextBoolean() ) obj.put("stream", true);
+			if ( random.nextBoolean() ) obj.put("timeout", 1 + random.nextInt(100000));
+			if ( random.nextBoolean() ) obj.put("requestid", random.nextLong() | 1);
+			break;
+		case 2:
+			obj.put("type", "OK").put("callid", random.nextInt());
+			if ( random.nextInt(4) != 0 ) obj.put("value", randomObject(random, 0, attachments));
+			break;
+		case 3:
+			obj.put("type", "chunk").put("callid", random.nextInt());
+			if ( random.nextInt(4) != 0 ) obj.put("value", randomObject(random, 0, attachments));
+			break;
+		case 4:
+			obj.put("type", "ERROR").put("callid", random.nextInt()).put("message", randomString(random));
+			obj.put("callargs", random.nextBoolean() ? "unrecognizable" : (Object)randomObject(random, 0, false));
+			if ( random.nextBoolean() ) obj.put("retryafter", 1 + random.nextInt(1000));
+			break;
+		case 5: {
+			JSONArray calls = new JSONArray();
+			int nCalls = random.nextInt(6);
+			for ( int i=0; i<nCalls; i++ ) {
+				JSONObject call = new JSONObject().put("id", i).put("app", _pick(random, NAMES)).put("method", _pick(random, NAMES));
+				if ( random.nextBoolean() ) call.put("args", randomObject(random, 1, attachments));
+				calls.put(call);
+			}
+			obj.put("type", "batch").put("parallel", random.nextBoolean()).put("calls", calls);
+			break;
+		}
+		default: {
+			JSONArray results = new JSONArray();
+			int nResults = random.nextInt(6);
+			for ( int i=0; i<nResults; i++ ) {
+				if ( random.nextBoolean() ) results.put(new JSONObject().put("callid", i).put("type", "OK").put("value", randomObject(random, 1, attachments)));
+				else results.put(new JSONObject().put("callid", i).put("type", "ERROR").put("message", randomString(random)));
+			}
+			obj.put("type", "batchresult").put("callid", random.nextInt()).put("results", results);
+			break;
+		}
+		}
+		return RPCMessage.unmarshall(obj);
+	}
+
+	static JSONObject randomObject(Random random, int depth, boolean attachments) throws JSONException {
+		JSONObject obj = new JSONObject();
+		int nFields = random.nextInt(depth < 3 ? 6 : 3);
+		for ( int i=0; i<nFields; i++ ) {
+			String key = random.nextInt(3) == 0 ? randomString(random) : _pick(random, NAMES);
+			obj.put(key, randomValue(random, depth + 1, attachments));
+		}
+		return obj;
+	}
+
+	static Object randomValue(Random random, int depth, boolean attachments) throws JSONException {
+		switch ( random.nextInt(depth < 4 ? 10 : 8) ) {
+		case 0:
+			return JSONObject.NULL;
+		case 1:
+			return Boolean.valueOf(random.nextBoolean());
+		case 2: {
+			int[] edges = { 0, 1, -1, 63, 64, -64, -65, 127, 128, Integer.MAX_VALUE, Integer.MIN_VALUE };
+			return Integer.valueOf(random.nextBoolean() ? edges[random.nextInt(edges.length)] : random.nextInt());
+		}
+		case 3: {
+			long v = random.nextLong();
+			// keep it out of int range, or it decodes as an Integer
+			if ( v >= Integer.MIN_VALUE && v <= Integer.MAX_VALUE ) v = Long.MAX_VALUE - random.nextInt(10);
+			return Long.valueOf(v);
+		}
+		case 4:
+			return Double.valueOf(random.nextGaussian() * Math.pow(10, random.nextInt(20) - 10));
+		case 5:
+		case 6:
+			return randomString(random);
+		case 7:
+			if ( attachments ) return UnitTest.randomBytes(random, random.nextInt(4) == 0 ? random.nextInt(100000) : random.nextInt(100), random.nextBoolean());
+			return randomString(random);
+		case 8:
+			return randomObject(random, depth, attachments);
+		default:
+			JSONArray array = new JSONArray();
+			int nElements = random.nextInt(6);
+			for ( int i=0; i<nElements; i++ ) array.put(randomValue(random, depth + 1, attachments));
+			return array;
+		}
+	}
+
+	/**
+	 * A random string, perhaps empty, with characters from all over Unicode (but no unpaired surrogates,
+	 * which UTF-8 can't carry).
+	 */
+	static String randomString(Random random) {
+		StringBuilder sb = new StringBuilder();
+		int len = random.nextInt(20);
+		for ( int i=0; i<len; i++ ) {
+			int cp;
+			switch ( random.nextInt(4) ) {
+			case 0: cp = 0x20 + random.nextInt(0x5F); break;
+			case 1: cp = random.nextInt(0x800); break;
+			case 2: cp = 0x4E00 + random.nextInt(0x5000); break;
+			default: cp = 0x10000 + random.nextInt(0x10000); break;
+			}
+			sb.appendCodePoint(cp);
+		}
+		return sb.toString();
+	}
+
+	private static String _pick(Random random, String[] choices) {
+		return choices[random.nextInt(choices.length)];
+	}
+
+	private static RPCMessage _ok(int callid, JSONObject value) throws IOException, JSONException {
+		return RPCMessage.unmarshall(new JSONObject().put("type", "OK").put("id", callid).put("host", HOSTS[0]).put("callid", callid).put("value", value));
+	}
+
+	//--------------------------------------------------------------------------------------
+	// checking
+	//--------------------------------------------------------------------------------------
+
+	/**
+	 * Encodes msg, decodes it again (supplying its attachments), and checks the result matches the original.
+	 */
+	private static void _checkRoundTrip(RPCBinaryCodec encoder, RPCBinaryCodec decoder, RPCMessage msg, String what) throws Exception {
+		List<ByteBuffer> attachments = new ArrayList<ByteBuffer>();
+		byte[] encoded = encoder.encode(msg, attachments);
+		UnitTest.check(RPCBinaryCodec.isBinary(encoded), what + ": encoding doesn't start with the magic byte");
+		JSONObject decoded = decoder.decode(encoded);
+		for ( ByteBuffer attachment : attachments ) {
+			UnitTest.check(decoder.needsAttachment(), what + ": decoder wants fewer attachments than were sent");
+			byte[] bytes = new byte[attachment.remaining()];
+			attachment.duplicate().get(bytes);
+			decoder.attach(bytes);
+		}
+		UnitTest.check(!decoder.needsAttachment(), what + ": decoder wants more attachments than were sent");
+		String diff = diff(msg.marshall(), decoded, "");
+		if ( diff != null ) throw new UnitTest.TestFailure(what + " " + msg + " differs after round trip at " + diff);
+		// and it's a message again
+		RPCMessage.unmarshall(decoded);
+	}
+
+	/**
+	 * Decodes buf with a new codec, supplies any attachments it wants, and builds a message from the result.
+	 */
+	private static void _decodeAndUnmarshall(Random random, byte[] buf) throws IOException, JSONException {
+		RPCBinaryCodec codec = new RPCBinaryCodec();
+		JSONObject decoded = codec.decode(buf);
+		while ( codec.needsAttachment() ) codec.attach(UnitTest.randomBytes(random, random.nextInt(16), false));
+		RPCMessage.unmarshall(decoded);
+	}
+
+	private static void _expectRejected(String what, final byte[] encoded) {
+		UnitTest.expect(IOException.class, what, new UnitTest.Block() {
+			@Override
+			public void run() throws Exception {
+				new RPCBinaryCodec().decode(encoded);
+			}
+		});
+	}
+
+	/**
+	 * encoded with a few bytes changed, inserted, or removed.
+	 */
+	private static byte[] _corrupt(Random random, byte[] encoded) {
+		byte[] result = encoded.clone();
+		int nChanges = 1 + random.nextInt(3);
+		for ( int i=0; i<nChanges; i++ ) {
+			int pos = random.nextInt(result.length + 1);
+			switch ( random.nextInt(4) ) {
+			case 0:
+				if ( pos < result.length ) result[pos] ^= (byte)(1 << random.nextInt(8));
+				break;
+			case 1:
+				if ( pos < result.length ) result[pos] = (byte)random.nextInt(256);
+				break;
+			case 2: {
+				byte[] longer = new byte[result.length + 1];
+				System.arraycopy(result, 0, longer, 0, pos);
+				longer[pos] = (byte)random.nextInt(256);
+				System.arraycopy(result, pos, longer, pos + 1, result.length - pos);
+				result = longer;
+				break;
+			}
+			default:
+				if ( pos < result.length ) {
+					byte[] shorter = new byte[result.length - 1];
+					System.arraycopy(result, 0, shorter, 0, pos);
+					System.arraycopy(result, pos + 1, shorter, pos, result.length - pos - 1);
+					result = shorter;
+				}
+				break;
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Compares two JSON values, with byte[]s compared by content and integers by value.
+	 * @return Null if they're the same, and otherwise the path to the first difference
+	 */
+	static String diff(Object a, Object b, String path) throws JSONException {
+		if ( a instanceof JSONObject ) {
+			if ( !(b instanceof JSONObject) ) return path + " (object vs. " + b + ")";
+			JSONObject objA = (JSONObject)a;
+			JSONObject objB = (JSONObject)b;
+			if ( objA.length() != objB.length() ) return path + " (" + objA.length() + " fields vs. " + objB.length() + ")";
+			Iterator<?> keys = objA.keys();
+			while ( keys.hasNext() ) {
+				String key = (String)keys.next();
+				if ( !objB.has(key) ) return path + "." + key + " (missing)";
+				String diff = diff(objA.get(key), objB.get(key), path + "." + key);
+				if ( diff != null ) return diff;
+			}
+			return null;
+		}
+		if ( a instanceof JSONArray ) {
+			if ( !(b instanceof JSONArray) ) return path + " (array vs. " + b + ")";
+			JSONArray arrayA = (JSONArray)a;
+			JSONArray arrayB = (JSONArray)b;
+			if ( arrayA.length() != arrayB.length() ) return path + " (" + arrayA.length() + " elements vs. " + arrayB.length() + ")";
+			for ( int i=0; i<arrayA.length(); i++ ) {
+				String diff = diff(arrayA.get(i), arrayB.get(i), path + "[" + i + "]");
+				if ( diff != null ) return diff;
+			}
+			return null;
+		}
+		if ( a instanceof byte[] ) {
+			if ( !(b instanceof byte[]) || !Arrays.equals((byte[])a, (byte[])b) ) return path + " (bytes vs. " + b + ")";
+			return null;
+		}
+		if ( a instanceof Integer || a instanceof Long ) {
+			if ( !(b instanceof Integer || b instanceof Long) || ((Number)a).longValue() != ((Number)b).longValue() ) return path + " (" + a + " vs. " + b + ")";
+			return null;
+		}
+		if ( a == null ? b != null : !a.equals(b) ) return path + " (" + a + " vs. " + b + ")";
+		return null;
+	}
+
+	//--------------------------------------------------------------------------------------
+	// hand built encodings
+	//--------------------------------------------------------------------------------------
+
+	/**
+	 * The start of an OK message, up to its host.
+	 */
+	private static Bytes _okHeaderWithoutHost() {
+		return new Bytes().b(MAGIC).b(MSG_OK).varint(1);
+	}
+
+	/**
+	 * The start of an OK message, up to its callid.
+	 */
+	private static Bytes _okHeader() {
+		return _okHeaderWithoutHost().literal("h");
+	}
+
+	/**
+	 * Builds encodings byte by byte, with the codec's zigzag varints.
+	 */
+	private static class Bytes {
+		private final ByteArrayOutputStream mOut = new ByteArrayOutputStream();
+
+		Bytes b(int b) {
+			mOut.write(b);
+			return this;
+		}
+
+		Bytes varint(int v) {
+			return varlong(v);
+		}
+
+		Bytes varlong(long v) {
+			long zz = (v << 1) ^ (v >> 63);
+			while ( (zz & ~0x7FL) != 0 ) {
+				mOut.write((int)((zz & 0x7F) | 0x80));
+				zz >>>= 7;
+			}
+			mOut.write((int)zz);
+			return this;
+		}
+
+		Bytes string(String s) {
+			byte[] bytes;
+			try {
+				bytes = s.getBytes("UTF-8");
+			} catch (java.io.UnsupportedEncodingException e) {
+				throw new RuntimeException(e);
+			}
+			varint(bytes.length);
+			mOut.write(bytes, 0, bytes.length);
+			return this;
+		}
+
+		/**
+		 * An interned string sent as a literal.
+		 */
+		Bytes literal(String s) {
+			return varint(INTERN_LITERAL).string(s);
+		}
+
+		byte[] bytes() {
+			return mOut.toByteArray();
+		}
+	}
+}
@@ -0,0 +1,229 @@
+package edu.uw.cs.cse461.net.tcpmessagehandler;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import edu.uw.cs.cse461.testing.UnitTest;
+
+/**
+ * FrameCompressor: payloads of all sizes survive a compress and decompress, and truncated, corrupt, and
+ * implausible compressed payloads are rejected with an IOException, before anything is allocated for them.
+ * (This class is in the tcpmessagehandler package because FrameCompressor is package private.)
+ *
+ * @author zahorjan
+ *
+ */
+public class FrameCompressorTests {
+	private static final int MAX_LENGTH = 16 * 1024 * 1024;
+
+	public static List<UnitTest> tests() {
+		List<UnitTest> result = new ArrayList<UnitTest>();
+		result.add(new UnitTest("compressor.roundTrip") {
+			@Override
+			public void run(Random random) throws Exception {
+				FrameCompressor compressor = new FrameCompressor(64);
+				for ( int i=0; i<300; i++ ) {
+					byte[] orig = randomBytes(random, randomLength(random), random.nextInt(3) != 0);
+					int offset = random.nextInt(8);
+					byte[] buf = new byte[offset + orig.length + random.nextInt(8)];
+					System.arraycopy(orig, 0, buf, offset, orig.length);
+					byte[] payload = compressor.compress(buf, offset, orig.length);
+					if ( payload == null ) continue;
+					check(payload.length < orig.length, "compressed payload of " + orig.length + " bytes is " + payload.length + " bytes");
+					checkBytes(orig, _roundTrip(compressor, payload, random), "decompressed " + orig.length + " bytes");
+				}
+			}
+		});
+		result.add(new UnitTest("compressor.roundTripByteBuffers") {
+			@Override
+			public void run(Random random) throws Exception {
+				FrameCompressor compressor = new FrameCompressor(64);
+				for ( int i=0; i<200; i++ ) {
+					byte[] orig = randomBytes(random, randomLength(random), random.nextBoolean());
+					// direct buffers have no array, and are compressed a chunk at a time
+					ByteBuffer buf = random.nextBoolean() ? ByteBuffer.allocateDirect(orig.length + 10) : ByteBuffer.allocate(orig.length + 10);
+					buf.position(5);
+					buf.put(orig);
+					buf.flip();
+					buf.position(5);
+					byte[] payload = compressor.compress(buf);
+					checkEquals(Integer.valueOf(5), Integer.valueOf(buf.position()), "buffer position after compress");
+					checkEquals(Integer.valueOf(orig.length + 5), Integer.valueOf(buf.limit()), "buffer limit after compress");
+					if ( payload == null ) continue;
+					checkBytes(orig, _roundTrip(compressor, payload, random), "decompressed " + orig.length + " bytes of a " + (buf.isDirect() ? "direct" : "heap") + " buffer");
+				}
+			}
+		});
+		result.add(new UnitTest("compressor.skipsShortAndIncompressible") {
+			@Override
+			public void run(Random random) throws Exception {
+				FrameCompressor compressor = new FrameCompressor(1000);
+				byte[] zeros = new byte[999];
+				check(compressor.compress(zeros, 0, zeros.length) == null, "message shorter than the threshold compressed");
+				byte[] noise = randomBytes(random, 100000, false);
+				check(compressor.compress(noise, 0, noise.length) == null, "random bytes compressed");
+				ByteBuffer direct = ByteBuffer.allocateDirect(noise.length);
+				direct.put(noise);
+				direct.flip();
+				check(compressor.compress(direct) == null, "random bytes in a direct buffer compressed");
+				// but the compressor still works afterwards
+				byte[] orig = randomBytes(random, 5000, true);
+				checkBytes(orig, _roundTrip(compressor, compressor.compress(orig, 0, orig.length), random), "decompressed after skipping");
+			}
+		});
+		result.add(new UnitTest("compressor.truncated") {
+			@Override
+			public void run(Random random) throws Exception {
+				final FrameCompressor compressor = new FrameCompressor(64);
+				for ( int i=0; i<50; i++ ) {
+					byte[] orig = randomBytes(random, 100 + random.nextInt(100000), true);
+					final byte[] payload = compressor.compress(orig, 0, orig.length);
+					final int len = random.nextInt(payload.length);
+					expect(IOException.class, "decompressing " + len + " of " + payload.length + " bytes", new Block() {
+						@Override
+						public void run() throws Exception {
+							compressor.decompress(payload, 0, len, MAX_LENGTH);
+						}
+					});
+				}
+				// and a good one afterwards still decompresses
+				byte[] orig = randomBytes(random, 5000, true);
+				checkBytes(orig, _roundTrip(compressor, compressor.compress(orig, 0, orig.length), random), "decompressed after failures");
+			}
+		});
+		result.add(new UnitTest("compressor.corrupt") {
+			@Override
+			public void run(Random random) throws Exception {
+				FrameCompressor compressor = new FrameCompressor(64);
+				for ( int i=0; i<2000; i++ ) {
+					byte[] orig = randomBytes(random, 100 + random.nextInt(5000), true);
+					byte[] payload = compressor.compress(orig, 0, orig.length);
+					// leave the length alone, so it's the deflated data that's bad
+					int pos = 4 + random.nextInt(payload.length - 4);
+					payload[pos] ^= (byte)(1 + random.nextInt(255));
+					try {
+						byte[] result = compressor.decompress(payload, 0, payload.length, MAX_LENGTH);
+						// deflate has no checksum of its own, so some changes go unnoticed -- but the length must be right
+						checkEquals(Integer.valueOf(orig.length), Integer.valueOf(result.length), "length of corrupt payload decompressed");
+					} catch (IOException e) {
+					}
+				}
+				byte[] orig = randomBytes(random, 5000, true);
+				checkBytes(orig, _roundTrip(compressor, compressor.compress(orig, 0, orig.length), random), "decompressed after failures");
+			}
+		});
+		result.add(new UnitTest("compressor.wrongLength") {
+			@Override
+			public void run(Random random) throws Exception {
+				final FrameCompressor compressor = new FrameCompressor(64);
+				byte[] orig = randomBytes(random, 10000, true);
+				byte[] payload = compressor.compress(orig, 0, orig.length);
+				// claiming the payload inflates to more, or less, than it does
+				for ( int delta : new int[] { -1, 1, -5000, 1000 } ) {
+					final byte[] wrong = _withLength(payload, orig.length + delta);
+					expect(IOException.class, "original length off by " + delta, new Block() {
+						@Override
+						public void run() throws Exception {
+							compressor.decompress(wrong, 0, wrong.length, MAX_LENGTH);
+						}
+					});
+				}
+			}
+		});
+		result.add(new UnitTest("compressor.oversizedLengths") {
+			@Override
+			public void run(Random random) throws Exception {
+				final FrameCompressor compressor = new FrameCompressor(64);
+				byte[] orig = new byte[100000];
+				byte[] payload = compressor.compress(orig, 0, orig.length);
+				// longer than the caller allows
+				final byte[] good = payload;
+				expect(IOException.class, "original longer than maxLength", new Block() {
+					@Override
+					public void run() throws Exception {
+						compressor.decompress(good, 0, good.length, 99999);
+					}
+				});
+				// allowed, but more than deflate could have made of so few bytes -- this mustn't allocate 2GB
+				final byte[] huge = _withLength(payload, Integer.MAX_VALUE);
+				expect(IOException.class, "implausible original length", new Block() {
+					@Override
+					public void run() throws Exception {
+						compressor.decompress(huge, 0, huge.length, Integer.MAX_VALUE);
+					}
+				});
+				final byte[] negative = _withLength(payload, -1);
+				expect(IOException.class, "negative original length", new Block() {
+					@Override
+					public void run() throws Exception {
+						compressor.decompress(negative, 0, negative.length, Integer.MAX_VALUE);
+					}
+				});
+				final byte[] stub = new byte[] { 1, 0, 0 };
+				expect(IOException.class, "payload shorter than its length field", new Block() {
+					@Override
+					public void run() throws Exception {
+						compressor.decompress(stub, 0, stub.length, MAX_LENGTH);
+					}
+				});
+			}
+		});
+		result.add(new UnitTest("compressor.afterEnd") {
+			@Override
+			public void run(Random random) throws Exception {
+				final FrameCompressor compressor = new FrameCompressor(64);
+				byte[] orig = randomBytes(random, 5000, true);
+				final byte[] payload = compressor.compress(orig, 0, orig.length);
+				compressor.end();
+				compressor.end();
+				check(compressor.compress(orig, 0, orig.length) == null, "compressed after end()");
+				expect(IOException.class, "decompress after end()", new Block() {
+					@Override
+					public void run() throws Exception {
+						compressor.decompress(payload, 0, payload.length, MAX_LENGTH);
+					}
+				});
+			}
+		});
+		return result;
+	}
+
+	/**
+	 * A payload length, mostly short, sometimes into the megabytes.
+	 */
+	static int randomLength(Random random) {
+		switch ( random.nextInt(4) ) {
+		case 0: return random.nextInt(100);
+		case 1: return random.nextInt(5000);
+		case 2: return random.nextInt(100000);
+		default: return random.nextInt(2 * 1024 * 1024);
+		}
+	}
+
+	/**
+	 * Decompresses payload, from somewhere in the middle of a larger buffer.
+	 */
+	private static byte[] _roundTrip(FrameCompressor compressor, byte[] payload, Random random) throws IOException {
+		UnitTest.check(payload != null, "compressible payload not compressed");
+		int offset = random.nextInt(8);
+		byte[] buf = new byte[offset + payload.length + random.nextInt(8)];
+		System.arraycopy(payload, 0, buf, offset, payload.length);
+		return compressor.decompress(buf, offset, payload.length, MAX_LENGTH);
+	}
+
+	/**
+	 * payload with its original length field replaced.
+	 */
+	private static byte[] _withLength(byte[] payload, int origLength) {
+		byte[] result = Arrays.copyOf(payload, payload.length);
+		result[0] = (byte)origLength;
+		result[1] = (byte)(origLength >>> 8);
+		result[2] = (byte)(origLength >>> 16);
+		result[3] = (byte)(origLength >>> 24);
+		return result;
+	}
+}
@@ -0,0 +1,542 @@
+package edu.uw.cs.cse461.net.tcpmessagehandler;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import edu.uw.cs.cse461.testing.UnitTest;
+
+/**
+ * TCPMessageHandler and NonblockingTCPMessageHandler, over loopback connections: messages of all sizes
+ * survive the trip, with and without compression, and frames that are oversized, truncated, wrongly
+ * flagged as compressed, or corrupt are rejected with an IOException rather than being misread or
+ * allocated for.
+ * <p>
+ * The bad frames are written by a raw socket, one byte at a time where it matters, since neither handler
+ * will send them.
+ *
+ * @author zahorjan
+ *
+ */
+public class TCPMessageHandlerTests {
+	private static final int TIMEOUT = 10000;  // msec. to wait for anything to arrive
+
+	public static List<UnitTest> tests() {
+		List<UnitTest> result = new ArrayList<UnitTest>();
+		for ( final int threshold : new int[] { 0, 256 } ) {
+			final String suffix = threshold > 0 ? "Compressed" : "";
+			result.add(new UnitTest("tcp.blockingRoundTrip" + suffix) {
+				@Override
+				public void run(Random random) throws Exception {
+					_blockingRoundTrip(random, threshold);
+				}
+			});
+			result.add(new UnitTest("tcp.nonblockingRoundTrip" + suffix) {
+				@Override
+				public void run(Random random) throws Exception {
+					_nonblockingRoundTrip(random, threshold);
+				}
+			});
+		}
+		result.add(new UnitTest("tcp.blockingOversized") {
+			@Override
+			public void run(Random random) throws Exception {
+				byte[] good = randomBytes(random, 500, false);
+				Blocking b = new Blocking(_concat(_frame(2000, new byte[2000]), _frame(good.length, good)));
+				try {
+					b.handler.setMaxReadLength(1000);
+					// the long message is skipped, not read, and the one after it is intact
+					_expectRead(b.handler, IOException.class, "message longer than the max read length");
+					checkBytes(good, b.handler.readMessageAsBytes(), "message after the skipped one");
+					_expectRead(b.handler, EOFException.class, "read at EOF");
+				} finally {
+					b.close();
+				}
+			}
+		});
+		result.add(new UnitTest("tcp.blockingHugeLength") {
+			@Override
+			public void run(Random random) throws Exception {
+				// a length that's just junk; the handler mustn't try to allocate for it
+				for ( final int compression : new int[] { 0, 256 } ) {
+					int header = compression > 0 ? Integer.MAX_VALUE | FrameCompressor.COMPRESSED_FLAG : Integer.MAX_VALUE;
+					Blocking b = new Blocking(_concat(_frame(header, new byte[0]), randomBytes(random, 1000, false)));
+					try {
+						b.handler.setMaxReadLength(1024 * 1024);
+						b.handler.setCompression(compression);
+						_expectRead(b.handler, IOException.class, "2GB message, compression " + compression);
+						_expectRead(b.handler, IOException.class, "read after a 2GB message");
+					} finally {
+						b.close();
+					}
+				}
+			}
+		});
+		result.add(new UnitTest("tcp.blockingUnexpectedCompression") {
+			@Override
+			public void run(Random random) throws Exception {
+				byte[] good = randomBytes(random, 100, false);
+				Blocking b = new Blocking(_concat(_frame(10 | FrameCompressor.COMPRESSED_FLAG, new byte[10]), _frame(good.length, good)));
+				try {
+					_expectRead(b.handler, IOException.class, "compressed message with compression off");
+					// that wasn't a header we can trust, so nothing after it is read either
+					_expectRead(b.handler, IOException.class, "read after a compressed message with compression off");
+				} finally {
+					b.close();
+				}
+			}
+		});
+		result.add(new UnitTest("tcp.blockingCorruptCompressed") {
+			@Override
+			public void run(Random random) throws Exception {
+				byte[] orig = randomBytes(random, 10000, true);
+				byte[] payload = new FrameCompressor(256).compress(orig, 0, orig.length);
+				byte[] junk = randomBytes(random, 100, false);
+				junk[0] = 10; junk[1] = 0; junk[2] = 0; junk[3] = 0;
+				byte[] bigger = payload.clone();
+				bigger[2] = 0x10;  // claims about 1MB
+				byte[] good = randomBytes(random, 100, false);
+				Blocking b = new Blocking(_concat(_frame(junk.length | FrameCompressor.COMPRESSED_FLAG, junk),
+												  _frame(bigger.length | FrameCompressor.COMPRESSED_FLAG, bigger),
+												  _frame(payload.length | FrameCompressor.COMPRESSED_FLAG, payload),
+												  _frame(good.length, good)));
+				try {
+					b.handler.setCompression(256);
+					b.handler.setMaxReadLength(100000);
+					_expectRead(b.handler, IOException.class, "corrupt compressed message");
+					_expectRead(b.handler, IOException.class, "compressed message whose original exceeds the max read length");
+					// the frames were whole, so the stream is still in sync
+					checkBytes(orig, b.handler.readMessageAsBytes(), "compressed message after bad ones");
+					checkBytes(good, b.handler.readMessageAsBytes(), "message after bad ones");
+				} finally {
+					b.close();
+				}
+			}
+		});
+		result.add(new UnitTest("tcp.blockingTruncated") {
+			@Override
+			public void run(Random random) throws Exception {
+				// EOF part way through the payload, and part way through the header
+				byte[][] streams = { _frame(100, new byte[50]), new byte[] { 100, 0 } };
+				for ( byte[] stream : streams ) {
+					Blocking b = new Blocking(stream);
+					try {
+						_expectRead(b.handler, EOFException.class, "truncated message (" + stream.length + " bytes)");
+						_expectRead(b.handler, IOException.class, "read after a truncated message");
+					} finally {
+						b.close();
+					}
+				}
+			}
+		});
+		result.add(new UnitTest("tcp.nonblockingOversized") {
+			@Override
+			public void run(Random random) throws Exception {
+				Nonblocking nb = new Nonblocking();
+				try {
+					nb.handler.setMaxReadLength(1000);
+					nb.write(_frame(Integer.MAX_VALUE, new byte[0]));
+					_expectReadable(nb, IOException.class, "message longer than the max read length");
+					check(!nb.handler.hasMessage(), "oversized message read");
+				} finally {
+					nb.close();
+				}
+			}
+		});
+		result.add(new UnitTest("tcp.nonblockingUnexpectedCompression") {
+			@Override
+			public void run(Random random) throws Exception {
+				Nonblocking nb = new Nonblocking();
+				try {
+					nb.write(_frame(10 | FrameCompressor.COMPRESSED_FLAG, new byte[10]));
+					_expectReadable(nb, IOException.class, "compressed message with compression off");
+				} finally {
+					nb.close();
+				}
+			}
+		});
+		result.add(new UnitTest("tcp.nonblockingCorruptCompressed") {
+			@Override
+			public void run(Random random) throws Exception {
+				byte[] orig = randomBytes(random, 10000, true);
+				byte[] payload = new FrameCompressor(256).compress(orig, 0, orig.length);
+				byte[] bigger = payload.clone();
+				bigger[2] = 0x10;
+				byte[] junk = randomBytes(random, 100, false);
+				junk[0] = 10; junk[1] = 0; junk[2] = 0; junk[3] = 0;
+				for ( byte[] bad : new byte[][] { junk, bigger } ) {
+					Nonblocking nb = new Nonblocking();
+					try {
+						nb.handler.setCompression(256);
+						nb.handler.setMaxReadLength(100000);
+						nb.write(_frame(bad.length | FrameCompressor.COMPRESSED_FLAG, bad));
+						_expectReadable(nb, IOException.class, "bad compressed message");
+					} finally {
+						nb.close();
+					}
+				}
+			}
+		});
+		result.add(new UnitTest("tcp.nonblockingTruncated") {
+			@Override
+			public void run(Random random) throws Exception {
+				byte[][] streams = { _frame(100, new byte[50]), new byte[] { 100, 0 }, _frame(40000, new byte[30000]) };
+				for ( byte[] stream : streams ) {
+					Nonblocking nb = new Nonblocking();
+					try {
+						nb.write(stream);
+						nb.raw.shutdownOutput();
+						_expectReadable(nb, EOFException.class, "truncated message (" + stream.length + " bytes)");
+						check(!nb.handler.hasMessage(), "truncated message read");
+					} finally {
+						nb.close();
+					}
+				}
+			}
+		});
+		result.add(new UnitTest("tcp.nonblockingSplitDelivery") {
+			@Override
+			public void run(Random random) throws Exception {
+				// frames arrive in random pieces, headers included, so the decoder sees every kind of partial frame
+				Nonblocking nb = new Nonblocking();
+				try {
+					nb.raw.setTcpNoDelay(true);
+					List<byte[]> sent = new ArrayList<byte[]>();
+					ByteBuffer stream = ByteBuffer.allocate(4 * 1024 * 1024);
+					while ( sent.size() < 200 ) {
+						byte[] msg = randomBytes(random, random.nextInt(4) == 0 ? random.nextInt(100000) : random.nextInt(100), false);
+						if ( stream.remaining() < 4 + msg.length ) break;
+						stream.put(_frame(msg.length, msg));
+						sent.add(msg);
+					}
+					stream.flip();
+					final byte[] bytes = new byte[stream.remaining()];
+					stream.get(bytes);
+					final long seed = random.nextLong();
+					final OutputStream os = nb.raw.getOutputStream();
+					Thread writer = new Thread() {
+						@Override
+						public void run() {
+							Random r = new Random(seed);
+							try {
+								for ( int pos=0; pos<bytes.length; ) {
+									int n = Math.min(bytes.length - pos, r.nextBoolean() ? 1 + r.nextInt(7) : 1 + r.nextInt(20000));
+									os.write(bytes, pos, n);
+									os.flush();
+									pos += n;
+									if ( r.nextInt(8) == 0 ) Thread.sleep(1);
+								}
+							} catch (Exception e) {
+							}
+						}
+					};
+					writer.start();
+					for ( int i=0; i<sent.size(); i++ ) {
+						checkBytes(sent.get(i), nb.readMessage(), "message " + i + " of " + sent.size());
+					}
+					writer.join();
+				} finally {
+					nb.close();
+				}
+			}
+		});
+		return result;
+	}
+
+	//--------------------------------------------------------------------------------------
+	// round trips
+	//--------------------------------------------------------------------------------------
+
+	/**
+	 * Messages sent one way, echoed back by another handler, and compared.
+	 */
+	private static void _blockingRoundTrip(Random random, int threshold) throws Exception {
+		ServerSocket server = new ServerSocket(0, 1, InetAddress.getByName("127.0.0.1"));
+		Socket client = null;
+		Socket accepted = null;
+		try {
+			client = new Socket("127.0.0.1", server.getLocalPort());
+			accepted = server.accept();
+			final TCPMessageHandler echoer = new TCPMessageHandler(accepted);
+			TCPMessageHandler handler = new TCPMessageHandler(client);
+			echoer.setTimeout(TIMEOUT);
+			handler.setTimeout(TIMEOUT);
+			echoer.setCompression(threshold);
+			handler.setCompression(threshold);
+			final List<byte[]> messages = _randomMessages(random);
+			Thread echo = new Thread() {
+				@Override
+				public void run() {
+					try {
+						ByteBuffer direct = ByteBuffer.allocateDirect(2 * 1024 * 1024);
+						for ( int i=0; i<messages.size(); i++ ) {
+							// both read routines
+							if ( i % 2 == 0 ) {
+								echoer.sendMessage(echoer.readMessageAsBytes());
+							} else {
+								direct.clear();
+								echoer.readMessageInto(direct);
+								direct.flip();
+								byte[] msg = new byte[direct.remaining()];
+								direct.get(msg);
+								echoer.sendMessage(msg, 0, msg.length);
+							}
+						}
+					} catch (IOException e) {
+						echoer.close();
+					}
+				}
+			};
+			echo.start();
+			for ( int i=0; i<messages.size(); i++ ) {
+				handler.sendMessage(messages.get(i));
+				UnitTest.checkBytes(messages.get(i), handler.readMessageAsBytes(), "echo of message " + i + " (" + messages.get(i).length + " bytes)");
+			}
+			echo.join();
+		} finally {
+			if ( client != null ) client.close();
+			if ( accepted != null ) accepted.close();
+			server.close();
+		}
+	}
+
+	/**
+	 * Messages sent by a blocking handler, echoed by a non-blocking one (run here, as a selector thread
+	 * would run it), and compared.  The client sends them all before reading any echoes, so the
+	 * non-blocking handler has to queue output while it reads.
+	 */
+	private static void _nonblockingRoundTrip(Random random, int threshold) throws Exception {
+		Nonblocking nb = new Nonblocking();
+		try {
+			final TCPMessageHandler client = new TCPMessageHandler(nb.raw);
+			client.setTimeout(TIMEOUT);
+			client.setCompression(threshold);
+			nb.handler.setCompression(threshold);
+			// the client reads no echoes until it has sent everything, so the handler mustn't stop reading to let output drain
+			nb.handler.setOutputLimit(Integer.MAX_VALUE);
+			final List<byte[]> messages = _randomMessages(random);
+			final String[] failure = new String[1];
+			Thread sender = new Thread() {
+				@Override
+				public void run() {
+					try {
+						for ( byte[] msg : messages ) client.sendMessage(msg);
+						for ( int i=0; i<messages.size(); i++ ) {
+							byte[] echo = client.readMessageAsBytes();
+							UnitTest.checkBytes(messages.get(i), echo, "echo of message " + i + " (" + messages.get(i).length + " bytes)");
+						}
+					} catch (Throwable t) {
+						failure[0] = t.toString();
+						client.close();
+					}
+				}
+			};
+			sender.start();
+			for ( int i=0; i<messages.size(); i++ ) {
+				byte[] msg = nb.readMessage();
+				// both send routines
+				if ( i % 2 == 0 ) nb.handler.sendMessage(msg);
+				else nb.handler.sendMessage(ByteBuffer.wrap(msg));
+			}
+			nb.drain();
+			sender.join(TIMEOUT);
+			if ( failure[0] != null ) throw new UnitTest.TestFailure(failure[0]);
+			UnitTest.check(!sender.isAlive(), "client didn't receive all the echoes");
+		} finally {
+			nb.close();
+		}
+	}
+
+	private static List<byte[]> _randomMessages(Random random) {
+		List<byte[]> messages = new ArrayList<byte[]>();
+		messages.add(new byte[0]);
+		for ( int i=0; i<150; i++ ) {
+			messages.add(UnitTest.randomBytes(random, FrameCompressorTests.randomLength(random) / 2, random.nextBoolean()));
+		}
+		return messages;
+	}
+
+	//--------------------------------------------------------------------------------------
+	// connections
+	//--------------------------------------------------------------------------------------
+
+	/**
+	 * A blocking handler reading what a raw socket wrote (after which the raw socket closed).
+	 */
+	private static class Blocking {
+		final TCPMessageHandler handler;
+		private final Socket mRaw;
+		private final Socket mAccepted;
+
+		Blocking(byte[] stream) throws IOException {
+			ServerSocket server = new ServerSocket(0, 1, InetAddress.getByName("127.0.0.1"));
+			try {
+				mRaw = new Socket("127.0.0.1", server.getLocalPort());
+				mAccepted = server.accept();
+			} finally {
+				server.close();
+			}
+			// (small enough to fit in the socket buffers, so nobody needs to be reading yet)
+			mRaw.getOutputStream().write(stream);
+			mRaw.shutdownOutput();
+			handler = new TCPMessageHandler(mAccepted);
+			handler.setTimeout(TIMEOUT);
+		}
+
+		void close() throws IOException {
+			handler.close();
+			mRaw.close();
+			mAccepted.close();
+		}
+	}
+
+	/**
+	 * A non-blocking handler, registered with a selector, connected to a raw socket.
+	 */
+	private static class Nonblocking {
+		final NonblockingTCPMessageHandler handler;
+		final Socket raw;
+		private final SocketChannel mChannel;
+		private final Selector mSelector;
+		private final AtomicBoolean mWriteRequested = new AtomicBoolean(false);
+
+		Nonblocking() throws IOException {
+			ServerSocketChannel server = ServerSocketChannel.open();
+			try {
+				server.socket().bind(new InetSocketAddress("127.0.0.1", 0));
+				raw = new Socket("127.0.0.1", server.socket().getLocalPort());
+				mChannel = server.accept();
+			} finally {
+				server.close();
+			}
+			handler = new NonblockingTCPMessageHandler(mChannel);
+			mSelector = Selector.open();
+			// as with RPCSelectorThread, a send only asks the selector thread to enable write interest
+			handler.setWriteRequestCallback(new Runnable() {
+				@Override
+				public void run() {
+					mWriteRequested.set(true);
+					mSelector.wakeup();
+				}
+			});
+			handler.register(mSelector, null);
+		}
+
+		void write(byte[] bytes) throws IOException {
+			raw.getOutputStream().write(bytes);
+			raw.getOutputStream().flush();
+		}
+
+		/**
+		 * Runs the selector once, handling whatever's ready.
+		 */
+		private void _select() throws IOException {
+			if ( mWriteRequested.getAndSet(false) ) handler.enableWriteInterest();
+			mSelector.select(100);
+			for ( SelectionKey key : mSelector.selectedKeys() ) {
+				if ( !key.isValid() ) continue;
+				if ( key.isWritable() ) handler.handleWritable();
+				if ( key.isValid() && key.isReadable() ) handler.handleReadable();
+			}
+			mSelector.selectedKeys().clear();
+		}
+
+		/**
+		 * Runs the selector until a message has been decoded, and returns it.
+		 */
+		byte[] readMessage() throws IOException {
+			long deadline = System.currentTimeMillis() + TIMEOUT;
+			while ( !handler.hasMessage() ) {
+				if ( System.currentTimeMillis() > deadline ) throw new UnitTest.TestFailure("No message after " + TIMEOUT + " msec.");
+				_select();
+			}
+			return handler.readMessageAsBytes();
+		}
+
+		/**
+		 * Runs the selector until handleReadable() throws.
+		 */
+		void readUntilFailure() throws IOException {
+			long deadline = System.currentTimeMillis() + TIMEOUT;
+			while ( System.currentTimeMillis() < deadline ) _select();
+			throw new UnitTest.TestFailure("No failure after " + TIMEOUT + " msec.");
+		}
+
+		/**
+		 * Runs the selector until all queued output has been written.
+		 */
+		void drain() throws IOException {
+			long deadline = System.currentTimeMillis() + TIMEOUT;
+			while ( handler.hasPendingOutput() ) {
+				if ( System.currentTimeMillis() > deadline ) throw new UnitTest.TestFailure("Output not written after " + TIMEOUT + " msec.");
+				_select();
+			}
+		}
+
+		void close() throws IOException {
+			handler.close();
+			mSelector.close();
+			raw.close();
+		}
+	}
+
+	//--------------------------------------------------------------------------------------
+	// helpers
+	//--------------------------------------------------------------------------------------
+
+	private static void _expectRead(final TCPMessageHandler handler, Class<? extends Throwable> cls, String what) {
+		UnitTest.expect(cls, what, new UnitTest.Block() {
+			@Override
+			public void run() throws Exception {
+				handler.readMessageAsBytes();
+			}
+		});
+	}
+
+	private static void _expectReadable(final Nonblocking nb, Class<? extends Throwable> cls, String what) {
+		UnitTest.expect(cls, what, new UnitTest.Block() {
+			@Override
+			public void run() throws Exception {
+				nb.readUntilFailure();
+			}
+		});
+	}
+
+	/**
+	 * A frame with the given header (length and flags), little endian, followed by payload.
+	 */
+	private static byte[] _frame(int header, byte[] payload) {
+		byte[] frame = new byte[4 + payload.length];
+		frame[0] = (byte)header;
+		frame[1] = (byte)(header >>> 8);
+		frame[2] = (byte)(header >>> 16);
+		frame[3] = (byte)(header >>> 24);
+		System.arraycopy(payload, 0, frame, 4, payload.length);
+		return frame;
+	}
+
+	private static byte[] _concat(byte[]... parts) {
+		int len = 0;
+		for ( byte[] part : parts ) len += part.length;
+		byte[] result = new byte[len];
+		int pos = 0;
+		for ( byte[] part : parts ) {
+			System.arraycopy(part, 0, result, pos, part.length);
+			pos += part.length;
+		}
+		return result;
+	}
+}
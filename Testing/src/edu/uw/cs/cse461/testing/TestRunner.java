@@ -0,0 +1,115 @@
+package edu.uw.cs.cse461.testing;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.regex.Pattern;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.CommandLineParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.PosixParser;
+
+import edu.uw.cs.cse461.net.rpc.RPCBinaryCodecTests;
+import edu.uw.cs.cse461.net.tcpmessagehandler.FrameCompressorTests;
+import edu.uw.cs.cse461.net.tcpmessagehandler.TCPMessageHandlerTests;
+import edu.uw.cs.cse461.util.Log;
+
+/**
+ * Runs the tests of the message framing and encoding code -- round trips of random messages, and
+ * truncated, corrupt, and hostile input -- and exits with status 1 if any fail.
+ * <p>
+ * The tests that use random inputs draw them from a generator seeded with the seed the runner prints
+ * (a new one each run, unless given with -s), so a failure can be reproduced by rerunning with that seed.
+ * No config file or NetBase is needed.
+ *
+ * @author zahorjan
+ *
+ */
+public class TestRunner {
+	private static final String TAG="TestRunner";
+
+	/**
+	 * All tests, in the order they're run.
+	 */
+	public static List<UnitTest> allTests() {
+		List<UnitTest> result = new ArrayList<UnitTest>();
+		result.addAll(RPCBinaryCodecTests.tests());
+		result.addAll(FrameCompressorTests.tests());
+		result.addAll(TCPMessageHandlerTests.tests());
+		return result;
+	}
+
+	/**
+	 * Runs one test.
+	 * @return Null if it passed, and otherwise why not
+	 */
+	static Throwable run(UnitTest test, long seed) {
+		try {
+			test.run(new Random(seed ^ test.name().hashCode()));
+			return null;
+		} catch (Throwable t) {
+			return t;
+		}
+	}
+
+	public static void main(String[] args) {
+		int status = 0;
+		try {
+			Options options = new Options();
+			options.addOption("t", "tests", true, "Run only tests whose names match this regular expression");
+			options.addOption("s", "seed", true, "Seed of the random inputs (Default: chosen at random)");
+			options.addOption("l", "list", false, "List the tests and exit");
+			options.addOption("H", "help", false, "Print this message");
+
+			CommandLineParser parser = new PosixParser();
+			CommandLine line = parser.parse(options, args);
+			if ( line.hasOption("help") ) {
+				HelpFormatter formatter = new HelpFormatter();
+				formatter.printHelp("java TestRunner", options );
+				return;
+			}
+
+			List<UnitTest> tests = allTests();
+			if ( line.hasOption("tests") ) {
+				Pattern pattern = Pattern.compile(line.getOptionValue("tests"));
+				List<UnitTest> selected = new ArrayList<UnitTest>();
+				for ( UnitTest test : tests ) {
+					if ( pattern.matcher(test.name()).find() ) selected.add(test);
+				}
+				tests = selected;
+			}
+			if ( line.hasOption("list") ) {
+				for ( UnitTest test : tests ) System.out.println(test.name());
+				return;
+			}
+
+			// the code under test logs the bad input it's fed; that's expected here
+			Log.setLevel(Log.DebugLevel.ERROR.toInt());
+			long seed = line.hasOption("seed") ? Long.parseLong(line.getOptionValue("seed")) : System.nanoTime();
+			System.out.println("Seed " + seed);
+
+			int nFailed = 0;
+			for ( UnitTest test : tests ) {
+				long start = System.nanoTime();
+				Throwable failure = run(test, seed);
+				long msec = (System.nanoTime() - start) / 1000000;
+				if ( failure == null ) {
+					System.out.println(String.format("PASS  %-50s %6d ms", test.name(), msec));
+				} else {
+					nFailed++;
+					System.out.println(String.format("FAIL  %-50s %6d ms  %s", test.name(), msec, failure.getMessage()));
+					if ( !(failure instanceof UnitTest.TestFailure) || failure.getCause() != null ) failure.printStackTrace(System.out);
+				}
+			}
+			System.out.println((tests.size() - nFailed) + " of " + tests.size() + " tests passed");
+			if ( nFailed > 0 ) status = 1;
+		} catch (Exception e) {
+			Log.e(TAG, "Caught " + e.getClass().getName() + " exception: " + e.getMessage());
+			status = -1;
+		}
+		Log.flush();
+		System.exit(status);
+	}
+}
@@ -0,0 +1,119 @@
+package edu.uw.cs.cse461.testing;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * One test, run by the TestRunner.
+ * <p>
+ * Subclasses implement run(), which throws (usually a TestFailure, by way of the check routines) if the
+ * code under test misbehaves.  Tests that try random inputs should draw them from run()'s Random, which
+ * is seeded by the runner, so that a failure can be reproduced by rerunning with the same seed.
+ *
+ * @author zahorjan
+ *
+ */
+public abstract class UnitTest {
+	private final String mName;
+
+	protected UnitTest(String name) {
+		mName = name;
+	}
+
+	public String name() {
+		return mName;
+	}
+
+	/**
+	 * Runs the test once.
+	 * @param random The source of any random inputs
+	 */
+	public abstract void run(Random random) throws Exception;
+
+	@Override
+	public String toString() {
+		return mName;
+	}
+
+	/**
+	 * Thrown when a test finds something wrong.
+	 */
+	public static class TestFailure extends RuntimeException {
+		private static final long serialVersionUID = 1L;
+
+		public TestFailure(String msg) {
+			super(msg);
+		}
+
+		public TestFailure(String msg, Throwable cause) {
+			super(msg, cause);
+		}
+	}
+
+	/**
+	 * Code expected to throw, for expect().
+	 */
+	public interface Block {
+		void run() throws Exception;
+	}
+
+	public static void check(boolean condition, String what) {
+		if ( !condition ) throw new TestFailure(what);
+	}
+
+	public static void checkEquals(Object expected, Object actual, String what) {
+		if ( expected == null ? actual != null : !expected.equals(actual) )
+			throw new TestFailure(what + ": expected " + expected + ", got " + actual);
+	}
+
+	public static void checkBytes(byte[] expected, byte[] actual, String what) {
+		if ( actual == null ) throw new TestFailure(what + ": got null");
+		if ( expected.length != actual.length ) throw new TestFailure(what + ": expected " + expected.length + " bytes, got " + actual.length);
+		for ( int i=0; i<expected.length; i++ ) {
+			if ( expected[i] != actual[i] ) throw new TestFailure(what + ": bytes differ first at offset " + i);
+		}
+	}
+
+	/**
+	 * Runs block, which must throw an exception of class cls (or a subclass of it).  Throwing anything
+	 * else, or nothing, fails the test.
+	 * @return What block threw
+	 */
+	public static <T extends Throwable> T expect(Class<T> cls, String what, Block block) {
+		try {
+			block.run();
+		} catch (Throwable t) {
+			if ( cls.isInstance(t) ) return cls.cast(t);
+			throw new TestFailure(what + ": expected " + cls.getSimpleName() + ", got " + t, t);
+		}
+		throw new TestFailure(what + ": expected " + cls.getSimpleName() + ", but nothing was thrown");
+	}
+
+	/**
+	 * len random bytes.  Compressible ones are drawn from a small alphabet, in runs.
+	 */
+	public static byte[] randomBytes(Random random, int len, boolean compressible) {
+		byte[] bytes = new byte[len];
+		if ( !compressible ) {
+			random.nextBytes(bytes);
+			return bytes;
+		}
+		for ( int i=0; i<len; ) {
+			int run = Math.min(len - i, 1 + random.nextInt(32));
+			Arrays.fill(bytes, i, i + run, (byte)('a' + random.nextInt(4)));
+			i += run;
+		}
+		return bytes;
+	}
+
+	/**
+	 * A short hex dump, for failure messages.
+	 */
+	public static String hex(byte[] bytes) {
+		StringBuilder sb = new StringBuilder();
+		int n = Math.min(bytes.length, 64);
+		for ( int i=0; i<n; i++ ) sb.append(String.format("%02x", bytes[i] & 0xFF));
+		if ( n < bytes.length ) sb.append("... (").append(bytes.length).append(" bytes)");
+		return sb.toString();
+	}
+}
@@ -1,22 +1,73 @@
 package edu.uw.cs.cse461.util;
 
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.util.AbstractMap;
 import java.util.ArrayList;
-import java.util.Iterator;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 /**
  * A class intended to make parsing the config.ini file easier.  
  * See ConfigManagerInterface for further documentation and a concise list of public methods.
+ * <p>
+ * Code that reads config values often (per connection, say) should read them from snapshot(), an
+ * immutable copy of the config whose lookups take no locks, and whose int values are parsed once.
+ * A new snapshot is made whenever the config changes.
+ * <p>
+ * If watch() is called, the config file is checked for changes every so often, and when it changes the
+ * config is reloaded: fields added, changed, or removed in the file are added, changed, or removed here,
+ * and a new snapshot reflecting all the changes is made at once.  A field the program has set or removed
+ * itself (e.g., from ConsoleStart's -D and -h options) is left alone, whatever the file says about it.  Listeners (addListener()) are then told which fields changed.  Code that
+ * copies config values into fields of its own should listen, if it wants to pick up changes.
+ * <p>
+ * Change the config with setProperty(), put(), putAll(), remove(), or clear() (or the Map methods
+ * putIfAbsent(), replace(), and remove(key, value)), so that the snapshot is remade.  The keySet(),
+ * entrySet(), and values() views are read-only.  The Java 8 compute(), computeIfAbsent(),
+ * computeIfPresent(), merge(), and replaceAll() methods change the table behind ConfigManager's back
+ * (they can't be overridden while the code builds for Java 6), so don't use them on a ConfigManager.
  * @author zahorjan
  *
  */
 public class ConfigManager extends Properties implements ConfigManagerInterface {
 	private static final String TAG = "ConfigManager";
 	
+	private volatile Snapshot mSnapshot;  // null if the config has changed since the last snapshot was made
+	private long mSnapshotVersion = 0;
+	private final CopyOnWriteArrayList<Listener> mListeners = new CopyOnWriteArrayList<Listener>();
+	
+	// the values last read from the config file, so a reload can tell what changed
+	private Map<String,String> mFileValues;
+	// the fields the program has changed itself, which reloads don't touch
+	private final Set<Object> mOverridden = new HashSet<Object>();
+	private boolean mApplyingFile = false;  // true while changes come from the file
+	private File mWatchedFile;
+	private long mWatchedModified;
+	private long mWatchedLength;
+	private Timer mWatcher;
+	
+	/**
+	 * Told when the config file has been reloaded.
+	 */
+	public static interface Listener {
+		/**
+		 * Called (on the watcher's thread) after a reload has changed the config.
+		 * @param changedKeys The fields added, changed, or removed
+		 */
+		void configChanged(ConfigManager config, Set<String> changedKeys);
+	}
+	
 	/**
 	 * Can't pass in the more natural config file name because Android won't tell us
 	 * where it is (won't tell us the path to our assets).  Instead, caller must
@@ -25,32 +76,313 @@ public class ConfigManager extends Properties implements ConfigManagerInterface
 	 * @throws IOException
 	 */
 	public ConfigManager(FileInputStream configFileInputStream) throws IOException {
-		load(configFileInputStream);
-		// we avoid some confusion by getting rid of trailing whitespace on values.
-		// there doesn't seem to be a way to both delete the old key and insert the new one while iterating!
-		ArrayList<String> badKeys = new ArrayList<String>(); 
-		Iterator it = entrySet().iterator();
-		while ( it.hasNext() ) {
-			Map.Entry entry = (Map.Entry)it.next();
-			String key = (String)entry.getKey();
-			String trimmedkey = key.trim();
-			if ( !key.equals(trimmedkey)) {
-				badKeys.add(key);
-				continue;
+		mFileValues = _read(configFileInputStream);
+		mApplyingFile = true;
+		for ( Map.Entry<String,String> entry : mFileValues.entrySet() ) setProperty(entry.getKey(), entry.getValue());
+		mApplyingFile = false;
+	}
+	
+	/**
+	 * Reads a config file.  We avoid some confusion by getting rid of leading and trailing whitespace
+	 * on keys and values.
+	 */
+	private static Map<String,String> _read(InputStream is) throws IOException {
+		Properties raw = new Properties();
+		raw.load(is);
+		Map<String,String> result = new HashMap<String,String>();
+		for ( String key : raw.stringPropertyNames() ) result.put(key.trim(), raw.getProperty(key).trim());
+		return result;
+	}
+	
+	//-------------------------------------------------------------------------------------------------
+	//
+	// Snapshots and reloading
+	// 
+	//-------------------------------------------------------------------------------------------------
+	
+	/**
+	 * Every change to the config goes through here, so that the current snapshot can be discarded,
+	 * and so that fields the program changes are kept through reloads.
+	 */
+	@Override
+	public synchronized Object put(Object key, Object value) {
+		Object old = super.put(key, value);
+		if ( !mApplyingFile ) mOverridden.add(key);
+		mSnapshot = null;
+		return old;
+	}
+	
+	@Override
+	public synchronized Object remove(Object key) {
+		Object old = super.remove(key);
+		if ( !mApplyingFile ) mOverridden.add(key);
+		mSnapshot = null;
+		return old;
+	}
+	
+	@Override
+	public synchronized void clear() {
+		super.clear();
+		if ( mFileValues != null ) mOverridden.addAll(mFileValues.keySet());
+		mSnapshot = null;
+	}
+	
+	@Override
+	public synchronized void putAll(Map<? extends Object, ? extends Object> t) {
+		for ( Map.Entry<? extends Object, ? extends Object> entry : t.entrySet() ) put(entry.getKey(), entry.getValue());
+	}
+	
+	// The Map methods below are new in Java 8, so they have no @Override, and they're written in terms of
+	// get() and put() rather than the superclass versions.  They exist so that none of them bypasses put().
+	
+	public synchronized Object putIfAbsent(Object key, Object value) {
+		Object old = get(key);
+		if ( old == null ) put(key, value);
+		return old;
+	}
+	
+	public synchronized Object replace(Object key, Object value) {
+		return containsKey(key) ? put(key, value) : null;
+	}
+	
+	public synchronized boolean replace(Object key, Object oldValue, Object newValue) {
+		Object current = get(key);
+		if ( current == null || !current.equals(oldValue) ) return false;
+		put(key, newValue);
+		return true;
+	}
+	
+	public synchronized boolean remove(Object key, Object value) {
+		Object current = get(key);
+		if ( current == null || !current.equals(value) ) return false;
+		remove(key);
+		return true;
+	}
+	
+	// the views would otherwise let entries be removed (or changed) without going through remove() or put()
+	
+	@Override
+	public Set<Object> keySet() {
+		return Collections.unmodifiableSet(super.keySet());
+	}
+	
+	@Override
+	public Collection<Object> values() {
+		return Collections.unmodifiableCollection(super.values());
+	}
+	
+	@Override
+	public Set<Map.Entry<Object,Object>> entrySet() {
+		// (an unmodifiable map's entry set also refuses setValue() on its entries)
+		return Collections.unmodifiableMap(new AbstractMap<Object,Object>() {
+			@Override
+			public Set<Map.Entry<Object,Object>> entrySet() {
+				return ConfigManager.super.entrySet();
 			}
-			String value = getProperty(key);
-			String trimmed = value.trim();
-			if ( !value.equals(trimmed) ) {
-				badKeys.add(key);
+		}).entrySet();
+	}
+	
+	/**
+	 * Returns an immutable copy of the current config.  It's the same object until the config changes.
+	 */
+	public Snapshot snapshot() {
+		Snapshot snapshot = mSnapshot;
+		if ( snapshot != null ) return snapshot;
+		synchronized(this) {
+			if ( mSnapshot == null ) mSnapshot = new Snapshot(this, ++mSnapshotVersion);
+			return mSnapshot;
+		}
+	}
+	
+	public void addListener(Listener listener) {
+		mListeners.add(listener);
+	}
+	
+	public void removeListener(Listener listener) {
+		mListeners.remove(listener);
+	}
+	
+	/**
+	 * Starts checking file, the file this config was read from, for changes every interval msec.,
+	 * and reloading it when it changes.  (Java 7's WatchService isn't available on all the platforms
+	 * we run on, so the file's modification time and length are polled instead.)
+	 */
+	public synchronized void watch(File file, int interval) {
+		stopWatching();
+		mWatchedFile = file;
+		mWatchedModified = file.lastModified();
+		mWatchedLength = file.length();
+		mWatcher = new Timer("ConfigManager-watcher", true);
+		mWatcher.schedule(new TimerTask() {
+			@Override
+			public void run() {
+				_checkFile();
+			}
+		}, interval, interval);
+	}
+	
+	public synchronized void stopWatching() {
+		if ( mWatcher != null ) mWatcher.cancel();
+		mWatcher = null;
+	}
+	
+	private void _checkFile() {
+		File file;
+		synchronized(this) {
+			file = mWatchedFile;
+			if ( file == null ) return;
+			long modified = file.lastModified();
+			long length = file.length();
+			if ( modified == mWatchedModified && length == mWatchedLength ) return;
+			mWatchedModified = modified;
+			mWatchedLength = length;
+		}
+		try {
+			reload(file);
+		} catch (Exception e) {
+			Log.w(TAG, "Couldn't reload " + file + ": " + e.getMessage());
+		}
+	}
+	
+	/**
+	 * Rereads the config file, applying the differences between what it says now and what it said
+	 * when last read (except to fields the program has changed itself), and tells the listeners if anything changed.
+	 * @return The fields that changed
+	 */
+	public Set<String> reload(File file) throws IOException {
+		FileInputStream is = new FileInputStream(file);
+		Map<String,String> newValues;
+		try {
+			newValues = _read(is);
+		} finally {
+			is.close();
+		}
+		
+		Set<String> changed = new HashSet<String>();
+		synchronized(this) {
+			mApplyingFile = true;
+			try {
+				for ( Map.Entry<String,String> entry : newValues.entrySet() ) {
+					if ( mOverridden.contains(entry.getKey()) ) continue;
+					if ( !entry.getValue().equals(mFileValues.get(entry.getKey())) ) {
+						setProperty(entry.getKey(), entry.getValue());
+						changed.add(entry.getKey());
+					}
+				}
+				for ( String key : mFileValues.keySet() ) {
+					if ( mOverridden.contains(key) ) continue;
+					if ( !newValues.containsKey(key) ) {
+						remove(key);
+						changed.add(key);
+					}
+				}
+			} finally {
+				mApplyingFile = false;
+			}
+			mFileValues = newValues;
+			// publish all the changes at once
+			if ( !changed.isEmpty() ) mSnapshot = new Snapshot(this, ++mSnapshotVersion);
+		}
+		if ( changed.isEmpty() ) return changed;
+		
+		Log.i(TAG, "Reloaded " + file + "; changed fields: " + changed);
+		Set<String> changedKeys = Collections.unmodifiableSet(changed);
+		for ( Listener listener : mListeners ) {
+			try {
+				listener.configChanged(this, changedKeys);
+			} catch (Exception e) {
+				Log.w(TAG, "Config listener " + listener + " failed: " + e.getMessage());
 			}
 		}
-		for ( String key : badKeys ) {
-			String value = getProperty(key);
-			remove(key);
-			
-			String trimmedKey = key.trim();
-			String trimmedValue = value.trim();
-			setProperty(trimmedKey, trimmedValue);
+		return changedKeys;
+	}
+	
+	/**
+	 * An immutable copy of the config at some moment.  Lookups take no locks, and each int value is
+	 * parsed just once.  A missing or malformed value silently yields the caller's default (ConfigManager's
+	 * own getAsInt() logs it).
+	 * <p>
+	 * A few fields read on every connection are parsed when the snapshot is made.
+	 */
+	public static final class Snapshot {
+		private final Map<String,String> mValues;  // never modified after construction
+		private final ConcurrentHashMap<String,Integer> mInts = new ConcurrentHashMap<String,Integer>();
+		private final long mVersion;
+		private final Integer mSocketTimeout;
+		private final Integer mGranularity;
+		
+		private Snapshot(Properties config, long version) {
+			Map<String,String> values = new HashMap<String,String>();
+			for ( String key : config.stringPropertyNames() ) values.put(key, config.getProperty(key));
+			mValues = values;
+			mVersion = version;
+			mSocketTimeout = _parse("net.timeout.socket");
+			mGranularity = _parse("net.timeout.granularity");
+		}
+		
+		/**
+		 * Increases each time the config changes.
+		 */
+		public long version() {
+			return mVersion;
+		}
+		
+		public String getProperty(String key) {
+			return mValues.get(key);
+		}
+		
+		public String getProperty(String key, String defaultVal) {
+			String value = mValues.get(key);
+			return value != null ? value : defaultVal;
+		}
+		
+		/**
+		 * Returns a field value as an integer.
+		 * @throws NoSuchFieldException If there's no such field
+		 * @throws NumberFormatException If its value isn't an integer
+		 */
+		public int getAsInt(String key) throws NoSuchFieldException {
+			Integer value = mInts.get(key);
+			if ( value != null ) return value;
+			String valStr = mValues.get(key);
+			if ( valStr == null ) throw new NoSuchFieldException("No " + key + " entry found in config file");
+			value = Integer.parseInt(valStr);
+			mInts.put(key, value);
+			return value;
+		}
+		
+		public int getAsInt(String key, int defaultVal) {
+			Integer value = _parse(key);
+			return value != null ? value : defaultVal;
+		}
+		
+		public int getAsInt(String key, int defaultVal, int minimum) {
+			return Math.max(getAsInt(key, defaultVal), minimum);
+		}
+		
+		/**
+		 * net.timeout.socket, the default timeout (msec.) for reads from a socket.
+		 */
+		public int socketTimeout(int defaultVal) {
+			return mSocketTimeout != null ? mSocketTimeout : defaultVal;
+		}
+		
+		/**
+		 * net.timeout.granularity, how often (msec.) threads blocked accepting connections check whether to quit.
+		 */
+		public int granularity(int defaultVal) {
+			return mGranularity != null ? mGranularity : defaultVal;
+		}
+		
+		/**
+		 * A field's value as an integer, or null if it's missing or malformed.
+		 */
+		private Integer _parse(String key) {
+			try {
+				return getAsInt(key);
+			} catch (Exception e) {
+				return null;
+			}
 		}
 	}
 	
@@ -151,9 +483,7 @@ public class ConfigManager extends Properties implements ConfigManagerInterface
 	 */
 	@Override
 	public int getAsInt(String key) throws NoSuchFieldException {
-		String valStr = getProperty(key);
-		if ( valStr == null ) throw new NoSuchFieldException("No " + key + " entry found in config file");
-		return Integer.parseInt(valStr);
+		return snapshot().getAsInt(key);
 	}
 	
 	/**
@@ -182,12 +512,17 @@ public class ConfigManager extends Properties implements ConfigManagerInterface
 	 * the maximum value if the value that otherwise would be returned is greater than the maximum.
 	 */
 	@Override
-	public int getAsInt(String key, int defaultVal, int minimum, int maximum) {
+	public int getAsInt(final String key, final int defaultVal, int minimum, int maximum) {
 		int result;
 		try {
 			result = getAsInt(key);
 		} catch (Exception e) {
-			Log.i(TAG, "Missing or non-integer value for config entry " + key + ".  Using default " + defaultVal);
+			// lookups that fall back to the default are common, so the message is built only if it will be shown
+			Log.i(TAG, new Log.MessageSupplier() {
+				public String get() {
+					return "Missing or non-integer value for config entry " + key + ".  Using default " + defaultVal;
+				}
+			});
 			result = defaultVal;
 		}
 		
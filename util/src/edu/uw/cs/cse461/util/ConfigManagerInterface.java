@@ -1,5 +1,6 @@
 package edu.uw.cs.cse461.util;
 
+import java.io.File;
 import java.util.ArrayList;
 
 
@@ -74,5 +75,21 @@ public interface ConfigManagerInterface {
 	 */
 	public ArrayList<String[]> readNameRecordVec(String fieldName) throws RuntimeException;
 	
+	/**
+	 * Returns an immutable copy of the config, for code that reads fields often.  Lookups on it take no locks.
+	 */
+	public ConfigManager.Snapshot snapshot();
+	
+	/**
+	 * Starts checking the config file for changes every interval msec., reloading it when it changes.
+	 */
+	public void watch(File file, int interval);
+	public void stopWatching();
+	
+	/**
+	 * Listeners are told which fields changed each time the config file is reloaded.
+	 */
+	public void addListener(ConfigManager.Listener listener);
+	public void removeListener(ConfigManager.Listener listener);
 
 }
@@ -0,0 +1,275 @@
+package edu.uw.cs.cse461.util;
+
+import java.util.Arrays;
+
+/**
+ * A histogram of non-negative long values (typically latencies), in the style of HdrHistogram: values are
+ * counted in buckets whose width grows with the magnitude of the values they hold, so that any value is
+ * known to within a fixed relative precision no matter how large it is, in a fixed (and modest) amount of
+ * space, and recording a value costs a few arithmetic operations.
+ * <p>
+ * Precision is given as a number of significant decimal digits.  With 2, each recorded value is known to
+ * within 1%; with 3, to within 0.1%.  Values larger than the highest trackable value given to the
+ * constructor are recorded as that value.
+ * <p>
+ * Histograms with the same layout (highest trackable value and precision) can be merged with add(), so a
+ * histogram can be kept per thread and the results combined when read.  A LatencyHistogram isn't itself
+ * safe for use by more than one thread at once.
+ * <p>
+ * recordValue(value, expectedInterval) corrects for "coordinated omission": a load generator that waits for
+ * each response before sending the next request takes no samples while the server is stalled, so a stall
+ * shows up as a single slow sample.  Given the interval at which requests were supposed to be sent, the
+ * samples the stall suppressed are recorded as well.
+ *
+ * @author zahorjan
+ *
+ */
+public class LatencyHistogram {
+	private final long mHighestTrackableValue;
+	private final int mSignificantDigits;
+
+	// bucket layout: bucket 0 holds values [0, subBucketCount) exactly; bucket i > 0 holds
+	// [subBucketCount << (i-1), subBucketCount << i), in subBucketHalfCount slots of width 1 << i.
+	private final int mSubBucketHalfCountMagnitude;
+	private final int mSubBucketHalfCount;
+	private final long mSubBucketMask;
+	private final int mLeadingZeroCountBase;
+	private final long[] mCounts;
+
+	private long mTotalCount = 0;
+	private long mMinValue = Long.MAX_VALUE;
+	private long mMaxValue = 0;
+	private double mTotal = 0.0;  // exact sum of the recorded values, for mean()
+
+	/**
+	 * A histogram tracking values up to an hour's worth of usec., to 2 significant digits.
+	 */
+	public LatencyHistogram() {
+		this(3600L * 1000 * 1000, 2);
+	}
+
+	/**
+	 * @param highestTrackableValue Larger values are recorded as this
+	 * @param significantDigits Decimal digits of precision, 1 to 5
+	 */
+	public LatencyHistogram(long highestTrackableValue, int significantDigits) {
+		if ( significantDigits < 1 || significantDigits > 5 ) throw new IllegalArgumentException("significantDigits must be 1 to 5");
+		if ( highestTrackableValue < 2 ) throw new IllegalArgumentException("highestTrackableValue must be at least 2");
+		mHighestTrackableValue = highestTrackableValue;
+		mSignificantDigits = significantDigits;
+
+		long largestValueWithSingleUnitResolution = 2 * (long)Math.pow(10, significantDigits);
+		int subBucketCountMagnitude = (int)Math.ceil(Math.log(largestValueWithSingleUnitResolution) / Math.log(2));
+		mSubBucketHalfCountMagnitude = Math.max(subBucketCountMagnitude, 1) - 1;
+		int subBucketCount = 1 << (mSubBucketHalfCountMagnitude + 1);
+		mSubBucketHalfCount = subBucketCount / 2;
+		mSubBucketMask = subBucketCount - 1;
+		mLeadingZeroCountBase = 64 - mSubBucketHalfCountMagnitude - 1;
+
+		// enough buckets to reach highestTrackableValue
+		long smallestUntrackableValue = subBucketCount;
+		int bucketCount = 1;
+		while ( smallestUntrackableValue <= highestTrackableValue ) {
+			if ( smallestUntrackableValue > Long.MAX_VALUE / 2 ) {
+				bucketCount++;
+				break;
+			}
+			smallestUntrackableValue <<= 1;
+			bucketCount++;
+		}
+		mCounts = new long[(bucketCount + 1) * mSubBucketHalfCount];
+	}
+
+	/**
+	 * A histogram with the same layout as this one, and no values.
+	 */
+	private LatencyHistogram(LatencyHistogram other) {
+		mHighestTrackableValue = other.mHighestTrackableValue;
+		mSignificantDigits = other.mSignificantDigits;
+		mSubBucketHalfCountMagnitude = other.mSubBucketHalfCountMagnitude;
+		mSubBucketHalfCount = other.mSubBucketHalfCount;
+		mSubBucketMask = other.mSubBucketMask;
+		mLeadingZeroCountBase = other.mLeadingZeroCountBase;
+		mCounts = new long[other.mCounts.length];
+	}
+
+	//--------------------------------------------------------------------------------------------
+	// Bucket arithmetic
+	//--------------------------------------------------------------------------------------------
+
+	private int _countsIndex(long value) {
+		int bucketIndex = mLeadingZeroCountBase - Long.numberOfLeadingZeros(value | mSubBucketMask);
+		int subBucketIndex = (int)(value >>> bucketIndex);
+		return ((bucketIndex + 1) << mSubBucketHalfCountMagnitude) + (subBucketIndex - mSubBucketHalfCount);
+	}
+
+	/**
+	 * The smallest value counted in the slot at index.
+	 */
+	private long _lowestValueAt(int index) {
+		int bucketIndex = (index >> mSubBucketHalfCountMagnitude) - 1;
+		int subBucketIndex = (index & (mSubBucketHalfCount - 1)) + mSubBucketHalfCount;
+		if ( bucketIndex < 0 ) {
+			subBucketIndex -= mSubBucketHalfCount;
+			bucketIndex = 0;
+		}
+		return (long)subBucketIndex << bucketIndex;
+	}
+
+	/**
+	 * The largest value counted in the slot at index.
+	 */
+	private long _highestValueAt(int index) {
+		int bucketIndex = Math.max((index >> mSubBucketHalfCountMagnitude) - 1, 0);
+		return _lowestValueAt(index) + (1L << bucketIndex) - 1;
+	}
+
+	//--------------------------------------------------------------------------------------------
+	// Recording
+	//--------------------------------------------------------------------------------------------
+
+	/**
+	 * Records one occurrence of value.  Negative values are recorded as 0.
+	 */
+	public void recordValue(long value) {
+		recordValues(value, 1);
+	}
+
+	/**
+	 * Records count occurrences of value.
+	 */
+	public void recordValues(long value, long count) {
+		if ( count <= 0 ) return;
+		if ( value < 0 ) value = 0;
+		if ( value > mHighestTrackableValue ) value = mHighestTrackableValue;
+		mCounts[_countsIndex(value)] += count;
+		mTotalCount += count;
+		mTotal += (double)value * count;
+		if ( value < mMinValue ) mMinValue = value;
+		if ( value > mMaxValue ) mMaxValue = value;
+	}
+
+	/**
+	 * Records value, plus the samples a closed-loop measurement would have taken had it not been waiting:
+	 * value - expectedInterval, value - 2*expectedInterval, and so on, down to expectedInterval.
+	 * @param expectedInterval The interval at which samples were meant to be taken (0 for no correction)
+	 */
+	public void recordValue(long value, long expectedInterval) {
+		recordValue(value);
+		if ( expectedInterval <= 0 ) return;
+		for ( long missing = value - expectedInterval; missing >= expectedInterval; missing -= expectedInterval ) {
+			recordValue(missing);
+		}
+	}
+
+	/**
+	 * Adds other's values to this histogram's.
+	 */
+	public void add(LatencyHistogram other) {
+		if ( other.mTotalCount == 0 ) return;
+		if ( other.mCounts.length == mCounts.length && other.mSubBucketHalfCount == mSubBucketHalfCount ) {
+			for ( int i=0; i<mCounts.length; i++ ) mCounts[i] += other.mCounts[i];
+			mTotalCount += other.mTotalCount;
+			mTotal += other.mTotal;
+			if ( other.mMinValue < mMinValue ) mMinValue = other.mMinValue;
+			if ( other.mMaxValue > mMaxValue ) mMaxValue = other.mMaxValue;
+		} else {
+			// different layouts: re-record each of other's slots at the middle of its range
+			for ( int i=0; i<other.mCounts.length; i++ ) {
+				if ( other.mCounts[i] == 0 ) continue;
+				long value = (other._lowestValueAt(i) + other._highestValueAt(i)) / 2;
+				recordValues(Math.max(other.mMinValue, Math.min(other.mMaxValue, value)), other.mCounts[i]);
+			}
+		}
+	}
+
+	/**
+	 * An independent copy of this histogram, e.g. to read while this one goes on recording.
+	 */
+	public LatencyHistogram copy() {
+		LatencyHistogram result = new LatencyHistogram(this);
+		result.add(this);
+		return result;
+	}
+
+	/**
+	 * Discards all recorded values.
+	 */
+	public void reset() {
+		Arrays.fill(mCounts, 0);
+		mTotalCount = 0;
+		mTotal = 0.0;
+		mMinValue = Long.MAX_VALUE;
+		mMaxValue = 0;
+	}
+
+	//--------------------------------------------------------------------------------------------
+	// Reading
+	//--------------------------------------------------------------------------------------------
+
+	public long totalCount() {
+		return mTotalCount;
+	}
+
+	/**
+	 * The smallest recorded value (exactly), or 0 if there are none.
+	 */
+	public long min() {
+		return mTotalCount > 0 ? mMinValue : 0;
+	}
+
+	/**
+	 * The largest recorded value (exactly), or 0 if there are none.
+	 */
+	public long max() {
+		return mMaxValue;
+	}
+
+	/**
+	 * The mean of the recorded values, or 0.0 if there are none.
+	 */
+	public double mean() {
+		return mTotalCount > 0 ? mTotal / mTotalCount : 0.0;
+	}
+
+	/**
+	 * The value at the given percentile: at least percentile percent of the recorded values are no greater
+	 * than it (to within the histogram's precision).  Returns 0 if there are no values.
+	 * @param percentile 0.0 to 100.0
+	 */
+	public long valueAtPercentile(double percentile) {
+		if ( mTotalCount == 0 ) return 0;
+		percentile = Math.min(Math.max(percentile, 0.0), 100.0);
+		long countAtPercentile = Math.max(1, (long)Math.ceil(percentile / 100.0 * mTotalCount));
+		long count = 0;
+		for ( int i=0; i<mCounts.length; i++ ) {
+			count += mCounts[i];
+			if ( count >= countAtPercentile ) {
+				// the slot's range may extend past what was actually recorded
+				return Math.max(mMinValue, Math.min(mMaxValue, _highestValueAt(i)));
+			}
+		}
+		return mMaxValue;
+	}
+
+	public long p50() {
+		return valueAtPercentile(50.0);
+	}
+
+	public long p90() {
+		return valueAtPercentile(90.0);
+	}
+
+	public long p99() {
+		return valueAtPercentile(99.0);
+	}
+
+	public long p999() {
+		return valueAtPercentile(99.9);
+	}
+
+	@Override
+	public String toString() {
+		return "[n=" + mTotalCount + " p50=" + p50() + " p90=" + p90() + " p99=" + p99() + " p99.9=" + p999() + " max=" + max() + "]";
+	}
+}
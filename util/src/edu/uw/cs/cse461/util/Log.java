@@ -1,25 +1,59 @@
 package edu.uw.cs.cse461.util;
 
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * This is a simple debug message class that implements
+ * filtering based on log level.  It's modeled after android.util.Log.
+ * <p>
+ * You choose a level at which to produce a message by calling, say,
+ * Log.d("some tag", "my message").  You can set the class to filter
+ * all messages below a client-specified level, and set a different level
+ * for particular tags (setLevel(tag, level)).
+ * <p>
+ * A message that's expensive to build can be passed as a MessageSupplier, whose get()
+ * is called (on the logging thread) only if the message will be shown.
+ * <p>
+ * By default, logging is asynchronous: the logging thread puts the message in a lock-free ring buffer
+ * and returns, and a background thread writes messages to the output (stdout, or the file given
+ * to setFile()) in batches.  If the buffer is full, messages below WARN are dropped (and the number
+ * dropped is reported); WARN and above wait for room.  flush() waits until everything logged so far
+ * has been written, and is called when the JVM exits.  setAsync(false) makes each call write its
+ * message before returning.
+ * <p>
+ * Messages to stdout are written through System.out (and flushed), so a message's line is never broken up
+ * by a program's own output.  An asynchronous message can still appear after output the program printed
+ * after logging it, though:  programs that mix the two on the console, and care about the order, should
+ * call flush() before printing (as the AppManager does before each prompt), or use synchronous logging.
+ *
+ * @author zahorjan
+ *
+ */
 public class Log {
-	static private int mLevel = 0;
-	static private boolean mShowLog = true;
-	
+	static private volatile int mLevel = 0;
+	static private volatile boolean mShowLog = true;
+	// levels set for particular tags, overriding mLevel
+	static private final ConcurrentHashMap<String,Integer> mTagLevels = new ConcurrentHashMap<String,Integer>();
+	static private volatile boolean mHaveTagLevels = false;
+	static private volatile boolean mAsync = true;
+	static private volatile FileChannel mOut = null;  // null when logging to stdout (through System.out)
+	static private volatile AsyncWriter mWriter;  // created when the first asynchronous message is logged
+
 	/**
-	 * This is a simple debug message class that implements
-	 * filtering based on log level.  It's modeled after android.util.Log.
-	 * <p>
-	 * You choose a level at which to produce a message by calling, say,
-	 * Log.d("some tag", "my message").  You can set the class to filter
-	 * all messages below a client-specified level.
-	 * 
-	 * @author zahorjan
-	 *
+	 * Log levels.
 	 */
 	public static enum DebugLevel {
-		VERBOSE(2, "VERBOSE"), 
-		DEBUG(3, "DEBUG"), 
-		INFO(4, "INFO"), 
-		WARN(5, "WARN"), 
+		VERBOSE(2, "VERBOSE"),
+		DEBUG(3, "DEBUG"),
+		INFO(4, "INFO"),
+		WARN(5, "WARN"),
 		ERROR(6, "ERROR"),
 		ASSERT(7, "ASSERT");
 		private final int mInt;
@@ -27,35 +61,352 @@ public class Log {
 		private DebugLevel(int level, String s) { mInt = level; mString = s;}
 		public int toInt() { return mInt; }
 		@Override
-		public String toString() { return mString; }  
+		public String toString() { return mString; }
 	};
-	
+
+	/**
+	 * Builds a message only if it is going to be shown.
+	 */
+	public static interface MessageSupplier {
+		String get();
+	}
+
 	// Note that this implementation always returns 0, unlike the android version
-	// (which returns the number of characters printed) -- Java printf doesn't
-	// provide any useful information about number of characters in formatted string.
+	// (which returns the number of characters printed).
 	static private int _show(DebugLevel level, String tag, String msg) {
-		if (  (mShowLog && level.toInt() >= mLevel) || level==DebugLevel.ASSERT) {
-			System.out.printf("%010d %7s  %s  %s\n", System.currentTimeMillis(), level, tag, msg);
-		}
+		if ( isLoggable(level, tag) ) _log(level, tag, msg);
+		return 0;
+	}
+
+	static private int _show(DebugLevel level, String tag, MessageSupplier msg) {
+		if ( isLoggable(level, tag) ) _log(level, tag, msg.get());
 		return 0;
 	}
-	
+
+	static private void _log(DebugLevel level, String tag, String msg) {
+		long time = System.currentTimeMillis();
+		if ( !mAsync ) {
+			StringBuilder sb = new StringBuilder();
+			_format(sb, time, level, tag, msg);
+			synchronized(Log.class) {
+				_write(sb);
+			}
+			return;
+		}
+		AsyncWriter writer = _writer();
+		while ( !writer.offer(time, level, tag, msg) ) {
+			if ( level.toInt() < DebugLevel.WARN.toInt() ) {
+				writer.dropped();
+				return;
+			}
+			writer.wake();
+			Thread.yield();
+		}
+	}
+
+	/**
+	 * True if a message at the given level would be shown.  Lets callers skip
+	 * building expensive messages (stack traces, say) that would just be dropped.
+	 */
+	static public boolean isLoggable(DebugLevel level) {
+		return (mShowLog && level.toInt() >= mLevel) || level==DebugLevel.ASSERT;
+	}
+
+	/**
+	 * True if a message with the given tag, at the given level, would be shown.
+	 */
+	static public boolean isLoggable(DebugLevel level, String tag) {
+		if ( level == DebugLevel.ASSERT ) return true;
+		if ( !mShowLog ) return false;
+		int threshold = mLevel;
+		if ( mHaveTagLevels && tag != null ) {
+			Integer tagLevel = mTagLevels.get(tag);
+			if ( tagLevel != null ) threshold = tagLevel;
+		}
+		return level.toInt() >= threshold;
+	}
+
 	static public int setLevel(int level) {
 		int old = mLevel;
 		mLevel = level;
 		return old;
 	}
-	
+
+	/**
+	 * Sets the level of messages with the given tag, overriding the overall level.
+	 * @return The tag's previous level, or -1 if it had none
+	 */
+	static public int setLevel(String tag, int level) {
+		Integer old = mTagLevels.put(tag, level);
+		mHaveTagLevels = true;
+		return old == null ? -1 : old;
+	}
+
+	/**
+	 * Makes messages with the given tag subject to the overall level again.
+	 */
+	static public void clearLevel(String tag) {
+		mTagLevels.remove(tag);
+		mHaveTagLevels = !mTagLevels.isEmpty();
+	}
+
 	static public boolean setShowLog(boolean b) {
 		boolean old = mShowLog;
 		mShowLog = b;
 		return old;
 	}
-	
+
+	/**
+	 * Chooses between asynchronous (the default) and synchronous logging.
+	 */
+	static public boolean setAsync(boolean async) {
+		boolean old = mAsync;
+		if ( !async ) flush();
+		mAsync = async;
+		return old;
+	}
+
+	/**
+	 * Sends messages to the end of the named file, rather than to stdout.  A null fileName means stdout.
+	 */
+	static public void setFile(String fileName) throws IOException {
+		FileChannel out = fileName == null ? null : new FileOutputStream(fileName, true).getChannel();
+		flush();
+		FileChannel old;
+		synchronized(Log.class) {
+			old = mOut;
+			mOut = out;
+		}
+		if ( old != null ) old.close();
+	}
+
+	/**
+	 * Sets up logging from config file fields:
+	 * debug.enable (0 turns logging off), debug.level, debug.level.&lt;tag&gt; (the level of one tag),
+	 * debug.async (0 for synchronous logging), and debug.file (log to that file, not stdout).
+	 * @param defaultLevel The level if there's no debug.level field
+	 */
+	static public void configure(ConfigManager config, int defaultLevel) {
+		setShowLog(config.getAsInt("debug.enable", 1) != 0);
+		setLevel(config.getAsInt("debug.level", defaultLevel));
+		for ( String key : config.stringPropertyNames() ) {
+			if ( !key.startsWith("debug.level.") ) continue;
+			setLevel(key.substring("debug.level.".length()), config.getAsInt(key, defaultLevel));
+		}
+		setAsync(!config.getProperty("debug.async", "1").trim().equals("0"));
+		String fileName = config.getProperty("debug.file");
+		if ( fileName != null && fileName.trim().length() > 0 ) {
+			try {
+				setFile(fileName.trim());
+			} catch (IOException e) {
+				System.err.println("Can't open log file " + fileName + ": " + e.getMessage() + ".  Logging to stdout.");
+			}
+		}
+	}
+
+	/**
+	 * Waits (for up to a second) until all messages logged so far have been written.
+	 */
+	static public void flush() {
+		AsyncWriter writer = mWriter;
+		if ( writer != null ) writer.flush(1000);
+	}
+
 	static public int v(String tag, String msg) { return _show(DebugLevel.VERBOSE, tag, msg); }
 	static public int d(String tag, String msg) { return _show(DebugLevel.DEBUG, tag, msg); }
 	static public int i(String tag, String msg) { return _show(DebugLevel.INFO, tag, msg); }
 	static public int w(String tag, String msg) { return _show(DebugLevel.WARN, tag, msg); }
 	static public int e(String tag, String msg) { return _show(DebugLevel.ERROR, tag, msg); }
 	static public int wtf(String tag, String msg) { return _show(DebugLevel.ASSERT, tag, msg); }
+
+	static public int v(String tag, MessageSupplier msg) { return _show(DebugLevel.VERBOSE, tag, msg); }
+	static public int d(String tag, MessageSupplier msg) { return _show(DebugLevel.DEBUG, tag, msg); }
+	static public int i(String tag, MessageSupplier msg) { return _show(DebugLevel.INFO, tag, msg); }
+	static public int w(String tag, MessageSupplier msg) { return _show(DebugLevel.WARN, tag, msg); }
+	static public int e(String tag, MessageSupplier msg) { return _show(DebugLevel.ERROR, tag, msg); }
+	static public int wtf(String tag, MessageSupplier msg) { return _show(DebugLevel.ASSERT, tag, msg); }
+
+	//--------------------------------------------------------------------------------------------
+	// Output
+	//--------------------------------------------------------------------------------------------
+
+	/**
+	 * Appends a message's line of output: time, level, tag, message.
+	 */
+	static private void _format(StringBuilder sb, long time, DebugLevel level, String tag, String msg) {
+		String timeStr = Long.toString(time);
+		for ( int i=timeStr.length(); i<10; i++ ) sb.append('0');
+		sb.append(timeStr).append(' ');
+		String levelStr = level.toString();
+		for ( int i=levelStr.length(); i<7; i++ ) sb.append(' ');
+		sb.append(levelStr).append("  ").append(tag).append("  ").append(msg).append('\n');
+	}
+
+	/**
+	 * Writes sb to the output.  Called by one thread at a time.
+	 */
+	static private void _write(StringBuilder sb) {
+		FileChannel out = mOut;
+		if ( out == null ) {
+			// a single print, so that no println from another thread lands in the middle of it
+			System.out.print(sb);
+			System.out.flush();
+			return;
+		}
+		ByteBuffer buf = ByteBuffer.wrap(sb.toString().getBytes());
+		try {
+			while ( buf.hasRemaining() ) out.write(buf);
+		} catch (IOException e) {
+			System.err.print(sb);
+		}
+	}
+
+	static private AsyncWriter _writer() {
+		AsyncWriter writer = mWriter;
+		if ( writer != null ) return writer;
+		synchronized(Log.class) {
+			if ( mWriter == null ) {
+				mWriter = new AsyncWriter(16 * 1024);
+				mWriter.start();
+				Runtime.getRuntime().addShutdownHook(new Thread() {
+					public void run() {
+						flush();
+					}
+				});
+			}
+			return mWriter;
+		}
+	}
+
+	/**
+	 * A logged message, waiting in the ring buffer.
+	 */
+	private static class Entry {
+		long time;
+		DebugLevel level;
+		String tag;
+		String msg;
+	}
+
+	/**
+	 * The ring buffer, and the thread that writes what's in it.
+	 * <p>
+	 * Any number of threads add to the buffer; only the writer takes from it.  Each slot has a sequence
+	 * number saying whose turn it is: a slot whose sequence number equals the position a producer is trying
+	 * to claim is free, and the producer claims it by advancing the tail with a CAS.  The producer then fills
+	 * the slot and sets its sequence number to position+1, which tells the writer it's ready.  Once the writer
+	 * has copied the message out, it sets the sequence number to position+capacity, freeing the slot for the
+	 * next trip around the ring.
+	 */
+	private static class AsyncWriter extends Thread {
+		// max messages written with a single write
+		private static final int BATCH_SIZE = 256;
+		// how long the writer sleeps when there's nothing to write (it's woken early when a message arrives)
+		private static final long IDLE_NANOS = 50L * 1000 * 1000;
+
+		private final Entry[] mSlots;
+		private final int mMask;
+		private final AtomicLongArray mSequence;
+		private final AtomicLong mTail = new AtomicLong(0);  // the next position producers will claim
+		private long mHead = 0;                              // the next position the writer will take
+		private volatile long mWritten = 0;                  // positions before this have been written
+		private final AtomicLong mDropped = new AtomicLong(0);
+		private volatile boolean mIdle = false;
+
+		AsyncWriter(int capacity) {
+			super("Log-writer");
+			setDaemon(true);
+			int size = 1;
+			while ( size < capacity ) size *= 2;
+			mSlots = new Entry[size];
+			mMask = size - 1;
+			mSequence = new AtomicLongArray(size);
+			for ( int i=0; i<size; i++ ) {
+				mSlots[i] = new Entry();
+				mSequence.set(i, i);
+			}
+		}
+
+		/**
+		 * Adds a message to the buffer.
+		 * @return False if the buffer is full
+		 */
+		boolean offer(long time, DebugLevel level, String tag, String msg) {
+			while ( true ) {
+				long pos = mTail.get();
+				int index = (int)pos & mMask;
+				long diff = mSequence.get(index) - pos;
+				if ( diff < 0 ) return false;  // the writer hasn't emptied the slot yet: full
+				if ( diff == 0 && mTail.compareAndSet(pos, pos + 1) ) {
+					Entry entry = mSlots[index];
+					entry.time = time;
+					entry.level = level;
+					entry.tag = tag;
+					entry.msg = msg;
+					mSequence.set(index, pos + 1);
+					if ( mIdle ) wake();
+					return true;
+				}
+				// another thread claimed this position first; try the next
+			}
+		}
+
+		void dropped() {
+			mDropped.incrementAndGet();
+		}
+
+		void wake() {
+			LockSupport.unpark(this);
+		}
+
+		/**
+		 * Waits until the messages added before the call have been written, or timeout msec. have passed.
+		 */
+		void flush(long timeout) {
+			long target = mTail.get();
+			long deadline = System.currentTimeMillis() + timeout;
+			while ( mWritten < target && System.currentTimeMillis() < deadline ) {
+				wake();
+				try {
+					Thread.sleep(1);
+				} catch (InterruptedException e) {
+					return;
+				}
+			}
+		}
+
+		@Override
+		public void run() {
+			StringBuilder sb = new StringBuilder(16 * 1024);
+			while ( true ) {
+				int n = 0;
+				while ( n < BATCH_SIZE ) {
+					int index = (int)mHead & mMask;
+					if ( mSequence.get(index) != mHead + 1 ) break;
+					Entry entry = mSlots[index];
+					_format(sb, entry.time, entry.level, entry.tag, entry.msg);
+					entry.tag = null;
+					entry.msg = null;
+					mSequence.set(index, mHead + mSlots.length);
+					mHead++;
+					n++;
+				}
+				long nDropped = mDropped.get() > 0 ? mDropped.getAndSet(0) : 0;
+				if ( nDropped > 0 ) _format(sb, System.currentTimeMillis(), DebugLevel.WARN, "Log", nDropped + (nDropped == 1 ? " message" : " messages") + " dropped (log buffer full)");
+				if ( sb.length() > 0 ) {
+					synchronized(Log.class) {
+						_write(sb);
+					}
+					sb.setLength(0);
+					mWritten = mHead;
+					continue;
+				}
+				mWritten = mHead;
+				mIdle = true;
+				// look again, in case a message arrived before the producer could see we're idle
+				if ( mSequence.get((int)mHead & mMask) != mHead + 1 ) LockSupport.parkNanos(this, IDLE_NANOS);
+				mIdle = false;
+			}
+		}
+	}
 }
@@ -3,6 +3,8 @@ package edu.uw.cs.cse461.util;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 /**
  * This is a static class implementing a simple sample-based measurement facility.  Subclasses provide
@@ -11,6 +13,12 @@ import java.util.List;
  * <p>
  * Subclasses provide explicit support for sampling elapsed time (summarized by an arithmetic mean) and average
  * transfer rate (summarized by a harmonic mean).
+ * <p>
+ * Samples may be taken by any number of threads at once.  A measurement started by start() on some thread
+ * is ended by stop() or abort() on the same thread, so threads using the same key don't interfere.  (A
+ * measurement that starts on one thread and ends on another can pass the start time along itself, and end
+ * with record().)  To keep threads from contending, each key's samples are kept in several stripes, each
+ * thread recording into one of them; get() merges the stripes.
  * 
  * @author zahorjan
  *
@@ -87,8 +95,71 @@ public class SampledStatistic {
 	//--------------------------------------------------------------------------------------------
 	
 	//--------------------------------------------------------------------------------------------
+	/**
+	 * Elapsed time samples, in msec.  Besides the mean, min and max, a histogram of the samples gives
+	 * percentiles (to within 1%).
+	 */
 	public static class ElapsedTimeInterval extends ArithmeticMeanSet {
-		long   mStartTime = -1;
+		// the samples, in usec.
+		private final LatencyHistogram mHistogram = new LatencyHistogram();
+		
+		public void addSample(double sample) {
+			super.addSample(sample);
+			mHistogram.recordValue(Math.round(sample * 1000.0));
+		}
+		
+		/**
+		 * Adds a sample taken by a measurement loop meant to take one every expectedInterval msec., correcting
+		 * for coordinated omission (see LatencyHistogram): the samples the loop would have taken while it waited
+		 * on this one are added to the percentiles.  The mean, min and max are those of the samples actually taken.
+		 */
+		public void addSample(double sample, double expectedInterval) {
+			super.addSample(sample);
+			mHistogram.recordValue(Math.round(sample * 1000.0), Math.round(expectedInterval * 1000.0));
+		}
+		
+		/**
+		 * The sample value (in msec.) that percentile percent of the samples don't exceed.
+		 * @param percentile 0.0 to 100.0
+		 */
+		public double percentile(double percentile) { return mHistogram.valueAtPercentile(percentile) / 1000.0; }
+		public double p50()  { return percentile(50.0); }
+		public double p90()  { return percentile(90.0); }
+		public double p99()  { return percentile(99.0); }
+		public double p999() { return percentile(99.9); }
+		
+		/**
+		 * A copy of the histogram of the samples, in usec.
+		 */
+		public LatencyHistogram histogram() { return mHistogram.copy(); }
+		
+		/**
+		 * Adds other's samples to this set's (e.g., to combine measurements taken by different threads).
+		 */
+		public void add(ElapsedTimeInterval other) {
+			mNumSamples += other.mNumSamples;
+			mNumAborted += other.mNumAborted;
+			if ( other.mNumSamples > 0 ) {
+				if ( other.mMinSample < mMinSample ) mMinSample = other.mMinSample;
+				if ( other.mMaxSample > mMaxSample ) mMaxSample = other.mMaxSample;
+			}
+			mSampleTotal += other.mSampleTotal;
+			mSquaredSampleTotal += other.mSquaredSampleTotal;
+			mHistogram.add(other.mHistogram);
+		}
+		
+		/**
+		 * A copy of this set of samples, which isn't affected by samples added to this one later.
+		 */
+		public ElapsedTimeInterval copy() {
+			ElapsedTimeInterval result = new ElapsedTimeInterval();
+			result.add(this);
+			return result;
+		}
+		
+		public String toString() {
+			return super.toString() + String.format(" {p50 %.2f, p90 %.2f, p99 %.2f, p99.9 %.2f}", p50(), p90(), p99(), p999());
+		}
 	}
 	//--------------------------------------------------------------------------------------------
 	
@@ -112,6 +183,20 @@ public class SampledStatistic {
 		 */
 		public double mean() { return mSampleTimeTotal > 0.0 ? mSampleDataTotal / mSampleTimeTotal : 0.0; 	}
 		
+		/**
+		 * Adds other's samples to this set's.
+		 */
+		public void add(HarmonicMean other) {
+			mNumSamples += other.mNumSamples;
+			mNumAborted += other.mNumAborted;
+			if ( other.mNumSamples > 0 ) {
+				if ( other.mMinSample < mMinSample ) mMinSample = other.mMinSample;
+				if ( other.mMaxSample > mMaxSample ) mMaxSample = other.mMaxSample;
+			}
+			mSampleTimeTotal += other.mSampleTimeTotal;
+			mSampleDataTotal += other.mSampleDataTotal;
+		}
+		
 		public String toString() {
 			return super.toString() + " {" + mSampleTimeTotal + ", " + mSampleDataTotal + "}";
 		}
@@ -120,8 +205,6 @@ public class SampledStatistic {
 	
 	//--------------------------------------------------------------------------------------------
 	public static class TransferRateInterval extends HarmonicMean {
-		long   mStartTime = -1;
-		
 		public long getDataTotal() {
 			return mSampleDataTotal;
 		}
@@ -133,18 +216,82 @@ public class SampledStatistic {
 	//--------------------------------------------------------------------------------------------
 	//--------------------------------------------------------------------------------------------
 
-	private static class SampleSetManager<T extends SampleSet> extends HashMap<String, T> {
+	/**
+	 * The samples of each key, kept in stripes.  A thread records into the stripe its id hashes to, holding
+	 * that stripe's lock; since threads seldom share a stripe, the lock is seldom contended.  (A sample
+	 * updates several fields that have to agree with each other, so a lock is simpler than atomic updates.)
+	 * Stripes are created when first used.
+	 */
+	private static abstract class SampleSetManager<T extends SampleSet> {
+		private static final int NSTRIPES = _stripeCount();
+
+		private final ConcurrentHashMap<String, AtomicReferenceArray<T>> mSets = new ConcurrentHashMap<String, AtomicReferenceArray<T>>();
+
+		private static int _stripeCount() {
+			int count = 1;
+			while ( count < 2 * Runtime.getRuntime().availableProcessors() && count < 64 ) count *= 2;
+			return count;
+		}
+
+		abstract T newSampleSet();
+
+		/**
+		 * Adds from's samples to into's.
+		 */
+		abstract void merge(T into, T from);
+
+		/**
+		 * The stripe of key's samples the calling thread records into.  Update it only while holding its lock.
+		 */
+		T stripe(String key) {
+			AtomicReferenceArray<T> stripes = mSets.get(key);
+			if ( stripes == null ) {
+				AtomicReferenceArray<T> newStripes = new AtomicReferenceArray<T>(NSTRIPES);
+				stripes = mSets.putIfAbsent(key, newStripes);
+				if ( stripes == null ) stripes = newStripes;
+			}
+			// spread thread ids, which are usually consecutive, over the stripes
+			int index = (int)((Thread.currentThread().getId() * 0x9E3779B97F4A7C15L) >>> 32) & (NSTRIPES - 1);
+			T stripe = stripes.get(index);
+			if ( stripe == null ) {
+				stripes.compareAndSet(index, null, newSampleSet());
+				stripe = stripes.get(index);
+			}
+			return stripe;
+		}
+
+		/**
+		 * All of key's samples, merged into a new set, or null if there have been none.
+		 */
+		T get(String key) {
+			AtomicReferenceArray<T> stripes = mSets.get(key);
+			if ( stripes == null ) return null;
+			T result = newSampleSet();
+			for ( int i=0; i<stripes.length(); i++ ) {
+				T stripe = stripes.get(i);
+				if ( stripe == null ) continue;
+				synchronized(stripe) {
+					merge(result, stripe);
+				}
+			}
+			return result;
+		}
+
+		void clear() {
+			mSets.clear();
+		}
 
 		/**
 		 * Format a string containing simple measures of samples taken for all timers.
-		 * @return Simple measures (e.g., mean, min, and max) for all timers. 
+		 * @return Simple measures (e.g., mean, min, and max) for all timers.
 		 */
 		public String statString() {
 			StringBuilder sb = new StringBuilder();
-			List<String> timerList = new ArrayList<String>(keySet());
-			java.util.Collections.sort(timerList);		
+			List<String> timerList = new ArrayList<String>(mSets.keySet());
+			java.util.Collections.sort(timerList);
 			for ( String k : timerList ) {
-				sb.append(k).append(": ").append(get(k).toString()).append("\n");
+				T set = get(k);
+				if ( set != null ) sb.append(k).append(": ").append(set.toString()).append("\n");
 			}
 			return sb.toString();
 		}
@@ -155,17 +302,57 @@ public class SampledStatistic {
 		 */
 		public String meanString() {
 			StringBuilder sb = new StringBuilder();
-			for ( String k : keySet() ) {
-				sb.append(k).append(": ").append(String.format("%6.2f", get(k).mean())).append("\n");
+			for ( String k : mSets.keySet() ) {
+				T set = get(k);
+				if ( set != null ) sb.append(k).append(": ").append(String.format("%6.2f", set.mean())).append("\n");
 			}
 			return sb.toString();
 		}
 
 	}
 
+	/**
+	 * The start times of the measurements each thread has in progress, by key.
+	 */
+	private static class StartTimes extends ThreadLocal<HashMap<String, Long>> {
+		@Override
+		protected HashMap<String, Long> initialValue() {
+			return new HashMap<String, Long>();
+		}
+
+		long start(String key) {
+			if ( key == null ) throw new RuntimeException("Timer key can't be null");
+			HashMap<String, Long> starts = get();
+			if ( starts.containsKey(key) ) {
+				throw new RuntimeException("start(" + key + ") called but am already had a start call with no matching stop");
+			}
+			long startTime = System.nanoTime();
+			starts.put(key, startTime);
+			return startTime;
+		}
+
+		/**
+		 * Ends the calling thread's measurement for key.
+		 * @return Its start time, or null if it has none
+		 */
+		Long end(String key) {
+			if ( key == null ) throw new RuntimeException("Timer key can't be null");
+			return get().remove(key);
+		}
+
+		/**
+		 * Forgets the calling thread's measurement for key if it's the one that started at startTime.
+		 */
+		void end(String key, long startTime) {
+			HashMap<String, Long> starts = get();
+			Long start = starts.get(key);
+			if ( start != null && start.longValue() == startTime ) starts.remove(key);
+		}
+	}
+
 	//--------------------------------------------------------------------------------------------
 
-	
+
 	//--------------------------------------------------------------------------------------------
 	//--------------------------------------------------------------------------------------------
 	//--------------------------------------------------------------------------------------------
@@ -173,51 +360,85 @@ public class SampledStatistic {
 	/**
 	 * Class to simplify making elapsed time measurements.  Basically, call ElapsedTime.start("foo") at the beginning
 	 * of a block of code and then ElapsedTime.stop("foo") at the end of the block to create an elapsed time sample
-	 * associated with key "foo".  (If some unusual condition occurs after calling start(), you can/must call 
+	 * associated with key "foo".  (If some unusual condition occurs after calling start(), you can/must call
 	 * ElapsedTime.abort("foo") to cancel the current measurement.)
+	 * <p>
+	 * Any number of threads may time the same key at once; each thread's start() is matched with its own stop().
 	 * @author zahorjan
 	 *
 	 */
 	public static class ElapsedTime {
 		private static double MSEC_SCALE = 1.0/1000000.0;
-		
-		private static SampleSetManager<ElapsedTimeInterval> mSampleSetManager = new SampleSetManager<ElapsedTimeInterval>(); 
-		
+
+		private static SampleSetManager<ElapsedTimeInterval> mSampleSetManager = new SampleSetManager<ElapsedTimeInterval>() {
+			@Override
+			ElapsedTimeInterval newSampleSet() { return new ElapsedTimeInterval(); }
+			@Override
+			void merge(ElapsedTimeInterval into, ElapsedTimeInterval from) { into.add(from); }
+		};
+		private static StartTimes mStartTimes = new StartTimes();
+
 		/**
 		 * Indicate the start of an elapsed time interval.  The interval should be terminated by calling stop()
-		 * or abort().
+		 * or abort(), on the same thread.
 		 * @param key The arbitary name of a timer (e.g., ElapsedTime.start("foo")).
+		 * @return The start time (as System.nanoTime()), which can be passed to record()
 		 */
-		public static void start(String key) {
-			if ( key == null ) throw new RuntimeException("ElapsedTime key can't be null");
-			ElapsedTimeInterval entry = mSampleSetManager.get(key);
-			if ( entry == null ) {
-				entry = new ElapsedTimeInterval();
-				mSampleSetManager.put(key,  entry);
-			}
-			
-			if ( entry.mStartTime > 0 ) {
-				throw new RuntimeException("start(" + key + ") called but am already had a start call with no matching stop");
-			}
-			entry.mStartTime = System.nanoTime();
+		public static long start(String key) {
+			return mStartTimes.start(key);
 		}
 
 		/**
 		 * Indicate that an elapsed time sample should be taken.  The sample is the time that has passed since the last start() call with the name timer name
-		 * (the argument key).  It is an error to call stop if there has been no corresponding call to start.
+		 * (the argument key), by this thread.  It is an error to call stop if there has been no corresponding call to start.
 		 * @param key The name of the timer with which to record the new elapsed time sample.
 		 * @return The length of the measured interval, in msec.
 		 */
 		public static double stop(String key) {
+			Long startTime = mStartTimes.end(key);
+			if ( startTime == null ) throw new RuntimeException("stop(" + key + ") called but there was no matching start");
+			double sample = (System.nanoTime() - startTime) * MSEC_SCALE;
+			ElapsedTimeInterval entry = mSampleSetManager.stripe(key);
+			synchronized(entry) {
+				entry.addSample(sample);
+			}
+			return sample;
+		}
+
+		/**
+		 * Like stop(key), but for measurements meant to be started every expectedInterval msec.  If this one
+		 * took longer than that, the samples that would have been taken in the meantime are added to the
+		 * timer's percentiles.  (See LatencyHistogram on coordinated omission.)
+		 * @return The length of the measured interval, in msec.
+		 */
+		public static double stop(String key, double expectedInterval) {
+			Long startTime = mStartTimes.end(key);
+			if ( startTime == null ) throw new RuntimeException("stop(" + key + ") called but there was no matching start");
+			double sample = (System.nanoTime() - startTime) * MSEC_SCALE;
+			ElapsedTimeInterval entry = mSampleSetManager.stripe(key);
+			synchronized(entry) {
+				entry.addSample(sample, expectedInterval);
+			}
+			return sample;
+		}
+
+		/**
+		 * Records the time that has passed since startTime as a sample, without regard to which thread
+		 * started the measurement.
+		 * @param startTime A value returned by start() or System.nanoTime()
+		 * @return The length of the measured interval, in msec.
+		 */
+		public static double record(String key, long startTime) {
 			if ( key == null ) throw new RuntimeException("ElapsedTime key can't be null");
-			ElapsedTimeInterval entry = mSampleSetManager.get(key);
-			if ( entry == null || entry.mStartTime < 0 ) throw new RuntimeException("stop(" + key + ") called but there was no matching start");
-			double sample = (System.nanoTime() - entry.mStartTime) * MSEC_SCALE;
-			entry.mStartTime = -1;
-			entry.addSample(sample);
+			mStartTimes.end(key, startTime);
+			double sample = (System.nanoTime() - startTime) * MSEC_SCALE;
+			ElapsedTimeInterval entry = mSampleSetManager.stripe(key);
+			synchronized(entry) {
+				entry.addSample(sample);
+			}
 			return sample;
 		}
-		
+
 		/**
 		 * Indicates that the elapsed time since start() was called is no longer of interest, and so no new sample should be generated by ending the
 		 * measurement interval.  This might happen, for instance, if some exceptional condition occurs.
@@ -227,16 +448,29 @@ public class SampledStatistic {
 		 * @return The length of the measured interval, in msec.
 		 */
 		public static double abort(String key) {
-			if ( key == null ) throw new RuntimeException("ElapsedTime key can't be null");
-			ElapsedTimeInterval entry = mSampleSetManager.get(key);
-			if ( entry == null || entry.mStartTime < 0 ) return 0.0;
-			double sample = (System.nanoTime() - entry.mStartTime) * MSEC_SCALE;
-			entry.mStartTime = -1;
-
-			entry.abort();
+			Long startTime = mStartTimes.end(key);
+			if ( startTime == null ) return 0.0;
+			double sample = (System.nanoTime() - startTime) * MSEC_SCALE;
+			recordAbort(key);
 			return sample;
 		}
-		
+
+		/**
+		 * Counts an aborted measurement, without regard to which thread started it.
+		 */
+		public static void recordAbort(String key) {
+			if ( key == null ) throw new RuntimeException("ElapsedTime key can't be null");
+			ElapsedTimeInterval entry = mSampleSetManager.stripe(key);
+			synchronized(entry) {
+				entry.abort();
+			}
+		}
+
+		/**
+		 * All the samples taken for key so far, by all threads.  The result is a copy, which isn't updated
+		 * by later samples.
+		 * @return The samples, or null if none have been recorded for key
+		 */
 		public static ElapsedTimeInterval get(String key) {
 			if ( key == null ) throw new RuntimeException("ElapsedTime key can't be null");
 			return mSampleSetManager.get(key);
@@ -246,7 +480,7 @@ public class SampledStatistic {
 		 * Reset all sample sets.
 		 */
 		public static void clear() { mSampleSetManager.clear(); }
-		
+
 		/**
 		 * Returns String with summary information on all keys
 		 */
@@ -268,49 +502,61 @@ public class SampledStatistic {
 	/**
 	 * Class to simplify making transfer rate measurements.  Basically, call ElapsedTime.start("foo") at the beginning
 	 * of a block of code and then ElapsedTime.stop("foo") at the end of the block to create an elapsed time sample
-	 * associated with key "foo".  (If some unusual condition occurs after calling start(), you can/must call 
+	 * associated with key "foo".  (If some unusual condition occurs after calling start(), you can/must call
 	 * ElapsedTime.abort("foo") to cancel the current measurement.)
+	 * <p>
+	 * As with ElapsedTime, each thread's start() is matched with its own stop().
 	 * @author zahorjan
 	 *
 	 */
 	public static class TransferRate {
 		private static double MSEC_SCALE = 1.0/1000000.0;
 
-		private static SampleSetManager<TransferRateInterval> mSampleSetManager = new SampleSetManager<TransferRateInterval>(); 
+		private static SampleSetManager<TransferRateInterval> mSampleSetManager = new SampleSetManager<TransferRateInterval>() {
+			@Override
+			TransferRateInterval newSampleSet() { return new TransferRateInterval(); }
+			@Override
+			void merge(TransferRateInterval into, TransferRateInterval from) { into.add(from); }
+		};
+		private static StartTimes mStartTimes = new StartTimes();
 
 		/**
 		 * Indicate the start of an elapsed time interval.  The interval should be terminated by calling stop()
-		 * or abort().
+		 * or abort(), on the same thread.
 		 * @param key The arbitary name of a timer (e.g., ElapsedTime.start("foo")).
+		 * @return The start time (as System.nanoTime()), which can be passed to record()
 		 */
-		public static void start(String key) {
-			if ( key == null ) throw new RuntimeException("ElapsedTime key can't be null");
-			TransferRateInterval entry = mSampleSetManager.get(key);
-			if ( entry == null ) {
-				entry = new TransferRateInterval();
-				mSampleSetManager.put(key,  entry);
-			}
-
-			if ( entry.mStartTime > 0 ) {
-				throw new RuntimeException("start(" + key + ") called but am already had a start call with no matching stop");
-			}
-			entry.mStartTime = System.nanoTime();
+		public static long start(String key) {
+			return mStartTimes.start(key);
 		}
 
 		/**
 		 * Indicate that an elapsed time sample should be taken.  The sample is the time that has passed since the last start() call with the name timer name
-		 * (the argument key).  It is an error to call stop if there has been no corresponding call to start.
+		 * (the argument key), by this thread.  It is an error to call stop if there has been no corresponding call to start.
 		 * @param key The name of the timer with which to record the new elapsed time sample.
 		 * @param dataAmount The amount of data transfered during this interval.
 		 * @return The length of the measured interval, in msec.
 		 */
 		public static double stop(String key, long dataAmount) {
+			Long startTime = mStartTimes.end(key);
+			if ( startTime == null ) throw new RuntimeException("stop(" + key + ") called but there was no matching start");
+			return record(key, startTime, dataAmount);
+		}
+
+		/**
+		 * Records a transfer of dataAmount that started at startTime, without regard to which thread started
+		 * the measurement.
+		 * @param startTime A value returned by start() or System.nanoTime()
+		 * @return The transfer rate
+		 */
+		public static double record(String key, long startTime, long dataAmount) {
 			if ( key == null ) throw new RuntimeException("ElapsedTime key can't be null");
-			TransferRateInterval entry = mSampleSetManager.get(key);
-			if ( entry == null || entry.mStartTime < 0 ) throw new RuntimeException("stop(" + key + ") called but there was no matching start");
-			double timeSample = (System.nanoTime() - entry.mStartTime) * MSEC_SCALE;
-			entry.mStartTime = -1;
-			entry.addSample(timeSample, dataAmount);
+			mStartTimes.end(key, startTime);
+			double timeSample = (System.nanoTime() - startTime) * MSEC_SCALE;
+			TransferRateInterval entry = mSampleSetManager.stripe(key);
+			synchronized(entry) {
+				entry.addSample(timeSample, dataAmount);
+			}
 			return timeSample > 0.0 ? dataAmount / timeSample : Double.MAX_VALUE;
 		}
 
@@ -323,17 +569,30 @@ public class SampledStatistic {
 		 * @return The length of the measured interval, in msec.
 		 */
 		public static double abort(String key, long dataAmount) {
-			if ( key == null ) throw new RuntimeException("ElapsedTime key can't be null");
-			TransferRateInterval entry = mSampleSetManager.get(key);
-			if ( entry == null || entry.mStartTime < 0 ) return 0.0;
-			double sample = (System.nanoTime() - entry.mStartTime) * MSEC_SCALE;
+			Long startTime = mStartTimes.end(key);
+			if ( startTime == null ) return 0.0;
+			double sample = (System.nanoTime() - startTime) * MSEC_SCALE;
 			sample = sample > 0.0 ? sample = dataAmount / sample : Double.MAX_VALUE;
-			entry.mStartTime = -1;
-
-			entry.abort();
+			recordAbort(key);
 			return sample;
 		}
 
+		/**
+		 * Counts an aborted measurement, without regard to which thread started it.
+		 */
+		public static void recordAbort(String key) {
+			if ( key == null ) throw new RuntimeException("ElapsedTime key can't be null");
+			TransferRateInterval entry = mSampleSetManager.stripe(key);
+			synchronized(entry) {
+				entry.abort();
+			}
+		}
+
+		/**
+		 * All the samples taken for key so far, by all threads.  The result is a copy, which isn't updated
+		 * by later samples.
+		 * @return The samples, or null if none have been recorded for key
+		 */
 		public static TransferRateInterval get(String key) {
 			if ( key == null ) throw new RuntimeException("ElapsedTime key can't be null");
 			return mSampleSetManager.get(key);